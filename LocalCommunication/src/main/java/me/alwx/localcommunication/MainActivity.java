@@ -6,7 +6,6 @@ import android.content.Intent;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.View;
@@ -20,9 +19,10 @@ import java.util.HashMap;
 
 import me.alwx.localcommunication.connection.Communication;
 import me.alwx.localcommunication.connection.Connection;
+import me.alwx.localcommunication.connection.ConnectionConfig;
 import me.alwx.localcommunication.connection.ConnectionWrapper;
-import me.alwx.localcommunication.connection.MessageHandler;
-import me.alwx.localcommunication.connection.NetworkDiscovery;
+import me.alwx.localcommunication.connection.MessageDispatcher;
+import me.alwx.localcommunication.connection.ServerSelectors;
 
 public class MainActivity extends Activity {
   private static final String DEBUG_TAG = MainActivity.class.getName();
@@ -41,7 +41,7 @@ public class MainActivity extends Activity {
       } else {
         getConnectionWrapper().stopNetworkDiscovery();
         getConnectionWrapper().startServer();
-        getConnectionWrapper().setHandler(mServerHandler);
+        getConnectionWrapper().setFrameListener(mServerDispatcher, null);
       }
     }
   };
@@ -65,31 +65,31 @@ public class MainActivity extends Activity {
     }
   };
 
-  private Handler mServerHandler = new MessageHandler(MainActivity.this) {
+  private MessageDispatcher mServerDispatcher = new MessageDispatcher();
+  private MessageDispatcher mClientDispatcher = new MessageDispatcher();
+
+  private MessageDispatcher.OnMessageListener mConnectListener = new MessageDispatcher.OnMessageListener() {
     @Override
-    public void onMessage(String type, JSONObject message) {
+    public void onMessage(String peer, JSONObject message) {
       try {
-        if (type.equals(Communication.Connect.TYPE)) {
-          final String deviceFrom = message.getString(Communication.Connect.DEVICE);
-          Toast.makeText(getApplicationContext(), "Device: " + deviceFrom, Toast.LENGTH_SHORT).show();
-          getConnectionWrapper().send(
-              new HashMap<String, String>() {{
-                put(Communication.MESSAGE_TYPE, Communication.ConnectSuccess.TYPE);
-              }}
-          );
-        }
+        final String deviceFrom = message.getString(Communication.Connect.DEVICE);
+        Toast.makeText(getApplicationContext(), "Device: " + deviceFrom, Toast.LENGTH_SHORT).show();
+        getConnectionWrapper().send(
+            peer,
+            new HashMap<String, String>() {{
+              put(Communication.MESSAGE_TYPE, Communication.ConnectSuccess.TYPE);
+            }}
+        );
       } catch (JSONException e) {
         Log.d(DEBUG_TAG, "JSON parsing exception: " + e);
       }
     }
   };
 
-  private Handler mClientHandler = new MessageHandler(MainActivity.this) {
+  private MessageDispatcher.OnMessageListener mConnectSuccessListener = new MessageDispatcher.OnMessageListener() {
     @Override
-    public void onMessage(String type, JSONObject message) {
-      if (type.equals(Communication.ConnectSuccess.TYPE)) {
-        Toast.makeText(getApplicationContext(), "Connection succesfully performed!", Toast.LENGTH_SHORT).show();
-      }
+    public void onMessage(String peer, JSONObject message) {
+      Toast.makeText(getApplicationContext(), "Connection succesfully performed!", Toast.LENGTH_SHORT).show();
     }
   };
 
@@ -102,6 +102,11 @@ public class MainActivity extends Activity {
     mButtonConnect = (Button) findViewById(R.id.button_connect);
     mButtonConnect.setEnabled(false);
 
+    mServerDispatcher.register(Communication.Connect.TYPE,
+        MessageDispatcher.ThreadMode.MAIN, mConnectListener);
+    mClientDispatcher.register(Communication.ConnectSuccess.TYPE,
+        MessageDispatcher.ThreadMode.MAIN, mConnectSuccessListener);
+
     ((SampleApplication) getApplication()).createConnectionWrapper(
         new ConnectionWrapper.OnCreatedListener() {
           @Override
@@ -135,20 +140,12 @@ public class MainActivity extends Activity {
   }
 
   private void connect() {
-    getConnectionWrapper().findServers(new NetworkDiscovery.OnFoundListener() {
-      @Override
-      public void onFound(javax.jmdns.ServiceInfo info) {
-        if (info != null && info.getInet4Addresses().length > 0) {
-          getConnectionWrapper().stopNetworkDiscovery();
-          getConnectionWrapper().connectToServer(
-              info.getInet4Addresses()[0],
-              info.getPort(),
-              mConnectionListener
-          );
-          getConnectionWrapper().setHandler(mClientHandler);
-        }
-      }
-    });
+    ConnectionConfig config = getConnectionWrapper().getConfig();
+    config.setHeartbeat(5000, 15000);
+    config.setReconnect(true);
+    getConnectionWrapper().setFrameListener(mClientDispatcher, null);
+    getConnectionWrapper().connectToServer(ServerSelectors.leastConnections(),
+        mConnectionListener, null);
   }
 
   private ConnectionWrapper getConnectionWrapper() {
@@ -16,8 +16,18 @@ public class SampleApplication extends Application {
     super.onCreate();
   }
 
+  /**
+   * creates new wrapper & closes previous one; new wrapper is created first,
+   * so shared discovery stays warm between them
+   *
+   * @param listener listener, that will be called after all preparation finished
+   */
   public void createConnectionWrapper(ConnectionWrapper.OnCreatedListener listener) {
+    ConnectionWrapper previous = mConnectionWrapper;
     mConnectionWrapper = new ConnectionWrapper(getApplicationContext(), listener);
+    if (previous != null) {
+      previous.close();
+    }
   }
 
   public ConnectionWrapper getConnectionWrapper() {
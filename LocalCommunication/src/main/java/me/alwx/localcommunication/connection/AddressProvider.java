@@ -0,0 +1,28 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.InetAddress;
+
+/**
+ * local network address discovery runs on, see
+ * {@link me.alwx.localcommunication.connection.NetworkDiscovery#NetworkDiscovery(AddressProvider)}
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public interface AddressProvider {
+  /**
+   * starts watching network, multicast packets must be received from now on
+   *
+   * @param onChanged called on any thread when address may have changed
+   */
+  void start(Runnable onChanged);
+
+  void stop();
+
+  /**
+   * returns current address
+   *
+   * @return address or null when there is no network
+   */
+  InetAddress getAddress();
+}
@@ -0,0 +1,48 @@
+package me.alwx.localcommunication.connection;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+
+/**
+ * platform of Android devices: logcat & the main looper
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class AndroidPlatform extends Platform {
+  private final Logger mLogger = new Logger() {
+    @Override
+    public boolean isLoggable(String tag, int level) {
+      return Log.isLoggable(tag, level);
+    }
+
+    @Override
+    public void log(int level, String tag, String message, Throwable throwable) {
+      if (throwable != null) {
+        message += '\n' + Log.getStackTraceString(throwable);
+      }
+      Log.println(level, tag, message);
+    }
+  };
+  private final Executor mMainExecutor = new Executor() {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable command) {
+      mHandler.post(command);
+    }
+  };
+
+  @Override
+  public Logger getLogger() {
+    return mLogger;
+  }
+
+  @Override
+  public Executor getMainExecutor() {
+    return mMainExecutor;
+  }
+}
@@ -0,0 +1,613 @@
+package me.alwx.localcommunication.connection;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * compact tag/length/value codec:
+ * varint field count, then for every field a key and a tagged value;
+ * keys & string values found in the dictionary are sent as small ids,
+ * message type always goes first so {@link #decodeType(byte[])} reads a couple of bytes only;
+ * nested maps & JSON objects decode to JSONObject, collections & JSON arrays to JSONArray,
+ * the same shapes {@link JsonCodec} gives
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class BinaryCodec implements MessageCodec {
+  public static final int ID = 1;
+
+  /**
+   * strings shared by every device, ids are positions in this list,
+   * so new entries must only be appended
+   */
+  public static final List<String> DEFAULT_DICTIONARY = Collections.unmodifiableList(Arrays.asList(
+      Communication.MESSAGE_TYPE,
+      Communication.Connect.TYPE,
+      Communication.Connect.DEVICE,
+      Communication.ConnectSuccess.TYPE
+  ));
+
+  public static final BinaryCodec INSTANCE = new BinaryCodec(DEFAULT_DICTIONARY);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int TAG_NULL = 0;
+  private static final int TAG_FALSE = 1;
+  private static final int TAG_TRUE = 2;
+  private static final int TAG_INT = 3;
+  private static final int TAG_DOUBLE = 4;
+  private static final int TAG_STRING = 5;
+  private static final int TAG_DICT_STRING = 6;
+  private static final int TAG_BYTES = 7;
+  /**
+   * string from connection's {@link StringTable}, appears only on the wire between framings
+   */
+  private static final int TAG_INTERNED_STRING = 8;
+  /**
+   * field count, then fields like the ones of the message itself
+   */
+  private static final int TAG_OBJECT = 9;
+  /**
+   * element count, then tagged values
+   */
+  private static final int TAG_ARRAY = 10;
+  /**
+   * deepest nesting accepted, so a hostile message can't overflow the stack
+   */
+  private static final int MAX_DEPTH = 32;
+
+  private static final ThreadLocal<Output> OUTPUT = new ThreadLocal<Output>() {
+    @Override
+    protected Output initialValue() {
+      return new Output();
+    }
+  };
+
+  private final String[] mDictionary;
+  private final Map<String, Integer> mIds = new HashMap<String, Integer>();
+  private final int mTypeId;
+
+  /**
+   * creates codec with custom dictionary, all peers must use the same one
+   *
+   * @param dictionary frequent keys & values
+   */
+  public BinaryCodec(List<String> dictionary) {
+    mDictionary = dictionary.toArray(new String[dictionary.size()]);
+    for (int i = 0; i < mDictionary.length; i++) {
+      mIds.put(mDictionary[i], i);
+    }
+    Integer typeId = mIds.get(Communication.MESSAGE_TYPE);
+    mTypeId = typeId != null ? typeId : -1;
+  }
+
+  @Override
+  public int getId() {
+    return ID;
+  }
+
+  /**
+   * @throws IllegalArgumentException if values are nested deeper than {@link #MAX_DEPTH}
+   */
+  @Override
+  public byte[] encode(Map<String, ?> values) {
+    Output out = OUTPUT.get();
+    out.reset();
+    out.writeVarint(values.size());
+    Object type = values.get(Communication.MESSAGE_TYPE);
+    if (type != null || values.containsKey(Communication.MESSAGE_TYPE)) {
+      writeString(out, Communication.MESSAGE_TYPE, true);
+      writeValue(out, type, 0);
+    }
+    for (Map.Entry<String, ?> entry : values.entrySet()) {
+      if (!Communication.MESSAGE_TYPE.equals(entry.getKey())) {
+        writeString(out, entry.getKey(), true);
+        writeValue(out, entry.getValue(), 0);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public JSONObject decode(byte[] data) throws JSONException {
+    Input in = new Input(data);
+    long count = in.readVarint();
+    JSONObject result = new JSONObject();
+    for (long i = 0; i < count; i++) {
+      String key = readKey(in);
+      result.put(key, readValue(in, 0));
+    }
+    in.checkEnd();
+    return result;
+  }
+
+  @Override
+  public String decodeType(byte[] data) throws JSONException {
+    Input in = new Input(data);
+    long count = in.readVarint();
+    for (long i = 0; i < count; i++) {
+      String key = readKey(in);
+      if (Communication.MESSAGE_TYPE.equals(key)) {
+        Object value = readValue(in, 0);
+        return value != null && value != JSONObject.NULL ? value.toString() : null;
+      }
+      skipValue(in, 0);
+    }
+    return null;
+  }
+
+  private void writeString(Output out, String s, boolean key) {
+    Integer id = mIds.get(s);
+    if (key) {
+      // key: 0 = literal follows, n = dictionary entry n - 1
+      if (id != null) {
+        out.writeVarint(id + 1);
+      } else {
+        out.writeVarint(0);
+        out.writeText(s);
+      }
+    } else if (id != null) {
+      out.write(TAG_DICT_STRING);
+      out.writeVarint(id);
+    } else {
+      out.write(TAG_STRING);
+      out.writeText(s);
+    }
+  }
+
+  private void writeValue(Output out, Object value, int depth) {
+    if (value == null || value == JSONObject.NULL) {
+      out.write(TAG_NULL);
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof Integer || value instanceof Long
+        || value instanceof Short || value instanceof Byte) {
+      long v = ((Number) value).longValue();
+      out.write(TAG_INT);
+      out.writeVarint((v << 1) ^ (v >> 63));
+    } else if (value instanceof Number) {
+      long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+      out.write(TAG_DOUBLE);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        out.write((int) (bits >>> shift));
+      }
+    } else if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      out.write(TAG_BYTES);
+      out.writeVarint(bytes.length);
+      out.write(bytes, 0, bytes.length);
+    } else if (value instanceof Map || value instanceof JSONObject) {
+      writeObject(out, value, depth + 1);
+    } else if (value instanceof Collection || value instanceof JSONArray) {
+      writeArray(out, value, depth + 1);
+    } else {
+      writeString(out, value.toString(), false);
+    }
+  }
+
+  private void writeObject(Output out, Object value, int depth) {
+    checkDepth(depth);
+    out.write(TAG_OBJECT);
+    if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      out.writeVarint(object.length());
+      for (Iterator<?> keys = object.keys(); keys.hasNext(); ) {
+        String key = (String) keys.next();
+        writeString(out, key, true);
+        writeValue(out, object.opt(key), depth);
+      }
+    } else {
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeVarint(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeString(out, String.valueOf(entry.getKey()), true);
+        writeValue(out, entry.getValue(), depth);
+      }
+    }
+  }
+
+  private void writeArray(Output out, Object value, int depth) {
+    checkDepth(depth);
+    out.write(TAG_ARRAY);
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      out.writeVarint(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        writeValue(out, array.opt(i), depth);
+      }
+    } else {
+      Collection<?> collection = (Collection<?>) value;
+      out.writeVarint(collection.size());
+      for (Object element : collection) {
+        writeValue(out, element, depth);
+      }
+    }
+  }
+
+  private static void checkDepth(int depth) {
+    if (depth > MAX_DEPTH) {
+      throw new IllegalArgumentException("Values nested deeper than " + MAX_DEPTH + " levels");
+    }
+  }
+
+  private String readKey(Input in) throws JSONException {
+    long id = in.readVarint();
+    return id == 0 ? in.readText() : dictionary(id - 1);
+  }
+
+  private Object readValue(Input in, int depth) throws JSONException {
+    int tag = in.read();
+    switch (tag) {
+      case TAG_NULL:
+        return JSONObject.NULL;
+      case TAG_FALSE:
+        return Boolean.FALSE;
+      case TAG_TRUE:
+        return Boolean.TRUE;
+      case TAG_INT:
+        long v = in.readVarint();
+        long decoded = (v >>> 1) ^ -(v & 1);
+        if (decoded == (int) decoded) {
+          return (int) decoded;
+        }
+        return decoded;
+      case TAG_DOUBLE:
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+          bits = (bits << 8) | in.read();
+        }
+        return Double.longBitsToDouble(bits);
+      case TAG_STRING:
+        return in.readText();
+      case TAG_DICT_STRING:
+        return dictionary(in.readVarint());
+      case TAG_BYTES:
+        return in.readBytes();
+      case TAG_OBJECT:
+        checkNesting(depth + 1);
+        long fields = in.readVarint();
+        JSONObject object = new JSONObject();
+        for (long i = 0; i < fields; i++) {
+          String key = readKey(in);
+          object.put(key, readValue(in, depth + 1));
+        }
+        return object;
+      case TAG_ARRAY:
+        checkNesting(depth + 1);
+        long elements = in.readVarint();
+        JSONArray array = new JSONArray();
+        for (long i = 0; i < elements; i++) {
+          array.put(readValue(in, depth + 1));
+        }
+        return array;
+      default:
+        throw new JSONException("Unknown value tag: " + tag);
+    }
+  }
+
+  private static void checkNesting(int depth) throws JSONException {
+    if (depth > MAX_DEPTH) {
+      throw new JSONException("Message nested deeper than " + MAX_DEPTH + " levels");
+    }
+  }
+
+  /**
+   * rewrites message for {@link Connection.Compression#INTERN}: literal keys & strings
+   * already in table become its ids, new ones are added to it;
+   * keys are doubled so odd numbers mean table ids, dictionary ids stay as they are
+   *
+   * @param data  message
+   * @param table table of sending direction, unchanged if message is invalid
+   * @return rewritten message
+   * @throws JSONException if message is invalid
+   */
+  static byte[] intern(byte[] data, StringTable table) throws JSONException {
+    Input in = new Input(data);
+    Output out = OUTPUT.get();
+    out.reset();
+    int mark = table.size();
+    try {
+      long count = in.readVarint();
+      out.writeVarint(count);
+      for (long i = 0; i < count; i++) {
+        long key = in.readVarint();
+        if (key == 0) {
+          String text = in.readText();
+          int id = table.find(text);
+          if (id >= 0) {
+            out.writeVarint(2L * id + 1);
+          } else {
+            out.writeVarint(0);
+            out.writeText(text);
+            table.add(text);
+          }
+        } else {
+          out.writeVarint(2 * key);
+        }
+        int start = in.mPosition;
+        if (in.read() == TAG_STRING) {
+          String text = in.readText();
+          int id = table.find(text);
+          if (id >= 0) {
+            out.write(TAG_INTERNED_STRING);
+            out.writeVarint(id);
+          } else {
+            out.write(TAG_STRING);
+            out.writeText(text);
+            table.add(text);
+          }
+        } else {
+          in.mPosition = start;
+          skipValue(in, 0);
+          out.write(data, start, in.mPosition - start);
+        }
+      }
+      in.checkEnd();
+      return out.toByteArray();
+    } catch (JSONException e) {
+      table.truncate(mark);
+      throw e;
+    }
+  }
+
+  /**
+   * restores message rewritten by {@link #intern(byte[], StringTable)}
+   *
+   * @param data  rewritten message
+   * @param table table of receiving direction
+   * @return message
+   * @throws JSONException if message is invalid or refers to unknown ids
+   */
+  static byte[] expand(byte[] data, StringTable table) throws JSONException {
+    Input in = new Input(data);
+    Output out = OUTPUT.get();
+    out.reset();
+    long count = in.readVarint();
+    out.writeVarint(count);
+    for (long i = 0; i < count; i++) {
+      long key = in.readVarint();
+      if (key % 2 == 1) {
+        out.writeVarint(0);
+        out.writeText(table.get(key / 2));
+      } else if (key == 0) {
+        String text = in.readText();
+        table.add(text);
+        out.writeVarint(0);
+        out.writeText(text);
+      } else {
+        out.writeVarint(key / 2);
+      }
+      int start = in.mPosition;
+      int tag = in.read();
+      if (tag == TAG_INTERNED_STRING) {
+        out.write(TAG_STRING);
+        out.writeText(table.get(in.readVarint()));
+      } else {
+        if (tag == TAG_STRING) {
+          table.add(in.readText());
+        } else {
+          in.mPosition = start;
+          skipValue(in, 0);
+        }
+        out.write(data, start, in.mPosition - start);
+      }
+    }
+    in.checkEnd();
+    return out.toByteArray();
+  }
+
+  private static void skipValue(Input in, int depth) throws JSONException {
+    int tag = in.read();
+    switch (tag) {
+      case TAG_NULL:
+      case TAG_FALSE:
+      case TAG_TRUE:
+        break;
+      case TAG_INT:
+      case TAG_DICT_STRING:
+        in.readVarint();
+        break;
+      case TAG_DOUBLE:
+        in.skip(8);
+        break;
+      case TAG_STRING:
+      case TAG_BYTES:
+        in.skip(in.readLength());
+        break;
+      case TAG_OBJECT:
+        checkNesting(depth + 1);
+        long fields = in.readVarint();
+        for (long i = 0; i < fields; i++) {
+          if (in.readVarint() == 0) {
+            in.skip(in.readLength());
+          }
+          skipValue(in, depth + 1);
+        }
+        break;
+      case TAG_ARRAY:
+        checkNesting(depth + 1);
+        long elements = in.readVarint();
+        for (long i = 0; i < elements; i++) {
+          skipValue(in, depth + 1);
+        }
+        break;
+      default:
+        throw new JSONException("Unknown value tag: " + tag);
+    }
+  }
+
+  private String dictionary(long id) throws JSONException {
+    if (id < 0 || id >= mDictionary.length) {
+      throw new JSONException("Unknown dictionary id: " + id);
+    }
+    return mDictionary[(int) id];
+  }
+
+  /**
+   * strings one direction of a connection has sent so far, see {@link #intern(byte[], StringTable)};
+   * both ends add the same strings in the same order, so ids match without being sent
+   */
+  static class StringTable {
+    private static final int CAPACITY = 1024;
+    /**
+     * longer strings, like free text, are unlikely to repeat
+     */
+    private static final int MAX_LENGTH = 64;
+
+    private final List<String> mStrings = new ArrayList<String>();
+    private final Map<String, Integer> mIds = new HashMap<String, Integer>();
+
+    public int find(String s) {
+      Integer id = mIds.get(s);
+      return id != null ? id : -1;
+    }
+
+    public String get(long id) throws JSONException {
+      if (id < 0 || id >= mStrings.size()) {
+        throw new JSONException("Unknown interned string: " + id);
+      }
+      return mStrings.get((int) id);
+    }
+
+    public void add(String s) {
+      if (mStrings.size() < CAPACITY && s.length() <= MAX_LENGTH && !mIds.containsKey(s)) {
+        mIds.put(s, mStrings.size());
+        mStrings.add(s);
+      }
+    }
+
+    public int size() {
+      return mStrings.size();
+    }
+
+    public void truncate(int size) {
+      while (mStrings.size() > size) {
+        mIds.remove(mStrings.remove(mStrings.size() - 1));
+      }
+    }
+  }
+
+  /**
+   * reusable growing output buffer, one per thread
+   */
+  private static class Output {
+    private byte[] mBuffer = new byte[256];
+    private int mCount;
+
+    public void reset() {
+      mCount = 0;
+    }
+
+    private void ensure(int extra) {
+      if (mCount + extra > mBuffer.length) {
+        mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mCount + extra));
+      }
+    }
+
+    public void write(int b) {
+      ensure(1);
+      mBuffer[mCount++] = (byte) b;
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+      ensure(length);
+      System.arraycopy(bytes, offset, mBuffer, mCount, length);
+      mCount += length;
+    }
+
+    public void writeVarint(long v) {
+      ensure(10);
+      while ((v & ~0x7fL) != 0) {
+        mBuffer[mCount++] = (byte) ((v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      mBuffer[mCount++] = (byte) v;
+    }
+
+    public void writeText(String s) {
+      int length = Utf8.encodedLength(s);
+      writeVarint(length);
+      ensure(length);
+      mCount = Utf8.encode(s, mBuffer, mCount);
+    }
+
+    public byte[] toByteArray() {
+      return Arrays.copyOf(mBuffer, mCount);
+    }
+  }
+
+  private static class Input {
+    private final byte[] mData;
+    private int mPosition;
+
+    public Input(byte[] data) {
+      mData = data;
+    }
+
+    public int read() throws JSONException {
+      if (mPosition >= mData.length) {
+        throw new JSONException("Unexpected end of message");
+      }
+      return mData[mPosition++] & 0xff;
+    }
+
+    public long readVarint() throws JSONException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = read();
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new JSONException("Malformed varint");
+    }
+
+    public int readLength() throws JSONException {
+      long length = readVarint();
+      if (length < 0 || length > mData.length - mPosition) {
+        throw new JSONException("Invalid length: " + length);
+      }
+      return (int) length;
+    }
+
+    public String readText() throws JSONException {
+      int length = readLength();
+      String s = new String(mData, mPosition, length, UTF8);
+      mPosition += length;
+      return s;
+    }
+
+    public byte[] readBytes() throws JSONException {
+      int length = readLength();
+      byte[] bytes = Arrays.copyOfRange(mData, mPosition, mPosition + length);
+      mPosition += length;
+      return bytes;
+    }
+
+    public void skip(int count) throws JSONException {
+      if (count > mData.length - mPosition) {
+        throw new JSONException("Unexpected end of message");
+      }
+      mPosition += count;
+    }
+
+    public void checkEnd() throws JSONException {
+      if (mPosition != mData.length) {
+        throw new JSONException("Trailing bytes in message");
+      }
+    }
+  }
+}
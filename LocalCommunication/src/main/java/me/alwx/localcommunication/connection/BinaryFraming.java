@@ -0,0 +1,86 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * length-prefixed frames:
+ * 4-byte payload length, type byte (bit 7 set when flags byte follows,
+ * bit 6 set when 2-byte channel id follows), [flags], [channel], payload
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class BinaryFraming extends Framing {
+  private static final int HAS_FLAGS = 0x80;
+  private static final int HAS_CHANNEL = 0x40;
+  private static final int LENGTH_SIZE = 4;
+
+  @Override
+  public Connection.FramingMode getMode() {
+    return Connection.FramingMode.BINARY;
+  }
+
+  @Override
+  public int encodedLength(Frame frame) {
+    return LENGTH_SIZE + 1 + (frame.getFlags() != 0 ? 1 : 0) + (frame.getChannel() != 0 ? 2 : 0)
+        + frame.getLength();
+  }
+
+  @Override
+  public int encode(Frame frame, byte[] dst, int offset) {
+    int length = frame.getLength();
+    dst[offset++] = (byte) (length >>> 24);
+    dst[offset++] = (byte) (length >>> 16);
+    dst[offset++] = (byte) (length >>> 8);
+    dst[offset++] = (byte) length;
+    int type = frame.getType();
+    if (frame.getFlags() != 0) {
+      type |= HAS_FLAGS;
+    }
+    if (frame.getChannel() != 0) {
+      type |= HAS_CHANNEL;
+    }
+    dst[offset++] = (byte) type;
+    if (frame.getFlags() != 0) {
+      dst[offset++] = frame.getFlags();
+    }
+    if (frame.getChannel() != 0) {
+      dst[offset++] = (byte) (frame.getChannel() >>> 8);
+      dst[offset++] = (byte) frame.getChannel();
+    }
+    System.arraycopy(frame.getData(), 0, dst, offset, length);
+    return offset + length;
+  }
+
+  @Override
+  public Frame decode(ByteBuffer in) throws ProtocolException {
+    int start = in.position();
+    if (in.remaining() < LENGTH_SIZE + 1) {
+      return null;
+    }
+    int length = in.getInt(start);
+    if (length < 0 || length > MAX_FRAME_SIZE) {
+      throw new ProtocolException("Invalid frame length: " + length);
+    }
+    int type = in.get(start + LENGTH_SIZE) & 0xff;
+    int header = LENGTH_SIZE + 1 + ((type & HAS_FLAGS) != 0 ? 1 : 0)
+        + ((type & HAS_CHANNEL) != 0 ? 2 : 0);
+    if (in.remaining() < header + length) {
+      return null;
+    }
+    int position = start + LENGTH_SIZE + 1;
+    byte flags = 0;
+    if ((type & HAS_FLAGS) != 0) {
+      flags = in.get(position++);
+    }
+    int channel = 0;
+    if ((type & HAS_CHANNEL) != 0) {
+      channel = in.getShort(position) & 0xffff;
+    }
+    byte[] data = new byte[length];
+    in.position(start + header);
+    in.get(data);
+    return new Frame((byte) (type & Frame.MAX_TYPE), flags, data, channel);
+  }
+}
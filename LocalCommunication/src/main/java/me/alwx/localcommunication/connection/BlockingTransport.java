@@ -0,0 +1,504 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * thread-per-socket transport: one accepting thread for server
+ * and a reading & a sending thread for every connected peer
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class BlockingTransport implements Transport {
+  private static final String DEBUG_TAG = BlockingTransport.class.getName();
+  private static final int MAX_BATCH = 32;
+  private static final int WRITE_BUFFER_SIZE = 8192;
+
+  private final Callback mCallback;
+  private final ConnectionConfig mConfig;
+  private final Metrics mMetrics;
+  private final Channels mChannels;
+  private final ConcurrentMap<String, Session> mSessions = new ConcurrentHashMap<String, Session>();
+  private Server mServer;
+  private volatile int mPort = -1;
+  private final CountDownLatch mBound = new CountDownLatch(1);
+  private boolean mClosed;
+
+  public BlockingTransport(Callback callback, ConnectionConfig config, Channels channels) {
+    mCallback = callback;
+    mConfig = config;
+    mMetrics = config.getMetrics();
+    mChannels = channels;
+  }
+
+  @Override
+  public void startServer() {
+    mServer = new Server();
+  }
+
+  @Override
+  public int getLocalPort() {
+    return mPort;
+  }
+
+  @Override
+  public int awaitLocalPort(long timeout) throws InterruptedException {
+    mBound.await(timeout, TimeUnit.MILLISECONDS);
+    return mPort;
+  }
+
+  @Override
+  public void connect(InetAddress address, int port) {
+    new Client(address, port);
+  }
+
+  @Override
+  public boolean send(String peer, Frame frame) {
+    Session session = mSessions.get(peer);
+    return session != null && session.sendFrame(frame);
+  }
+
+  @Override
+  public boolean sendWithoutWaiting(String peer, Frame frame) {
+    Session session = mSessions.get(peer);
+    return session != null && session.sendFrameWithoutWaiting(frame);
+  }
+
+  @Override
+  public void sendToAll(Frame frame) {
+    for (Session session : mSessions.values()) {
+      session.sendFrame(frame);
+    }
+  }
+
+  @Override
+  public Set<String> getPeers() {
+    return Collections.unmodifiableSet(new HashSet<String>(mSessions.keySet()));
+  }
+
+  @Override
+  public int getQueueDepth(String peer) {
+    Session session = mSessions.get(peer);
+    return session != null ? session.mQueue.size() : 0;
+  }
+
+  @Override
+  public int getQueueDepth(String peer, int channel) {
+    Session session = mSessions.get(peer);
+    return session != null ? session.mQueue.size(channel) : 0;
+  }
+
+  @Override
+  public void disconnect(String peer) {
+    Session session = mSessions.get(peer);
+    if (session != null) {
+      session.closeConnection();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (mServer != null) {
+      mServer.closeConnection();
+    }
+    List<Session> sessions;
+    synchronized (mSessions) {
+      mClosed = true;
+      sessions = new ArrayList<Session>(mSessions.values());
+    }
+    for (Session session : sessions) {
+      session.closeConnection();
+    }
+  }
+
+  /**
+   * adds session unless there already is one with the same peer,
+   * e.g. when connecting to a server twice, or transport is closed
+   * (a connection may be established after that); then the new session is closed
+   *
+   * @return false if session was a duplicate or transport is closed
+   */
+  private boolean addSession(Session session, boolean outgoing) {
+    boolean added;
+    synchronized (mSessions) {
+      added = !mClosed && mSessions.putIfAbsent(session.getPeer(), session) == null;
+    }
+    if (!added) {
+      Log.d(DEBUG_TAG, "Already connected to " + session.getPeer() + " or closed, new socket closed");
+      session.closeConnection();
+      return false;
+    }
+    mCallback.onPeerConnected(session.getPeer(), outgoing);
+    return true;
+  }
+
+  private void removeSession(Session session) {
+    // a duplicate that was never added must not remove the live session
+    if (mSessions.remove(session.getPeer(), session)) {
+      mCallback.onPeerDisconnected(session.getPeer());
+    }
+  }
+
+  private static String peerId(Socket socket) {
+    return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+  }
+
+  private class Server {
+    private Thread mThread;
+    private ServerSocket mServerSocket;
+
+    public Server() {
+      mThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            mServerSocket = new ServerSocket(0);
+            mPort = mServerSocket.getLocalPort();
+            mBound.countDown();
+
+            while (!Thread.currentThread().isInterrupted()) {
+              Session session = new Session(mServerSocket.accept());
+              if (addSession(session, false)) {
+                session.start();
+              }
+            }
+          } catch (IOException e) {
+            Log.d(DEBUG_TAG, "Server IOException: " + e);
+          }
+          mBound.countDown();
+        }
+      });
+      mThread.start();
+    }
+
+    /**
+     * interrupts thread and closes server socket
+     */
+    public void closeConnection() {
+      mThread.interrupt();
+      try {
+        if (mServerSocket != null) {
+          mServerSocket.close();
+        }
+      } catch (IOException e) {
+        Log.e(DEBUG_TAG, "Error when closing server socket: " + e);
+      }
+    }
+  }
+
+  private class Client {
+    private InetAddress mInetAddress;
+    private int mPort;
+
+    public Client(InetAddress inetAddress, int port) {
+      mInetAddress = inetAddress;
+      mPort = port;
+
+      new Thread(new ConnectingThread()).start();
+    }
+
+    /**
+     * thread to open socket to server
+     */
+    private class ConnectingThread implements Runnable {
+      @Override
+      public void run() {
+        Socket socket = null;
+        try {
+          socket = new Socket(mInetAddress, mPort);
+          Session session = new Session(socket);
+          Log.d(DEBUG_TAG, "Client-side socket initialized.");
+          List<Frame> early = Handshake.isNeeded(mConfig)
+              ? session.handshake()
+              : Collections.<Frame>emptyList();
+          if (!addSession(session, true)) {
+            return;
+          }
+          for (Frame frame : early) {
+            session.received(frame);
+          }
+          session.start();
+        } catch (UnknownHostException e) {
+          Log.d(DEBUG_TAG, "Initializing socket failed, UHE", e);
+          mCallback.onConnectFailed(mInetAddress, mPort);
+        } catch (IOException e) {
+          Log.d(DEBUG_TAG, "Initializing socket failed, IOE.", e);
+          if (socket != null) {
+            try {
+              socket.close();
+            } catch (IOException ignored) {
+            }
+          }
+          mCallback.onConnectFailed(mInetAddress, mPort);
+        }
+      }
+    }
+  }
+
+  /**
+   * one connected socket with its own reading thread, sending thread & outgoing queue
+   */
+  private class Session {
+    private final Socket mSocket;
+    private final String mPeer;
+    private final OutboundQueue mQueue;
+    private final Chunks mChunks = new Chunks();
+    private final FrameReader mReader;
+    private final FrameWriter mWriter;
+    private final Object mWriteLock = new Object();
+    private Thread mSendingThread;
+    private Thread mReceivingThread;
+
+    public Session(Socket socket) throws IOException {
+      mSocket = socket;
+      mPeer = peerId(socket);
+      // frames are batched before a flush already, so a small control frame must not wait for acks
+      socket.setTcpNoDelay(true);
+      mQueue = new OutboundQueue(mChannels, mConfig.getOverflowPolicy());
+      mReader = new FrameReader(Framing.create(Connection.FramingMode.LINE));
+      mWriter = new FrameWriter(socket.getOutputStream(), WRITE_BUFFER_SIZE,
+          Framing.create(Connection.FramingMode.LINE));
+    }
+
+    public String getPeer() {
+      return mPeer;
+    }
+
+    public void start() {
+      mSendingThread = new Thread(new SendingThread());
+      mSendingThread.start();
+      mReceivingThread = new Thread(new ReceivingThread());
+      mReceivingThread.start();
+    }
+
+    /**
+     * client side of negotiation: sends hello & waits for server's answer
+     *
+     * @return frames server sent before its answer
+     * @throws IOException if socket is broken
+     */
+    public List<Frame> handshake() throws IOException {
+      List<Frame> early = new ArrayList<Frame>();
+      mWriter.write(Handshake.request(mConfig));
+      mMetrics.increment(Metrics.Counter.BYTES_OUT, mWriter.flush());
+
+      InputStream in = mSocket.getInputStream();
+      mSocket.setSoTimeout(mConfig.getHandshakeTimeout());
+      try {
+        while (true) {
+          Frame frame;
+          while ((frame = mReader.next()) != null) {
+            if (frame.getType() == Frame.TYPE_HELLO) {
+              mReader.setFraming(Handshake.createFraming(frame, mConfig));
+              mWriter.setFraming(Handshake.createFraming(frame, mConfig));
+              return early;
+            }
+            early.add(frame);
+          }
+          int count = mReader.readFrom(in);
+          if (count < 0) {
+            throw new IOException("Connection closed during handshake");
+          }
+          mMetrics.increment(Metrics.Counter.BYTES_IN, count);
+        }
+      } catch (SocketTimeoutException e) {
+        Log.d(DEBUG_TAG, "No handshake answer, staying in line mode");
+        return early;
+      } finally {
+        mSocket.setSoTimeout(0);
+      }
+    }
+
+    /**
+     * server side of negotiation: answers client's hello
+     *
+     * @param hello client's hello
+     * @throws IOException if socket is broken
+     */
+    private void answerHandshake(Frame hello) throws IOException {
+      Frame answer = Handshake.answer(hello, mConfig);
+      // client waits for the answer before sending anything else
+      mReader.setFraming(Handshake.createFraming(answer, mConfig));
+      synchronized (mWriteLock) {
+        mWriter.write(answer);
+        mMetrics.increment(Metrics.Counter.BYTES_OUT, mWriter.flush());
+        mWriter.setFraming(Handshake.createFraming(answer, mConfig));
+      }
+    }
+
+    /**
+     * queues given frame for sending thread
+     *
+     * @param frame frame
+     * @return false if frame was rejected
+     */
+    public boolean sendFrame(Frame frame) {
+      try {
+        if (!mQueue.offer(frame)) {
+          mMetrics.increment(Metrics.Counter.FRAMES_REJECTED, 1);
+          Log.d(DEBUG_TAG, "Queue is full, message rejected");
+          return false;
+        }
+        if (mMetrics != Metrics.NONE) {
+          mMetrics.record(Metrics.Histogram.QUEUE_DEPTH, mQueue.size());
+        }
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    /**
+     * queues given frame for sending thread unless its lane is full
+     *
+     * @param frame frame
+     * @return false if frame was rejected
+     */
+    public boolean sendFrameWithoutWaiting(Frame frame) {
+      if (!mQueue.offerWithoutWaiting(frame)) {
+        mMetrics.increment(Metrics.Counter.FRAMES_REJECTED, 1);
+        return false;
+      }
+      if (mMetrics != Metrics.NONE) {
+        mMetrics.record(Metrics.Histogram.QUEUE_DEPTH, mQueue.size());
+      }
+      return true;
+    }
+
+    /**
+     * passes frame on, putting chunks together; bytes on channels other than 0
+     * are granted back to peer once they are handled
+     *
+     * @param frame frame
+     * @throws ProtocolException if chunks or credit are not valid
+     */
+    public void received(Frame frame) throws ProtocolException {
+      if (frame.getType() == Frame.TYPE_CREDIT) {
+        mQueue.credit(Chunks.getCreditChannel(frame), Chunks.getCreditBytes(frame));
+        return;
+      }
+      Frame whole = frame.getType() == Frame.TYPE_CHUNK ? mChunks.add(frame) : frame;
+      if (whole != null) {
+        if (Connection.TRACE && whole.getType() == Frame.TYPE_MESSAGE) {
+          Log.v(DEBUG_TAG, "Read from the stream: " + whole.getText());
+        }
+        mCallback.onFrame(mPeer, whole, false);
+      }
+      if (frame.getChannel() != 0) {
+        mQueue.grant(frame.getChannel(), frame.getLength());
+      }
+    }
+
+    /**
+     * closes connection to peer
+     */
+    public void closeConnection() {
+      if (mSendingThread != null) {
+        mSendingThread.interrupt();
+      }
+      if (mReceivingThread != null) {
+        mReceivingThread.interrupt();
+      }
+      try {
+        mSocket.close();
+      } catch (IOException e) {
+        Log.e(DEBUG_TAG, "Error when closing socket: " + e);
+      }
+      mQueue.close();
+      removeSession(this);
+    }
+
+    /**
+     * thread to send messages:
+     * takes what is queued so far, up to a buffer's worth, and writes it with one flush,
+     * so a control frame queued meanwhile does not wait long
+     */
+    private class SendingThread implements Runnable {
+      @Override
+      public void run() {
+        List<Frame> batch = new ArrayList<Frame>(MAX_BATCH);
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            Frame next = mQueue.take();
+            int bytes = 0;
+            do {
+              batch.add(next);
+              bytes += next.getLength();
+            } while (batch.size() < MAX_BATCH && bytes < WRITE_BUFFER_SIZE && (next = mQueue.poll()) != null);
+            synchronized (mWriteLock) {
+              for (Frame frame : batch) {
+                mWriter.write(frame);
+              }
+              mMetrics.increment(Metrics.Counter.BYTES_OUT, mWriter.flush());
+            }
+            for (Frame frame : batch) {
+              Frame sent = mQueue.sent(frame);
+              if (sent == null) {
+                continue;
+              }
+              mCallback.onFrame(mPeer, sent, true);
+              if (Connection.TRACE && sent.getType() == Frame.TYPE_MESSAGE) {
+                Log.v(DEBUG_TAG, "Client sent message: " + sent.getText());
+              }
+            }
+            batch.clear();
+          }
+        } catch (InterruptedException e) {
+          Log.d(DEBUG_TAG, "Message sending loop interrupted, exiting");
+        } catch (IOException e) {
+          Log.d(DEBUG_TAG, "I/O Exception: ", e);
+          closeConnection();
+        }
+      }
+    }
+
+    /**
+     * thread to receive messages
+     */
+    private class ReceivingThread implements Runnable {
+      @Override
+      public void run() {
+        try {
+          InputStream input = mSocket.getInputStream();
+          while (!Thread.currentThread().isInterrupted()) {
+            Frame frame;
+            while ((frame = mReader.next()) != null) {
+              if (frame.getType() == Frame.TYPE_HELLO) {
+                answerHandshake(frame);
+              } else {
+                received(frame);
+              }
+            }
+            int count = mReader.readFrom(input);
+            if (count < 0) {
+              Log.d(DEBUG_TAG, "Null message");
+              break;
+            }
+            mMetrics.increment(Metrics.Counter.BYTES_IN, count);
+          }
+          input.close();
+        } catch (IOException e) {
+          Log.e(DEBUG_TAG, "Server loop error: ", e);
+        }
+        closeConnection();
+      }
+    }
+  }
+}
@@ -0,0 +1,388 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * request/response calls of one connection: calling side & answering side
+ * (see {@link Connection#call(String, Frame, long)} & {@link Connection#setRequestHandler(Connection.RequestHandler, Executor)})
+ * <p/>
+ * a request is a {@link Frame#TYPE_REQUEST} frame: 4-byte call id & message payload;
+ * the answer is a {@link Frame#TYPE_RESPONSE} frame with the same id, status byte & payload,
+ * so any number of calls can be in flight on one connection and answers may come in any order.
+ * requests are handled on a worker pool, never on the reading thread
+ * <p/>
+ * calls that get no answer in time fail with {@link TimeoutException}, calls to a peer that
+ * disconnects fail right away; at most {@link ConnectionConfig#getMaxPendingCalls()} calls wait at once
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class Calls {
+  private static final String DEBUG_TAG = Calls.class.getName();
+
+  static final int STATUS_OK = 0;
+  /**
+   * handler failed, payload is UTF-8 error message
+   */
+  static final int STATUS_ERROR = 1;
+  /**
+   * peer has no request handler
+   */
+  static final int STATUS_UNHANDLED = 2;
+  /**
+   * peer's worker pool is full
+   */
+  static final int STATUS_BUSY = 3;
+
+  /**
+   * how often timed out calls are looked for
+   */
+  private static final long TIMEOUT_CHECK = 50;
+
+  private final Connection mConnection;
+  private final ConnectionConfig mConfig;
+  private final AtomicInteger mNextId = new AtomicInteger();
+  private final Map<Integer, Call> mPending = new ConcurrentHashMap<Integer, Call>();
+  private volatile Connection.RequestHandler mHandler;
+  private volatile Executor mExecutor;
+  private ThreadPoolExecutor mOwnExecutor;
+  private ScheduledExecutorService mTimer;
+  private boolean mClosed;
+
+  public Calls(Connection connection, ConnectionConfig config) {
+    mConnection = connection;
+    mConfig = config;
+  }
+
+  public void setHandler(Connection.RequestHandler handler, Executor executor) {
+    mExecutor = executor;
+    mHandler = handler;
+  }
+
+  /**
+   * sends request
+   *
+   * @param peer    peer id
+   * @param request message frame
+   * @param timeout timeout in milliseconds
+   * @return future answer
+   */
+  public Future<Frame> call(String peer, Frame request, long timeout) {
+    Call call = new Call(this, mNextId.incrementAndGet(), peer, System.currentTimeMillis() + timeout);
+    if (mPending.size() >= mConfig.getMaxPendingCalls()) {
+      call.fail(new IOException("Too many calls in flight"));
+      return call;
+    }
+    mPending.put(call.mId, call);
+    startTimer();
+    byte[] data = request.getData();
+    byte[] payload = new byte[4 + data.length];
+    Transfers.putInt(payload, 0, call.mId);
+    System.arraycopy(data, 0, payload, 4, data.length);
+    if (!mConnection.sendFrame(peer,
+        new Frame(Frame.TYPE_REQUEST, request.getFlags(), payload, request.getChannel()))) {
+      finish(call.mId, null, new IOException("Request not queued for peer: " + peer));
+    }
+    return call;
+  }
+
+  /**
+   * handles call frames
+   *
+   * @param peer  peer id
+   * @param frame {@link Frame#TYPE_REQUEST} or {@link Frame#TYPE_RESPONSE} frame
+   */
+  public void onFrame(String peer, Frame frame) {
+    byte[] data = frame.getData();
+    if (frame.getType() == Frame.TYPE_REQUEST) {
+      if (data.length >= 4) {
+        onRequest(peer, frame);
+      }
+      return;
+    }
+    if (data.length < 5) {
+      return;
+    }
+    int id = Transfers.getInt(data, 0);
+    Call call = mPending.get(id);
+    if (call == null || !call.mPeer.equals(peer)) {
+      // timed out or cancelled meanwhile
+      return;
+    }
+    int status = data[4];
+    if (status == STATUS_OK) {
+      byte[] payload = new byte[data.length - 5];
+      System.arraycopy(data, 5, payload, 0, payload.length);
+      finish(id, new Frame(Frame.TYPE_MESSAGE, frame.getFlags(), payload, frame.getChannel()), null);
+    } else {
+      String message = Frame.decodeText(data, 5, data.length - 5);
+      finish(id, null, new IOException(describe(status) + (message.length() > 0 ? ": " + message : "")));
+    }
+  }
+
+  /**
+   * fails calls waiting for peer's answer
+   *
+   * @param peer peer id
+   */
+  public void onPeerDisconnected(String peer) {
+    for (Call call : mPending.values()) {
+      if (call.mPeer.equals(peer)) {
+        finish(call.mId, null, new IOException("Connection to " + peer + " lost"));
+      }
+    }
+  }
+
+  public synchronized void close() {
+    mClosed = true;
+    if (mTimer != null) {
+      mTimer.shutdownNow();
+    }
+    if (mOwnExecutor != null) {
+      mOwnExecutor.shutdown();
+    }
+    for (Call call : mPending.values()) {
+      finish(call.mId, null, new IOException("Connection closed"));
+    }
+  }
+
+  private void onRequest(final String peer, final Frame frame) {
+    final Connection.RequestHandler handler = mHandler;
+    final byte[] data = frame.getData();
+    final int id = Transfers.getInt(data, 0);
+    if (handler == null) {
+      respond(peer, id, STATUS_UNHANDLED, (byte) 0, null, frame.getChannel());
+      return;
+    }
+    try {
+      getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          byte[] payload = new byte[data.length - 4];
+          System.arraycopy(data, 4, payload, 0, payload.length);
+          Frame response;
+          try {
+            response = handler.onRequest(peer,
+                new Frame(Frame.TYPE_MESSAGE, frame.getFlags(), payload, frame.getChannel()));
+          } catch (Exception e) {
+            Log.d(DEBUG_TAG, "Request handler failed: " + e);
+            String message = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+            respond(peer, id, STATUS_ERROR, (byte) 0, Frame.encodeText(message), frame.getChannel());
+            return;
+          }
+          if (response == null) {
+            respond(peer, id, STATUS_OK, (byte) 0, null, frame.getChannel());
+          } else {
+            respond(peer, id, STATUS_OK, response.getFlags(), response.getData(), frame.getChannel());
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      respond(peer, id, STATUS_BUSY, (byte) 0, null, frame.getChannel());
+    }
+  }
+
+  private void respond(String peer, int id, int status, byte flags, byte[] data, int channel) {
+    int length = data != null ? data.length : 0;
+    byte[] payload = new byte[5 + length];
+    Transfers.putInt(payload, 0, id);
+    payload[4] = (byte) status;
+    if (length > 0) {
+      System.arraycopy(data, 0, payload, 5, length);
+    }
+    if (!mConnection.sendFrame(peer, new Frame(Frame.TYPE_RESPONSE, flags, payload, channel))) {
+      Log.d(DEBUG_TAG, "Response not queued for peer: " + peer);
+    }
+  }
+
+  private void finish(int id, Frame response, Throwable error) {
+    Call call = mPending.remove(id);
+    if (call == null) {
+      return;
+    }
+    if (error != null) {
+      call.fail(error);
+    } else {
+      call.complete(response);
+    }
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    Iterator<Call> iterator = mPending.values().iterator();
+    while (iterator.hasNext()) {
+      Call call = iterator.next();
+      if (call.isDone()) {
+        // cancelled by caller
+        iterator.remove();
+      } else if (now >= call.mDeadline) {
+        iterator.remove();
+        call.fail(new TimeoutException("No answer from " + call.mPeer + " in time"));
+      }
+    }
+  }
+
+  private synchronized void startTimer() {
+    if (mTimer != null || mClosed) {
+      return;
+    }
+    mTimer = Platform.get().newScheduler("Calls");
+    mTimer.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        expire();
+      }
+    }, TIMEOUT_CHECK, TIMEOUT_CHECK, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * returns executor set with handler or a bounded worker pool started on first request
+   */
+  private Executor getExecutor() {
+    Executor executor = mExecutor;
+    if (executor != null) {
+      return executor;
+    }
+    synchronized (this) {
+      if (mClosed) {
+        throw new RejectedExecutionException("Connection closed");
+      }
+      if (mOwnExecutor == null) {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        // a peer that keeps within its own limit of pending calls is not turned away by an idle pool
+        mOwnExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(mConfig.getMaxPendingCalls()), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "RequestHandler-" + mCount.incrementAndGet());
+          }
+        });
+      }
+      return mOwnExecutor;
+    }
+  }
+
+  private static String describe(int status) {
+    switch (status) {
+      case STATUS_ERROR:
+        return "Request failed";
+      case STATUS_UNHANDLED:
+        return "Peer does not handle requests";
+      case STATUS_BUSY:
+        return "Peer is busy";
+      default:
+        return "Unknown status " + status;
+    }
+  }
+
+  /**
+   * answer of one call
+   */
+  private static class Call implements Future<Frame> {
+    private final Calls mCalls;
+    private final int mId;
+    private final String mPeer;
+    private final long mDeadline;
+    private Frame mResponse;
+    private Throwable mError;
+    private boolean mDone;
+    private boolean mCancelled;
+
+    public Call(Calls calls, int id, String peer, long deadline) {
+      mCalls = calls;
+      mId = id;
+      mPeer = peer;
+      mDeadline = deadline;
+    }
+
+    synchronized void complete(Frame response) {
+      if (!mDone) {
+        mResponse = response;
+        mDone = true;
+        notifyAll();
+      }
+    }
+
+    synchronized void fail(Throwable error) {
+      if (!mDone) {
+        mError = error;
+        mDone = true;
+        notifyAll();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      synchronized (this) {
+        if (mDone) {
+          return false;
+        }
+        mCancelled = true;
+        mDone = true;
+        notifyAll();
+      }
+      // an answer that comes later is dropped
+      mCalls.mPending.remove(mId);
+      return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+      return mDone;
+    }
+
+    @Override
+    public synchronized Frame get() throws InterruptedException, ExecutionException {
+      while (!mDone) {
+        wait();
+      }
+      return result();
+    }
+
+    @Override
+    public synchronized Frame get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      long left;
+      while (!mDone && (left = deadline - System.nanoTime()) > 0) {
+        TimeUnit.NANOSECONDS.timedWait(this, left);
+      }
+      if (!mDone) {
+        throw new TimeoutException();
+      }
+      return result();
+    }
+
+    private Frame result() throws ExecutionException {
+      if (mCancelled) {
+        throw new CancellationException();
+      }
+      if (mError != null) {
+        throw new ExecutionException(mError);
+      }
+      return mResponse;
+    }
+  }
+}
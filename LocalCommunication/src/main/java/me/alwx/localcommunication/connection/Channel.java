@@ -0,0 +1,161 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * logical channel over the connection's sockets, see
+ * {@link me.alwx.localcommunication.connection.Connection#openChannel(int, int)}
+ * <p/>
+ * every peer has a separate outgoing lane for each channel: a lane holds at most
+ * {@link #getWindow()} frames and lanes with higher priority are always written first;
+ * frames are written in chunks and peer grants credit for the bytes it has read,
+ * so bulk data on a low-priority channel delays control messages by one chunk at most
+ * and never fills socket buffers (see {@link OutboundQueue})
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class Channel {
+  /**
+   * for control messages that must not wait
+   */
+  public static final int PRIORITY_CONTROL = 10;
+  /**
+   * priority of the default channel 0
+   */
+  public static final int PRIORITY_NORMAL = 5;
+  /**
+   * for files & other bulk data
+   */
+  public static final int PRIORITY_BULK = 0;
+
+  private final Connection mConnection;
+  private final int mId;
+  private final int mPriority;
+  private final int mWindow;
+  private volatile Connection.FrameListener mFrameListener;
+  private volatile Executor mFrameExecutor;
+
+  Channel(Connection connection, int id, int priority, int window) {
+    mConnection = connection;
+    mId = id;
+    mPriority = priority;
+    mWindow = window;
+  }
+
+  public int getId() {
+    return mId;
+  }
+
+  /**
+   * returns priority, frames of channels with higher priority are sent first
+   *
+   * @return priority
+   */
+  public int getPriority() {
+    return mPriority;
+  }
+
+  /**
+   * returns how many frames may wait in one peer's lane of this channel
+   *
+   * @return window
+   */
+  public int getWindow() {
+    return mWindow;
+  }
+
+  /**
+   * sets listener for frames peers send on this channel,
+   * without it they go to connection's frame listener
+   *
+   * @param listener frame listener
+   * @param executor executor to call listener on, null to call it on the reading thread
+   */
+  public void setFrameListener(Connection.FrameListener listener, Executor executor) {
+    mFrameExecutor = executor;
+    mFrameListener = listener;
+  }
+
+  Connection.FrameListener getFrameListener() {
+    return mFrameListener;
+  }
+
+  Executor getFrameExecutor() {
+    return mFrameExecutor;
+  }
+
+  /**
+   * sends frame to all peers on this channel
+   *
+   * @param frame frame
+   */
+  public void sendFrame(Frame frame) {
+    mConnection.sendFrame(frame.onChannel(mId));
+  }
+
+  /**
+   * sends frame to one peer on this channel
+   *
+   * @param peer  peer id
+   * @param frame frame
+   * @return false if there is no such peer or frame was rejected
+   */
+  public boolean sendFrame(String peer, Frame frame) {
+    return mConnection.sendFrame(peer, frame.onChannel(mId));
+  }
+
+  /**
+   * sends message to one peer on this channel
+   *
+   * @param peer peer id
+   * @param msg  message string
+   * @return false if there is no such peer or message was rejected
+   */
+  public boolean sendMessage(String peer, String msg) {
+    return sendFrame(peer, Frame.message(msg));
+  }
+
+  /**
+   * sends bulk data to one peer on this channel
+   * (see {@link Connection#sendStream(String, java.io.InputStream, long, String, long, StreamTransfer.ProgressListener)})
+   *
+   * @param peer     peer id
+   * @param input    data, closed when transfer ends
+   * @param length   number of bytes or -1 if unknown
+   * @param name     name passed to receiver
+   * @param offset   offset of first byte of input
+   * @param listener progress listener, can be null
+   * @return transfer
+   */
+  public StreamTransfer sendStream(String peer, InputStream input, long length, String name,
+                                   long offset, StreamTransfer.ProgressListener listener) {
+    return mConnection.sendStream(peer, input, length, name, offset, listener, mId);
+  }
+
+  /**
+   * sends file to one peer on this channel
+   *
+   * @param peer     peer id
+   * @param file     file
+   * @param offset   where to start, 0 for the whole file
+   * @param listener progress listener, can be null
+   * @return transfer
+   * @throws IOException if file can't be opened
+   */
+  public StreamTransfer sendFile(String peer, File file, long offset,
+                                 StreamTransfer.ProgressListener listener) throws IOException {
+    return sendStream(peer, Transfers.open(file, offset), file.length() - offset,
+        file.getName(), offset, listener);
+  }
+
+  /**
+   * closes channel, frames already queued on it are still sent
+   */
+  public void close() {
+    mConnection.closeChannel(mId);
+  }
+}
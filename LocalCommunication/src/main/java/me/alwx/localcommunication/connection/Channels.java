@@ -0,0 +1,65 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * logical channels opened on a connection;
+ * channel 0 always exists, ids nobody has opened (e.g. used only by peer) get its settings
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class Channels {
+  private final Connection mConnection;
+  private final Channel mDefault;
+  private final Map<Integer, Channel> mChannels = new ConcurrentHashMap<Integer, Channel>();
+
+  public Channels(Connection connection, ConnectionConfig config) {
+    mConnection = connection;
+    mDefault = new Channel(connection, 0, Channel.PRIORITY_NORMAL, config.getQueueCapacity());
+    mChannels.put(0, mDefault);
+  }
+
+  /**
+   * returns channel settings
+   *
+   * @param id channel id
+   * @return opened channel or default one
+   */
+  public Channel get(int id) {
+    Channel channel = mChannels.get(id);
+    return channel != null ? channel : mDefault;
+  }
+
+  /**
+   * returns channel if it was opened
+   *
+   * @param id channel id
+   * @return channel or null
+   */
+  public Channel find(int id) {
+    return mChannels.get(id);
+  }
+
+  public synchronized Channel open(int id, int priority, int window) {
+    if (id <= 0 || id > Frame.MAX_CHANNEL) {
+      throw new IllegalArgumentException("Invalid channel id: " + id);
+    }
+    if (window <= 0) {
+      throw new IllegalArgumentException("Channel window must be positive: " + window);
+    }
+    if (mChannels.containsKey(id)) {
+      throw new IllegalStateException("Channel is already open: " + id);
+    }
+    Channel channel = new Channel(mConnection, id, priority, window);
+    mChannels.put(id, channel);
+    return channel;
+  }
+
+  public void close(int id) {
+    if (id != 0) {
+      mChannels.remove(id);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * frames on logical channels split into chunks ({@link Frame#TYPE_CHUNK}) & credit peers grant
+ * for them ({@link Frame#TYPE_CREDIT}), see {@link OutboundQueue};
+ * an instance puts together chunks one peer sends: chunks of a frame come in order
+ * and a channel carries one chunked frame at a time, so there is one partial frame per channel
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class Chunks {
+  /**
+   * first chunk of a frame, its payload starts with type, flags & 4-byte length of the whole frame
+   */
+  static final byte FLAG_FIRST = 1;
+  /**
+   * last chunk of a frame
+   */
+  static final byte FLAG_LAST = 2;
+  static final int HEADER_SIZE = 6;
+
+  private final Map<Integer, Partial> mPartials = new HashMap<Integer, Partial>();
+
+  /**
+   * creates chunk of frame
+   *
+   * @param frame  frame
+   * @param offset offset of first payload byte in chunk
+   * @param length number of payload bytes in chunk
+   * @return chunk on frame's channel
+   */
+  static Frame chunk(Frame frame, int offset, int length) {
+    boolean first = offset == 0;
+    boolean last = offset + length == frame.getLength();
+    byte[] data = new byte[(first ? HEADER_SIZE : 0) + length];
+    int position = 0;
+    if (first) {
+      int total = frame.getLength();
+      data[position++] = frame.getType();
+      data[position++] = frame.getFlags();
+      data[position++] = (byte) (total >>> 24);
+      data[position++] = (byte) (total >>> 16);
+      data[position++] = (byte) (total >>> 8);
+      data[position++] = (byte) total;
+    }
+    System.arraycopy(frame.getData(), offset, data, position, length);
+    byte flags = (byte) ((first ? FLAG_FIRST : 0) | (last ? FLAG_LAST : 0));
+    return new Frame(Frame.TYPE_CHUNK, flags, data, frame.getChannel());
+  }
+
+  /**
+   * creates credit frame, it goes on channel 0 which needs no credit
+   *
+   * @param channel channel credit is for
+   * @param bytes   number of bytes peer may send on it in addition
+   * @return frame
+   */
+  static Frame credit(int channel, int bytes) {
+    byte[] data = {(byte) (channel >>> 8), (byte) channel,
+        (byte) (bytes >>> 24), (byte) (bytes >>> 16), (byte) (bytes >>> 8), (byte) bytes};
+    return new Frame(Frame.TYPE_CREDIT, (byte) 0, data);
+  }
+
+  static int getCreditChannel(Frame credit) throws ProtocolException {
+    byte[] data = data(credit);
+    return (data[0] & 0xff) << 8 | data[1] & 0xff;
+  }
+
+  static int getCreditBytes(Frame credit) throws ProtocolException {
+    byte[] data = data(credit);
+    return (data[2] & 0xff) << 24 | (data[3] & 0xff) << 16 | (data[4] & 0xff) << 8 | data[5] & 0xff;
+  }
+
+  private static byte[] data(Frame credit) throws ProtocolException {
+    if (credit.getLength() != 6) {
+      throw new ProtocolException("Invalid credit frame");
+    }
+    return credit.getData();
+  }
+
+  /**
+   * adds chunk peer sent
+   *
+   * @param chunk chunk
+   * @return whole frame once its last chunk is added, otherwise null
+   * @throws ProtocolException if chunks don't make up a frame
+   */
+  public Frame add(Frame chunk) throws ProtocolException {
+    byte[] data = chunk.getData();
+    int offset = 0;
+    Partial partial = mPartials.get(chunk.getChannel());
+    if ((chunk.getFlags() & FLAG_FIRST) != 0) {
+      if (partial != null || data.length < HEADER_SIZE) {
+        throw new ProtocolException("Unexpected first chunk on channel " + chunk.getChannel());
+      }
+      int total = (data[2] & 0xff) << 24 | (data[3] & 0xff) << 16 | (data[4] & 0xff) << 8 | data[5] & 0xff;
+      if (total < 0 || total > Framing.MAX_FRAME_SIZE || data[0] < 0 || data[0] > Frame.MAX_TYPE) {
+        throw new ProtocolException("Invalid first chunk on channel " + chunk.getChannel());
+      }
+      partial = new Partial(data[0], data[1], total);
+      mPartials.put(chunk.getChannel(), partial);
+      offset = HEADER_SIZE;
+    } else if (partial == null) {
+      throw new ProtocolException("Chunk without first chunk on channel " + chunk.getChannel());
+    }
+    int length = data.length - offset;
+    if (length > partial.mData.length - partial.mCount) {
+      throw new ProtocolException("Chunks longer than frame on channel " + chunk.getChannel());
+    }
+    System.arraycopy(data, offset, partial.mData, partial.mCount, length);
+    partial.mCount += length;
+    if ((chunk.getFlags() & FLAG_LAST) == 0) {
+      return null;
+    }
+    mPartials.remove(chunk.getChannel());
+    if (partial.mCount != partial.mData.length) {
+      throw new ProtocolException("Chunks shorter than frame on channel " + chunk.getChannel());
+    }
+    return new Frame(partial.mType, partial.mFlags, partial.mData, chunk.getChannel());
+  }
+
+  private static class Partial {
+    private final byte mType;
+    private final byte mFlags;
+    private final byte[] mData;
+    private int mCount;
+
+    public Partial(byte type, byte flags, int length) {
+      mType = type;
+      mFlags = flags;
+      mData = new byte[length];
+    }
+  }
+}
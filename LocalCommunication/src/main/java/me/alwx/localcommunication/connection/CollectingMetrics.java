@@ -0,0 +1,84 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link me.alwx.localcommunication.connection.Metrics} that keeps everything in memory:
+ * counters are atomic, histograms are {@link LatencyHistogram}s, so memory doesn't grow;
+ * read it periodically & report it however you like
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class CollectingMetrics implements Metrics {
+  private final AtomicLongArray mCounters = new AtomicLongArray(Counter.values().length);
+  private final LatencyHistogram[] mHistograms = new LatencyHistogram[Histogram.values().length];
+
+  public CollectingMetrics() {
+    for (int i = 0; i < mHistograms.length; i++) {
+      mHistograms[i] = new LatencyHistogram();
+    }
+  }
+
+  @Override
+  public void increment(Counter counter, long delta) {
+    mCounters.addAndGet(counter.ordinal(), delta);
+  }
+
+  @Override
+  public void record(Histogram histogram, long value) {
+    LatencyHistogram target = mHistograms[histogram.ordinal()];
+    synchronized (target) {
+      target.record(value);
+    }
+  }
+
+  public long getCount(Counter counter) {
+    return mCounters.get(counter.ordinal());
+  }
+
+  /**
+   * returns copy of histogram
+   *
+   * @param histogram histogram
+   * @return copy
+   */
+  public LatencyHistogram getHistogram(Histogram histogram) {
+    LatencyHistogram source = mHistograms[histogram.ordinal()];
+    synchronized (source) {
+      return source.copy();
+    }
+  }
+
+  /**
+   * clears all counters & histograms, e.g. after they have been reported
+   */
+  public void reset() {
+    for (int i = 0; i < mCounters.length(); i++) {
+      mCounters.set(i, 0);
+    }
+    for (LatencyHistogram histogram : mHistograms) {
+      synchronized (histogram) {
+        histogram.clear();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Counter counter : Counter.values()) {
+      builder.append(counter).append('=').append(getCount(counter)).append(' ');
+    }
+    for (Histogram histogram : Histogram.values()) {
+      LatencyHistogram copy = getHistogram(histogram);
+      if (copy.getCount() > 0) {
+        builder.append(histogram).append("[n=").append(copy.getCount())
+            .append(" p50=").append(copy.getPercentile(50))
+            .append(" p99=").append(copy.getPercentile(99))
+            .append(" max=").append(copy.getMax()).append("] ");
+      }
+    }
+    return builder.toString().trim();
+  }
+}
@@ -1,25 +1,23 @@
 package me.alwx.localcommunication.connection;
 
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
-import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 /**
  * class for all connection-related purposes
+ * <p/>
+ * every connected socket is kept as a separate session, keyed by remote address & port,
+ * so a server can talk to any number of clients at once;
+ * sockets are served either by blocking threads or by one NIO selector thread
+ * (see {@link me.alwx.localcommunication.connection.ConnectionConfig#setTransportMode(Connection.TransportMode)})
  *
  * @author alwx
  * @version 1.0
@@ -27,22 +25,57 @@ import java.util.concurrent.BlockingQueue;
 public class Connection {
   private static final String DEBUG_TAG = Connection.class.getName();
 
-  private Server mServer;
-  private Client mClient;
-  private Socket mSocket;
-  private Handler mHandler;
-  private int mPort = -1;
+  /**
+   * {@link android.os.Message#what} of messages sent to handler,
+   * {@link android.os.Message#obj} is a {@link Delivery}
+   */
+  static final int MSG_FRAME = 1;
+
+  /**
+   * tag that turns on logging of every message, checked once when classes are loaded:
+   * {@code adb shell setprop log.tag.LocalComm VERBOSE}, or a verbose
+   * {@link me.alwx.localcommunication.connection.JvmPlatform} off the device
+   */
+  static final String TRACE_TAG = "LocalComm";
+  static final boolean TRACE = Log.isLoggable(TRACE_TAG, Log.VERBOSE);
+
+  private final ConnectionConfig mConfig;
+  private final Transfers mTransfers;
+  private final Channels mChannels;
+  private final Calls mCalls;
+  private Transport mTransport;
+  private Supervisor mSupervisor;
+  private Reliability mReliability;
+  private Topics mTopics;
+  private volatile Handler mHandler;
+  private volatile FrameListener mFrameListener;
+  private volatile Executor mFrameExecutor;
+  private volatile TopicListener mTopicListener;
+  private volatile Executor mTopicExecutor;
+  private volatile MeshNode mMesh;
+  private Datagrams mDatagrams;
   private ConnectionListener mConnectionListener;
+  private PeerListener mPeerListener;
 
   public Connection() {
+    this(null, new ConnectionConfig());
   }
 
   public Connection(ConnectionListener listener) {
+    this(listener, new ConnectionConfig());
+  }
+
+  public Connection(ConnectionListener listener, ConnectionConfig config) {
     mConnectionListener = listener;
+    mConfig = config;
+    mTransfers = new Transfers(this, config);
+    mChannels = new Channels(this, config);
+    mCalls = new Calls(this, config);
   }
 
   /**
-   * sets handler for connection
+   * sets handler for connection; Android only, off the device
+   * use {@link #setFrameListener(FrameListener, java.util.concurrent.Executor)}
    *
    * @param handler message handler
    */
@@ -50,6 +83,71 @@ public class Connection {
     mHandler = handler;
   }
 
+  /**
+   * sets listener that gets received frames right on the reading thread
+   *
+   * @param listener frame listener
+   */
+  public void setFrameListener(FrameListener listener) {
+    setFrameListener(listener, null);
+  }
+
+  /**
+   * sets listener that gets received frames without going through a handler;
+   * frames are passed as they were read, nothing is copied
+   *
+   * @param listener frame listener
+   * @param executor executor to call listener on, null to call it on the reading thread
+   *                 (listener must return quickly then)
+   */
+  public void setFrameListener(FrameListener listener, Executor executor) {
+    mFrameExecutor = executor;
+    mFrameListener = listener;
+  }
+
+  /**
+   * sets listener for bulk streams sent by peers;
+   * without it all incoming streams are refused
+   *
+   * @param listener stream listener
+   */
+  public void setStreamListener(StreamListener listener) {
+    mTransfers.setListener(listener);
+  }
+
+  /**
+   * sets listener for messages published on topics this side has subscribed to;
+   * without it they go to frame listener & handler like other messages
+   *
+   * @param listener topic listener
+   * @param executor executor to call listener on, null to call it on the reading thread
+   */
+  public void setTopicListener(TopicListener listener, Executor executor) {
+    mTopicExecutor = executor;
+    mTopicListener = listener;
+  }
+
+  /**
+   * sets handler that answers requests sent by peers with {@link #call(String, Frame, long)};
+   * without it peers' calls fail
+   *
+   * @param handler  request handler
+   * @param executor executor to run handler on, null for a worker pool of connection's own
+   *                 (requests that don't fit into its queue are answered as busy)
+   */
+  public void setRequestHandler(RequestHandler handler, Executor executor) {
+    mCalls.setHandler(handler, executor);
+  }
+
+  /**
+   * sets listener for peers connecting & disconnecting
+   *
+   * @param listener peer listener
+   */
+  public void setPeerListener(PeerListener listener) {
+    mPeerListener = listener;
+  }
+
   /**
    * connects to server
    *
@@ -57,18 +155,29 @@ public class Connection {
    * @param port    server port
    */
   public void connectToServer(InetAddress address, int port) {
-    mClient = new Client(address, port);
+    Supervisor supervisor = getSupervisor();
+    if (mReliability != null) {
+      mReliability.open(Supervisor.peerId(address, port));
+    }
+    supervisor.connect(address, port);
   }
 
   /**
    * closes connection
    */
   public void closeConnection() {
-    if (mServer != null) {
-      mServer.closeConnection();
+    if (mTransport != null) {
+      mSupervisor.close();
+      if (mReliability != null) {
+        mReliability.close();
+      }
+      mTransport.close();
     }
-    if (mClient != null) {
-      mClient.closeConnection();
+    mTransfers.close();
+    mCalls.close();
+    Datagrams datagrams = getDatagrams();
+    if (datagrams != null) {
+      datagrams.close();
     }
   }
 
@@ -76,7 +185,7 @@ public class Connection {
    * creates server & connects to it
    */
   public void createServer() {
-    mServer = new Server();
+    getTransport().startServer();
   }
 
   /**
@@ -86,228 +195,675 @@ public class Connection {
    * @return port
    */
   public int getLocalPort() {
-    return mPort;
+    return mTransport != null ? mTransport.getLocalPort() : -1;
+  }
+
+  /**
+   * waits until server created by {@link #createServer()} is bound;
+   * {@link #getLocalPort()} returns -1 before that
+   *
+   * @param timeout timeout in milliseconds
+   * @return port or -1 if server could not be bound in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public int awaitLocalPort(long timeout) throws InterruptedException {
+    return getTransport().awaitLocalPort(timeout);
+  }
+
+  /**
+   * returns identifiers of all connected peers
+   *
+   * @return set of peer ids ("address:port")
+   */
+  public Set<String> getPeers() {
+    return getTransport().getPeers();
+  }
+
+  /**
+   * returns number of connected peers
+   *
+   * @return peer count
+   */
+  public int getPeerCount() {
+    return getPeers().size();
   }
 
-  private void setLocalPort(int port) {
-    mPort = port;
+  /**
+   * returns number of messages waiting to be written to peer
+   *
+   * @param peer peer id
+   * @return queue depth
+   */
+  public int getQueueDepth(String peer) {
+    return getTransport().getQueueDepth(peer);
+  }
+
+  /**
+   * returns number of messages waiting to be written to all peers
+   *
+   * @return total queue depth
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (String peer : getPeers()) {
+      depth += getQueueDepth(peer);
+    }
+    return depth;
   }
 
   /**
-   * sends message to client
+   * returns number of messages waiting to be written to peer on one channel
+   *
+   * @param peer    peer id
+   * @param channel channel id
+   * @return queue depth
+   */
+  public int getQueueDepth(String peer, int channel) {
+    return getTransport().getQueueDepth(peer, channel);
+  }
+
+  /**
+   * returns round-trip times & activity of one peer;
+   * round-trip times are measured only while heartbeats are on ({@link ConnectionConfig#setHeartbeat(int, int)})
+   *
+   * @param peer peer id
+   * @return snapshot or null if there is no such peer
+   */
+  public LinkStats getStats(String peer) {
+    return getSupervisor().getStats(peer);
+  }
+
+  /**
+   * returns round-trip times & activity of all connected peers
+   *
+   * @return snapshots by peer id
+   */
+  public Map<String, LinkStats> getStats() {
+    return getSupervisor().getStats();
+  }
+
+  /**
+   * opens logical channel with default window ({@link ConnectionConfig#getQueueCapacity()})
+   *
+   * @param id       channel id, 1..{@link Frame#MAX_CHANNEL} (0 is the default channel)
+   * @param priority priority, e.g. {@link Channel#PRIORITY_CONTROL} or {@link Channel#PRIORITY_BULK}
+   * @return channel
+   */
+  public Channel openChannel(int id, int priority) {
+    return openChannel(id, priority, mConfig.getQueueCapacity());
+  }
+
+  /**
+   * opens logical channel, open it before sending anything on it:
+   * peers' lanes take channel settings when channel is used for the first time
+   *
+   * @param id       channel id, 1..{@link Frame#MAX_CHANNEL} (0 is the default channel)
+   * @param priority priority, frames of channels with higher priority are sent first
+   * @param window   how many frames may wait in one peer's lane
+   * @return channel
+   * @throws IllegalStateException if channel is already open
+   */
+  public Channel openChannel(int id, int priority, int window) {
+    return mChannels.open(id, priority, window);
+  }
+
+  /**
+   * returns open channel
+   *
+   * @param id channel id
+   * @return channel or null if it is not open
+   */
+  public Channel getChannel(int id) {
+    return mChannels.find(id);
+  }
+
+  void closeChannel(int id) {
+    mChannels.close(id);
+  }
+
+  int getChannelWindow(int id) {
+    return mChannels.get(id).getWindow();
+  }
+
+  /**
+   * sends message to all connected peers
+   * (for a client it is the server it is connected to);
+   * message is queued and written by peer's sending thread
    *
    * @param msg message string
    */
   public void sendMessage(String msg) {
-    if (mClient != null) {
-      mClient.sendMessage(msg);
+    sendFrame(Frame.message(msg));
+  }
+
+  /**
+   * sends message to one peer
+   *
+   * @param peer peer id, as returned by {@link #getPeers()}
+   * @param msg  message string
+   * @return false if there is no such peer or message was rejected by
+   * {@link Connection.OverflowPolicy#FAIL_FAST}
+   */
+  public boolean sendMessage(String peer, String msg) {
+    return sendFrame(peer, Frame.message(msg));
+  }
+
+  /**
+   * sends frame to all connected peers;
+   * when reconnection is enabled, servers that are being reconnected get it after reconnecting;
+   * with reliable delivery messages go to peers that have a session only
+   *
+   * @param frame frame
+   */
+  public void sendFrame(Frame frame) {
+    Supervisor supervisor = getSupervisor();
+    if (mReliability != null && frame.getType() == Frame.TYPE_MESSAGE) {
+      // a client that has just connected would get it twice: now & through its session
+      mReliability.sendToAll(frame);
+      return;
     }
+    supervisor.sendToAll(frame);
   }
 
-  private synchronized void setSocket(Socket socket) {
-    if (socket == null) {
-      Log.d(DEBUG_TAG, "Setting a null socket.");
+  /**
+   * sends frame to one peer
+   *
+   * @param peer  peer id
+   * @param frame frame
+   * @return false if there is no such peer or frame was rejected
+   */
+  public boolean sendFrame(String peer, Frame frame) {
+    Supervisor supervisor = getSupervisor();
+    if (mReliability != null && frame.getType() == Frame.TYPE_MESSAGE && mReliability.isReliable(peer)) {
+      return mReliability.send(peer, frame);
+    }
+    if (supervisor.buffer(peer, frame)) {
+      return true;
+    }
+    if (!getTransport().send(peer, frame)) {
+      Log.d(DEBUG_TAG, "Message not queued for peer: " + peer);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * sends message to all devices listening on datagram group
+   * (see {@link ConnectionConfig#setDatagramGroup(java.net.InetAddress, int)}) in one datagram
+   *
+   * @param msg message string
+   * @return true if message was sent as datagram, false if it went over TCP
+   */
+  public boolean sendDatagram(String msg) {
+    return sendDatagram(Frame.message(msg));
+  }
+
+  /**
+   * sends message frame in one datagram instead of writing it to every peer; datagrams may be
+   * lost, duplicated or reordered, receivers drop duplicates & stale ones and count gaps
+   * ({@link #getDatagramsLost()}), so use it for small idempotent messages like presence or telemetry.
+   * a message bigger than {@link ConnectionConfig#getMaxDatagramSize()} or sent without datagram group
+   * goes to all peers like {@link #sendFrame(Frame)}; received datagrams go to the same listeners
+   * & handler as other messages
+   *
+   * @param message {@link Frame#TYPE_MESSAGE} frame
+   * @return true if message was sent as datagram, false if it went over TCP
+   */
+  public boolean sendDatagram(Frame message) {
+    getTransport();
+    Datagrams datagrams = getDatagrams();
+    if (datagrams != null && datagrams.send(message)) {
+      return true;
     }
-    if (mSocket != null) {
-      if (mSocket.isConnected()) {
-        try {
-          mSocket.close();
-        } catch (IOException e) {
-          Log.d(DEBUG_TAG, "IOException while closing socket: " + e);
+    sendFrame(message);
+    return false;
+  }
+
+  /**
+   * returns number of datagrams from other devices that have not come
+   *
+   * @return datagrams lost, found by gaps in senders' sequence numbers
+   */
+  public long getDatagramsLost() {
+    Datagrams datagrams = getDatagrams();
+    return datagrams != null ? datagrams.getLost() : 0;
+  }
+
+  /**
+   * sends request to peer & returns its answer; many calls may be in flight at once,
+   * answers are matched to requests by call id, whatever order they come in
+   *
+   * @param peer    peer id
+   * @param request message frame
+   * @param timeout how long to wait for answer, in milliseconds
+   * @return future answer; it fails with {@link java.util.concurrent.TimeoutException} if there is
+   * no answer in time and with {@link IOException} if request can't be sent, peer disconnects
+   * or its handler fails
+   */
+  public Future<Frame> call(String peer, Frame request, long timeout) {
+    getTransport();
+    return mCalls.call(peer, request, timeout);
+  }
+
+  /**
+   * subscribes to topic: servers this side is connected to, now or later,
+   * pass messages published on it here
+   *
+   * @param topic topic, at most 255 bytes of UTF-8
+   */
+  public void subscribe(String topic) {
+    getTopics().subscribe(topic);
+  }
+
+  public void unsubscribe(String topic) {
+    getTopics().unsubscribe(topic);
+  }
+
+  /**
+   * returns topics this side has subscribed to
+   *
+   * @return topics
+   */
+  public Set<String> getSubscriptions() {
+    return getTopics().getSubscriptions();
+  }
+
+  /**
+   * returns peers subscribed to topic
+   *
+   * @param topic topic
+   * @return peer ids
+   */
+  public Set<String> getSubscribers(String topic) {
+    return getTopics().getSubscribers(topic);
+  }
+
+  /**
+   * publishes message on topic: it goes to every peer subscribed to it and to servers,
+   * which pass it on to their subscribers; the frame is built once & queued for all of them;
+   * a subscriber whose queue is full doesn't get it, publishing never waits for one
+   *
+   * @param topic topic
+   * @param msg   message string
+   * @return number of peers message was queued for
+   */
+  public int publish(String topic, String msg) {
+    return publish(topic, Frame.message(msg));
+  }
+
+  /**
+   * publishes message frame on topic (see {@link #publish(String, String)})
+   *
+   * @param topic   topic
+   * @param message {@link Frame#TYPE_MESSAGE} frame
+   * @return number of peers message was queued for
+   */
+  public int publish(String topic, Frame message) {
+    return getTopics().publish(topic, message);
+  }
+
+  /**
+   * sends bulk data to one peer as a stream of chunks, without loading it into memory;
+   * peer reads it as {@link IncomingStream} (see {@link #setStreamListener(StreamListener)})
+   *
+   * @param peer     peer id
+   * @param input    data to send, it is closed when transfer ends
+   * @param length   number of bytes in input or -1 if unknown
+   * @param name     name passed to receiver, e.g. file name
+   * @param offset   offset of first byte of input, non-zero to resume a failed transfer
+   *                 (see {@link StreamTransfer#getAcknowledged()})
+   * @param listener progress listener, can be null
+   * @return transfer
+   */
+  public StreamTransfer sendStream(String peer, InputStream input, long length, String name,
+                                   long offset, StreamTransfer.ProgressListener listener) {
+    return sendStream(peer, input, length, name, offset, listener, 0);
+  }
+
+  StreamTransfer sendStream(String peer, InputStream input, long length, String name,
+                            long offset, StreamTransfer.ProgressListener listener, int channel) {
+    return mTransfers.send(peer, input, length, name, offset, listener, channel);
+  }
+
+  /**
+   * sends file to one peer as a stream
+   *
+   * @param peer     peer id
+   * @param file     file
+   * @param offset   where to start, 0 for the whole file
+   * @param listener progress listener, can be null
+   * @return transfer
+   * @throws IOException if file can't be opened
+   */
+  public StreamTransfer sendFile(String peer, File file, long offset,
+                                 StreamTransfer.ProgressListener listener) throws IOException {
+    InputStream input = Transfers.open(file, offset);
+    return sendStream(peer, input, file.length() - offset, file.getName(), offset, listener);
+  }
+
+  /**
+   * queues frame for one peer without waiting for space in its queue
+   */
+  boolean sendWithoutWaiting(String peer, Frame frame) {
+    return getTransport().sendWithoutWaiting(peer, frame);
+  }
+
+  /**
+   * closes connection to one peer
+   */
+  void disconnect(String peer) {
+    getTransport().disconnect(peer);
+  }
+
+  /**
+   * sets mesh node that gets link events & mesh frames of this connection
+   */
+  void setMesh(MeshNode mesh) {
+    mMesh = mesh;
+  }
+
+  private synchronized Transport getTransport() {
+    if (mTransport == null) {
+      Transport.Callback callback = new TransportCallback();
+      if (mConfig.getTransportMode() == TransportMode.NIO) {
+        mTransport = new NioTransport(callback, mConfig, mChannels);
+      } else {
+        mTransport = new BlockingTransport(callback, mConfig, mChannels);
+      }
+      mSupervisor = new Supervisor(mTransport, mConfig);
+      mTopics = new Topics(this, mTransport);
+      if (mConfig.isReliable()) {
+        mReliability = new Reliability(this, mTransport, mConfig);
+      }
+      if (mConfig.getDatagramGroup() != null) {
+        Datagrams datagrams = new Datagrams(this, mConfig);
+        if (datagrams.start()) {
+          mDatagrams = datagrams;
         }
       }
     }
-    mSocket = socket;
+    return mTransport;
   }
 
-  private Socket getSocket() {
-    return mSocket;
+  private synchronized Supervisor getSupervisor() {
+    getTransport();
+    return mSupervisor;
   }
 
-  private synchronized void updateMessages(String msg, boolean local) {
-    Bundle messageBundle = new Bundle();
-    messageBundle.putString(Communication.MESSAGE, msg);
-    Message message = new Message();
-    message.setData(messageBundle);
+  private synchronized Topics getTopics() {
+    getTransport();
+    return mTopics;
+  }
 
-    if (mHandler != null) {
-      mHandler.sendMessage(message);
-    }
+  private synchronized Datagrams getDatagrams() {
+    return mDatagrams;
   }
 
-  private class Server {
-    private Thread mThread;
-    private ServerSocket mServerSocket;
+  /**
+   * passes message that came through a reliable session (or was acknowledged by peer)
+   * or in a datagram to listeners
+   */
+  void deliver(String peer, Frame frame, boolean local) {
+    updateMessages(peer, frame, local);
+  }
 
-    public Server() {
-      mThread = new Thread(new Runnable() {
+  /**
+   * passes message published on topic to topic listener, or to listeners of all messages
+   */
+  void deliverPublication(final String peer, final String topic, final Frame frame) {
+    final TopicListener listener = mTopicListener;
+    if (listener == null) {
+      updateMessages(peer, frame, false);
+      return;
+    }
+    mConfig.getMetrics().increment(Metrics.Counter.MESSAGES_IN, 1);
+    Executor executor = mTopicExecutor;
+    if (executor == null) {
+      listener.onMessage(topic, peer, frame);
+    } else {
+      executor.execute(new Runnable() {
         @Override
         public void run() {
-          try {
-            mServerSocket = new ServerSocket(0);
-            setLocalPort(mServerSocket.getLocalPort());
-
-            while (!Thread.currentThread().isInterrupted()) {
-              setSocket(mServerSocket.accept());
-              connectToServer(mSocket.getInetAddress(), mSocket.getPort());
-            }
-          } catch (IOException e) {
-            Log.d(DEBUG_TAG, "Server IOException: " + e);
-          }
+          listener.onMessage(topic, peer, frame);
         }
       });
-      mThread.start();
     }
+  }
 
-    /**
-     * interrupts thread and closes server socket
-     */
-    public void closeConnection() {
-      mThread.interrupt();
-      try {
-        mServerSocket.close();
-      } catch (IOException e) {
-        Log.e(DEBUG_TAG, "Error when closing server socket: " + e);
+  private void updateMessages(final String peer, final Frame frame, boolean local) {
+    if (frame.getType() != Frame.TYPE_MESSAGE) {
+      return;
+    }
+    final Metrics metrics = mConfig.getMetrics();
+    final long received = metrics != Metrics.NONE ? System.nanoTime() : 0;
+    metrics.increment(local ? Metrics.Counter.MESSAGES_OUT : Metrics.Counter.MESSAGES_IN, 1);
+
+    FrameListener listener = mFrameListener;
+    Executor executor = mFrameExecutor;
+    Channel channel = frame.getChannel() != 0 ? mChannels.find(frame.getChannel()) : null;
+    if (channel != null && channel.getFrameListener() != null) {
+      listener = channel.getFrameListener();
+      executor = channel.getFrameExecutor();
+    }
+    if (listener != null && !local) {
+      if (executor == null) {
+        listener.onFrame(peer, frame);
+      } else {
+        final FrameListener target = listener;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (metrics != Metrics.NONE) {
+              metrics.record(Metrics.Histogram.DISPATCH_LATENCY, (System.nanoTime() - received) / 1000);
+            }
+            target.onFrame(peer, frame);
+          }
+        });
       }
     }
+
+    Handler handler = mHandler;
+    if (handler != null) {
+      handler.obtainMessage(MSG_FRAME, new Delivery(peer, frame, received)).sendToTarget();
+    }
   }
 
-  private class Client {
-    private InetAddress mInetAddress;
-    private int mPort;
-    private Thread mSendingThread;
-    private Thread mReceivingThread;
+  private class TransportCallback implements Transport.Callback {
+    @Override
+    public void onPeerConnected(String peer, boolean outgoing) {
+      mConfig.getMetrics().increment(Metrics.Counter.CONNECTS, 1);
+      mSupervisor.onPeerConnected(peer, outgoing);
+      if (mReliability != null) {
+        mReliability.onPeerConnected(peer, outgoing);
+      }
+      mTopics.onPeerConnected(peer, outgoing);
+      MeshNode mesh = mMesh;
+      if (mesh != null) {
+        mesh.onPeerConnected(peer, outgoing);
+      }
+      if (mPeerListener != null) {
+        mPeerListener.onPeerConnected(peer);
+      }
+      if (outgoing && mConnectionListener != null) {
+        mConnectionListener.onConnection();
+      }
+    }
 
-    public Client(InetAddress inetAddress, int port) {
-      mInetAddress = inetAddress;
-      mPort = port;
+    @Override
+    public void onPeerDisconnected(String peer) {
+      mConfig.getMetrics().increment(Metrics.Counter.DISCONNECTS, 1);
+      mSupervisor.onPeerDisconnected(peer);
+      if (mReliability != null) {
+        mReliability.onPeerDisconnected(peer);
+      }
+      mTopics.onPeerDisconnected(peer);
+      mCalls.onPeerDisconnected(peer);
+      mTransfers.onPeerDisconnected(peer);
+      MeshNode mesh = mMesh;
+      if (mesh != null) {
+        mesh.onPeerDisconnected(peer);
+      }
+      if (mPeerListener != null) {
+        mPeerListener.onPeerDisconnected(peer);
+      }
+    }
 
-      mSendingThread = new Thread(new SendingThread());
-      mSendingThread.start();
+    @Override
+    public void onConnectFailed(InetAddress address, int port) {
+      mSupervisor.onConnectFailed(address, port);
+      MeshNode mesh = mMesh;
+      if (mesh != null) {
+        mesh.onConnectFailed(address, port);
+      }
     }
 
-    /**
-     * sends given message to server
-     *
-     * @param msg message text
-     */
-    public void sendMessage(String msg) {
-      try {
-        Socket socket = getSocket();
-        if (socket == null) {
-          Log.d(DEBUG_TAG, "Socket is null");
-        } else if (socket.getOutputStream() == null) {
-          Log.d(DEBUG_TAG, "Socket output stream is null");
+    @Override
+    public void onFrame(String peer, Frame frame, boolean local) {
+      mSupervisor.onFrame(peer, frame, local);
+      if (frame.getType() == Frame.TYPE_PING || frame.getType() == Frame.TYPE_PONG) {
+        if (!local && frame.getType() == Frame.TYPE_PING) {
+          // this is the reading thread, it must not wait for space in a full queue;
+          // a skipped reply is just a missed RTT sample, like a skipped ping
+          if (!mTransport.sendWithoutWaiting(peer, new Frame(Frame.TYPE_PONG, (byte) 0, frame.getData()))) {
+            Log.d(DEBUG_TAG, "Queue of " + peer + " is full, pong skipped");
+          }
+        } else if (!local) {
+          mSupervisor.onPong(peer, frame.getData());
         }
-
-        PrintWriter out = new PrintWriter(
-            new BufferedWriter(
-                new OutputStreamWriter(getSocket().getOutputStream())
-            ),
-            true
-        );
-        out.println(msg);
-        out.flush();
-        updateMessages(msg, true);
-      } catch (UnknownHostException e) {
-        Log.d(DEBUG_TAG, "Unknown Host: ", e);
-      } catch (IOException e) {
-        Log.d(DEBUG_TAG, "I/O Exception: ", e);
-      } catch (Exception e) {
-        Log.d(DEBUG_TAG, "Error: ", e);
+        return;
+      }
+      if (frame.getType() >= Frame.TYPE_SESSION && frame.getType() <= Frame.TYPE_ACK) {
+        if (!local && mReliability != null) {
+          mReliability.onFrame(peer, frame);
+        }
+        return;
+      }
+      if (frame.getType() == Frame.TYPE_REQUEST || frame.getType() == Frame.TYPE_RESPONSE) {
+        if (!local) {
+          mCalls.onFrame(peer, frame);
+        }
+        return;
+      }
+      if (frame.getType() == Frame.TYPE_MESH_HELLO || frame.getType() == Frame.TYPE_MESH) {
+        MeshNode mesh = mMesh;
+        if (!local && mesh != null) {
+          mesh.onFrame(peer, frame);
+        }
+        return;
+      }
+      if (frame.getType() >= Frame.TYPE_SUBSCRIBE && frame.getType() <= Frame.TYPE_PUBLISH) {
+        if (!local) {
+          mTopics.onFrame(peer, frame);
+        }
+        return;
+      }
+      if (frame.getType() >= Frame.TYPE_STREAM_OPEN && frame.getType() <= Frame.TYPE_STREAM_CANCEL) {
+        if (!local) {
+          mTransfers.onFrame(peer, frame);
+        }
+        return;
       }
-      Log.d(DEBUG_TAG, "Client sent message: " + msg);
+      updateMessages(peer, frame, local);
     }
+  }
 
+  public enum TransportMode {
     /**
-     * closes connection to server
+     * blocking sockets, one reading thread per peer
      */
-    public void closeConnection() {
-      mReceivingThread.interrupt();
-      mSendingThread.interrupt();
-      try {
-        getSocket().close();
-      } catch (IOException e) {
-        Log.e(DEBUG_TAG, "Error when closing server socket: " + e);
-      }
-    }
-
+    BLOCKING,
     /**
-     * thread to send messages
+     * non-blocking channels, one selector thread for all peers
      */
-    private class SendingThread implements Runnable {
-      BlockingQueue<String> mMessageQueue;
-      private int QUEUE_CAPACITY = 10;
+    NIO
+  }
 
-      public SendingThread() {
-        mMessageQueue = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
-      }
+  public enum FramingMode {
+    /**
+     * one text message per line, understood by every version
+     */
+    LINE,
+    /**
+     * length-prefixed binary frames, used only when both sides agree on it
+     */
+    BINARY
+  }
 
-      @Override
-      public void run() {
-        try {
-          if (getSocket() == null) {
-            setSocket(new Socket(mInetAddress, mPort));
-            Log.d(DEBUG_TAG, "Client-side socket initialized.");
-          } else {
-            Log.d(DEBUG_TAG, "Socket already initialized. skipping!");
-          }
+  public enum Compression {
+    /**
+     * payloads are sent as they are
+     */
+    NONE,
+    /**
+     * keys & short strings of {@link BinaryCodec} messages are sent as small ids after first use;
+     * costs almost no CPU, other messages are sent as they are
+     */
+    INTERN,
+    /**
+     * every message goes through one DEFLATE stream per direction with a preset dictionary,
+     * so repeated keys & types shrink to a few bits; smallest on the wire, costs some CPU
+     * and about 300 KB of native memory per connection
+     */
+    DEFLATE
+  }
 
-          // create receiving thread
-          mReceivingThread = new Thread(new ReceivingThread());
-          mReceivingThread.start();
-        } catch (UnknownHostException e) {
-          Log.d(DEBUG_TAG, "Initializing socket failed, UHE", e);
-        } catch (IOException e) {
-          Log.d(DEBUG_TAG, "Initializing socket failed, IOE.", e);
-        }
+  public enum OverflowPolicy {
+    /**
+     * sender waits until there is space in queue
+     */
+    BLOCK,
+    /**
+     * oldest queued message is discarded
+     */
+    DROP_OLDEST,
+    /**
+     * new message is rejected
+     */
+    FAIL_FAST
+  }
 
-        if (mConnectionListener != null) {
-          mConnectionListener.onConnection();
-        }
+  /**
+   * receives frames sent by peers (local copies of sent frames are not passed here)
+   */
+  public interface FrameListener {
+    void onFrame(String peer, Frame frame);
+  }
 
-        // take message from queue and send it
-        while (true) {
-          try {
-            String msg = mMessageQueue.take();
-            sendMessage(msg);
-          } catch (InterruptedException e) {
-            Log.d(DEBUG_TAG, "Message sending loop interrupted, exiting");
-          }
-        }
-      }
-    }
+  /**
+   * receives messages published on subscribed topics
+   */
+  public interface TopicListener {
+    void onMessage(String topic, String peer, Frame frame);
+  }
 
+  /**
+   * answers requests, called on a worker thread (see {@link #setRequestHandler(RequestHandler, Executor)})
+   */
+  public interface RequestHandler {
     /**
-     * thread to receive messages
+     * @param peer    peer id
+     * @param request request message
+     * @return answer message or null for an empty answer
+     * @throws Exception if request can't be answered, caller's call fails with exception's message
      */
-    private class ReceivingThread implements Runnable {
-      @Override
-      public void run() {
-        BufferedReader input;
-        try {
-          input = new BufferedReader(new InputStreamReader(
-              mSocket.getInputStream()));
-          while (!Thread.currentThread().isInterrupted()) {
-            String messageStr = null;
-            messageStr = input.readLine();
-            if (messageStr != null) {
-              Log.d(DEBUG_TAG, "Read from the stream: " + messageStr);
-              updateMessages(messageStr, false);
-            } else {
-              Log.d(DEBUG_TAG, "Null message");
-              break;
-            }
-          }
-          input.close();
-        } catch (IOException e) {
-          Log.e(DEBUG_TAG, "Server loop error: ", e);
-        }
-      }
-    }
+    Frame onRequest(String peer, Frame request) throws Exception;
+  }
+
+  /**
+   * receives bulk streams, called on a stream thread of its own (see {@link ConnectionConfig#setMaxStreams(int)});
+   * stream is closed when this method returns
+   */
+  public interface StreamListener {
+    void onStream(IncomingStream stream);
   }
 
   public interface ConnectionListener {
     void onConnection();
   }
+
+  public interface PeerListener {
+    void onPeerConnected(String peer);
+
+    void onPeerDisconnected(String peer);
+  }
 }
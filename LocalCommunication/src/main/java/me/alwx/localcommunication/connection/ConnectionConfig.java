@@ -0,0 +1,504 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.InetAddress;
+
+/**
+ * settings for {@link me.alwx.localcommunication.connection.Connection},
+ * they are read when connection starts server or connects to one
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class ConnectionConfig {
+  private Connection.TransportMode mTransportMode = Connection.TransportMode.BLOCKING;
+  private int mQueueCapacity = 64;
+  private Connection.OverflowPolicy mOverflowPolicy = Connection.OverflowPolicy.BLOCK;
+  private Connection.FramingMode mFramingMode = Connection.FramingMode.LINE;
+  private int mHandshakeTimeout = 3000;
+  private MessageCodec mCodec = JsonCodec.INSTANCE;
+  private int mStreamWindow = 256 * 1024;
+  private int mMaxStreams = 16;
+  private int mDiscoveryWindow = 2000;
+  private int mHeartbeatInterval;
+  private int mHeartbeatTimeout;
+  private int mIdleTimeout;
+  private boolean mReconnect;
+  private int mReconnectMinDelay = 500;
+  private int mReconnectMaxDelay = 30000;
+  private int mOutageBufferSize = 256;
+  private boolean mReliable;
+  private int mReliableWindow = 128;
+  private int mRetransmitTimeout = 3000;
+  private int mMaxPendingCalls = 1024;
+  private int mMeshNeighbours = 3;
+  private int mMeshTtl = 8;
+  private int mMeshCacheSize = 4096;
+  private int mRouteTimeout = 30000;
+  private InetAddress mDatagramGroup;
+  private int mDatagramPort;
+  private int mMaxDatagramSize = 1200;
+  private Metrics mMetrics = Metrics.NONE;
+  private Connection.Compression mCompression = Connection.Compression.NONE;
+  private byte[] mCompressionDictionary = DeflateFraming.DEFAULT_DICTIONARY;
+
+  public Connection.TransportMode getTransportMode() {
+    return mTransportMode;
+  }
+
+  /**
+   * sets socket engine
+   *
+   * @param mode {@link Connection.TransportMode#BLOCKING} (thread per peer, default)
+   *             or {@link Connection.TransportMode#NIO} (one selector thread for all peers)
+   */
+  public void setTransportMode(Connection.TransportMode mode) {
+    mTransportMode = mode;
+  }
+
+  public int getQueueCapacity() {
+    return mQueueCapacity;
+  }
+
+  /**
+   * sets size of outgoing message queue, one queue per peer
+   *
+   * @param capacity maximum number of queued messages
+   */
+  public void setQueueCapacity(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+    }
+    mQueueCapacity = capacity;
+  }
+
+  public Connection.OverflowPolicy getOverflowPolicy() {
+    return mOverflowPolicy;
+  }
+
+  /**
+   * sets what happens when message is sent to a peer whose queue is full
+   *
+   * @param policy {@link Connection.OverflowPolicy#BLOCK} (default),
+   *               {@link Connection.OverflowPolicy#DROP_OLDEST}
+   *               or {@link Connection.OverflowPolicy#FAIL_FAST}
+   */
+  public void setOverflowPolicy(Connection.OverflowPolicy policy) {
+    mOverflowPolicy = policy;
+  }
+
+  public Connection.FramingMode getFramingMode() {
+    return mFramingMode;
+  }
+
+  /**
+   * sets wire format:
+   * a client asks server for it right after connecting, a server agrees only to this mode;
+   * peers that don't know about framing modes always get {@link Connection.FramingMode#LINE}
+   *
+   * @param mode {@link Connection.FramingMode#LINE} (default) or {@link Connection.FramingMode#BINARY}
+   */
+  public void setFramingMode(Connection.FramingMode mode) {
+    mFramingMode = mode;
+  }
+
+  public int getHandshakeTimeout() {
+    return mHandshakeTimeout;
+  }
+
+  /**
+   * sets how long client waits for server to answer framing negotiation
+   * before it falls back to line mode
+   *
+   * @param timeout timeout in milliseconds
+   */
+  public void setHandshakeTimeout(int timeout) {
+    mHandshakeTimeout = timeout;
+  }
+
+  public MessageCodec getCodec() {
+    return mCodec;
+  }
+
+  /**
+   * sets codec used for messages sent through
+   * {@link me.alwx.localcommunication.connection.ConnectionWrapper#send(java.util.Map)};
+   * received messages are always decoded with the codec they were sent with
+   *
+   * @param codec {@link JsonCodec#INSTANCE} (default), {@link BinaryCodec#INSTANCE}
+   *              or a custom codec registered in {@link MessageCodecs}
+   */
+  public void setCodec(MessageCodec codec) {
+    mCodec = codec;
+  }
+
+  public int getStreamWindow() {
+    return mStreamWindow;
+  }
+
+  /**
+   * sets how many bytes of a bulk stream may be sent before receiver confirms them;
+   * it is also the most a receiver buffers for one stream
+   *
+   * @param bytes window size
+   */
+  public void setStreamWindow(int bytes) {
+    if (bytes < Transfers.CHUNK_SIZE) {
+      throw new IllegalArgumentException("Stream window is smaller than one chunk: " + bytes);
+    }
+    mStreamWindow = bytes;
+  }
+
+  public int getMaxStreams() {
+    return mMaxStreams;
+  }
+
+  /**
+   * sets how many streams may be received at once, and how many sent;
+   * every stream takes a thread, further streams peers open are refused
+   * and further outgoing ones fail with {@link StreamTransfer.ProgressListener#onError(java.io.IOException)}
+   *
+   * @param streams number of streams each way
+   */
+  public void setMaxStreams(int streams) {
+    if (streams <= 0) {
+      throw new IllegalArgumentException("Max streams must be positive: " + streams);
+    }
+    mMaxStreams = streams;
+  }
+
+  public int getDiscoveryWindow() {
+    return mDiscoveryWindow;
+  }
+
+  /**
+   * sets how long client gathers servers before choosing one with a
+   * {@link me.alwx.localcommunication.connection.ServerSelector}
+   *
+   * @param window time in milliseconds, 0 to choose among cached servers only
+   */
+  public void setDiscoveryWindow(int window) {
+    if (window < 0) {
+      throw new IllegalArgumentException("Discovery window is negative: " + window);
+    }
+    mDiscoveryWindow = window;
+  }
+
+  public int getHeartbeatInterval() {
+    return mHeartbeatInterval;
+  }
+
+  public int getHeartbeatTimeout() {
+    return mHeartbeatTimeout;
+  }
+
+  /**
+   * enables heartbeats: every peer is pinged each interval and disconnected when
+   * nothing has been received from it for timeout
+   *
+   * @param interval interval in milliseconds, 0 to disable heartbeats (default)
+   * @param timeout  timeout in milliseconds, should be a few intervals
+   */
+  public void setHeartbeat(int interval, int timeout) {
+    if (interval < 0 || (interval > 0 && timeout <= interval)) {
+      throw new IllegalArgumentException("Invalid heartbeat: " + interval + "/" + timeout);
+    }
+    mHeartbeatInterval = interval;
+    mHeartbeatTimeout = timeout;
+  }
+
+  public int getIdleTimeout() {
+    return mIdleTimeout;
+  }
+
+  /**
+   * makes peers disconnect when nothing but heartbeats has been sent or received for timeout,
+   * so idle handhelds don't keep server's sockets & their own radios busy;
+   * it is checked every heartbeat interval, or four times per timeout when heartbeats are off
+   *
+   * @param timeout timeout in milliseconds, 0 to keep idle peers (default)
+   */
+  public void setIdleTimeout(int timeout) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("Idle timeout is negative: " + timeout);
+    }
+    mIdleTimeout = timeout;
+  }
+
+  public boolean isReconnect() {
+    return mReconnect;
+  }
+
+  /**
+   * makes client reconnect to its server whenever connection is lost or can't be established;
+   * messages sent meanwhile are kept (see {@link #setOutageBufferSize(int)}) & sent after reconnecting
+   *
+   * @param reconnect true to reconnect
+   */
+  public void setReconnect(boolean reconnect) {
+    mReconnect = reconnect;
+  }
+
+  public int getReconnectMinDelay() {
+    return mReconnectMinDelay;
+  }
+
+  public int getReconnectMaxDelay() {
+    return mReconnectMaxDelay;
+  }
+
+  /**
+   * sets delays between reconnection attempts: delay doubles after every failed attempt,
+   * starting at min & never exceeding max; half of it is random, so clients don't reconnect in step
+   *
+   * @param min first delay in milliseconds
+   * @param max largest delay in milliseconds
+   */
+  public void setReconnectDelay(int min, int max) {
+    if (min <= 0 || max < min) {
+      throw new IllegalArgumentException("Invalid reconnect delay: " + min + "/" + max);
+    }
+    mReconnectMinDelay = min;
+    mReconnectMaxDelay = max;
+  }
+
+  public int getOutageBufferSize() {
+    return mOutageBufferSize;
+  }
+
+  /**
+   * sets how many frames are kept for a server while reconnecting to it,
+   * oldest frames are dropped when there are more
+   *
+   * @param size number of frames, 0 to drop everything sent during outage
+   */
+  public void setOutageBufferSize(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Outage buffer size is negative: " + size);
+    }
+    mOutageBufferSize = size;
+  }
+
+  public boolean isReliable() {
+    return mReliable;
+  }
+
+  /**
+   * makes messages arrive exactly once & in order even when connections break:
+   * client opens a session with every server it connects to, messages are numbered,
+   * acknowledged by receiver and sent again after reconnecting or on timeout;
+   * both sides must turn it on, use it together with {@link #setReconnect(boolean)}
+   * (local copies of sent messages come when peer has acknowledged them)
+   *
+   * @param reliable true for reliable delivery
+   */
+  public void setReliable(boolean reliable) {
+    mReliable = reliable;
+  }
+
+  public int getReliableWindow() {
+    return mReliableWindow;
+  }
+
+  /**
+   * sets how many messages may wait for acknowledgement, per session;
+   * sending more waits (blocking transport with {@link Connection.OverflowPolicy#BLOCK})
+   * or fails
+   *
+   * @param window number of messages
+   */
+  public void setReliableWindow(int window) {
+    if (window <= 0) {
+      throw new IllegalArgumentException("Reliable window must be positive: " + window);
+    }
+    mReliableWindow = window;
+  }
+
+  public int getRetransmitTimeout() {
+    return mRetransmitTimeout;
+  }
+
+  /**
+   * sets how long sender waits for acknowledgement before sending messages again
+   *
+   * @param timeout timeout in milliseconds
+   */
+  public void setRetransmitTimeout(int timeout) {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("Retransmit timeout must be positive: " + timeout);
+    }
+    mRetransmitTimeout = timeout;
+  }
+
+  public int getMaxPendingCalls() {
+    return mMaxPendingCalls;
+  }
+
+  /**
+   * sets how many calls may wait for answers at once
+   * (see {@link Connection#call(String, Frame, long)}), further calls fail right away
+   *
+   * @param calls number of calls
+   */
+  public void setMaxPendingCalls(int calls) {
+    if (calls <= 0) {
+      throw new IllegalArgumentException("Max pending calls must be positive: " + calls);
+    }
+    mMaxPendingCalls = calls;
+  }
+
+  public int getMeshNeighbours() {
+    return mMeshNeighbours;
+  }
+
+  /**
+   * sets how many neighbours a {@link MeshNode} connects to itself;
+   * it accepts links from other nodes while it has fewer than twice as many
+   *
+   * @param neighbours number of neighbours
+   */
+  public void setMeshNeighbours(int neighbours) {
+    if (neighbours <= 0) {
+      throw new IllegalArgumentException("Mesh neighbours must be positive: " + neighbours);
+    }
+    mMeshNeighbours = neighbours;
+  }
+
+  public int getMeshTtl() {
+    return mMeshTtl;
+  }
+
+  /**
+   * sets how many hops a mesh message may travel
+   *
+   * @param ttl hops, 1..255
+   */
+  public void setMeshTtl(int ttl) {
+    if (ttl <= 0 || ttl > 255) {
+      throw new IllegalArgumentException("Mesh TTL must be in 1..255: " + ttl);
+    }
+    mMeshTtl = ttl;
+  }
+
+  public int getMeshCacheSize() {
+    return mMeshCacheSize;
+  }
+
+  /**
+   * sets how many ids of recent mesh messages a node remembers to drop copies
+   * that come by other paths; it should cover a few seconds of mesh traffic
+   *
+   * @param size number of message ids
+   */
+  public void setMeshCacheSize(int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Mesh cache size must be positive: " + size);
+    }
+    mMeshCacheSize = size;
+  }
+
+  public int getRouteTimeout() {
+    return mRouteTimeout;
+  }
+
+  /**
+   * sets how long a mesh route is used after last message came from its node;
+   * messages to nodes without a route are flooded
+   *
+   * @param timeout timeout in milliseconds
+   */
+  public void setRouteTimeout(int timeout) {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("Route timeout must be positive: " + timeout);
+    }
+    mRouteTimeout = timeout;
+  }
+
+  public InetAddress getDatagramGroup() {
+    return mDatagramGroup;
+  }
+
+  public int getDatagramPort() {
+    return mDatagramPort;
+  }
+
+  /**
+   * turns on datagram channel used by {@link Connection#sendDatagram(Frame)}: a small message
+   * is sent once to a multicast group (or as UDP broadcast to a broadcast address)
+   * and every device listening on it gets it;
+   * on Android multicast is received only while a {@code WifiManager.MulticastLock} is held,
+   * {@link NetworkDiscovery} holds one while it is open
+   *
+   * @param group multicast group, e.g. 239.255.76.67, or broadcast address; null turns channel off (default)
+   * @param port  UDP port, the same on all devices
+   */
+  public void setDatagramGroup(InetAddress group, int port) {
+    if (group != null && (port <= 0 || port > 0xffff)) {
+      throw new IllegalArgumentException("Invalid datagram port: " + port);
+    }
+    mDatagramGroup = group;
+    mDatagramPort = port;
+  }
+
+  public int getMaxDatagramSize() {
+    return mMaxDatagramSize;
+  }
+
+  /**
+   * sets largest datagram, bigger messages go over TCP;
+   * default keeps datagrams in one Wi-Fi frame, so they are not fragmented
+   *
+   * @param size size in bytes, header included
+   */
+  public void setMaxDatagramSize(int size) {
+    if (size <= Datagrams.HEADER || size > 65507) {
+      throw new IllegalArgumentException("Invalid datagram size: " + size);
+    }
+    mMaxDatagramSize = size;
+  }
+
+  public Connection.Compression getCompression() {
+    return mCompression;
+  }
+
+  /**
+   * sets message compression: a client asks server for it while negotiating framing,
+   * a server that has any compression set agrees to what client asks;
+   * works only with {@link Connection.FramingMode#BINARY} framing
+   *
+   * @param compression {@link Connection.Compression#NONE} (default), {@link Connection.Compression#INTERN}
+   *                    or {@link Connection.Compression#DEFLATE}
+   */
+  public void setCompression(Connection.Compression compression) {
+    mCompression = compression;
+  }
+
+  public byte[] getCompressionDictionary() {
+    return mCompressionDictionary;
+  }
+
+  /**
+   * sets preset dictionary for {@link Connection.Compression#DEFLATE}: strings messages
+   * usually contain, most frequent last; peers with different dictionaries don't compress
+   *
+   * @param dictionary dictionary, at most 32 KB
+   */
+  public void setCompressionDictionary(byte[] dictionary) {
+    if (dictionary.length > DeflateFraming.WINDOW_SIZE) {
+      throw new IllegalArgumentException("Dictionary is larger than window: " + dictionary.length);
+    }
+    mCompressionDictionary = dictionary;
+  }
+
+  public Metrics getMetrics() {
+    return mMetrics;
+  }
+
+  /**
+   * sets receiver of traffic, queue & reconnection measurements
+   *
+   * @param metrics metrics, {@link Metrics#NONE} (default) to measure nothing
+   */
+  public void setMetrics(Metrics metrics) {
+    mMetrics = metrics != null ? metrics : Metrics.NONE;
+  }
+}
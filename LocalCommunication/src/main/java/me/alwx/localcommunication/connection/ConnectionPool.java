@@ -0,0 +1,125 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * connections to several servers kept open at once: frames go to the first server
+ * (in order of {@link #add(java.net.InetAddress, int)}) that is connected,
+ * so when it fails the next one takes over without waiting for a new connection
+ * <p/>
+ * every connection reconnects on its own; when no server is connected,
+ * frames are kept for the first one & sent when it is back
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class ConnectionPool {
+  private final ConnectionConfig mConfig;
+  private final List<Member> mMembers = new CopyOnWriteArrayList<Member>();
+  private volatile Connection.FrameListener mFrameListener;
+  private volatile Executor mFrameExecutor;
+
+  /**
+   * creates empty pool
+   *
+   * @param config settings for all connections, reconnection must be enabled
+   *               (see {@link ConnectionConfig#setReconnect(boolean)})
+   * @throws IllegalArgumentException if reconnection is disabled
+   */
+  public ConnectionPool(ConnectionConfig config) {
+    if (!config.isReconnect()) {
+      throw new IllegalArgumentException("Connection pool needs reconnection to be enabled");
+    }
+    mConfig = config;
+  }
+
+  /**
+   * connects to one more server
+   *
+   * @param address server address
+   * @param port    server port
+   */
+  public void add(InetAddress address, int port) {
+    Member member = new Member(address, port);
+    member.mConnection.setFrameListener(mFrameListener, mFrameExecutor);
+    mMembers.add(member);
+    member.mConnection.connectToServer(address, port);
+  }
+
+  /**
+   * sets listener for frames received from any server in the pool
+   *
+   * @param listener frame listener
+   * @param executor executor to call listener on, null to call it on the reading thread
+   */
+  public void setFrameListener(Connection.FrameListener listener, Executor executor) {
+    mFrameListener = listener;
+    mFrameExecutor = executor;
+    for (Member member : mMembers) {
+      member.mConnection.setFrameListener(listener, executor);
+    }
+  }
+
+  /**
+   * returns server frames are sent to now
+   *
+   * @return peer id or null if no server is connected
+   */
+  public String getActivePeer() {
+    Member member = active();
+    return member != null ? member.mPeer : null;
+  }
+
+  public boolean sendMessage(String msg) {
+    return sendFrame(Frame.message(msg));
+  }
+
+  /**
+   * sends frame to first connected server, or keeps it for the first server if none is connected
+   *
+   * @param frame frame
+   * @return false if pool is empty or frame was rejected
+   */
+  public boolean sendFrame(Frame frame) {
+    Member member = active();
+    if (member == null) {
+      if (mMembers.isEmpty()) {
+        return false;
+      }
+      member = mMembers.get(0);
+    }
+    return member.mConnection.sendFrame(member.mPeer, frame);
+  }
+
+  /**
+   * closes all connections
+   */
+  public void close() {
+    for (Member member : mMembers) {
+      member.mConnection.closeConnection();
+    }
+    mMembers.clear();
+  }
+
+  private Member active() {
+    for (Member member : mMembers) {
+      if (member.mConnection.getPeers().contains(member.mPeer)) {
+        return member;
+      }
+    }
+    return null;
+  }
+
+  private class Member {
+    private final Connection mConnection;
+    private final String mPeer;
+
+    public Member(InetAddress address, int port) {
+      mConnection = new Connection(null, mConfig);
+      mPeer = address.getHostAddress() + ":" + port;
+    }
+  }
+}
@@ -1,13 +1,36 @@
 package me.alwx.localcommunication.connection;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Handler;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.jmdns.ServiceInfo;
 
 /**
  * easy-to-use wrapper for clients
@@ -16,35 +39,123 @@ import java.util.Map;
  * @version 1.0
  */
 public class ConnectionWrapper {
-  private Context mContext;
-  private NetworkDiscovery mNetworkDiscovery;
-  private Connection mConnection;
+  /**
+   * low-priority channel files & streams are sent on, so they don't hold up messages
+   */
+  public static final int BULK_CHANNEL = 1;
+
+  private static final String DEBUG_TAG = ConnectionWrapper.class.getName();
+  private static final int TASK_QUEUE_CAPACITY = 32;
+  private static final long BIND_TIMEOUT = 5000;
+
+  private final NetworkDiscovery mNetworkDiscovery;
+  private final ExecutorService mExecutor;
+  private volatile Connection mConnection;
+  private ConnectionConfig mConfig = new ConnectionConfig();
+  private Handler mHandler;
+  private Connection.FrameListener mFrameListener;
+  private Executor mFrameExecutor;
+  private Connection.StreamListener mStreamListener;
+  private Connection.RequestHandler mRequestHandler;
+  private final Set<String> mTopics = new LinkedHashSet<String>();
+  private final ServiceProperties mServiceProperties = new ServiceProperties();
+  private Selection mSelection;
+  private Future<?> mClosed;
 
   /**
    * wrapper constructor
    * see example of usage in {@link me.alwx.localcommunication.MainActivity}
+   * <p/>
+   * discovery is shared by all wrappers, so creating another one doesn't start JmDNS again
    *
    * @param context  application context
-   * @param listener listener, that will be called after all preparation finished
+   * @param listener listener, that will be called on main thread after all preparation finished
    *                 (see {@link me.alwx.localcommunication.connection.ConnectionWrapper.OnCreatedListener})
    */
   public ConnectionWrapper(final Context context,
                            final OnCreatedListener listener) {
-    mContext = context;
-    new AsyncTask<Void, Void, Void>() {
-      @Override
-      protected Void doInBackground(Void... params) {
-        mNetworkDiscovery = new NetworkDiscovery(mContext);
-        return null;
-      }
+    this(context, listener, createExecutor());
+  }
 
-      @Override
-      protected void onPostExecute(Void aVoid) {
-        if (listener != null) {
+  /**
+   * wrapper constructor with own executor for connection work (starting server, connecting,
+   * closing...); wrapper relies on tasks running one at a time, in order they were submitted
+   *
+   * @param context  application context
+   * @param listener listener, that will be called on main thread after all preparation finished
+   * @param executor single-threaded executor, it is shut down by {@link #close()}
+   */
+  public ConnectionWrapper(final Context context,
+                           final OnCreatedListener listener,
+                           ExecutorService executor) {
+    this(new NetworkDiscovery(context), listener, executor);
+  }
+
+  /**
+   * wrapper constructor with given discovery, e.g. one on
+   * {@link me.alwx.localcommunication.connection.InterfaceAddressProvider} off the device;
+   * listeners are called by main executor of {@link me.alwx.localcommunication.connection.Platform}
+   *
+   * @param networkDiscovery discovery, it is closed by {@link #close()}
+   * @param listener         listener, that will be called on main thread after all preparation finished
+   * @param executor         single-threaded executor, it is shut down by {@link #close()}
+   */
+  public ConnectionWrapper(NetworkDiscovery networkDiscovery,
+                           final OnCreatedListener listener,
+                           ExecutorService executor) {
+    mExecutor = executor;
+    mNetworkDiscovery = networkDiscovery;
+    if (listener != null) {
+      Platform.get().getMainExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
           listener.onCreated();
         }
-      }
-    }.execute((Void) null);
+      });
+    }
+  }
+
+  /**
+   * creates default executor: one thread & a bounded queue,
+   * so tasks keep their order and a stuck network can't pile up work without limit;
+   * a task that doesn't fit fails its future (see {@link #submit(java.util.concurrent.Callable)})
+   *
+   * @return executor
+   */
+  private static ExecutorService createExecutor() {
+    return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(TASK_QUEUE_CAPACITY),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ConnectionWrapper");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * returns settings used for connections created by this wrapper
+   * change them before {@link #startServer()} or {@link #connectToServer(java.net.Inet4Address, int, Connection.ConnectionListener)}
+   *
+   * @return connection config
+   */
+  public ConnectionConfig getConfig() {
+    return mConfig;
+  }
+
+  /**
+   * sets receiver of measurements for connection (see {@link ConnectionConfig#setMetrics(Metrics)}),
+   * discovery, message encoding and handler or dispatcher set to this wrapper;
+   * connection measures with metrics it was started with
+   *
+   * @param metrics metrics, {@link Metrics#NONE} to measure nothing
+   */
+  public synchronized void setMetrics(Metrics metrics) {
+    mConfig.setMetrics(metrics);
+    mNetworkDiscovery.setMetrics(metrics);
+    applyMetrics();
   }
 
   /**
@@ -53,28 +164,123 @@ public class ConnectionWrapper {
    *
    * @param handler message handler
    */
-  public void setHandler(Handler handler) {
+  public synchronized void setHandler(Handler handler) {
+    mHandler = handler;
+    if (mConfig.getMetrics() != Metrics.NONE) {
+      applyMetrics();
+    }
     if (mConnection != null) {
       mConnection.setHandler(handler);
     }
   }
 
+  /**
+   * sets listener that gets received frames directly, without a handler
+   *
+   * @param listener frame listener
+   * @param executor executor to call listener on, null to call it on the reading thread
+   *                 (see {@link me.alwx.localcommunication.connection.Connection#setFrameListener(Connection.FrameListener, java.util.concurrent.Executor)})
+   */
+  public synchronized void setFrameListener(Connection.FrameListener listener, Executor executor) {
+    mFrameListener = listener;
+    mFrameExecutor = executor;
+    if (mConfig.getMetrics() != Metrics.NONE) {
+      applyMetrics();
+    }
+    if (mConnection != null) {
+      mConnection.setFrameListener(listener, executor);
+    }
+  }
+
+  /**
+   * sets listener for files & other bulk streams sent by peers
+   *
+   * @param listener stream listener
+   */
+  public synchronized void setStreamListener(Connection.StreamListener listener) {
+    mStreamListener = listener;
+    if (mConnection != null) {
+      mConnection.setStreamListener(listener);
+    }
+  }
+
+  /**
+   * sets handler that answers peers' calls on connection's worker pool,
+   * e.g. {@link me.alwx.localcommunication.connection.RpcDispatcher}
+   *
+   * @param handler request handler
+   */
+  public synchronized void setRequestHandler(Connection.RequestHandler handler) {
+    mRequestHandler = handler;
+    if (mConnection != null) {
+      mConnection.setRequestHandler(handler, null);
+    }
+  }
+
   /**
    * starts server
    * you need to use this function only for phone you need to register as server
+   *
+   * @return future that gives port server is bound to, once it is registered for discovery;
+   * it fails with IOException if server could not be bound
+   * or with {@link RejectedExecutionException} if executor is busy or closed
    */
-  public void startServer() {
-    mConnection = new Connection();
-    mConnection.createServer();
-
-    new AsyncTask<Void, Void, Void>() {
+  public Future<Integer> startServer() {
+    return submit(new Callable<Integer>() {
       @Override
-      protected Void doInBackground(Void... params) {
-        mNetworkDiscovery.startServer(mConnection.getLocalPort());
+      public Integer call() throws Exception {
+        Connection connection = openConnection(null);
+        connection.setPeerListener(new Connection.PeerListener() {
+          @Override
+          public void onPeerConnected(String peer) {
+            publishClientCount();
+          }
 
-        return null;
+          @Override
+          public void onPeerDisconnected(String peer) {
+            publishClientCount();
+          }
+        });
+        connection.createServer();
+        int port = connection.awaitLocalPort(BIND_TIMEOUT);
+        if (port < 0) {
+          throw new IOException("Server socket was not bound");
+        }
+
+        synchronized (mServiceProperties) {
+          if (mConfig.getFramingMode() == Connection.FramingMode.BINARY) {
+            mServiceProperties.addCapability(ServiceProperties.CAPABILITY_BINARY);
+          }
+          mServiceProperties.addCapability(ServiceProperties.CAPABILITY_STREAMS);
+          mServiceProperties.addCapability(ServiceProperties.CAPABILITY_CHANNELS);
+          mNetworkDiscovery.startServer(port, mServiceProperties);
+        }
+        return port;
       }
-    }.execute((Void) null);
+    });
+  }
+
+  /**
+   * publishes server load, so clients can prefer less busy servers
+   *
+   * @param load load in percent
+   */
+  public void setServerLoad(int load) {
+    synchronized (mServiceProperties) {
+      mServiceProperties.setLoad(load);
+      mNetworkDiscovery.updateProperties(mServiceProperties);
+    }
+  }
+
+  private void publishClientCount() {
+    Connection connection = mConnection;
+    if (connection == null) {
+      return;
+    }
+    synchronized (mServiceProperties) {
+      mServiceProperties.setClientCount(connection.getPeerCount());
+      mNetworkDiscovery.updateProperties(mServiceProperties);
+    }
   }
 
   /**
@@ -82,16 +288,37 @@ public class ConnectionWrapper {
    *
    * @param listener listener, that will be called after something found
    *                 (see {@link me.alwx.localcommunication.connection.NetworkDiscovery.OnFoundListener})
+   * @return future that is done when search has started,
+   * it fails with {@link RejectedExecutionException} if executor is busy or closed
    */
-  public void findServers(final NetworkDiscovery.OnFoundListener listener) {
-    new AsyncTask<Void, Void, Void>() {
+  public Future<?> findServers(final NetworkDiscovery.OnFoundListener listener) {
+    return submit(new Runnable() {
       @Override
-      protected Void doInBackground(Void... params) {
+      public void run() {
         mNetworkDiscovery.findServers(listener);
+      }
+    });
+  }
 
-        return null;
+  /**
+   * performs search for services of several types, reporting only those filter accepts
+   * (see {@link me.alwx.localcommunication.connection.NetworkDiscovery#findServers(String[], NetworkDiscovery.ServiceFilter, NetworkDiscovery.OnFoundListener)})
+   *
+   * @param types    service types
+   * @param filter   filter or null to report all services
+   * @param listener listener, that will be called after something found
+   * @return future that is done when search has started,
+   * it fails with {@link RejectedExecutionException} if executor is busy or closed
+   */
+  public Future<?> findServers(final String[] types,
+                               final NetworkDiscovery.ServiceFilter filter,
+                               final NetworkDiscovery.OnFoundListener listener) {
+    return submit(new Runnable() {
+      @Override
+      public void run() {
+        mNetworkDiscovery.findServers(types, filter, listener);
       }
-    }.execute((Void) null);
+    });
   }
 
   /**
@@ -101,42 +328,428 @@ public class ConnectionWrapper {
    * @param port               server port
    * @param connectionListener listener, that will be called after connection
    *                           (see {@link me.alwx.localcommunication.connection.Connection.ConnectionListener})
+   * @return future that is done when connecting has started,
+   * it fails with {@link RejectedExecutionException} if executor is busy or closed
+   */
+  public Future<?> connectToServer(final Inet4Address address,
+                                   final int port,
+                                   final Connection.ConnectionListener connectionListener) {
+    return submit(new Runnable() {
+      @Override
+      public void run() {
+        openConnection(connectionListener).connectToServer(address, port);
+      }
+    });
+  }
+
+  /**
+   * gathers servers for {@link ConnectionConfig#getDiscoveryWindow()}, lets selector choose one
+   * & connects to it; servers found earlier are candidates right away
+   * <p/>
+   * selection runs on wrapper's executor; a newer selection, {@link #reset()} or {@link #close()}
+   * cancels it, then it neither connects nor calls selected listener
+   *
+   * @param selector           strategy, see {@link me.alwx.localcommunication.connection.ServerSelectors}
+   * @param connectionListener listener, that will be called after connection
+   * @param selectedListener   listener, called on main thread with chosen server, can be null
+   * @return future that is done when connecting has started or no server was found,
+   * it fails with {@link RejectedExecutionException} if executor is busy or closed
+   */
+  public Future<?> connectToServer(ServerSelector selector,
+                                   Connection.ConnectionListener connectionListener,
+                                   OnSelectedListener selectedListener) {
+    Selection selection = new Selection(selector, connectionListener, selectedListener,
+        mConfig.getDiscoveryWindow());
+    synchronized (this) {
+      cancelSelection();
+      selection.mFuture = submit(selection);
+      mSelection = selection;
+    }
+    return selection.mFuture;
+  }
+
+  private synchronized void cancelSelection() {
+    if (mSelection != null) {
+      mSelection.cancel();
+      mSelection = null;
+    }
+  }
+
+  private ServiceInfo selectServer(ServerSelector selector, int window) {
+    final Map<String, ServiceInfo> candidates = new LinkedHashMap<String, ServiceInfo>();
+    NetworkDiscovery.OnFoundListener collector = new NetworkDiscovery.OnChangeListener() {
+      @Override
+      public void onFound(ServiceInfo info) {
+        synchronized (candidates) {
+          candidates.put(info.getQualifiedName(), info);
+        }
+      }
+
+      @Override
+      public void onUpdated(ServiceInfo info) {
+        onFound(info);
+      }
+
+      @Override
+      public void onRemoved(ServiceInfo info) {
+        synchronized (candidates) {
+          candidates.remove(info.getQualifiedName());
+        }
+      }
+    };
+    mNetworkDiscovery.findServers(new String[]{NetworkDiscovery.TYPE},
+        new NetworkDiscovery.ServiceFilter() {
+          @Override
+          public boolean accept(ServiceInfo info, ServiceProperties properties) {
+            return info.getInet4Addresses().length > 0;
+          }
+        }, collector);
+    try {
+      Thread.sleep(window);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      mNetworkDiscovery.stopSearch(collector);
+    }
+
+    List<ServiceInfo> found;
+    synchronized (candidates) {
+      found = new ArrayList<ServiceInfo>(candidates.values());
+    }
+    return found.isEmpty() ? null : selector.select(found);
+  }
+
+  /**
+   * creates connection with current listeners, runs on executor;
+   * the previous connection is closed, so its supervisor stops reconnecting
+   *
+   * @throws IllegalStateException if wrapper is closed, e.g. task was running when close dropped the queue
    */
-  public void connectToServer(Inet4Address address,
-                              int port,
-                              Connection.ConnectionListener connectionListener) {
-    mConnection = new Connection(connectionListener);
-    mConnection.connectToServer(address, port);
+  private synchronized Connection openConnection(Connection.ConnectionListener connectionListener) {
+    if (mClosed != null) {
+      throw new IllegalStateException("Wrapper is closed");
+    }
+    if (mConnection != null) {
+      discard(mConnection);
+    }
+    Connection connection = new Connection(connectionListener, mConfig);
+    connection.openChannel(BULK_CHANNEL, Channel.PRIORITY_BULK);
+    connection.setHandler(mHandler);
+    connection.setFrameListener(mFrameListener, mFrameExecutor);
+    connection.setStreamListener(mStreamListener);
+    connection.setRequestHandler(mRequestHandler, null);
+    for (String topic : mTopics) {
+      connection.subscribe(topic);
+    }
+    mConnection = connection;
+    return connection;
+  }
+
+  /**
+   * sends message to all connected peers, encoded with codec from {@link #getConfig()}
+   *
+   * @param values key-value map
+   */
+  public void send(Map<String, ?> values) {
+    Connection connection = mConnection;
+    if (connection != null) {
+      connection.sendFrame(encode(values));
+    }
   }
 
   /**
-   * sends message
+   * sends message to one peer only
    *
+   * @param peer   peer id (see {@link me.alwx.localcommunication.connection.Connection#getPeers()})
    * @param values key-value map
    */
-  public void send(Map values) {
+  public void send(String peer, Map<String, ?> values) {
+    Connection connection = mConnection;
+    if (connection != null) {
+      connection.sendFrame(peer, encode(values));
+    }
+  }
+
+  /**
+   * sends request to the server this wrapper is connected to (or to the first connected peer)
+   * and returns its answer; any number of calls may be in flight
+   *
+   * @param type    request type, put into {@link Communication#MESSAGE_TYPE} field
+   * @param values  key-value map
+   * @param timeout how long to wait for answer, in milliseconds
+   * @return future answer, it fails with {@link java.util.concurrent.TimeoutException}
+   * or {@link IOException} (see {@link me.alwx.localcommunication.connection.Connection#call(String, Frame, long)})
+   */
+  public Future<JSONObject> call(String type, Map<String, ?> values, long timeout) {
+    Connection connection = mConnection;
+    Set<String> peers = connection != null ? connection.getPeers() : null;
+    if (peers == null || peers.isEmpty()) {
+      return new Answer(null, new IOException("Not connected"));
+    }
+    return call(peers.iterator().next(), type, values, timeout);
+  }
+
+  /**
+   * sends request to one peer and returns its answer
+   *
+   * @param peer    peer id
+   * @param type    request type
+   * @param values  key-value map
+   * @param timeout how long to wait for answer, in milliseconds
+   * @return future answer
+   */
+  public Future<JSONObject> call(String peer, String type, Map<String, ?> values, long timeout) {
+    Connection connection = mConnection;
+    if (connection == null) {
+      return new Answer(null, new IOException("Not connected"));
+    }
+    Map<String, Object> request = new LinkedHashMap<String, Object>();
+    request.put(Communication.MESSAGE_TYPE, type);
+    request.putAll(values);
+    return new Answer(connection.call(peer, encode(request), timeout), null);
+  }
+
+  /**
+   * subscribes to topic on server, also on servers connected to later;
+   * published messages come to handler & frame listener like any other message
+   *
+   * @param topic topic
+   */
+  public synchronized void subscribe(String topic) {
+    mTopics.add(topic);
+    if (mConnection != null) {
+      mConnection.subscribe(topic);
+    }
+  }
+
+  public synchronized void unsubscribe(String topic) {
+    mTopics.remove(topic);
     if (mConnection != null) {
-      JSONObject jsonObject = new JSONObject(values);
-      mConnection.sendMessage(jsonObject.toString());
+      mConnection.unsubscribe(topic);
+    }
+  }
+
+  /**
+   * publishes message on topic, encoded once for all subscribers
+   * (see {@link me.alwx.localcommunication.connection.Connection#publish(String, Frame)})
+   *
+   * @param topic  topic
+   * @param values key-value map
+   * @return number of peers message was queued for
+   */
+  public int publish(String topic, Map<String, ?> values) {
+    Connection connection = mConnection;
+    return connection != null ? connection.publish(topic, encode(values)) : 0;
+  }
+
+  /**
+   * sends small idempotent message (presence, telemetry...) to all devices in one datagram,
+   * see {@link Connection#sendDatagram(Frame)}; needs datagram group in {@link #getConfig()},
+   * otherwise or when message is too big it is sent to all peers like {@link #send(java.util.Map)}
+   *
+   * @param values key-value map
+   * @return true if message was sent as datagram
+   */
+  public boolean sendDatagram(Map<String, ?> values) {
+    Connection connection = mConnection;
+    return connection != null && connection.sendDatagram(encode(values));
+  }
+
+  private Frame encode(Map<String, ?> values) {
+    Metrics metrics = mConfig.getMetrics();
+    if (metrics == Metrics.NONE) {
+      return MessageCodecs.toFrame(mConfig.getCodec(), values);
     }
+    long start = System.nanoTime();
+    Frame frame = MessageCodecs.toFrame(mConfig.getCodec(), values);
+    metrics.record(Metrics.Histogram.ENCODE_TIME, (System.nanoTime() - start) / 1000);
+    return frame;
+  }
+
+  private void applyMetrics() {
+    if (mHandler instanceof MessageHandler) {
+      ((MessageHandler) mHandler).setMetrics(mConfig.getMetrics());
+    }
+    if (mFrameListener instanceof MessageDispatcher) {
+      ((MessageDispatcher) mFrameListener).setMetrics(mConfig.getMetrics());
+    }
+  }
+
+  /**
+   * sends file to one peer in chunks on {@link #BULK_CHANNEL}
+   * (see {@link me.alwx.localcommunication.connection.Connection#sendFile(String, java.io.File, long, StreamTransfer.ProgressListener)})
+   *
+   * @param peer     peer id
+   * @param file     file
+   * @param offset   where to start, 0 for the whole file
+   * @param listener progress listener, can be null
+   * @return transfer or null if there is no connection
+   * @throws IOException if file can't be opened
+   */
+  public StreamTransfer sendFile(String peer, File file, long offset,
+                                 StreamTransfer.ProgressListener listener) throws IOException {
+    Connection connection = mConnection;
+    return connection != null
+        ? connection.getChannel(BULK_CHANNEL).sendFile(peer, file, offset, listener)
+        : null;
+  }
+
+  /**
+   * sends data to one peer in chunks on {@link #BULK_CHANNEL}
+   * (see {@link me.alwx.localcommunication.connection.Connection#sendStream(String, java.io.InputStream, long, String, long, StreamTransfer.ProgressListener)})
+   *
+   * @param peer     peer id
+   * @param input    data, closed when transfer ends
+   * @param length   number of bytes or -1 if unknown
+   * @param name     name passed to receiver
+   * @param listener progress listener, can be null
+   * @return transfer or null if there is no connection
+   */
+  public StreamTransfer sendStream(String peer, InputStream input, long length, String name,
+                                   StreamTransfer.ProgressListener listener) {
+    Connection connection = mConnection;
+    return connection != null
+        ? connection.getChannel(BULK_CHANNEL).sendStream(peer, input, length, name, 0, listener)
+        : null;
+  }
+
+  /**
+   * returns round-trip times & activity of all connected peers, e.g. to report p50/p99 latency
+   * (see {@link me.alwx.localcommunication.connection.LinkStats})
+   *
+   * @return snapshots by peer id, empty if there is no connection
+   */
+  public Map<String, LinkStats> getStats() {
+    Connection connection = mConnection;
+    return connection != null
+        ? connection.getStats()
+        : new LinkedHashMap<String, LinkStats>();
+  }
+
+  /**
+   * returns round-trip times & activity of one peer
+   *
+   * @param peer peer id
+   * @return snapshot or null if there is no such peer
+   */
+  public LinkStats getStats(String peer) {
+    Connection connection = mConnection;
+    return connection != null ? connection.getStats(peer) : null;
   }
 
   /**
    * closes connection
+   *
+   * @return future that is done when connection is closed,
+   * it fails with {@link RejectedExecutionException} if executor is busy or closed
    */
-  public void reset() {
-    new AsyncTask<Void, Void, Void>() {
+  public Future<?> reset() {
+    cancelSelection();
+    return submit(new Runnable() {
       @Override
-      protected Void doInBackground(Void... params) {
-        if (mConnection != null) {
-          mConnection.closeConnection();
-          mConnection = null;
-        }
+      public void run() {
+        closeConnection();
         stopNetworkDiscovery();
+      }
+    });
+  }
 
-        return null;
+  /**
+   * closes connection & releases network discovery, wrapper can't be used after that;
+   * shared JmDNS is kept running while other wrappers use it
+   * <p/>
+   * it is never rejected: when executor's queue is full, tasks waiting in it are cancelled
+   * and everything is closed on a thread of its own
+   *
+   * @return future that is done when everything is closed
+   */
+  public synchronized Future<?> close() {
+    if (mClosed != null) {
+      return mClosed;
+    }
+    cancelSelection();
+    Runnable closing = new Runnable() {
+      @Override
+      public void run() {
+        closeConnection();
+        mNetworkDiscovery.close();
+      }
+    };
+    try {
+      mClosed = mExecutor.submit(closing);
+      mExecutor.shutdown();
+    } catch (RejectedExecutionException e) {
+      Log.d(DEBUG_TAG, "Executor is busy, closing on a new thread");
+      for (Runnable task : mExecutor.shutdownNow()) {
+        if (task instanceof Future) {
+          ((Future<?>) task).cancel(false);
+        }
       }
-    }.execute((Void) null);
+      FutureTask<Object> closed = new FutureTask<Object>(closing, null);
+      new Thread(closed, "ConnectionWrapper").start();
+      mClosed = closed;
+    }
+    return mClosed;
+  }
+
+  private Future<?> submit(Runnable task) {
+    return submit(Executors.callable(task));
+  }
+
+  /**
+   * runs task on executor; when executor rejects it (its queue is full, e.g. while a selection
+   * holds the thread, or wrapper is closed) returned future fails with
+   * {@link RejectedExecutionException} instead of caller getting the exception
+   *
+   * @param task task
+   * @return future result of task
+   */
+  private <T> Future<T> submit(Callable<T> task) {
+    try {
+      return mExecutor.submit(task);
+    } catch (final RejectedExecutionException e) {
+      Log.d(DEBUG_TAG, "Task rejected: " + e);
+      FutureTask<T> failed = new FutureTask<T>(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          throw e;
+        }
+      });
+      failed.run();
+      return failed;
+    }
+  }
+
+  private void closeConnection() {
+    Connection connection;
+    synchronized (this) {
+      connection = mConnection;
+      mConnection = null;
+    }
+    if (connection != null) {
+      discard(connection);
+    }
+  }
+
+  /**
+   * closes connection, listeners set to this wrapper no longer hear from it
+   */
+  private static void discard(Connection connection) {
+    connection.setPeerListener(null);
+    connection.setHandler(null);
+    connection.setFrameListener(null, null);
+    connection.setStreamListener(null);
+    connection.setRequestHandler(null, null);
+    connection.closeConnection();
+  }
+
+  /**
+   * returns discovery used by this wrapper, e.g. to read time to first peer
+   *
+   * @return network discovery
+   */
+  public NetworkDiscovery getNetworkDiscovery() {
+    return mNetworkDiscovery;
   }
 
   /**
@@ -148,6 +761,123 @@ public class ConnectionWrapper {
     }
   }
 
+  /**
+   * server selection running on wrapper's executor
+   */
+  private class Selection implements Runnable {
+    private final ServerSelector mSelector;
+    private final Connection.ConnectionListener mConnectionListener;
+    private final OnSelectedListener mSelectedListener;
+    private final int mWindow;
+    private volatile boolean mCancelled;
+    private Future<?> mFuture;
+
+    public Selection(ServerSelector selector,
+                     Connection.ConnectionListener connectionListener,
+                     OnSelectedListener selectedListener,
+                     int window) {
+      mSelector = selector;
+      mConnectionListener = connectionListener;
+      mSelectedListener = selectedListener;
+      mWindow = window;
+    }
+
+    @Override
+    public void run() {
+      final ServiceInfo chosen = selectServer(mSelector, mWindow);
+      if (mCancelled) {
+        return;
+      }
+      // still on executor, so reset() or close() submitted later closes this connection
+      if (chosen != null) {
+        openConnection(mConnectionListener)
+            .connectToServer(chosen.getInet4Addresses()[0], chosen.getPort());
+      }
+      if (mSelectedListener != null) {
+        Platform.get().getMainExecutor().execute(new Runnable() {
+          @Override
+          public void run() {
+            if (!mCancelled) {
+              mSelectedListener.onSelected(chosen);
+            }
+          }
+        });
+      }
+    }
+
+    public void cancel() {
+      mCancelled = true;
+      mFuture.cancel(true);
+    }
+  }
+
+  /**
+   * answer of a call, decoded when it is read
+   */
+  private static class Answer implements Future<JSONObject> {
+    private final Future<Frame> mCall;
+    private final IOException mError;
+
+    public Answer(Future<Frame> call, IOException error) {
+      mCall = call;
+      mError = error;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return mCall != null && mCall.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return mCall != null && mCall.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+      return mCall == null || mCall.isDone();
+    }
+
+    @Override
+    public JSONObject get() throws InterruptedException, ExecutionException {
+      if (mCall == null) {
+        throw new ExecutionException(mError);
+      }
+      return decode(mCall.get());
+    }
+
+    @Override
+    public JSONObject get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      if (mCall == null) {
+        throw new ExecutionException(mError);
+      }
+      return decode(mCall.get(timeout, unit));
+    }
+
+    private static JSONObject decode(Frame frame) throws ExecutionException {
+      if (frame.getLength() == 0) {
+        return new JSONObject();
+      }
+      MessageCodec codec = MessageCodecs.forFlags(frame.getFlags());
+      try {
+        if (codec == null) {
+          throw new JSONException("Unknown message codec");
+        }
+        return codec.decode(frame.getData());
+      } catch (JSONException e) {
+        throw new ExecutionException(e);
+      }
+    }
+  }
+
+  public interface OnSelectedListener {
+    /**
+     * @param info chosen server or null if no server was found
+     */
+    void onSelected(ServiceInfo info);
+  }
+
   public interface OnCreatedListener {
     void onCreated();
   }
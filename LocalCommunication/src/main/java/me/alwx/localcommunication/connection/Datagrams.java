@@ -0,0 +1,208 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * datagram channel of one connection (see {@link Connection#sendDatagram(Frame)}):
+ * a small message goes to a multicast group, or out as UDP broadcast, in one datagram
+ * however many devices listen; received ones go to the same listeners as messages read from peers
+ * <p/>
+ * datagrams may be lost, duplicated or reordered, so this is for idempotent messages like
+ * presence or telemetry: every sender numbers its datagrams, receivers count gaps & drop
+ * datagrams that are not newer than the last one they have got from that sender
+ * <p/>
+ * datagram: magic byte, message flags, 2-byte channel, 8-byte sender id,
+ * 4-byte sequence number & message payload
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class Datagrams {
+  private static final String DEBUG_TAG = Datagrams.class.getName();
+
+  static final int HEADER = 16;
+  private static final byte MAGIC = (byte) 0xa7;
+  /**
+   * largest UDP payload, datagrams of senders with a larger limit are still read whole
+   */
+  private static final int MAX_UDP = 65507;
+  /**
+   * how many senders' sequence numbers are kept, the oldest are forgotten first
+   */
+  private static final int MAX_SENDERS = 1024;
+
+  private final Connection mConnection;
+  private final ConnectionConfig mConfig;
+  private final long mSenderId = new Random().nextLong();
+  private final AtomicInteger mSequence = new AtomicInteger();
+  private final AtomicLong mLost = new AtomicLong();
+  /**
+   * last sequence number by sender id, used by receiving thread only
+   */
+  private final Map<Long, Integer> mSenders = new LinkedHashMap<Long, Integer>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+      return size() > MAX_SENDERS;
+    }
+  };
+  private MulticastSocket mSocket;
+  private InetSocketAddress mGroup;
+  private volatile boolean mClosed;
+
+  public Datagrams(Connection connection, ConnectionConfig config) {
+    mConnection = connection;
+    mConfig = config;
+  }
+
+  /**
+   * joins group & starts receiving
+   *
+   * @return false if socket can't be opened, messages then go over TCP
+   */
+  public synchronized boolean start() {
+    InetAddress group = mConfig.getDatagramGroup();
+    MulticastSocket socket = null;
+    try {
+      socket = new MulticastSocket(null);
+      socket.setReuseAddress(true);
+      socket.bind(new InetSocketAddress(mConfig.getDatagramPort()));
+      if (group.isMulticastAddress()) {
+        // datagrams don't leave local network
+        socket.setTimeToLive(1);
+        socket.joinGroup(group);
+      } else {
+        socket.setBroadcast(true);
+      }
+    } catch (IOException e) {
+      Log.e(DEBUG_TAG, "Datagram socket not opened, messages go over TCP: " + e);
+      if (socket != null) {
+        socket.close();
+      }
+      return false;
+    }
+    mSocket = socket;
+    mGroup = new InetSocketAddress(group, mConfig.getDatagramPort());
+    final MulticastSocket receiving = socket;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receive(receiving);
+      }
+    }, "Datagrams");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  /**
+   * sends message as one datagram
+   *
+   * @param message message frame
+   * @return false if message is too big for a datagram or can't be sent
+   */
+  public boolean send(Frame message) {
+    byte[] data = message.getData();
+    if (HEADER + data.length > mConfig.getMaxDatagramSize() || mClosed) {
+      return false;
+    }
+    byte[] datagram = new byte[HEADER + data.length];
+    datagram[0] = MAGIC;
+    datagram[1] = message.getFlags();
+    datagram[2] = (byte) (message.getChannel() >> 8);
+    datagram[3] = (byte) message.getChannel();
+    Transfers.putLong(datagram, 4, mSenderId);
+    Transfers.putInt(datagram, 12, mSequence.incrementAndGet());
+    System.arraycopy(data, 0, datagram, HEADER, data.length);
+    try {
+      mSocket.send(new DatagramPacket(datagram, datagram.length, mGroup));
+    } catch (IOException e) {
+      Log.d(DEBUG_TAG, "Datagram not sent: " + e);
+      return false;
+    }
+    Metrics metrics = mConfig.getMetrics();
+    metrics.increment(Metrics.Counter.DATAGRAMS_OUT, 1);
+    metrics.increment(Metrics.Counter.BYTES_OUT, datagram.length);
+    return true;
+  }
+
+  /**
+   * returns number of datagrams that have not come, found by gaps in senders' sequence numbers
+   *
+   * @return datagrams lost
+   */
+  public long getLost() {
+    return mLost.get();
+  }
+
+  public synchronized void close() {
+    mClosed = true;
+    if (mSocket != null) {
+      mSocket.close();
+    }
+  }
+
+  private void receive(MulticastSocket socket) {
+    byte[] buffer = new byte[MAX_UDP];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    while (!mClosed) {
+      packet.setLength(buffer.length);
+      try {
+        socket.receive(packet);
+      } catch (IOException e) {
+        if (socket.isClosed()) {
+          break;
+        }
+        Log.d(DEBUG_TAG, "Datagram not received: " + e);
+        continue;
+      }
+      onDatagram(packet);
+    }
+  }
+
+  private void onDatagram(DatagramPacket packet) {
+    byte[] buffer = packet.getData();
+    int length = packet.getLength();
+    if (length < HEADER || buffer[0] != MAGIC) {
+      return;
+    }
+    long sender = Transfers.getLong(buffer, 4);
+    if (sender == mSenderId) {
+      // own datagram looped back
+      return;
+    }
+    Metrics metrics = mConfig.getMetrics();
+    metrics.increment(Metrics.Counter.BYTES_IN, length);
+    int sequence = Transfers.getInt(buffer, 12);
+    Integer last = mSenders.get(sender);
+    if (last != null) {
+      int gap = sequence - last;
+      if (gap <= 0) {
+        // duplicate or overtaken by a newer one
+        return;
+      }
+      if (gap > 1) {
+        mLost.addAndGet(gap - 1);
+        metrics.increment(Metrics.Counter.DATAGRAMS_LOST, gap - 1);
+        if (Connection.TRACE) {
+          Log.v(DEBUG_TAG, (gap - 1) + " datagrams from " + packet.getSocketAddress() + " lost");
+        }
+      }
+    }
+    mSenders.put(sender, sequence);
+    metrics.increment(Metrics.Counter.DATAGRAMS_IN, 1);
+    int channel = (buffer[2] & 0xff) << 8 | buffer[3] & 0xff;
+    byte[] payload = new byte[length - HEADER];
+    System.arraycopy(buffer, HEADER, payload, 0, payload.length);
+    mConnection.deliver(Supervisor.peerId(packet.getAddress(), packet.getPort()),
+        new Frame(Frame.TYPE_MESSAGE, buffer[1], payload, channel), false);
+  }
+}
@@ -0,0 +1,168 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Connection.Compression#DEFLATE}: message payloads of one direction form a single raw
+ * DEFLATE stream primed with a preset dictionary, every message ends with a sync flush
+ * whose constant 4-byte tail is not sent (like WebSocket's permessage-deflate);
+ * later messages refer back to earlier ones, so repeated keys & types cost a few bits
+ * <p/>
+ * sync flush needs API 19 or Java 7, older devices compress every message on its own
+ * (with the dictionary only) and mark it, so any receiver can read both
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class DeflateFraming extends PackingFraming {
+  /**
+   * DEFLATE window, dictionary must fit into it
+   */
+  public static final int WINDOW_SIZE = 32 * 1024;
+  public static final byte[] DEFAULT_DICTIONARY = defaultDictionary();
+
+  /**
+   * message was compressed on its own, inflater has to start over
+   */
+  private static final int FLAG_SELF_CONTAINED = 0x40;
+  private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+  private static final boolean STREAMING = hasSyncFlush();
+
+  private final byte[] mDictionary;
+  private Deflater mDeflater;
+  private Inflater mInflater;
+  private byte[] mOut = new byte[256];
+  private byte[] mIn = new byte[256];
+
+  public DeflateFraming(byte[] dictionary) {
+    mDictionary = dictionary;
+  }
+
+  /**
+   * returns checksum peers compare to make sure they use the same dictionary
+   *
+   * @param dictionary dictionary
+   * @return Adler-32 checksum as hex
+   */
+  public static String checksum(byte[] dictionary) {
+    Adler32 adler = new Adler32();
+    adler.update(dictionary);
+    return Long.toHexString(adler.getValue());
+  }
+
+  @Override
+  protected byte[] pack(byte[] data, byte flags) {
+    if (mDeflater == null) {
+      // wire bytes matter more than CPU on crowded Wi-Fi
+      mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+      mDeflater.setDictionary(mDictionary);
+    }
+    int count = 0;
+    if (STREAMING) {
+      mDeflater.setInput(data);
+      while (true) {
+        count += mDeflater.deflate(mOut, count, mOut.length - count, Deflater.SYNC_FLUSH);
+        if (count < mOut.length) {
+          break;
+        }
+        mOut = Arrays.copyOf(mOut, mOut.length * 2);
+      }
+      // history must stay in step with receiver's, so even incompressible messages go through
+      return Arrays.copyOf(mOut, count - SYNC_TAIL.length);
+    }
+    mDeflater.reset();
+    mDeflater.setDictionary(mDictionary);
+    mDeflater.setInput(data);
+    mDeflater.finish();
+    while (!mDeflater.finished()) {
+      if (count == mOut.length) {
+        mOut = Arrays.copyOf(mOut, mOut.length * 2);
+      }
+      count += mDeflater.deflate(mOut, count, mOut.length - count);
+    }
+    return count < data.length ? Arrays.copyOf(mOut, count) : null;
+  }
+
+  @Override
+  protected int lastFlags() {
+    return STREAMING ? 0 : FLAG_SELF_CONTAINED;
+  }
+
+  @Override
+  protected int extraFlags() {
+    return FLAG_SELF_CONTAINED;
+  }
+
+  @Override
+  protected byte[] unpack(byte[] data, byte flags) throws ProtocolException {
+    if (mInflater == null) {
+      mInflater = new Inflater(true);
+      mInflater.setDictionary(mDictionary);
+    }
+    if ((flags & FLAG_SELF_CONTAINED) != 0) {
+      mInflater.reset();
+      mInflater.setDictionary(mDictionary);
+      mInflater.setInput(data);
+    } else {
+      byte[] input = Arrays.copyOf(data, data.length + SYNC_TAIL.length);
+      System.arraycopy(SYNC_TAIL, 0, input, data.length, SYNC_TAIL.length);
+      mInflater.setInput(input);
+    }
+    int count = 0;
+    try {
+      while (true) {
+        if (count == mIn.length) {
+          if (count >= MAX_FRAME_SIZE) {
+            throw new ProtocolException("Inflated message is too large");
+          }
+          mIn = Arrays.copyOf(mIn, mIn.length * 2);
+        }
+        int inflated = mInflater.inflate(mIn, count, mIn.length - count);
+        if (inflated == 0) {
+          break;
+        }
+        count += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new ProtocolException("Invalid compressed message: " + e.getMessage());
+    }
+    if (mInflater.needsDictionary() || mInflater.getRemaining() > 0) {
+      throw new ProtocolException("Compressed message is incomplete");
+    }
+    return Arrays.copyOf(mIn, count);
+  }
+
+  /**
+   * tells whether {@link Deflater#SYNC_FLUSH} can be used, without asking Android for its version,
+   * so this framing works on any JVM
+   */
+  private static boolean hasSyncFlush() {
+    try {
+      Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * fragments of JSON & binary messages made of strings every device knows;
+   * most common ones go last, because closer matches take fewer bits
+   */
+  private static byte[] defaultDictionary() {
+    StringBuilder text = new StringBuilder();
+    for (String s : BinaryCodec.DEFAULT_DICTIONARY) {
+      text.append(s).append("\":\"");
+    }
+    text.append(Communication.MESSAGE).append("\":\"");
+    for (String s : BinaryCodec.DEFAULT_DICTIONARY) {
+      text.append("{\"").append(Communication.MESSAGE_TYPE).append("\":\"").append(s).append("\",\"");
+    }
+    return Frame.encodeText(text.toString());
+  }
+}
@@ -0,0 +1,23 @@
+package me.alwx.localcommunication.connection;
+
+/**
+ * received frame together with its sender,
+ * passed to handlers as {@link android.os.Message#obj} instead of a Bundle copy
+ *
+ * @author alwx
+ * @version 1.0
+ */
+final class Delivery {
+  final String mPeer;
+  final Frame mFrame;
+  /**
+   * {@link System#nanoTime()} when frame was read, to measure dispatch latency
+   */
+  final long mReceived;
+
+  Delivery(String peer, Frame frame, long received) {
+    mPeer = peer;
+    mFrame = frame;
+    mReceived = received;
+  }
+}
@@ -0,0 +1,139 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * resolved services, keyed by qualified name;
+ * an entry lives for one record TTL after it was last resolved, unless service is removed earlier
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class DiscoveryCache {
+  private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+  private long mTtl;
+
+  public DiscoveryCache(long ttl) {
+    mTtl = ttl;
+  }
+
+  public synchronized void setTtl(long ttl) {
+    mTtl = ttl;
+  }
+
+  /**
+   * stores resolved service
+   *
+   * @param info resolved service
+   * @return {@link Change#ADDED}, {@link Change#UPDATED} or null if nothing has changed
+   */
+  public synchronized Change put(ServiceInfo info) {
+    String key = key(info);
+    long expires = System.currentTimeMillis() + mTtl;
+    Entry entry = mEntries.get(key);
+    if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+      mEntries.put(key, new Entry(info, expires));
+      return Change.ADDED;
+    }
+    boolean changed = !sameEndpoint(entry.mInfo, info);
+    entry.mInfo = info;
+    entry.mExpires = expires;
+    return changed ? Change.UPDATED : null;
+  }
+
+  /**
+   * removes service
+   *
+   * @param type service type
+   * @param name service name
+   * @return removed service or null if it was not cached
+   */
+  public synchronized ServiceInfo remove(String type, String name) {
+    Entry entry = mEntries.remove(key(type, name));
+    return entry != null ? entry.mInfo : null;
+  }
+
+  /**
+   * removes expired entries
+   *
+   * @return services that have expired
+   */
+  public synchronized List<ServiceInfo> evictExpired() {
+    List<ServiceInfo> expired = new ArrayList<ServiceInfo>();
+    long now = System.currentTimeMillis();
+    for (Iterator<Entry> i = mEntries.values().iterator(); i.hasNext(); ) {
+      Entry entry = i.next();
+      if (entry.isExpired(now)) {
+        expired.add(entry.mInfo);
+        i.remove();
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * returns services that have not expired
+   *
+   * @return cached services
+   */
+  public synchronized List<ServiceInfo> getServices() {
+    List<ServiceInfo> services = new ArrayList<ServiceInfo>(mEntries.size());
+    long now = System.currentTimeMillis();
+    for (Entry entry : mEntries.values()) {
+      if (!entry.isExpired(now)) {
+        services.add(entry.mInfo);
+      }
+    }
+    return services;
+  }
+
+  public synchronized void clear() {
+    mEntries.clear();
+  }
+
+  private static String key(ServiceInfo info) {
+    return key(info.getType(), info.getName());
+  }
+
+  private static String key(String type, String name) {
+    return (name + "." + type).toLowerCase(Locale.US);
+  }
+
+  private static boolean sameEndpoint(ServiceInfo a, ServiceInfo b) {
+    if (a.getPort() != b.getPort()) {
+      return false;
+    }
+    InetAddress[] aAddresses = a.getInetAddresses();
+    InetAddress[] bAddresses = b.getInetAddresses();
+    return Arrays.equals(aAddresses, bAddresses)
+        && Arrays.equals(a.getTextBytes(), b.getTextBytes());
+  }
+
+  public enum Change {
+    ADDED,
+    UPDATED
+  }
+
+  private static class Entry {
+    private ServiceInfo mInfo;
+    private long mExpires;
+
+    public Entry(ServiceInfo info, long expires) {
+      mInfo = info;
+      mExpires = expires;
+    }
+
+    public boolean isExpired(long now) {
+      return now >= mExpires;
+    }
+  }
+}
@@ -0,0 +1,469 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import javax.jmdns.impl.constants.DNSConstants;
+
+/**
+ * one JmDNS instance for the whole process, shared by all
+ * {@link me.alwx.localcommunication.connection.NetworkDiscovery} objects
+ * <p/>
+ * JmDNS.create() takes seconds, so it is started as soon as the engine is first acquired
+ * and kept until the last user releases it; when local address changes,
+ * JmDNS is created again on the new address & registered services and searches are restored
+ * <p/>
+ * all JmDNS calls run on one engine thread, callers never wait for them
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class DiscoveryEngine {
+  private static final String DEBUG_TAG = DiscoveryEngine.class.getName();
+
+
+  private static DiscoveryEngine sInstance;
+  private static int sReferences;
+
+  private final AddressProvider mAddressProvider;
+  private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "DiscoveryEngine");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private final DiscoveryCache mCache = new DiscoveryCache(DNSConstants.DNS_TTL * 1000L);
+  private final Map<String, Browser> mBrowsers = new ConcurrentHashMap<String, Browser>();
+  private final List<Registration> mRegistrations = new ArrayList<Registration>();
+  private final Runnable mBind = new Runnable() {
+    @Override
+    public void run() {
+      bind();
+    }
+  };
+  private final Runnable mNetworkChanged = new Runnable() {
+    @Override
+    public void run() {
+      if (!mExecutor.isShutdown()) {
+        mExecutor.execute(mBind);
+      }
+    }
+  };
+
+  private volatile JmDNS mJmDNS;
+  private InetAddress mAddress;
+  private final long mStartedAt = System.currentTimeMillis();
+  private volatile long mStartupTime = -1;
+  private volatile Metrics mMetrics = Metrics.NONE;
+
+  private DiscoveryEngine(AddressProvider addressProvider) {
+    mAddressProvider = addressProvider;
+  }
+
+  /**
+   * returns engine, starting it if nobody uses it yet
+   *
+   * @param addressProvider source of local address, used only if engine is started by this call
+   * @return engine
+   */
+  public static synchronized DiscoveryEngine acquire(AddressProvider addressProvider) {
+    if (sInstance == null) {
+      sInstance = new DiscoveryEngine(addressProvider);
+      sInstance.start();
+    }
+    sReferences++;
+    return sInstance;
+  }
+
+  /**
+   * releases engine, it is stopped when nobody uses it anymore
+   *
+   * @param engine engine returned by {@link #acquire(AddressProvider)}
+   */
+  public static synchronized void release(DiscoveryEngine engine) {
+    if (engine != sInstance || sReferences == 0) {
+      return;
+    }
+    if (--sReferences == 0) {
+      sInstance.stop();
+      sInstance = null;
+    }
+  }
+
+  /**
+   * returns how long JmDNS creation took
+   *
+   * @return time in milliseconds or -1 if JmDNS is not ready yet
+   */
+  public long getStartupTime() {
+    return mStartupTime;
+  }
+
+  public void setCacheTtl(long ttl) {
+    mCache.setTtl(ttl);
+  }
+
+  public void setMetrics(Metrics metrics) {
+    mMetrics = metrics;
+  }
+
+  public List<ServiceInfo> getCachedServices() {
+    return mCache.getServices();
+  }
+
+  /**
+   * registers service, it is registered again after every rebind
+   *
+   * @param type service type
+   * @param name service name
+   * @param port port
+   * @param properties TXT record properties
+   * @return registration to pass to {@link #unregister(Object)}
+   */
+  public Object register(String type, String name, int port, Map<String, String> properties) {
+    final Registration registration = new Registration(type, name, port, properties);
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        mRegistrations.add(registration);
+        registration.registerWith(mJmDNS);
+      }
+    });
+    return registration;
+  }
+
+  /**
+   * replaces TXT record of registered service without registering it again
+   *
+   * @param registration registration returned by {@link #register(String, String, int, java.util.Map)}
+   * @param properties   new TXT record properties
+   */
+  public void updateProperties(final Object registration, final Map<String, String> properties) {
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Registration r = (Registration) registration;
+        r.mProperties = properties;
+        if (mRegistrations.contains(r) && mJmDNS != null && r.mInfo != null) {
+          try {
+            r.mInfo.setText(properties);
+          } catch (IllegalStateException e) {
+            Log.d(DEBUG_TAG, "Error in TXT record update: " + e);
+          }
+        }
+      }
+    });
+  }
+
+  public void unregister(final Object registration) {
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Registration r = (Registration) registration;
+        if (mRegistrations.remove(r) && mJmDNS != null && r.mInfo != null) {
+          mJmDNS.unregisterService(r.mInfo);
+        }
+      }
+    });
+  }
+
+  /**
+   * starts reporting services of given type to listener;
+   * cached services are reported right away, on the calling thread
+   *
+   * @param type     service type
+   * @param listener listener
+   */
+  public void browse(String type, NetworkDiscovery.OnFoundListener listener) {
+    synchronized (mBrowsers) {
+      Browser browser = mBrowsers.get(type);
+      if (browser == null) {
+        final Browser added = new Browser(type);
+        mBrowsers.put(type, added);
+        mExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (mJmDNS != null && mBrowsers.get(added.mType) == added) {
+              mJmDNS.addServiceListener(added.mType, added);
+            }
+          }
+        });
+        browser = added;
+      }
+      browser.mListeners.add(listener);
+    }
+    evictExpired();
+    for (ServiceInfo info : mCache.getServices()) {
+      if (info.getType().equalsIgnoreCase(type)) {
+        listener.onFound(info);
+      }
+    }
+  }
+
+  public void stopBrowsing(String type, NetworkDiscovery.OnFoundListener listener) {
+    synchronized (mBrowsers) {
+      final Browser browser = mBrowsers.get(type);
+      if (browser == null) {
+        return;
+      }
+      browser.mListeners.remove(listener);
+      if (browser.mListeners.isEmpty()) {
+        mBrowsers.remove(type);
+        mExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (mJmDNS != null) {
+              mJmDNS.removeServiceListener(browser.mType, browser);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  private void start() {
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        mAddressProvider.start(mNetworkChanged);
+        bind();
+      }
+    });
+  }
+
+  private void stop() {
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        closeJmDNS();
+        mRegistrations.clear();
+        mAddressProvider.stop();
+      }
+    });
+    mExecutor.shutdown();
+  }
+
+  /**
+   * creates JmDNS on current local address, unless it already runs there;
+   * runs on engine thread
+   */
+  private void bind() {
+    InetAddress address = mAddressProvider.getAddress();
+    if (address == null || (mJmDNS != null && address.equals(mAddress))) {
+      return;
+    }
+    if (mJmDNS != null) {
+      Log.d(DEBUG_TAG, "Local address changed to " + address + ", rebinding");
+      closeJmDNS();
+      // services found on the old network are not reachable anymore
+      for (Browser browser : mBrowsers.values()) {
+        browser.removeAll();
+      }
+      mCache.clear();
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      mJmDNS = JmDNS.create(address);
+      mAddress = address;
+    } catch (IOException e) {
+      Log.d(DEBUG_TAG, "Error in JmDNS creation: " + e);
+      return;
+    }
+    if (mStartupTime < 0) {
+      mStartupTime = System.currentTimeMillis() - mStartedAt;
+    }
+    Log.d(DEBUG_TAG, "JmDNS created in " + (System.currentTimeMillis() - start) + " ms");
+
+    for (Registration registration : mRegistrations) {
+      registration.registerWith(mJmDNS);
+    }
+    for (Browser browser : mBrowsers.values()) {
+      mJmDNS.addServiceListener(browser.mType, browser);
+    }
+  }
+
+  private void closeJmDNS() {
+    if (mJmDNS == null) {
+      return;
+    }
+    for (Browser browser : mBrowsers.values()) {
+      mJmDNS.removeServiceListener(browser.mType, browser);
+    }
+    mJmDNS.unregisterAllServices();
+    try {
+      mJmDNS.close();
+    } catch (IOException e) {
+      Log.d(DEBUG_TAG, "Error when closing JmDNS: " + e);
+    }
+    mJmDNS = null;
+  }
+
+  private void evictExpired() {
+    for (ServiceInfo info : mCache.evictExpired()) {
+      Browser browser = mBrowsers.get(info.getType());
+      if (browser != null) {
+        browser.notifyRemoved(info);
+      }
+    }
+  }
+
+  /**
+   * registered service, kept so it can be registered again after rebind
+   */
+  private static class Registration {
+    private final String mType;
+    private final String mName;
+    private final int mPort;
+    private Map<String, String> mProperties;
+    private ServiceInfo mInfo;
+
+    public Registration(String type, String name, int port, Map<String, String> properties) {
+      mType = type;
+      mName = name;
+      mPort = port;
+      mProperties = properties;
+    }
+
+    public void registerWith(JmDNS jmDNS) {
+      if (jmDNS == null) {
+        return;
+      }
+      try {
+        mInfo = ServiceInfo.create(mType, mName, mPort, 0, 0, mProperties);
+        jmDNS.registerService(mInfo);
+      } catch (IOException e) {
+        Log.d(DEBUG_TAG, "Error in service registration: " + e);
+      }
+    }
+  }
+
+  /**
+   * JmDNS listener for one service type, resolves services & keeps cache up to date
+   */
+  private class Browser implements ServiceListener {
+    private final String mType;
+    private final List<NetworkDiscovery.OnFoundListener> mListeners =
+        new CopyOnWriteArrayList<NetworkDiscovery.OnFoundListener>();
+    /**
+     * when services waiting for resolution were found, by name; filled only while metrics are set
+     */
+    private final Map<String, Long> mFoundAt = new ConcurrentHashMap<String, Long>();
+    /**
+     * names resolved once more to catch a TXT record change, see {@link #serviceResolved(ServiceEvent)}
+     */
+    private final Set<String> mRefreshing =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public Browser(String type) {
+      mType = type;
+    }
+
+    @Override
+    public void serviceAdded(ServiceEvent serviceEvent) {
+      // resolution is asynchronous, result comes to serviceResolved
+      JmDNS jmDNS = mJmDNS;
+      if (jmDNS != null) {
+        if (mMetrics != Metrics.NONE) {
+          mFoundAt.put(serviceEvent.getName(), System.nanoTime());
+        }
+        jmDNS.requestServiceInfo(serviceEvent.getType(), serviceEvent.getName());
+      }
+    }
+
+    @Override
+    public void serviceRemoved(ServiceEvent serviceEvent) {
+      mFoundAt.remove(serviceEvent.getName());
+      ServiceInfo info = mCache.remove(serviceEvent.getType(), serviceEvent.getName());
+      if (info != null) {
+        notifyRemoved(info);
+      }
+    }
+
+    @Override
+    public void serviceResolved(ServiceEvent serviceEvent) {
+      ServiceInfo info = serviceEvent.getInfo();
+      if (info == null || !info.hasData() || mExecutor.isShutdown()) {
+        return;
+      }
+      // JmDNS updates its objects in place, cache needs a snapshot to notice changes
+      final ServiceInfo snapshot = info.clone();
+      final String type = serviceEvent.getType();
+      final String name = serviceEvent.getName();
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          boolean changed = resolved(snapshot);
+          boolean refreshed = mRefreshing.remove(name);
+          // info of an event caused by a TXT record change can still carry the old text:
+          // an unchanged service is resolved once more, without waiting,
+          // & the new text comes with the next serviceResolved
+          JmDNS jmDNS = mJmDNS;
+          if (!changed && !refreshed && jmDNS != null) {
+            mRefreshing.add(name);
+            // JmDNS has data of a resolved service, so this only sends queries
+            jmDNS.requestServiceInfo(type, name, false, 0);
+          }
+        }
+      });
+    }
+
+    /**
+     * @return true if service is new or has changed
+     */
+    private boolean resolved(ServiceInfo info) {
+      DiscoveryCache.Change change = mCache.put(info);
+      Long foundAt = mFoundAt.isEmpty() ? null : mFoundAt.remove(info.getName());
+      if (foundAt != null) {
+        mMetrics.record(Metrics.Histogram.RESOLVE_TIME, (System.nanoTime() - foundAt) / 1000);
+      }
+      if (change == DiscoveryCache.Change.ADDED) {
+        for (NetworkDiscovery.OnFoundListener listener : mListeners) {
+          listener.onFound(info);
+        }
+      } else if (change == DiscoveryCache.Change.UPDATED) {
+        for (NetworkDiscovery.OnFoundListener listener : mListeners) {
+          if (listener instanceof NetworkDiscovery.OnChangeListener) {
+            ((NetworkDiscovery.OnChangeListener) listener).onUpdated(info);
+          }
+        }
+      }
+      return change != null;
+    }
+
+    public void notifyRemoved(ServiceInfo info) {
+      for (NetworkDiscovery.OnFoundListener listener : mListeners) {
+        if (listener instanceof NetworkDiscovery.OnChangeListener) {
+          ((NetworkDiscovery.OnChangeListener) listener).onRemoved(info);
+        }
+      }
+    }
+
+    /**
+     * reports all cached services of this type as removed
+     */
+    public void removeAll() {
+      for (ServiceInfo info : mCache.getServices()) {
+        if (info.getType().equalsIgnoreCase(mType)) {
+          notifyRemoved(info);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * one unit sent over connection: type, flags & payload bytes;
+ * payload is kept as bytes and turned into a String only when {@link #getText()} is called
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public final class Frame {
+  /**
+   * application message, the only type delivered to message handlers
+   */
+  public static final byte TYPE_MESSAGE = 0;
+  /**
+   * framing negotiation, sent once right after connecting
+   */
+  public static final byte TYPE_HELLO = 1;
+  /**
+   * start of a bulk stream: id, start offset, length & name
+   */
+  public static final byte TYPE_STREAM_OPEN = 2;
+  /**
+   * chunk of a bulk stream: id, offset & bytes
+   */
+  public static final byte TYPE_STREAM_DATA = 3;
+  /**
+   * end of a bulk stream, sent by sender (flags are 1 if it was aborted)
+   */
+  public static final byte TYPE_STREAM_END = 4;
+  /**
+   * receiver's confirmation of bytes it has consumed, gives sender more credit
+   */
+  public static final byte TYPE_STREAM_ACK = 5;
+  /**
+   * receiver does not want the rest of a bulk stream
+   */
+  public static final byte TYPE_STREAM_CANCEL = 6;
+  /**
+   * heartbeat, peer answers with {@link #TYPE_PONG} carrying the same payload
+   */
+  public static final byte TYPE_PING = 7;
+  /**
+   * answer to {@link #TYPE_PING}
+   */
+  public static final byte TYPE_PONG = 8;
+  /**
+   * start or resumption of a reliable session: session id, next sequence number expected from peer
+   * & sequence number of the oldest frame not yet acknowledged by peer
+   * (see {@link ConnectionConfig#setReliable(boolean)})
+   */
+  public static final byte TYPE_SESSION = 9;
+  /**
+   * message of a reliable session: sequence number & message payload
+   */
+  public static final byte TYPE_RELIABLE = 10;
+  /**
+   * cumulative acknowledgement: next sequence number expected from peer
+   */
+  public static final byte TYPE_ACK = 11;
+  /**
+   * subscription to a topic: UTF-8 topic (see {@link Connection#subscribe(String)})
+   */
+  public static final byte TYPE_SUBSCRIBE = 12;
+  /**
+   * end of a subscription: UTF-8 topic
+   */
+  public static final byte TYPE_UNSUBSCRIBE = 13;
+  /**
+   * message published on a topic: topic length byte, UTF-8 topic & message payload
+   */
+  public static final byte TYPE_PUBLISH = 14;
+  /**
+   * request: 4-byte call id & message payload (see {@link Connection#call(String, Frame, long)})
+   */
+  public static final byte TYPE_REQUEST = 15;
+  /**
+   * answer to {@link #TYPE_REQUEST}: call id, status byte & message payload
+   */
+  public static final byte TYPE_RESPONSE = 16;
+  /**
+   * mesh link announcement: 8-byte node id of sender (see {@link MeshNode})
+   */
+  public static final byte TYPE_MESH_HELLO = 17;
+  /**
+   * mesh message: origin node id, sequence number, destination node id (0 for all nodes),
+   * TTL byte, hop count byte & message payload
+   */
+  public static final byte TYPE_MESH = 18;
+  /**
+   * part of a frame sent on a logical channel other than 0, see {@link Chunks}
+   */
+  public static final byte TYPE_CHUNK = 19;
+  /**
+   * bytes receiver has consumed on a logical channel: 2-byte channel id & 4-byte count,
+   * sender may send as many more on that channel (see {@link OutboundQueue})
+   */
+  public static final byte TYPE_CREDIT = 20;
+
+  /**
+   * largest type value, types are 6-bit on the wire
+   */
+  public static final int MAX_TYPE = 0x3f;
+  /**
+   * largest logical channel id (see {@link me.alwx.localcommunication.connection.Channel})
+   */
+  public static final int MAX_CHANNEL = 0xffff;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final byte mType;
+  private final byte mFlags;
+  private final byte[] mData;
+  private final int mChannel;
+  /**
+   * wire bytes of a frame queued for many peers, see {@link LineFraming}
+   */
+  private volatile byte[] mEncoded;
+
+  public Frame(byte type, byte flags, byte[] data) {
+    this(type, flags, data, 0);
+  }
+
+  public Frame(byte type, byte flags, byte[] data, int channel) {
+    if (type < 0 || type > MAX_TYPE) {
+      throw new IllegalArgumentException("Invalid frame type: " + type);
+    }
+    if (channel < 0 || channel > MAX_CHANNEL) {
+      throw new IllegalArgumentException("Invalid channel: " + channel);
+    }
+    mType = type;
+    mFlags = flags;
+    mData = data != null ? data : EMPTY;
+    mChannel = channel;
+  }
+
+  /**
+   * creates message frame with UTF-8 text
+   *
+   * @param text message text
+   * @return frame
+   */
+  public static Frame message(String text) {
+    return new Frame(TYPE_MESSAGE, (byte) 0, encodeText(text));
+  }
+
+  static byte[] encodeText(String text) {
+    byte[] data = new byte[Utf8.encodedLength(text)];
+    Utf8.encode(text, data, 0);
+    return data;
+  }
+
+  static String decodeText(byte[] data, int offset, int length) {
+    try {
+      return new String(data, offset, length, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  byte[] getEncoded() {
+    return mEncoded;
+  }
+
+  void setEncoded(byte[] encoded) {
+    mEncoded = encoded;
+  }
+
+  public byte getType() {
+    return mType;
+  }
+
+  public byte getFlags() {
+    return mFlags;
+  }
+
+  /**
+   * returns logical channel frame is sent on, 0 is the default channel
+   *
+   * @return channel id
+   */
+  public int getChannel() {
+    return mChannel;
+  }
+
+  /**
+   * returns the same frame on another channel, payload is shared
+   *
+   * @param channel channel id
+   * @return frame
+   */
+  public Frame onChannel(int channel) {
+    return channel == mChannel ? this : new Frame(mType, mFlags, mData, channel);
+  }
+
+  /**
+   * returns payload, the array is shared, don't modify it
+   *
+   * @return payload bytes
+   */
+  public byte[] getData() {
+    return mData;
+  }
+
+  public int getLength() {
+    return mData.length;
+  }
+
+  /**
+   * returns read-only view of payload
+   *
+   * @return payload buffer
+   */
+  public ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(mData).asReadOnlyBuffer();
+  }
+
+  /**
+   * decodes payload as UTF-8 text
+   *
+   * @return text
+   */
+  public String getText() {
+    return decodeText(mData, 0, mData.length);
+  }
+}
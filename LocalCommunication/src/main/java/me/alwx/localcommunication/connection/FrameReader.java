@@ -0,0 +1,91 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * inbound buffer of one connection: socket bytes are read into it
+ * and frames are decoded straight from it
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class FrameReader {
+  private static final int INITIAL_SIZE = 8192;
+
+  private ByteBuffer mBuffer = ByteBuffer.allocate(INITIAL_SIZE);
+  private volatile Framing mFraming;
+  private boolean mReading;
+
+  public FrameReader(Framing framing) {
+    mFraming = framing;
+  }
+
+  public Framing getFraming() {
+    return mFraming;
+  }
+
+  /**
+   * switches framing, bytes not decoded yet are decoded with the new one
+   *
+   * @param framing framing
+   */
+  public void setFraming(Framing framing) {
+    mFraming = framing;
+  }
+
+  /**
+   * returns buffer to read socket data into, growing it when it is full
+   *
+   * @return buffer in write mode
+   * @throws ProtocolException if a frame does not fit into {@link Framing#MAX_FRAME_SIZE}
+   */
+  public ByteBuffer writableBuffer() throws ProtocolException {
+    if (mReading) {
+      mBuffer.compact();
+      mReading = false;
+    }
+    if (!mBuffer.hasRemaining()) {
+      if (mBuffer.capacity() > Framing.MAX_FRAME_SIZE) {
+        throw new ProtocolException("Frame is too big");
+      }
+      ByteBuffer bigger = ByteBuffer.allocate(mBuffer.capacity() * 2);
+      mBuffer.flip();
+      bigger.put(mBuffer);
+      mBuffer = bigger;
+    }
+    return mBuffer;
+  }
+
+  /**
+   * reads whatever is available from stream (blocks until at least one byte arrives)
+   *
+   * @param in stream
+   * @return number of bytes read, -1 at end of stream
+   * @throws IOException if stream is broken
+   */
+  public int readFrom(InputStream in) throws IOException {
+    ByteBuffer buffer = writableBuffer();
+    int count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    if (count > 0) {
+      buffer.position(buffer.position() + count);
+    }
+    return count;
+  }
+
+  /**
+   * decodes next buffered frame
+   *
+   * @return frame or null if more bytes are needed
+   * @throws ProtocolException if bytes are not a valid frame
+   */
+  public Frame next() throws ProtocolException {
+    if (!mReading) {
+      mBuffer.flip();
+      mReading = true;
+    }
+    return mFraming.decode(mBuffer);
+  }
+}
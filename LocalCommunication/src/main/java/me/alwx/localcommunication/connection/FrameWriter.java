@@ -0,0 +1,83 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * long-lived writer for one socket: frames are encoded straight into a reusable
+ * byte buffer, so sending a frame allocates nothing;
+ * bytes reach the socket only when buffer fills up or {@link #flush()} is called
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class FrameWriter {
+  private final OutputStream mOut;
+  private final byte[] mBuffer;
+  private int mCount;
+  private int mWritten;
+  private volatile Framing mFraming;
+
+  public FrameWriter(OutputStream out, int bufferSize, Framing framing) {
+    mOut = out;
+    mBuffer = new byte[bufferSize];
+    mFraming = framing;
+  }
+
+  public Framing getFraming() {
+    return mFraming;
+  }
+
+  /**
+   * switches framing, frames written from now on use the new one
+   *
+   * @param framing framing
+   */
+  public void setFraming(Framing framing) {
+    mFraming = framing;
+  }
+
+  /**
+   * buffers frame
+   *
+   * @param frame frame
+   * @throws IOException if buffer had to be written and socket is broken
+   */
+  public void write(Frame frame) throws IOException {
+    Framing framing = mFraming;
+    int length = framing.encodedLength(frame);
+    if (length > mBuffer.length - mCount) {
+      drain();
+    }
+    if (length > mBuffer.length) {
+      byte[] large = new byte[length];
+      framing.encode(frame, large, 0);
+      mOut.write(large);
+      mWritten += length;
+    } else {
+      mCount = framing.encode(frame, mBuffer, mCount);
+    }
+  }
+
+  /**
+   * writes buffered bytes to socket and flushes it
+   *
+   * @return number of bytes written to socket since previous flush
+   * @throws IOException if socket is broken
+   */
+  public int flush() throws IOException {
+    drain();
+    mOut.flush();
+    int written = mWritten;
+    mWritten = 0;
+    return written;
+  }
+
+  private void drain() throws IOException {
+    if (mCount > 0) {
+      mOut.write(mBuffer, 0, mCount);
+      mWritten += mCount;
+      mCount = 0;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * turns frames into bytes and back, one instance per connection direction
+ * (see {@link me.alwx.localcommunication.connection.LineFraming} and
+ * {@link me.alwx.localcommunication.connection.BinaryFraming})
+ *
+ * @author alwx
+ * @version 1.0
+ */
+abstract class Framing {
+  /**
+   * largest frame accepted from peer
+   */
+  public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  public static Framing create(Connection.FramingMode mode) {
+    return mode == Connection.FramingMode.BINARY ? new BinaryFraming() : new LineFraming();
+  }
+
+  /**
+   * creates framing for one direction of a connection, compression needs binary framing
+   *
+   * @param mode        framing mode
+   * @param compression compression agreed with peer
+   * @param dictionary  preset dictionary for {@link Connection.Compression#DEFLATE}
+   * @return framing
+   */
+  public static Framing create(Connection.FramingMode mode, Connection.Compression compression,
+                               byte[] dictionary) {
+    if (mode != Connection.FramingMode.BINARY) {
+      return new LineFraming();
+    }
+    switch (compression) {
+      case DEFLATE:
+        return new DeflateFraming(dictionary);
+      case INTERN:
+        return new InterningFraming();
+      default:
+        return new BinaryFraming();
+    }
+  }
+
+  public abstract Connection.FramingMode getMode();
+
+  /**
+   * returns number of bytes frame takes on the wire
+   *
+   * @param frame frame
+   * @return encoded length
+   */
+  public abstract int encodedLength(Frame frame);
+
+  /**
+   * encodes frame
+   *
+   * @param frame  frame
+   * @param dst    target array with at least {@link #encodedLength(Frame)} bytes of space
+   * @param offset position in target array
+   * @return position after last written byte
+   */
+  public abstract int encode(Frame frame, byte[] dst, int offset);
+
+  /**
+   * decodes next frame, buffer position is moved past it;
+   * nothing is consumed when buffer does not hold a whole frame yet
+   *
+   * @param in buffer in read mode
+   * @return frame or null if more bytes are needed
+   * @throws ProtocolException if bytes are not a valid frame
+   */
+  public abstract Frame decode(ByteBuffer in) throws ProtocolException;
+}
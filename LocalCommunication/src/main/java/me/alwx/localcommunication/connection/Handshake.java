@@ -0,0 +1,141 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * connection options negotiation:
+ * client configured for anything but plain lines sends a {@link Frame#TYPE_HELLO} frame
+ * with "key=value;..." options right after connecting & waits for server's answer;
+ * a server that never answers (older version) keeps the connection in line mode
+ *
+ * @author alwx
+ * @version 1.0
+ */
+final class Handshake {
+  public static final String FRAMING = "frame";
+  public static final String COMPRESSION = "compress";
+  /**
+   * checksum of DEFLATE dictionary, compression is refused when peers' dictionaries differ
+   */
+  public static final String DICTIONARY = "dict";
+
+  private Handshake() {
+  }
+
+  /**
+   * returns true when client needs to negotiate anything with server
+   *
+   * @param config client config
+   * @return true if hello frame must be sent
+   */
+  public static boolean isNeeded(ConnectionConfig config) {
+    return config.getFramingMode() != Connection.FramingMode.LINE;
+  }
+
+  /**
+   * creates client's hello frame
+   *
+   * @param config client config
+   * @return hello frame
+   */
+  public static Frame request(ConnectionConfig config) {
+    Map<String, String> options = new LinkedHashMap<String, String>();
+    options.put(FRAMING, config.getFramingMode().name().toLowerCase(Locale.US));
+    if (config.getCompression() != Connection.Compression.NONE) {
+      options.put(COMPRESSION, config.getCompression().name().toLowerCase(Locale.US));
+      if (config.getCompression() == Connection.Compression.DEFLATE) {
+        options.put(DICTIONARY, DeflateFraming.checksum(config.getCompressionDictionary()));
+      }
+    }
+    return toFrame(options);
+  }
+
+  /**
+   * creates server's answer to client's hello
+   *
+   * @param request client's hello frame
+   * @param config  server config
+   * @return hello frame with options server agreed to
+   */
+  public static Frame answer(Frame request, ConnectionConfig config) {
+    Map<String, String> requested = parse(request);
+    Map<String, String> agreed = new LinkedHashMap<String, String>();
+    Connection.FramingMode framing = Connection.FramingMode.LINE;
+    if (Connection.FramingMode.BINARY.name().equalsIgnoreCase(requested.get(FRAMING))
+        && config.getFramingMode() == Connection.FramingMode.BINARY) {
+      framing = Connection.FramingMode.BINARY;
+    }
+    agreed.put(FRAMING, framing.name().toLowerCase(Locale.US));
+    Connection.Compression compression = Connection.Compression.NONE;
+    if (framing == Connection.FramingMode.BINARY
+        && config.getCompression() != Connection.Compression.NONE) {
+      compression = parseCompression(requested.get(COMPRESSION));
+      if (compression == Connection.Compression.DEFLATE && !DeflateFraming.checksum(
+          config.getCompressionDictionary()).equals(requested.get(DICTIONARY))) {
+        compression = Connection.Compression.NONE;
+      }
+    }
+    if (compression != Connection.Compression.NONE) {
+      agreed.put(COMPRESSION, compression.name().toLowerCase(Locale.US));
+    }
+    return toFrame(agreed);
+  }
+
+  /**
+   * returns framing agreed in hello frame
+   *
+   * @param hello hello frame
+   * @return framing mode
+   */
+  public static Connection.FramingMode framing(Frame hello) {
+    String value = parse(hello).get(FRAMING);
+    return Connection.FramingMode.BINARY.name().equalsIgnoreCase(value)
+        ? Connection.FramingMode.BINARY
+        : Connection.FramingMode.LINE;
+  }
+
+  /**
+   * creates framing for one direction of connection, as agreed in hello frame
+   *
+   * @param hello  server's hello frame
+   * @param config local config
+   * @return new framing, every direction needs its own
+   */
+  public static Framing createFraming(Frame hello, ConnectionConfig config) {
+    return Framing.create(framing(hello), parseCompression(parse(hello).get(COMPRESSION)),
+        config.getCompressionDictionary());
+  }
+
+  private static Connection.Compression parseCompression(String value) {
+    for (Connection.Compression compression : Connection.Compression.values()) {
+      if (compression.name().equalsIgnoreCase(value)) {
+        return compression;
+      }
+    }
+    return Connection.Compression.NONE;
+  }
+
+  private static Frame toFrame(Map<String, String> options) {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      if (text.length() > 0) {
+        text.append(';');
+      }
+      text.append(option.getKey()).append('=').append(option.getValue());
+    }
+    return new Frame(Frame.TYPE_HELLO, (byte) 0, Frame.encodeText(text.toString()));
+  }
+
+  private static Map<String, String> parse(Frame hello) {
+    Map<String, String> options = new LinkedHashMap<String, String>();
+    for (String option : hello.getText().split(";")) {
+      int eq = option.indexOf('=');
+      if (eq > 0) {
+        options.put(option.substring(0, eq).trim(), option.substring(eq + 1).trim());
+      }
+    }
+    return options;
+  }
+}
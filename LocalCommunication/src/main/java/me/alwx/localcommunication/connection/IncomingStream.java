@@ -0,0 +1,208 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+/**
+ * bulk stream received from a peer, read it like any other InputStream;
+ * chunks are kept as they were received & confirmed to sender as they are read,
+ * so no more than one window of data is ever buffered
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class IncomingStream extends InputStream {
+  private final Transfers mTransfers;
+  private final String mPeer;
+  private final int mId;
+  private final String mName;
+  private final long mOffset;
+  private final long mLength;
+  private final int mWindow;
+
+  private final LinkedList<byte[]> mChunks = new LinkedList<byte[]>();
+  private int mChunkPosition = Transfers.HEADER_SIZE;
+  private long mReceived;
+  private long mConsumed;
+  private long mAcknowledged;
+  private long mEnd = -1;
+  private IOException mError;
+  private boolean mClosed;
+
+  IncomingStream(Transfers transfers, String peer, int id, String name,
+                 long offset, long length, int window) {
+    mTransfers = transfers;
+    mPeer = peer;
+    mId = id;
+    mName = name;
+    mOffset = offset;
+    mLength = length;
+    mWindow = window;
+    mReceived = offset;
+    mConsumed = offset;
+    mAcknowledged = offset;
+  }
+
+  public String getPeer() {
+    return mPeer;
+  }
+
+  int getId() {
+    return mId;
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * returns offset of first byte, non-zero when sender resumes an earlier transfer
+   *
+   * @return start offset
+   */
+  public long getOffset() {
+    return mOffset;
+  }
+
+  /**
+   * returns number of bytes sender is going to send
+   *
+   * @return length or -1 if unknown
+   */
+  public long getLength() {
+    return mLength;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] one = new byte[1];
+    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    int count = 0;
+    long ack = -1;
+    synchronized (this) {
+      try {
+        while (mChunks.isEmpty() && mEnd < 0 && mError == null && !mClosed) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for data");
+      }
+      if (mClosed) {
+        throw new IOException("Stream closed");
+      }
+      if (mChunks.isEmpty()) {
+        if (mError != null) {
+          throw mError;
+        }
+        return -1;
+      }
+      while (count < length && !mChunks.isEmpty()) {
+        byte[] chunk = mChunks.getFirst();
+        int n = Math.min(length - count, chunk.length - mChunkPosition);
+        System.arraycopy(chunk, mChunkPosition, buffer, offset + count, n);
+        count += n;
+        mChunkPosition += n;
+        if (mChunkPosition == chunk.length) {
+          mChunks.removeFirst();
+          mChunkPosition = Transfers.HEADER_SIZE;
+        }
+      }
+      mConsumed += count;
+      if (mConsumed - mAcknowledged >= mWindow / 4 || mConsumed == mEnd) {
+        mAcknowledged = mConsumed;
+        ack = mConsumed;
+      }
+    }
+    if (ack >= 0) {
+      mTransfers.sendAck(mPeer, mId, ack);
+    }
+    return count;
+  }
+
+  @Override
+  public synchronized int available() {
+    long buffered = mReceived - mConsumed;
+    return (int) Math.min(buffered, Integer.MAX_VALUE);
+  }
+
+  /**
+   * stops reading, sender is told to stop if stream hasn't ended yet
+   */
+  @Override
+  public void close() {
+    boolean cancel;
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      cancel = mEnd < 0 && mError == null;
+      mChunks.clear();
+      notifyAll();
+    }
+    mTransfers.remove(this);
+    if (cancel) {
+      mTransfers.sendCancel(mPeer, mId, "Closed by receiver");
+    }
+  }
+
+  void onData(long offset, byte[] data) {
+    int length = data.length - Transfers.HEADER_SIZE;
+    String problem = null;
+    synchronized (this) {
+      if (mClosed || mError != null) {
+        return;
+      }
+      if (offset != mReceived) {
+        problem = "Chunk at " + offset + " instead of " + mReceived;
+      } else if (mReceived + length - mConsumed > mWindow) {
+        problem = "Sender exceeded window";
+      } else {
+        mChunks.addLast(data);
+        mReceived += length;
+        notifyAll();
+      }
+    }
+    if (problem != null) {
+      fail(new IOException(problem));
+      mTransfers.sendCancel(mPeer, mId, problem);
+    }
+  }
+
+  void onEnd(long offset, boolean aborted) {
+    boolean ack = false;
+    synchronized (this) {
+      if (aborted) {
+        fail(new IOException("Stream aborted by sender"));
+      } else if (offset != mReceived) {
+        fail(new IOException("Stream ended at " + offset + ", received " + mReceived));
+      } else {
+        mEnd = offset;
+        if (mConsumed == mEnd && mAcknowledged != mEnd) {
+          mAcknowledged = mEnd;
+          ack = true;
+        }
+        notifyAll();
+      }
+    }
+    if (ack) {
+      mTransfers.sendAck(mPeer, mId, offset);
+    }
+  }
+
+  synchronized void fail(IOException e) {
+    if (mError == null) {
+      mError = e;
+    }
+    notifyAll();
+  }
+}
@@ -0,0 +1,45 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+
+/**
+ * address of the first network interface that is up & can multicast,
+ * for discovery on a plain JVM; changes of network are not watched
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class InterfaceAddressProvider implements AddressProvider {
+  private static final String DEBUG_TAG = InterfaceAddressProvider.class.getName();
+
+  @Override
+  public void start(Runnable onChanged) {
+  }
+
+  @Override
+  public void stop() {
+  }
+
+  @Override
+  public InetAddress getAddress() {
+    try {
+      for (NetworkInterface network : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+        if (!network.isUp() || network.isLoopback() || !network.supportsMulticast()) {
+          continue;
+        }
+        for (InetAddress address : Collections.list(network.getInetAddresses())) {
+          if (address instanceof Inet4Address) {
+            return address;
+          }
+        }
+      }
+    } catch (SocketException e) {
+      Log.d(DEBUG_TAG, "Network interfaces not listed: " + e);
+    }
+    return null;
+  }
+}
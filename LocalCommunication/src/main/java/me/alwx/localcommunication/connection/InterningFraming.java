@@ -0,0 +1,39 @@
+package me.alwx.localcommunication.connection;
+
+import org.json.JSONException;
+
+import java.net.ProtocolException;
+
+/**
+ * {@link Connection.Compression#INTERN}: keys & short strings of {@link BinaryCodec} messages
+ * are sent once & then as ids of a table both ends of one direction fill in the same order;
+ * messages of other codecs are sent as they are
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class InterningFraming extends PackingFraming {
+  private final BinaryCodec.StringTable mTable = new BinaryCodec.StringTable();
+
+  @Override
+  protected byte[] pack(byte[] data, byte flags) {
+    if (!(MessageCodecs.forFlags(flags) instanceof BinaryCodec)) {
+      return null;
+    }
+    try {
+      return BinaryCodec.intern(data, mTable);
+    } catch (JSONException e) {
+      // receiver will fail to decode it anyway, table is left as it was
+      return null;
+    }
+  }
+
+  @Override
+  protected byte[] unpack(byte[] data, byte flags) throws ProtocolException {
+    try {
+      return BinaryCodec.expand(data, mTable);
+    } catch (JSONException e) {
+      throw new ProtocolException("Invalid interned message: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package me.alwx.localcommunication.connection;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * default codec: message is a JSON object in UTF-8, the format every version understands
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class JsonCodec implements MessageCodec {
+  public static final int ID = 0;
+  public static final JsonCodec INSTANCE = new JsonCodec();
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] TYPE_KEY = Communication.MESSAGE_TYPE.getBytes(UTF8);
+
+  @Override
+  public int getId() {
+    return ID;
+  }
+
+  @Override
+  public byte[] encode(Map<String, ?> values) {
+    return Frame.encodeText(new JSONObject(values).toString());
+  }
+
+  @Override
+  public JSONObject decode(byte[] data) throws JSONException {
+    return new JSONObject(new String(data, UTF8));
+  }
+
+  /**
+   * scans top-level keys for message type, skipping other values without parsing them
+   */
+  @Override
+  public String decodeType(byte[] data) throws JSONException {
+    int i = skipSpace(data, 0);
+    expect(data, i++, '{');
+    while (true) {
+      i = skipSpace(data, i);
+      if (at(data, i) == '}') {
+        return null;
+      }
+      expect(data, i, '"');
+      int keyEnd = skipString(data, i);
+      boolean isType = matches(data, i + 1, keyEnd - 1, TYPE_KEY);
+      i = skipSpace(data, keyEnd);
+      expect(data, i++, ':');
+      i = skipSpace(data, i);
+      if (isType) {
+        if (at(data, i) == '"') {
+          int end = skipString(data, i);
+          if (!contains(data, i + 1, end - 1, (byte) '\\')) {
+            return new String(data, i + 1, end - i - 2, UTF8);
+          }
+        }
+        // escaped or non-string type, let JSONObject deal with it
+        return decode(data).getString(Communication.MESSAGE_TYPE);
+      }
+      i = skipSpace(data, skipValue(data, i));
+      byte next = at(data, i++);
+      if (next == '}') {
+        return null;
+      } else if (next != ',') {
+        throw new JSONException("Expected ',' or '}' at " + (i - 1));
+      }
+    }
+  }
+
+  private static byte at(byte[] data, int i) throws JSONException {
+    if (i >= data.length) {
+      throw new JSONException("Unexpected end of message");
+    }
+    return data[i];
+  }
+
+  private static void expect(byte[] data, int i, char c) throws JSONException {
+    if (at(data, i) != c) {
+      throw new JSONException("Expected '" + c + "' at " + i);
+    }
+  }
+
+  private static int skipSpace(byte[] data, int i) {
+    while (i < data.length && (data[i] == ' ' || data[i] == '\t' || data[i] == '\n' || data[i] == '\r')) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @return position after closing quote of string starting at i
+   */
+  private static int skipString(byte[] data, int i) throws JSONException {
+    i++;
+    while (true) {
+      byte b = at(data, i++);
+      if (b == '\\') {
+        i++;
+      } else if (b == '"') {
+        return i;
+      }
+    }
+  }
+
+  /**
+   * @return position after value starting at i
+   */
+  private static int skipValue(byte[] data, int i) throws JSONException {
+    byte b = at(data, i);
+    if (b == '"') {
+      return skipString(data, i);
+    }
+    if (b == '{' || b == '[') {
+      int depth = 0;
+      while (true) {
+        b = at(data, i);
+        if (b == '"') {
+          i = skipString(data, i);
+          continue;
+        }
+        if (b == '{' || b == '[') {
+          depth++;
+        } else if ((b == '}' || b == ']') && --depth == 0) {
+          return i + 1;
+        }
+        i++;
+      }
+    }
+    while (i < data.length && data[i] != ',' && data[i] != '}') {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean matches(byte[] data, int start, int end, byte[] expected) {
+    if (end - start != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (data[start + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean contains(byte[] data, int start, int end, byte value) {
+    for (int i = start; i < end; i++) {
+      if (data[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
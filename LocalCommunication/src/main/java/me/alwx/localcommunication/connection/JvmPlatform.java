@@ -0,0 +1,77 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * platform of a plain JVM, for tests & benchmarks off the device:
+ * log goes to standard error and "main thread" is a thread of its own,
+ * so listeners still get called one at a time
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class JvmPlatform extends Platform {
+  private final int mLevel;
+  private final PrintStream mOut;
+  private final Logger mLogger = new Logger() {
+    @Override
+    public boolean isLoggable(String tag, int level) {
+      return level >= mLevel;
+    }
+
+    @Override
+    public void log(int level, String tag, String message, Throwable throwable) {
+      if (level < mLevel) {
+        return;
+      }
+      // tags are class names, the package is the same for all of them
+      String line = "VDIWE".charAt(Math.min(Math.max(level - VERBOSE, 0), 4)) + "/"
+          + tag.substring(tag.lastIndexOf('.') + 1) + ": " + message;
+      synchronized (mOut) {
+        mOut.println(line);
+        if (throwable != null) {
+          throwable.printStackTrace(mOut);
+        }
+      }
+    }
+  };
+  private final ExecutorService mMainExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "Main");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * platform logging warnings & errors to standard error
+   */
+  public JvmPlatform() {
+    this(Logger.WARN, System.err);
+  }
+
+  /**
+   * @param level lowest level logged, {@link Logger#VERBOSE} also turns on tracing
+   *              when platform is set before the first connection
+   * @param out   log output
+   */
+  public JvmPlatform(int level, PrintStream out) {
+    mLevel = level;
+    mOut = out;
+  }
+
+  @Override
+  public Logger getLogger() {
+    return mLogger;
+  }
+
+  @Override
+  public Executor getMainExecutor() {
+    return mMainExecutor;
+  }
+}
@@ -0,0 +1,121 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.Arrays;
+
+/**
+ * histogram of latencies in microseconds with log-linear buckets, like HdrHistogram:
+ * every power of two is split into 16 buckets, so a percentile is never off
+ * by more than 1/16 of its value, and memory doesn't depend on number of samples
+ * <p/>
+ * not thread-safe, {@link me.alwx.localcommunication.connection.LinkStats#getRttHistogram()}
+ * returns copies
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  /**
+   * largest tracked value is about 2^MAX_EXPONENT microseconds (more than a minute),
+   * larger values are counted in the last bucket
+   */
+  private static final int MAX_EXPONENT = 26;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+  private final long[] mCounts;
+  private long mTotal;
+  private long mMax;
+
+  public LatencyHistogram() {
+    mCounts = new long[BUCKETS];
+  }
+
+  private LatencyHistogram(LatencyHistogram other) {
+    mCounts = Arrays.copyOf(other.mCounts, BUCKETS);
+    mTotal = other.mTotal;
+    mMax = other.mMax;
+  }
+
+  /**
+   * adds one sample
+   *
+   * @param micros latency in microseconds
+   */
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    mCounts[index(micros)]++;
+    mTotal++;
+    mMax = Math.max(mMax, micros);
+  }
+
+  public long getCount() {
+    return mTotal;
+  }
+
+  public long getMax() {
+    return mMax;
+  }
+
+  /**
+   * returns value below which given share of samples lie
+   *
+   * @param percentile percentile, 0..100
+   * @return latency in microseconds, 0 if there are no samples
+   */
+  public long getPercentile(double percentile) {
+    if (mTotal == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile / 100 * mTotal);
+    if (rank < 1) {
+      rank = 1;
+    }
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += mCounts[i];
+      if (seen >= rank) {
+        // last bucket has no upper bound
+        return i == BUCKETS - 1 ? mMax : Math.min(highestValue(i), mMax);
+      }
+    }
+    return mMax;
+  }
+
+  public void clear() {
+    Arrays.fill(mCounts, 0);
+    mTotal = 0;
+    mMax = 0;
+  }
+
+  public LatencyHistogram copy() {
+    return new LatencyHistogram(this);
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int sub = (int) (value >> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * returns largest value that falls into bucket
+   */
+  private static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = index % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BITS);
+    return (1L << exponent) + (sub + 1) * width - 1;
+  }
+}
@@ -0,0 +1,226 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * newline-delimited frames, compatible with peers that read lines with BufferedReader:
+ * a message without line breaks is sent as is; any other frame is sent as
+ * 0x01, type & flags as hex digits (type has bit 6 set when 4 hex digits of channel id follow),
+ * payload with backslashes & line breaks escaped;
+ * a published frame is escaped once & its bytes are shared by all subscribers
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class LineFraming extends Framing {
+  private static final byte ESCAPED = 0x01;
+  private static final int HAS_CHANNEL = 0x40;
+  private static final byte ESCAPE = '\\';
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  private int mScanned;
+
+  @Override
+  public Connection.FramingMode getMode() {
+    return Connection.FramingMode.LINE;
+  }
+
+  @Override
+  public int encodedLength(Frame frame) {
+    if (isPlain(frame)) {
+      return frame.getLength() + 1;
+    }
+    if (isShared(frame)) {
+      return shared(frame).length;
+    }
+    return escapedLength(frame);
+  }
+
+  private static int escapedLength(Frame frame) {
+    byte[] data = frame.getData();
+    int length = 5 + (frame.getChannel() != 0 ? 4 : 0) + data.length + 1;
+    for (byte b : data) {
+      if (b == ESCAPE || b == '\n' || b == '\r') {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  @Override
+  public int encode(Frame frame, byte[] dst, int offset) {
+    if (isShared(frame)) {
+      byte[] encoded = shared(frame);
+      System.arraycopy(encoded, 0, dst, offset, encoded.length);
+      return offset + encoded.length;
+    }
+    return escape(frame, dst, offset);
+  }
+
+  /**
+   * published & mesh frames are queued as they are for many peers
+   */
+  private static boolean isShared(Frame frame) {
+    return frame.getType() == Frame.TYPE_PUBLISH || frame.getType() == Frame.TYPE_MESH;
+  }
+
+  /**
+   * escapes shared frame once for all peers
+   */
+  private static byte[] shared(Frame frame) {
+    byte[] encoded = frame.getEncoded();
+    if (encoded == null) {
+      encoded = new byte[escapedLength(frame)];
+      escape(frame, encoded, 0);
+      frame.setEncoded(encoded);
+    }
+    return encoded;
+  }
+
+  private static int escape(Frame frame, byte[] dst, int offset) {
+    byte[] data = frame.getData();
+    if (isPlain(frame)) {
+      System.arraycopy(data, 0, dst, offset, data.length);
+      offset += data.length;
+    } else {
+      int type = frame.getType() | (frame.getChannel() != 0 ? HAS_CHANNEL : 0);
+      dst[offset++] = ESCAPED;
+      dst[offset++] = HEX[(type >> 4) & 0xf];
+      dst[offset++] = HEX[type & 0xf];
+      dst[offset++] = HEX[(frame.getFlags() >> 4) & 0xf];
+      dst[offset++] = HEX[frame.getFlags() & 0xf];
+      if (frame.getChannel() != 0) {
+        int channel = frame.getChannel();
+        dst[offset++] = HEX[(channel >> 12) & 0xf];
+        dst[offset++] = HEX[(channel >> 8) & 0xf];
+        dst[offset++] = HEX[(channel >> 4) & 0xf];
+        dst[offset++] = HEX[channel & 0xf];
+      }
+      for (byte b : data) {
+        if (b == ESCAPE) {
+          dst[offset++] = ESCAPE;
+          dst[offset++] = ESCAPE;
+        } else if (b == '\n') {
+          dst[offset++] = ESCAPE;
+          dst[offset++] = 'n';
+        } else if (b == '\r') {
+          dst[offset++] = ESCAPE;
+          dst[offset++] = 'r';
+        } else {
+          dst[offset++] = b;
+        }
+      }
+    }
+    dst[offset++] = '\n';
+    return offset;
+  }
+
+  @Override
+  public Frame decode(ByteBuffer in) throws ProtocolException {
+    int start = in.position();
+    int end = -1;
+    for (int i = start + mScanned; i < in.limit(); i++) {
+      if (in.get(i) == '\n') {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      mScanned = in.remaining();
+      if (mScanned > MAX_FRAME_SIZE) {
+        throw new ProtocolException("Line is too long");
+      }
+      return null;
+    }
+    mScanned = 0;
+
+    int lineEnd = end > start && in.get(end - 1) == '\r' ? end - 1 : end;
+    Frame frame;
+    if (lineEnd > start && in.get(start) == ESCAPED) {
+      frame = decodeEscaped(in, start, lineEnd);
+    } else {
+      byte[] data = new byte[lineEnd - start];
+      in.get(data);
+      frame = new Frame(Frame.TYPE_MESSAGE, (byte) 0, data);
+    }
+    in.position(end + 1);
+    return frame;
+  }
+
+  private static Frame decodeEscaped(ByteBuffer in, int start, int end) throws ProtocolException {
+    if (end - start < 5) {
+      throw new ProtocolException("Truncated frame header");
+    }
+    int type = (hex(in.get(start + 1)) << 4) | hex(in.get(start + 2));
+    int flags = (hex(in.get(start + 3)) << 4) | hex(in.get(start + 4));
+    int channel = 0;
+    int dataStart = start + 5;
+    if ((type & HAS_CHANNEL) != 0) {
+      if (end - start < 9) {
+        throw new ProtocolException("Truncated frame header");
+      }
+      for (int i = dataStart; i < dataStart + 4; i++) {
+        channel = (channel << 4) | hex(in.get(i));
+      }
+      dataStart += 4;
+      type &= ~HAS_CHANNEL;
+    }
+    if (type > Frame.MAX_TYPE) {
+      throw new ProtocolException("Invalid frame type: " + type);
+    }
+
+    int length = 0;
+    for (int i = dataStart; i < end; i++) {
+      if (in.get(i) == ESCAPE) {
+        i++;
+      }
+      length++;
+    }
+    byte[] data = new byte[length];
+    int pos = 0;
+    for (int i = dataStart; i < end; i++) {
+      byte b = in.get(i);
+      if (b == ESCAPE) {
+        if (++i == end) {
+          throw new ProtocolException("Dangling escape");
+        }
+        b = in.get(i);
+        if (b == 'n') {
+          b = '\n';
+        } else if (b == 'r') {
+          b = '\r';
+        } else if (b != ESCAPE) {
+          throw new ProtocolException("Invalid escape");
+        }
+      }
+      data[pos++] = b;
+    }
+    return new Frame((byte) type, (byte) flags, data, channel);
+  }
+
+  private static int hex(byte b) throws ProtocolException {
+    if (b >= '0' && b <= '9') {
+      return b - '0';
+    } else if (b >= 'a' && b <= 'f') {
+      return b - 'a' + 10;
+    }
+    throw new ProtocolException("Invalid hex digit: " + b);
+  }
+
+  private static boolean isPlain(Frame frame) {
+    if (frame.getType() != Frame.TYPE_MESSAGE || frame.getFlags() != 0 || frame.getChannel() != 0) {
+      return false;
+    }
+    byte[] data = frame.getData();
+    if (data.length > 0 && data[0] == ESCAPED) {
+      return false;
+    }
+    for (byte b : data) {
+      if (b == '\n' || b == '\r') {
+        return false;
+      }
+    }
+    return true;
+  }
+}
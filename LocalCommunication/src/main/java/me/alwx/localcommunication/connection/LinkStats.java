@@ -0,0 +1,137 @@
+package me.alwx.localcommunication.connection;
+
+/**
+ * snapshot of one peer's link health, see {@link Connection#getStats(String)}
+ * <p/>
+ * round-trip times are measured with heartbeat pings
+ * ({@link ConnectionConfig#setHeartbeat(int, int)}), so they stay empty while heartbeats are off;
+ * all times are in microseconds unless said otherwise
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class LinkStats {
+  /**
+   * clock granularity G of RFC 6298, RTTs are measured with nanoTime but timeouts are set in milliseconds
+   */
+  private static final long CLOCK_GRANULARITY = 1000;
+
+  private final String mPeer;
+  private final long mSmoothedRtt;
+  private final long mRttVariation;
+  private final long mMinRtt;
+  private final long mLastRtt;
+  private final LatencyHistogram mHistogram;
+  private final long mSinceHeard;
+  private final long mSinceActive;
+
+  LinkStats(String peer, long smoothedRtt, long rttVariation, long minRtt, long lastRtt,
+            LatencyHistogram histogram, long sinceHeard, long sinceActive) {
+    mPeer = peer;
+    mSmoothedRtt = smoothedRtt;
+    mRttVariation = rttVariation;
+    mMinRtt = minRtt;
+    mLastRtt = lastRtt;
+    mHistogram = histogram;
+    mSinceHeard = sinceHeard;
+    mSinceActive = sinceActive;
+  }
+
+  public String getPeer() {
+    return mPeer;
+  }
+
+  /**
+   * returns exponentially weighted average of round-trip times (weight of new sample is 1/8, like TCP's SRTT)
+   *
+   * @return smoothed RTT or 0 if nothing has been measured
+   */
+  public long getSmoothedRtt() {
+    return mSmoothedRtt;
+  }
+
+  /**
+   * returns average deviation of round-trip times from {@link #getSmoothedRtt()}, a jitter measure
+   *
+   * @return RTT variation
+   */
+  public long getRttVariation() {
+    return mRttVariation;
+  }
+
+  /**
+   * returns retransmission timeout TCP would use on this link (RFC 6298): smoothed RTT plus
+   * four times its variation; without the RFC's 1 second floor, which is meant for the Internet,
+   * so it suits call timeouts on a LAN
+   *
+   * @return timeout or 0 if nothing has been measured
+   */
+  public long getRto() {
+    if (mHistogram.getCount() == 0) {
+      return 0;
+    }
+    return mSmoothedRtt + Math.max(CLOCK_GRANULARITY, 4 * mRttVariation);
+  }
+
+  public long getMinRtt() {
+    return mMinRtt;
+  }
+
+  public long getMaxRtt() {
+    return mHistogram.getMax();
+  }
+
+  public long getLastRtt() {
+    return mLastRtt;
+  }
+
+  /**
+   * returns round-trip time percentile since peer connected
+   *
+   * @param percentile percentile, 0..100, e.g. 50 or 99
+   * @return RTT or 0 if nothing has been measured
+   */
+  public long getRttPercentile(double percentile) {
+    return mHistogram.getPercentile(percentile);
+  }
+
+  public long getRttSamples() {
+    return mHistogram.getCount();
+  }
+
+  /**
+   * returns copy of round-trip time histogram, e.g. to merge it into a report
+   *
+   * @return histogram
+   */
+  public LatencyHistogram getRttHistogram() {
+    return mHistogram.copy();
+  }
+
+  /**
+   * returns time since anything (including pings) has been received from peer
+   *
+   * @return time in milliseconds
+   */
+  public long getSinceHeard() {
+    return mSinceHeard;
+  }
+
+  /**
+   * returns time since a frame other than ping or pong has been sent to peer or received from it
+   * (see {@link ConnectionConfig#setIdleTimeout(int)})
+   *
+   * @return time in milliseconds
+   */
+  public long getSinceActive() {
+    return mSinceActive;
+  }
+
+  @Override
+  public String toString() {
+    return mPeer + ": rtt " + mSmoothedRtt + "us +-" + mRttVariation + ", rto " + getRto()
+        + "us, p50 " + getRttPercentile(50) + "us, p99 " + getRttPercentile(99)
+        + "us, max " + getMaxRtt() + "us (" + getRttSamples() + " samples), heard "
+        + mSinceHeard + "ms ago, active " + mSinceActive + "ms ago";
+  }
+}
@@ -0,0 +1,41 @@
+package me.alwx.localcommunication.connection;
+
+/**
+ * logging calls of this package, same as android.util.Log ones,
+ * written to logger of {@link me.alwx.localcommunication.connection.Platform}
+ *
+ * @author alwx
+ * @version 1.0
+ */
+final class Log {
+  static final int VERBOSE = Platform.Logger.VERBOSE;
+  static final int DEBUG = Platform.Logger.DEBUG;
+  static final int ERROR = Platform.Logger.ERROR;
+
+  private Log() {
+  }
+
+  static boolean isLoggable(String tag, int level) {
+    return Platform.get().getLogger().isLoggable(tag, level);
+  }
+
+  static void v(String tag, String message) {
+    Platform.get().getLogger().log(VERBOSE, tag, message, null);
+  }
+
+  static void d(String tag, String message) {
+    Platform.get().getLogger().log(DEBUG, tag, message, null);
+  }
+
+  static void d(String tag, String message, Throwable throwable) {
+    Platform.get().getLogger().log(DEBUG, tag, message, throwable);
+  }
+
+  static void e(String tag, String message) {
+    Platform.get().getLogger().log(ERROR, tag, message, null);
+  }
+
+  static void e(String tag, String message, Throwable throwable) {
+    Platform.get().getLogger().log(ERROR, tag, message, throwable);
+  }
+}
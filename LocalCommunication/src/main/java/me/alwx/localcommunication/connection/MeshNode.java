@@ -0,0 +1,769 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * node of a mesh: instead of every device connecting to one server, each node registers & browses
+ * at once, keeps links to a few neighbours ({@link ConnectionConfig#setMeshNeighbours(int)})
+ * and passes messages on for the others, so no device carries all traffic or is needed by all
+ * <p/>
+ * a message travels as a {@link Frame#TYPE_MESH} frame with its origin, sequence number & TTL;
+ * nodes remember ids of recent messages to drop copies that come by other paths,
+ * and learn from every new message which neighbour leads back to its origin.
+ * broadcasts are flooded to all neighbours; messages for one node follow learned routes
+ * and are flooded only while there is no route to it
+ * <p/>
+ * nodes are found by {@link #startDiscovery(NetworkDiscovery)} or added with
+ * {@link #addNode(java.net.InetAddress, int)}, e.g. to run many nodes in one process
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class MeshNode {
+  private static final String DEBUG_TAG = MeshNode.class.getName();
+
+  /**
+   * origin, sequence number, destination, TTL & hop count
+   */
+  private static final int HEADER = 22;
+  private static final long BIND_TIMEOUT = 5000;
+  /**
+   * how often missing neighbours are looked for & old routes dropped
+   */
+  private static final long MAINTENANCE_INTERVAL = 1000;
+  /**
+   * how long a link may take to be set up before another node is tried
+   */
+  private static final long DIAL_TIMEOUT = 10000;
+  /**
+   * how long a node is not dialed again after its link failed or was lost
+   */
+  private static final long RETRY_DELAY = 5000;
+
+  private final ConnectionConfig mConfig;
+  private final Connection mConnection;
+  private final Random mRandom = new Random();
+  private final long mNodeId;
+  private final AtomicInteger mSequence = new AtomicInteger();
+  private final Seen mSeen;
+  /**
+   * node ids of neighbours by peer id, a peer becomes a neighbour when its hello comes
+   */
+  private final Map<String, Long> mNeighbours = new ConcurrentHashMap<String, Long>();
+  /**
+   * routes by node id of destination
+   */
+  private final Map<Long, Route> mRoutes = new ConcurrentHashMap<Long, Route>();
+  /**
+   * peers this node has connected to
+   */
+  private final Set<String> mOutgoing =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  /**
+   * known nodes by "address:port", changed only while holding node's lock
+   */
+  private final Map<String, Candidate> mCandidates = new HashMap<String, Candidate>();
+  /**
+   * links being set up by this node: start time by peer id, guarded by node's lock
+   */
+  private final Map<String, Long> mDialing = new HashMap<String, Long>();
+  private volatile MessageListener mListener;
+  private volatile Executor mExecutor;
+  private ScheduledExecutorService mTimer;
+  private NetworkDiscovery mDiscovery;
+  private Search mSearch;
+  private int mPort = -1;
+  private boolean mClosed;
+
+  public MeshNode() {
+    this(new ConnectionConfig());
+  }
+
+  /**
+   * @param config connection settings & mesh settings; reconnection must be off,
+   *               node chooses whom to connect to itself
+   */
+  public MeshNode(ConnectionConfig config) {
+    if (config.isReconnect()) {
+      throw new IllegalArgumentException("Mesh node chooses its neighbours, reconnection must be off");
+    }
+    mConfig = config;
+    mNodeId = newNodeId(mRandom);
+    mSeen = new Seen(config.getMeshCacheSize());
+    mConnection = new Connection(null, config);
+    mConnection.setMesh(this);
+  }
+
+  /**
+   * returns id this node is known by to other nodes, random for every instance
+   *
+   * @return node id
+   */
+  public String getNodeId() {
+    return Long.toHexString(mNodeId);
+  }
+
+  /**
+   * sets listener for messages broadcast by other nodes or sent to this one
+   *
+   * @param listener message listener
+   * @param executor executor to call listener on, null to call it on the reading thread
+   */
+  public void setMessageListener(MessageListener listener, Executor executor) {
+    mExecutor = executor;
+    mListener = listener;
+  }
+
+  /**
+   * starts server other nodes connect to
+   *
+   * @return port server is bound to
+   * @throws IOException          if server could not be bound
+   * @throws InterruptedException if interrupted while waiting for it
+   */
+  public synchronized int start() throws IOException, InterruptedException {
+    if (mClosed) {
+      throw new IllegalStateException("Node is closed");
+    }
+    if (mPort >= 0) {
+      return mPort;
+    }
+    mConnection.createServer();
+    int port = mConnection.awaitLocalPort(BIND_TIMEOUT);
+    if (port < 0) {
+      throw new IOException("Server socket was not bound");
+    }
+    mPort = port;
+    mTimer = Platform.get().newScheduler("Mesh");
+    mTimer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        maintain();
+      }
+    }, 0, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    return port;
+  }
+
+  /**
+   * registers started node for discovery & adds mesh nodes discovery finds;
+   * node is unregistered when it is closed
+   *
+   * @param discovery discovery
+   */
+  public void startDiscovery(NetworkDiscovery discovery) {
+    ServiceProperties properties = new ServiceProperties();
+    properties.addCapability(ServiceProperties.CAPABILITY_MESH);
+    if (mConfig.getFramingMode() == Connection.FramingMode.BINARY) {
+      properties.addCapability(ServiceProperties.CAPABILITY_BINARY);
+    }
+    properties.put(ServiceProperties.KEY_NODE, getNodeId());
+    Search search = new Search();
+    int port;
+    synchronized (this) {
+      if (mPort < 0) {
+        throw new IllegalStateException("Node is not started");
+      }
+      port = mPort;
+      mDiscovery = discovery;
+      mSearch = search;
+    }
+    discovery.startServer(port, properties);
+    discovery.findServers(new String[]{NetworkDiscovery.TYPE}, new NetworkDiscovery.ServiceFilter() {
+      @Override
+      public boolean accept(ServiceInfo info, ServiceProperties properties) {
+        return properties.hasCapability(ServiceProperties.CAPABILITY_MESH)
+            && !getNodeId().equals(properties.get(ServiceProperties.KEY_NODE))
+            && info.getInet4Addresses().length > 0;
+      }
+    }, search);
+  }
+
+  /**
+   * adds node that may be chosen as neighbour
+   *
+   * @param address node address
+   * @param port    node port
+   */
+  public void addNode(InetAddress address, int port) {
+    addNode(address, port, 0);
+  }
+
+  /**
+   * forgets node added earlier, its link is kept if there is one
+   *
+   * @param address node address
+   * @param port    node port
+   */
+  public synchronized void removeNode(InetAddress address, int port) {
+    mCandidates.remove(Supervisor.peerId(address, port));
+  }
+
+  /**
+   * returns node ids of neighbours
+   *
+   * @return node ids
+   */
+  public Set<String> getNeighbours() {
+    Set<String> nodes = new HashSet<String>();
+    for (Long node : mNeighbours.values()) {
+      nodes.add(Long.toHexString(node));
+    }
+    return nodes;
+  }
+
+  /**
+   * returns nodes this node has a route to
+   *
+   * @return number of hops by node id
+   */
+  public Map<String, Integer> getRoutes() {
+    Map<String, Integer> routes = new HashMap<String, Integer>();
+    for (Map.Entry<Long, Route> entry : mRoutes.entrySet()) {
+      if (routeTo(entry.getKey()) != null) {
+        routes.put(Long.toHexString(entry.getKey()), entry.getValue().mHops);
+      }
+    }
+    return routes;
+  }
+
+  /**
+   * sends message to all nodes of the mesh
+   *
+   * @param msg message string
+   * @return number of neighbours message was queued for
+   */
+  public int broadcast(String msg) {
+    return broadcast(Frame.message(msg));
+  }
+
+  /**
+   * sends message frame to all nodes of the mesh; it is queued for neighbours only,
+   * they pass it on to theirs
+   *
+   * @param message {@link Frame#TYPE_MESSAGE} frame
+   * @return number of neighbours message was queued for
+   */
+  public int broadcast(Frame message) {
+    return send(0, message);
+  }
+
+  /**
+   * sends message to one node
+   *
+   * @param node node id
+   * @param msg  message string
+   * @return false if message could not be queued for any neighbour
+   */
+  public boolean send(String node, String msg) {
+    return send(node, Frame.message(msg));
+  }
+
+  /**
+   * sends message frame to one node along the route learned from its messages,
+   * or to all neighbours while there is no route
+   *
+   * @param node    node id
+   * @param message {@link Frame#TYPE_MESSAGE} frame
+   * @return false if message could not be queued for any neighbour
+   */
+  public boolean send(String node, Frame message) {
+    long destination = parseNodeId(node);
+    if (destination == mNodeId) {
+      throw new IllegalArgumentException("Message can't be sent to node itself");
+    }
+    return send(destination, message) > 0;
+  }
+
+  /**
+   * closes all links, unregisters node & stops searching
+   */
+  public void close() {
+    NetworkDiscovery discovery;
+    Search search;
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      if (mTimer != null) {
+        mTimer.shutdownNow();
+      }
+      discovery = mDiscovery;
+      search = mSearch;
+      mDiscovery = null;
+    }
+    if (discovery != null) {
+      discovery.stopSearch(search);
+      discovery.stopServer();
+    }
+    mConnection.closeConnection();
+  }
+
+  void onPeerConnected(String peer, boolean outgoing) {
+    if (outgoing) {
+      mOutgoing.add(peer);
+    }
+    byte[] hello = new byte[8];
+    Transfers.putLong(hello, 0, mNodeId);
+    mConnection.sendWithoutWaiting(peer, new Frame(Frame.TYPE_MESH_HELLO, (byte) 0, hello));
+  }
+
+  void onPeerDisconnected(String peer) {
+    boolean outgoing = mOutgoing.remove(peer);
+    mNeighbours.remove(peer);
+    for (Iterator<Route> iterator = mRoutes.values().iterator(); iterator.hasNext(); ) {
+      if (iterator.next().mPeer.equals(peer)) {
+        iterator.remove();
+      }
+    }
+    synchronized (this) {
+      mDialing.remove(peer);
+      Candidate candidate = outgoing ? mCandidates.get(peer) : null;
+      if (candidate != null) {
+        candidate.mRetryAt = System.currentTimeMillis() + RETRY_DELAY;
+      }
+    }
+    maintainSoon();
+  }
+
+  void onConnectFailed(InetAddress address, int port) {
+    String peer = Supervisor.peerId(address, port);
+    synchronized (this) {
+      mDialing.remove(peer);
+      Candidate candidate = mCandidates.get(peer);
+      if (candidate != null) {
+        candidate.mRetryAt = System.currentTimeMillis() + RETRY_DELAY;
+      }
+    }
+    maintainSoon();
+  }
+
+  /**
+   * handles mesh frames
+   *
+   * @param peer  peer id
+   * @param frame {@link Frame#TYPE_MESH_HELLO} or {@link Frame#TYPE_MESH} frame
+   */
+  void onFrame(String peer, Frame frame) {
+    byte[] data = frame.getData();
+    if (frame.getType() == Frame.TYPE_MESH_HELLO) {
+      if (data.length >= 8) {
+        onHello(peer, Transfers.getLong(data, 0));
+      }
+      return;
+    }
+    if (data.length < HEADER || !mNeighbours.containsKey(peer)) {
+      // hello always comes first, so it is not a mesh peer
+      Log.d(DEBUG_TAG, "Invalid mesh frame from " + peer);
+      return;
+    }
+    long origin = Transfers.getLong(data, 0);
+    int ttl = data[20] & 0xff;
+    int seen = origin != mNodeId ? mSeen.add(origin, Transfers.getInt(data, 8), ttl) : ttl;
+    // a copy that comes the short way after one that came the long way is passed on again,
+    // otherwise nodes behind this one would miss it when the first copy's TTL runs out
+    if (seen >= ttl) {
+      mConfig.getMetrics().increment(Metrics.Counter.MESH_DUPLICATES, 1);
+      return;
+    }
+    long destination = Transfers.getLong(data, 12);
+    int hops = Math.min((data[21] & 0xff) + 1, 0xff);
+    if (seen < 0) {
+      learn(origin, peer, hops);
+      if (destination == 0 || destination == mNodeId) {
+        deliver(origin, frame);
+      }
+    }
+    if (destination == mNodeId || ttl <= 1) {
+      return;
+    }
+    byte[] forwarded = data.clone();
+    forwarded[20] = (byte) (ttl - 1);
+    forwarded[21] = (byte) hops;
+    Frame next = new Frame(Frame.TYPE_MESH, frame.getFlags(), forwarded, frame.getChannel());
+    int count;
+    Route route = destination != 0 ? routeTo(destination) : null;
+    if (route != null && !route.mPeer.equals(peer)) {
+      // passing on never waits, a full neighbour misses it
+      count = mConnection.sendWithoutWaiting(route.mPeer, next) ? 1 : 0;
+    } else {
+      count = 0;
+      for (String neighbour : mNeighbours.keySet()) {
+        if (!neighbour.equals(peer) && mConnection.sendWithoutWaiting(neighbour, next)) {
+          count++;
+        }
+      }
+    }
+    mConfig.getMetrics().increment(Metrics.Counter.MESH_FORWARDED, count);
+  }
+
+  private int send(long destination, Frame message) {
+    byte[] data = message.getData();
+    byte[] payload = new byte[HEADER + data.length];
+    Transfers.putLong(payload, 0, mNodeId);
+    Transfers.putInt(payload, 8, mSequence.incrementAndGet());
+    Transfers.putLong(payload, 12, destination);
+    payload[20] = (byte) mConfig.getMeshTtl();
+    System.arraycopy(data, 0, payload, HEADER, data.length);
+    Frame frame = new Frame(Frame.TYPE_MESH, message.getFlags(), payload, message.getChannel());
+    Route route = destination != 0 ? routeTo(destination) : null;
+    if (route != null) {
+      return mConnection.sendFrame(route.mPeer, frame) ? 1 : 0;
+    }
+    int count = 0;
+    for (String neighbour : mNeighbours.keySet()) {
+      if (mConnection.sendFrame(neighbour, frame)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void onHello(String peer, long node) {
+    boolean outgoing = mOutgoing.contains(peer);
+    String drop = null;
+    synchronized (this) {
+      mDialing.remove(peer);
+      Candidate candidate = outgoing ? mCandidates.get(peer) : null;
+      String existing = null;
+      for (Map.Entry<String, Long> entry : mNeighbours.entrySet()) {
+        if (entry.getValue() == node) {
+          existing = entry.getKey();
+        }
+      }
+      if (node == mNodeId) {
+        if (candidate != null) {
+          candidate.mSelf = true;
+        }
+        drop = peer;
+      } else if (existing != null) {
+        // both nodes dialed each other: both keep the link dialed by the smaller node id
+        boolean keepNew = mOutgoing.contains(existing) != outgoing && outgoing == (mNodeId < node);
+        drop = keepNew ? existing : peer;
+        if (keepNew) {
+          mNeighbours.remove(existing);
+          addNeighbour(peer, node);
+        }
+      } else if (!outgoing && mNeighbours.size() >= 2 * mConfig.getMeshNeighbours()) {
+        drop = peer;
+      } else {
+        addNeighbour(peer, node);
+      }
+      if (candidate != null) {
+        candidate.mNode = node;
+      }
+    }
+    if (drop != null) {
+      disconnect(drop);
+    }
+  }
+
+  private void addNeighbour(String peer, long node) {
+    mNeighbours.put(peer, node);
+    mRoutes.put(node, new Route(peer, 1, System.currentTimeMillis()));
+  }
+
+  /**
+   * notes that messages of origin come through peer
+   */
+  private void learn(long origin, String peer, int hops) {
+    long now = System.currentTimeMillis();
+    Route route = mRoutes.get(origin);
+    if (route != null && route.mPeer.equals(peer) && route.mHops == hops) {
+      route.mUpdated = now;
+    } else if (route == null || route.mPeer.equals(peer) || hops <= route.mHops
+        || now - route.mUpdated > mConfig.getRouteTimeout()) {
+      mRoutes.put(origin, new Route(peer, hops, now));
+    }
+  }
+
+  /**
+   * returns fresh route through a connected neighbour
+   */
+  private Route routeTo(long node) {
+    Route route = mRoutes.get(node);
+    if (route == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - route.mUpdated > mConfig.getRouteTimeout()
+        || !mNeighbours.containsKey(route.mPeer)) {
+      mRoutes.remove(node);
+      return null;
+    }
+    return route;
+  }
+
+  private void deliver(long origin, Frame frame) {
+    final MessageListener listener = mListener;
+    if (listener == null) {
+      return;
+    }
+    mConfig.getMetrics().increment(Metrics.Counter.MESSAGES_IN, 1);
+    byte[] data = frame.getData();
+    byte[] payload = new byte[data.length - HEADER];
+    System.arraycopy(data, HEADER, payload, 0, payload.length);
+    final Frame message = new Frame(Frame.TYPE_MESSAGE, frame.getFlags(), payload, frame.getChannel());
+    final String node = Long.toHexString(origin);
+    Executor executor = mExecutor;
+    if (executor == null) {
+      listener.onMessage(node, message);
+    } else {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          listener.onMessage(node, message);
+        }
+      });
+    }
+  }
+
+  private void addNode(InetAddress address, int port, long node) {
+    String key = Supervisor.peerId(address, port);
+    synchronized (this) {
+      Candidate candidate = mCandidates.get(key);
+      if (candidate == null) {
+        candidate = new Candidate(address, port);
+        mCandidates.put(key, candidate);
+      }
+      if (node != 0) {
+        candidate.mNode = node;
+      }
+    }
+    maintainSoon();
+  }
+
+  /**
+   * drops old routes & dials nodes while there are fewer neighbours than wanted, runs on timer
+   */
+  private void maintain() {
+    long now = System.currentTimeMillis();
+    for (Long node : mRoutes.keySet()) {
+      routeTo(node);
+    }
+    List<Candidate> dial = new ArrayList<Candidate>();
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      for (Iterator<Map.Entry<String, Long>> iterator = mDialing.entrySet().iterator(); iterator.hasNext(); ) {
+        Map.Entry<String, Long> entry = iterator.next();
+        if (now - entry.getValue() > DIAL_TIMEOUT) {
+          iterator.remove();
+        }
+      }
+      int missing = mConfig.getMeshNeighbours() - mNeighbours.size() - mDialing.size();
+      if (missing <= 0) {
+        return;
+      }
+      Set<Long> linked = new HashSet<Long>(mNeighbours.values());
+      List<Candidate> eligible = new ArrayList<Candidate>();
+      for (Map.Entry<String, Candidate> entry : mCandidates.entrySet()) {
+        Candidate candidate = entry.getValue();
+        if (!candidate.mSelf && now >= candidate.mRetryAt && !mDialing.containsKey(entry.getKey())
+            && !mNeighbours.containsKey(entry.getKey()) && !linked.contains(candidate.mNode)) {
+          eligible.add(candidate);
+        }
+      }
+      // random choice makes a connected mesh even when every node knows the same nodes
+      Collections.shuffle(eligible, mRandom);
+      for (Candidate candidate : eligible.subList(0, Math.min(missing, eligible.size()))) {
+        mDialing.put(Supervisor.peerId(candidate.mAddress, candidate.mPort), now);
+        dial.add(candidate);
+      }
+    }
+    for (Candidate candidate : dial) {
+      mConnection.connectToServer(candidate.mAddress, candidate.mPort);
+    }
+  }
+
+  private synchronized void maintainSoon() {
+    if (mTimer != null && !mClosed) {
+      mTimer.execute(new Runnable() {
+        @Override
+        public void run() {
+          maintain();
+        }
+      });
+    }
+  }
+
+  /**
+   * closes link off the reading thread
+   */
+  private synchronized void disconnect(final String peer) {
+    if (mTimer == null || mClosed) {
+      return;
+    }
+    mTimer.execute(new Runnable() {
+      @Override
+      public void run() {
+        mConnection.disconnect(peer);
+      }
+    });
+  }
+
+  private static long newNodeId(Random random) {
+    long id;
+    do {
+      id = random.nextLong() & Long.MAX_VALUE;
+    } while (id == 0);
+    return id;
+  }
+
+  private static long parseNodeId(String node) {
+    try {
+      long id = Long.parseLong(node, 16);
+      if (id > 0) {
+        return id;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new IllegalArgumentException("Invalid node id: " + node);
+  }
+
+  /**
+   * ids of recent messages with the largest TTL they came with, oldest are forgotten first
+   */
+  private static class Seen {
+    private final Map<MessageId, Integer> mIds;
+
+    public Seen(final int capacity) {
+      mIds = new LinkedHashMap<MessageId, Integer>(capacity * 4 / 3 + 1) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<MessageId, Integer> eldest) {
+          return size() > capacity;
+        }
+      };
+    }
+
+    /**
+     * notes copy of message
+     *
+     * @return largest TTL of earlier copies or -1 if it is the first one
+     */
+    public synchronized int add(long origin, int sequence, int ttl) {
+      MessageId id = new MessageId(origin, sequence);
+      Integer seen = mIds.get(id);
+      if (seen == null || seen < ttl) {
+        mIds.put(id, ttl);
+      }
+      return seen != null ? seen : -1;
+    }
+  }
+
+  private static class MessageId {
+    private final long mOrigin;
+    private final int mSequence;
+
+    public MessageId(long origin, int sequence) {
+      mOrigin = origin;
+      mSequence = sequence;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof MessageId)) {
+        return false;
+      }
+      MessageId other = (MessageId) o;
+      return mOrigin == other.mOrigin && mSequence == other.mSequence;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (mOrigin ^ (mOrigin >>> 32)) * 31 + mSequence;
+    }
+  }
+
+  /**
+   * neighbour that leads to a node & how many hops away the node is
+   */
+  private static class Route {
+    private final String mPeer;
+    private final int mHops;
+    private volatile long mUpdated;
+
+    public Route(String peer, int hops, long updated) {
+      mPeer = peer;
+      mHops = hops;
+      mUpdated = updated;
+    }
+  }
+
+  /**
+   * node that may be dialed
+   */
+  private static class Candidate {
+    private final InetAddress mAddress;
+    private final int mPort;
+    /**
+     * node id, 0 until it is known
+     */
+    private long mNode;
+    private long mRetryAt;
+    private boolean mSelf;
+
+    public Candidate(InetAddress address, int port) {
+      mAddress = address;
+      mPort = port;
+    }
+  }
+
+  /**
+   * adds mesh nodes found by discovery
+   */
+  private class Search implements NetworkDiscovery.OnChangeListener {
+    @Override
+    public void onFound(ServiceInfo info) {
+      long node;
+      try {
+        node = parseNodeId(ServiceProperties.from(info).get(ServiceProperties.KEY_NODE));
+      } catch (IllegalArgumentException e) {
+        node = 0;
+      }
+      addNode(info.getInet4Addresses()[0], info.getPort(), node);
+    }
+
+    @Override
+    public void onUpdated(ServiceInfo info) {
+      onFound(info);
+    }
+
+    @Override
+    public void onRemoved(ServiceInfo info) {
+      if (info.getInet4Addresses().length > 0) {
+        removeNode(info.getInet4Addresses()[0], info.getPort());
+      }
+    }
+  }
+
+  /**
+   * receives messages of other nodes
+   */
+  public interface MessageListener {
+    /**
+     * @param node    node id of origin
+     * @param message message
+     */
+    void onMessage(String node, Frame message);
+  }
+}
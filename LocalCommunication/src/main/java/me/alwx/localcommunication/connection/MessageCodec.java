@@ -0,0 +1,49 @@
+package me.alwx.localcommunication.connection;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * turns key-value messages into frame payload and back;
+ * codec id travels in frame flags, so receiver always knows which codec to use
+ * (see {@link me.alwx.localcommunication.connection.MessageCodecs})
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public interface MessageCodec {
+  /**
+   * returns codec id, 0..15
+   *
+   * @return id
+   */
+  int getId();
+
+  /**
+   * encodes message
+   *
+   * @param values key-value map
+   * @return payload bytes
+   */
+  byte[] encode(Map<String, ?> values);
+
+  /**
+   * decodes message
+   *
+   * @param data payload bytes
+   * @return message contents
+   * @throws JSONException if payload is malformed
+   */
+  JSONObject decode(byte[] data) throws JSONException;
+
+  /**
+   * reads only {@link Communication#MESSAGE_TYPE} field, without decoding the rest
+   *
+   * @param data payload bytes
+   * @return message type or null if there is none
+   * @throws JSONException if payload is malformed
+   */
+  String decodeType(byte[] data) throws JSONException;
+}
@@ -0,0 +1,59 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.Map;
+
+/**
+ * registry of codecs known to this device, looked up by the id from frame flags
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public final class MessageCodecs {
+  /**
+   * bits of frame flags holding codec id
+   */
+  public static final int FLAGS_MASK = 0x0f;
+
+  private static final MessageCodec[] CODECS = new MessageCodec[FLAGS_MASK + 1];
+
+  static {
+    register(JsonCodec.INSTANCE);
+    register(BinaryCodec.INSTANCE);
+  }
+
+  private MessageCodecs() {
+  }
+
+  /**
+   * makes codec available for decoding
+   *
+   * @param codec codec
+   */
+  public static synchronized void register(MessageCodec codec) {
+    if (codec.getId() < 0 || codec.getId() > FLAGS_MASK) {
+      throw new IllegalArgumentException("Invalid codec id: " + codec.getId());
+    }
+    CODECS[codec.getId()] = codec;
+  }
+
+  /**
+   * returns codec used for frame with given flags
+   *
+   * @param flags frame flags
+   * @return codec or null if it is unknown
+   */
+  public static MessageCodec forFlags(int flags) {
+    return CODECS[flags & FLAGS_MASK];
+  }
+
+  /**
+   * creates message frame
+   *
+   * @param codec  codec
+   * @param values key-value map
+   * @return frame
+   */
+  public static Frame toFrame(MessageCodec codec, Map<String, ?> values) {
+    return new Frame(Frame.TYPE_MESSAGE, (byte) codec.getId(), codec.encode(values));
+  }
+}
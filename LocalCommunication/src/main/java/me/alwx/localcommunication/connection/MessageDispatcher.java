@@ -0,0 +1,234 @@
+package me.alwx.localcommunication.connection;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * routes received messages to listeners registered for their type;
+ * only the type field is read before routing, so messages nobody listens to
+ * are dropped without being parsed
+ * <p/>
+ * set it with {@link me.alwx.localcommunication.connection.Connection#setFrameListener(Connection.FrameListener)}
+ * or {@link me.alwx.localcommunication.connection.ConnectionWrapper#setFrameListener(Connection.FrameListener, java.util.concurrent.Executor)}
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class MessageDispatcher implements Connection.FrameListener {
+  private static final String DEBUG_TAG = MessageDispatcher.class.getName();
+
+  private final Map<String, Route> mRoutes = new ConcurrentHashMap<String, Route>();
+  private final Executor mMainExecutor = Platform.get().getMainExecutor();
+  private Executor mBackgroundExecutor;
+  private ExecutorService mOwnExecutor;
+  private volatile Metrics mMetrics = Metrics.NONE;
+
+  /**
+   * creates dispatcher with its own worker pool for {@link ThreadMode#BACKGROUND} listeners,
+   * the pool is started on first use
+   */
+  public MessageDispatcher() {
+  }
+
+  /**
+   * creates dispatcher that runs {@link ThreadMode#BACKGROUND} listeners on given executor
+   *
+   * @param backgroundExecutor executor
+   */
+  public MessageDispatcher(Executor backgroundExecutor) {
+    mBackgroundExecutor = backgroundExecutor;
+  }
+
+  /**
+   * registers listener for message type, replacing previous one
+   *
+   * @param type     message type ({@link Communication#MESSAGE_TYPE} field)
+   * @param mode     thread to call listener on
+   * @param listener listener
+   */
+  public void register(String type, ThreadMode mode, OnMessageListener listener) {
+    mRoutes.put(type, new Route(mode, listener));
+  }
+
+  /**
+   * removes listener for message type, such messages will be dropped
+   *
+   * @param type message type
+   */
+  public void unregister(String type) {
+    mRoutes.remove(type);
+  }
+
+  /**
+   * sets receiver of decode time & dispatch latency measurements
+   *
+   * @param metrics metrics, {@link Metrics#NONE} (default) to measure nothing
+   */
+  public void setMetrics(Metrics metrics) {
+    mMetrics = metrics != null ? metrics : Metrics.NONE;
+  }
+
+  /**
+   * stops worker pool, if dispatcher has created one
+   */
+  public synchronized void shutdown() {
+    if (mOwnExecutor != null) {
+      mOwnExecutor.shutdown();
+      mOwnExecutor = null;
+      mBackgroundExecutor = null;
+    }
+  }
+
+  @Override
+  public void onFrame(String peer, Frame frame) {
+    MessageCodec codec = MessageCodecs.forFlags(frame.getFlags());
+    if (codec == null) {
+      Log.e(DEBUG_TAG, "Unknown message codec");
+      return;
+    }
+    String type;
+    try {
+      type = codec.decodeType(frame.getData());
+    } catch (JSONException e) {
+      Log.e(DEBUG_TAG, "Invalid message format: " + e);
+      return;
+    }
+    Route route = type != null ? mRoutes.get(type) : null;
+    if (route == null) {
+      return;
+    }
+    final Metrics metrics = mMetrics;
+    final long received = metrics != Metrics.NONE ? System.nanoTime() : 0;
+
+    switch (route.mMode) {
+      case CALLER:
+        deliver(metrics, received, route, peer, codec, frame);
+        break;
+      case BACKGROUND:
+        getBackgroundExecutor().execute(new BackgroundTask(metrics, received, route, peer, codec, frame));
+        break;
+      default:
+        // views are touched only on UI thread, parsing is not
+        final JSONObject message = decode(metrics, codec, frame);
+        if (message != null) {
+          final Route mainRoute = route;
+          final String from = peer;
+          mMainExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              recordDispatch(metrics, received);
+              mainRoute.mListener.onMessage(from, message);
+            }
+          });
+        }
+        break;
+    }
+  }
+
+  private synchronized Executor getBackgroundExecutor() {
+    if (mBackgroundExecutor == null) {
+      mOwnExecutor = Executors.newFixedThreadPool(
+          Math.max(2, Runtime.getRuntime().availableProcessors()));
+      mBackgroundExecutor = mOwnExecutor;
+    }
+    return mBackgroundExecutor;
+  }
+
+  private static void deliver(Metrics metrics, long received,
+                              Route route, String peer, MessageCodec codec, Frame frame) {
+    JSONObject message = decode(metrics, codec, frame);
+    if (message != null) {
+      recordDispatch(metrics, received);
+      route.mListener.onMessage(peer, message);
+    }
+  }
+
+  private static JSONObject decode(Metrics metrics, MessageCodec codec, Frame frame) {
+    try {
+      if (metrics == Metrics.NONE) {
+        return codec.decode(frame.getData());
+      }
+      long start = System.nanoTime();
+      JSONObject message = codec.decode(frame.getData());
+      metrics.record(Metrics.Histogram.DECODE_TIME, (System.nanoTime() - start) / 1000);
+      return message;
+    } catch (JSONException e) {
+      Log.e(DEBUG_TAG, "Invalid message format: " + e);
+      return null;
+    }
+  }
+
+  private static void recordDispatch(Metrics metrics, long received) {
+    if (metrics != Metrics.NONE) {
+      metrics.record(Metrics.Histogram.DISPATCH_LATENCY, (System.nanoTime() - received) / 1000);
+    }
+  }
+
+  public enum ThreadMode {
+    /**
+     * worker pool, for handlers that do real work
+     */
+    BACKGROUND,
+    /**
+     * thread that has read the message, handler must return quickly
+     */
+    CALLER,
+    /**
+     * UI thread
+     */
+    MAIN
+  }
+
+  public interface OnMessageListener {
+    /**
+     * called for every message of registered type
+     *
+     * @param peer    peer id ("address:port")
+     * @param message message contents
+     */
+    void onMessage(String peer, JSONObject message);
+  }
+
+  private static class Route {
+    private final ThreadMode mMode;
+    private final OnMessageListener mListener;
+
+    public Route(ThreadMode mode, OnMessageListener listener) {
+      mMode = mode;
+      mListener = listener;
+    }
+  }
+
+  /**
+   * message waiting for worker pool, decoded on worker thread
+   */
+  private static class BackgroundTask implements Runnable {
+    private final Metrics mMetrics;
+    private final long mReceived;
+    private final Route mRoute;
+    private final String mPeer;
+    private final MessageCodec mCodec;
+    private final Frame mFrame;
+
+    public BackgroundTask(Metrics metrics, long received,
+                          Route route, String peer, MessageCodec codec, Frame frame) {
+      mMetrics = metrics;
+      mReceived = received;
+      mRoute = route;
+      mPeer = peer;
+      mCodec = codec;
+      mFrame = frame;
+    }
+
+    @Override
+    public void run() {
+      deliver(mMetrics, mReceived, mRoute, mPeer, mCodec, mFrame);
+    }
+  }
+}
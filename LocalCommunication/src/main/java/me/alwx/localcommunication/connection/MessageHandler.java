@@ -1,43 +1,95 @@
 package me.alwx.localcommunication.connection;
 
+import android.app.Activity;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
-import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import me.alwx.localcommunication.MainActivity;
-
 /**
+ * handler that decodes every message and passes it to UI thread;
+ * see {@link me.alwx.localcommunication.connection.MessageDispatcher}
+ * to route messages by type and to keep them off UI thread
+ *
  * @author alwx
  * @version 1.0
  */
 abstract public class MessageHandler extends Handler {
   private static final String DEBUG_TAG = MessageHandler.class.getName();
-  private MainActivity mActivity;
+  private Activity mActivity;
+  private volatile Metrics mMetrics = Metrics.NONE;
 
-  public MessageHandler(MainActivity activity) {
+  public MessageHandler(Activity activity) {
     mActivity = activity;
   }
 
+  /**
+   * sets receiver of decode time & dispatch latency measurements
+   *
+   * @param metrics metrics, {@link Metrics#NONE} (default) to measure nothing
+   */
+  public void setMetrics(Metrics metrics) {
+    mMetrics = metrics != null ? metrics : Metrics.NONE;
+  }
+
   @Override
   public void handleMessage(Message msg) {
-    final String message = msg.getData().getString(Communication.MESSAGE);
+    if (msg.what != Connection.MSG_FRAME) {
+      return;
+    }
+    final Delivery delivery = (Delivery) msg.obj;
+    final String peer = delivery.mPeer;
+    Frame frame = delivery.mFrame;
+    MessageCodec codec = MessageCodecs.forFlags(frame.getFlags());
+    if (codec == null) {
+      Log.e(DEBUG_TAG, "Unknown message codec");
+      return;
+    }
+    final Metrics metrics = mMetrics;
     try {
-      final JSONObject jsonObject = new JSONObject(message);
+      long start = metrics != Metrics.NONE ? System.nanoTime() : 0;
+      final JSONObject jsonObject = codec.decode(frame.getData());
+      if (metrics != Metrics.NONE) {
+        metrics.record(Metrics.Histogram.DECODE_TIME, (System.nanoTime() - start) / 1000);
+      }
       final String type = jsonObject.getString(Communication.MESSAGE_TYPE);
 
-      mActivity.runOnUiThread(new Runnable() {
-        @Override
-        public void run() {
-          onMessage(type, jsonObject);
-        }
-      });
+      // handlers are normally created on UI thread, so there is no need to post again
+      if (getLooper() == Looper.getMainLooper()) {
+        recordDispatch(metrics, delivery);
+        onMessage(peer, type, jsonObject);
+      } else {
+        mActivity.runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            recordDispatch(metrics, delivery);
+            onMessage(peer, type, jsonObject);
+          }
+        });
+      }
     } catch (JSONException e) {
       Log.e(DEBUG_TAG, "Invalid message format: " + e);
     }
   }
 
+  private static void recordDispatch(Metrics metrics, Delivery delivery) {
+    if (metrics != Metrics.NONE && delivery.mReceived != 0) {
+      metrics.record(Metrics.Histogram.DISPATCH_LATENCY, (System.nanoTime() - delivery.mReceived) / 1000);
+    }
+  }
+
+  /**
+   * called for every message, override it when you need to know which peer sent it
+   *
+   * @param peer    peer id ("address:port")
+   * @param type    message type
+   * @param message message contents
+   */
+  public void onMessage(String peer, String type, JSONObject message) {
+    onMessage(type, message);
+  }
+
   abstract public void onMessage(String type, JSONObject message);
 }
@@ -0,0 +1,127 @@
+package me.alwx.localcommunication.connection;
+
+/**
+ * receives measurements of the connection stack, e.g. to forward them to an analytics backend;
+ * set it with {@link ConnectionConfig#setMetrics(Metrics)}, {@link NetworkDiscovery#setMetrics(Metrics)}
+ * and {@link MessageHandler#setMetrics(Metrics)}
+ * (or all at once with {@link ConnectionWrapper#setMetrics(Metrics)})
+ * <p/>
+ * methods are called on I/O threads for every frame, so they must be quick & thread-safe;
+ * {@link CollectingMetrics} is a ready implementation.
+ * with {@link #NONE} (default) nothing is even measured
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public interface Metrics {
+  /**
+   * metrics that ignores everything; code skips measuring when it sees this instance
+   */
+  Metrics NONE = new Metrics() {
+    @Override
+    public void increment(Counter counter, long delta) {
+    }
+
+    @Override
+    public void record(Histogram histogram, long value) {
+    }
+  };
+
+  /**
+   * adds to counter
+   *
+   * @param counter counter
+   * @param delta   amount, usually 1 or number of bytes
+   */
+  void increment(Counter counter, long delta);
+
+  /**
+   * adds sample to distribution
+   *
+   * @param histogram histogram
+   * @param value     sample, unit is given by histogram
+   */
+  void record(Histogram histogram, long value);
+
+  enum Counter {
+    /**
+     * bytes read from sockets
+     */
+    BYTES_IN,
+    /**
+     * bytes written to sockets
+     */
+    BYTES_OUT,
+    /**
+     * message frames received
+     */
+    MESSAGES_IN,
+    /**
+     * message frames queued for sending
+     */
+    MESSAGES_OUT,
+    /**
+     * frames rejected because peer's queue was full
+     */
+    FRAMES_REJECTED,
+    /**
+     * peers connected, incoming & outgoing
+     */
+    CONNECTS,
+    /**
+     * peers disconnected for any reason
+     */
+    DISCONNECTS,
+    /**
+     * reconnection attempts scheduled (see {@link ConnectionConfig#setReconnect(boolean)})
+     */
+    RECONNECTS,
+    /**
+     * mesh messages passed on to neighbours (see {@link MeshNode})
+     */
+    MESH_FORWARDED,
+    /**
+     * mesh messages dropped because they had been seen already
+     */
+    MESH_DUPLICATES,
+    /**
+     * datagrams sent (see {@link Connection#sendDatagram(Frame)})
+     */
+    DATAGRAMS_OUT,
+    /**
+     * datagrams received & passed on
+     */
+    DATAGRAMS_IN,
+    /**
+     * datagrams that never came, found by gaps in senders' sequence numbers
+     */
+    DATAGRAMS_LOST
+  }
+
+  enum Histogram {
+    /**
+     * frames waiting for peer, sampled when a frame is queued
+     */
+    QUEUE_DEPTH,
+    /**
+     * time to encode a message, microseconds
+     */
+    ENCODE_TIME,
+    /**
+     * time to decode a message, microseconds
+     */
+    DECODE_TIME,
+    /**
+     * time from reading a message to passing it to its listener, microseconds
+     */
+    DISPATCH_LATENCY,
+    /**
+     * time from finding a service to resolving its address & TXT record, microseconds
+     */
+    RESOLVE_TIME,
+    /**
+     * heartbeat round-trip time, microseconds
+     */
+    RTT
+  }
+}
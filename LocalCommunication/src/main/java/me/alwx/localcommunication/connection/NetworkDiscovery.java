@@ -1,103 +1,393 @@
 package me.alwx.localcommunication.connection;
 
 import android.content.Context;
-import android.net.wifi.WifiInfo;
-import android.net.wifi.WifiManager;
-import android.util.Log;
 
-import java.io.IOException;
-import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceEvent;
 import javax.jmdns.ServiceInfo;
-import javax.jmdns.ServiceListener;
 
 /**
+ * registers server with mDNS & finds servers;
+ * resolved servers are cached, so searching again reports known servers at once
+ * <p/>
+ * servers publish {@link me.alwx.localcommunication.connection.ServiceProperties} in their TXT records,
+ * clients can filter & rank them before connecting
+ * <p/>
+ * all instances share one JmDNS (see {@link me.alwx.localcommunication.connection.DiscoveryEngine}),
+ * it stays warm until the last instance is closed
+ *
  * @author alwx
  * @version 1.0
  */
 public class NetworkDiscovery {
   private final String DEBUG_TAG = NetworkDiscovery.class.getName();
-  private final String TYPE = "_alwx._tcp.local.";
+  public static final String TYPE = "_alwx._tcp.local.";
   private final String SERVICE_NAME = "LocalCommunication";
 
-  private Context mContext;
-  private JmDNS mJmDNS;
-  private ServiceInfo mServiceInfo;
-  private ServiceListener mServiceListener;
-  private WifiManager.MulticastLock mMulticastLock;
+  private DiscoveryEngine mEngine;
+  private Object mRegistration;
+  private final List<Search> mSearches = new ArrayList<Search>();
+  private volatile Search mLastSearch;
 
+  /**
+   * discovery on device's Wi-Fi network
+   *
+   * @param context any context
+   */
   public NetworkDiscovery(Context context) {
-    mContext = context;
-    try {
-      WifiManager wifi = (WifiManager) mContext.getSystemService(android.content.Context.WIFI_SERVICE);
-      WifiInfo wifiInfo = wifi.getConnectionInfo();
-      int intaddr = wifiInfo.getIpAddress();
+    this(new WifiAddressProvider(context));
+  }
 
-      byte[] byteaddr = new byte[]{
-          (byte) (intaddr & 0xff),
-          (byte) (intaddr >> 8 & 0xff),
-          (byte) (intaddr >> 16 & 0xff),
-          (byte) (intaddr >> 24 & 0xff)
-      };
-      InetAddress addr = InetAddress.getByAddress(byteaddr);
-      mJmDNS = JmDNS.create(addr);
-    } catch (IOException e) {
-      Log.d(DEBUG_TAG, "Error in JmDNS creation: " + e);
-    }
+  /**
+   * discovery on address of given provider, e.g. {@link me.alwx.localcommunication.connection.InterfaceAddressProvider}
+   * off the device; provider is used only if JmDNS is not running yet
+   *
+   * @param addressProvider local address provider
+   */
+  public NetworkDiscovery(AddressProvider addressProvider) {
+    mEngine = DiscoveryEngine.acquire(addressProvider);
   }
 
+  /**
+   * registers server with default properties: protocol version only
+   *
+   * @param port server port
+   */
   public void startServer(int port) {
+    startServer(port, new ServiceProperties());
+  }
+
+  /**
+   * registers server, properties are published in its TXT record
+   *
+   * @param port       server port
+   * @param properties properties (see {@link me.alwx.localcommunication.connection.ServiceProperties})
+   */
+  public synchronized void startServer(int port, ServiceProperties properties) {
+    if (mRegistration != null) {
+      mEngine.unregister(mRegistration);
+    }
+    mRegistration = mEngine.register(TYPE, SERVICE_NAME, port, properties.toMap());
+  }
+
+  /**
+   * unregisters server, searches are kept
+   */
+  public synchronized void stopServer() {
+    if (mRegistration != null) {
+      mEngine.unregister(mRegistration);
+      mRegistration = null;
+    }
+  }
+
+  /**
+   * publishes new properties of registered server, e.g. when its load changes
+   *
+   * @param properties properties
+   */
+  public synchronized void updateProperties(ServiceProperties properties) {
+    if (mRegistration != null) {
+      mEngine.updateProperties(mRegistration, properties.toMap());
+    }
+  }
+
+  /**
+   * sets how long a resolved server is kept when nothing is heard from it,
+   * by default it is the TTL of mDNS records
+   *
+   * @param ttl time in milliseconds
+   */
+  public void setCacheTtl(long ttl) {
+    mEngine.setCacheTtl(ttl);
+  }
+
+  /**
+   * sets receiver of resolve time measurements;
+   * JmDNS is shared, so the last metrics set by any discovery get them
+   *
+   * @param metrics metrics, {@link Metrics#NONE} (default) to measure nothing
+   */
+  public void setMetrics(Metrics metrics) {
+    mEngine.setMetrics(metrics != null ? metrics : Metrics.NONE);
+  }
+
+  /**
+   * starts searching for servers; servers found earlier are reported right away
+   *
+   * @param listener listener, implement {@link OnChangeListener} to know about
+   *                 updated & removed servers too
+   */
+  public void findServers(OnFoundListener listener) {
+    findServers(new String[]{TYPE}, null, listener);
+  }
+
+  /**
+   * starts searching for services of several types at once;
+   * only services accepted by filter are reported, so nobody has to connect to learn about them
+   * <p/>
+   * when properties of a reported service change so that filter rejects it,
+   * {@link OnChangeListener} gets it as removed (and as found when filter accepts it again)
+   *
+   * @param types    service types, e.g. "_alwx._tcp.local."
+   * @param filter   filter or null to report all services
+   * @param listener listener
+   */
+  public void findServers(String[] types, ServiceFilter filter, OnFoundListener listener) {
+    Search search = new Search(types, filter, listener);
+    synchronized (this) {
+      mSearches.add(search);
+    }
+    mLastSearch = search;
+    search.mBrowsingThread = Thread.currentThread();
     try {
-      wifiLock();
-      mServiceInfo = ServiceInfo.create(TYPE, SERVICE_NAME, port, SERVICE_NAME);
-      mJmDNS.registerService(mServiceInfo);
-    } catch (IOException e) {
-      Log.d(DEBUG_TAG, "Error in JmDNS initialization: " + e);
+      for (String type : types) {
+        mEngine.browse(type, search);
+      }
+    } finally {
+      search.mBrowsingThread = null;
+    }
+  }
+
+  /**
+   * returns cached services of given types that filter accepts, best first
+   *
+   * @param types   service types
+   * @param filter  filter or null to return all services
+   * @param ranking order of services, e.g. {@link ServiceProperties#LEAST_BUSY}, or null to keep any order
+   * @return services
+   */
+  public List<ServiceInfo> getCachedServers(String[] types, ServiceFilter filter,
+                                            final Comparator<ServiceProperties> ranking) {
+    final Map<ServiceInfo, ServiceProperties> candidates =
+        new HashMap<ServiceInfo, ServiceProperties>();
+    List<ServiceInfo> result = new ArrayList<ServiceInfo>();
+    for (ServiceInfo info : mEngine.getCachedServices()) {
+      if (!hasType(types, info)) {
+        continue;
+      }
+      ServiceProperties properties = ServiceProperties.from(info);
+      if (filter == null || filter.accept(info, properties)) {
+        candidates.put(info, properties);
+        result.add(info);
+      }
+    }
+    if (ranking != null) {
+      Collections.sort(result, new Comparator<ServiceInfo>() {
+        @Override
+        public int compare(ServiceInfo a, ServiceInfo b) {
+          return ranking.compare(candidates.get(a), candidates.get(b));
+        }
+      });
     }
+    return result;
+  }
+
+  /**
+   * returns servers resolved so far
+   *
+   * @return cached servers
+   */
+  public List<ServiceInfo> getCachedServers() {
+    return mEngine.getCachedServices();
+  }
+
+  /**
+   * returns time from last {@link #findServers(OnFoundListener)} call to the first server found
+   *
+   * @return time in milliseconds or -1 if nothing has been found yet
+   */
+  public long getTimeToFirstPeer() {
+    Search search = mLastSearch;
+    return search != null ? search.mTimeToFirstPeer : -1;
   }
 
-  public void findServers(final OnFoundListener listener) {
-    mJmDNS.addServiceListener(TYPE, mServiceListener = new ServiceListener() {
-      @Override
-      public void serviceAdded(ServiceEvent serviceEvent) {
-        ServiceInfo info = mJmDNS.getServiceInfo(serviceEvent.getType(), serviceEvent.getName());
-        listener.onFound(info);
+  /**
+   * tells whether first server of last search came from cache
+   *
+   * @return true if it was found during earlier search
+   */
+  public boolean isFirstPeerCached() {
+    Search search = mLastSearch;
+    return search != null && search.mFirstPeerCached;
+  }
+
+  /**
+   * returns how long it took to start shared JmDNS
+   *
+   * @return time in milliseconds or -1 if it is still starting
+   */
+  public long getEngineStartupTime() {
+    return mEngine.getStartupTime();
+  }
+
+  /**
+   * stops one search, other searches & registered server are kept
+   *
+   * @param listener listener passed to findServers()
+   */
+  public synchronized void stopSearch(OnFoundListener listener) {
+    for (Iterator<Search> i = mSearches.iterator(); i.hasNext(); ) {
+      Search search = i.next();
+      if (search.mListener == listener) {
+        for (String type : search.mTypes) {
+          mEngine.stopBrowsing(type, search);
+        }
+        i.remove();
       }
+    }
+  }
 
-      @Override
-      public void serviceRemoved(ServiceEvent serviceEvent) {
+  /**
+   * stops searching & unregisters server; JmDNS & cached servers are kept
+   */
+  public synchronized void reset() {
+    for (Search search : mSearches) {
+      for (String type : search.mTypes) {
+        mEngine.stopBrowsing(type, search);
       }
+    }
+    mSearches.clear();
+    stopServer();
+  }
 
-      @Override
-      public void serviceResolved(ServiceEvent serviceEvent) {
-        mJmDNS.requestServiceInfo(serviceEvent.getType(), serviceEvent.getName(), 1);
+  /**
+   * resets discovery & releases shared JmDNS, instance can't be used after that
+   */
+  public synchronized void close() {
+    reset();
+    DiscoveryEngine.release(mEngine);
+  }
+
+  private static boolean hasType(String[] types, ServiceInfo info) {
+    for (String type : types) {
+      if (type.equalsIgnoreCase(info.getType())) {
+        return true;
       }
-    });
+    }
+    return false;
   }
 
-  public void reset() {
-    if (mJmDNS != null) {
-      if (mServiceListener != null) {
-        mJmDNS.removeServiceListener(TYPE, mServiceListener);
-        mServiceListener = null;
+  /**
+   * one findServers() call: filters services of its types & measures time to first peer,
+   * so overlapping searches don't mix up their measurements
+   */
+  private class Search implements OnChangeListener {
+    private final String[] mTypes;
+    private final ServiceFilter mFilter;
+    private final OnFoundListener mListener;
+    private final Set<String> mAccepted = new HashSet<String>();
+    private final long mStartedAt = System.currentTimeMillis();
+    private volatile long mTimeToFirstPeer = -1;
+    private volatile boolean mFirstPeerCached;
+    private volatile Thread mBrowsingThread;
+
+    public Search(String[] types, ServiceFilter filter, OnFoundListener listener) {
+      mTypes = types;
+      mFilter = filter;
+      mListener = listener;
+    }
+
+    @Override
+    public void onFound(ServiceInfo info) {
+      if (accept(info)) {
+        found(info);
+      }
+    }
+
+    @Override
+    public void onUpdated(ServiceInfo info) {
+      boolean accepted = accept(info);
+      boolean known;
+      synchronized (mAccepted) {
+        known = mAccepted.contains(key(info));
+      }
+      if (accepted && !known) {
+        found(info);
+      } else if (!accepted && known) {
+        onRemoved(info);
+      } else if (accepted && mListener instanceof OnChangeListener) {
+        ((OnChangeListener) mListener).onUpdated(info);
+      }
+    }
+
+    @Override
+    public void onRemoved(ServiceInfo info) {
+      boolean known;
+      synchronized (mAccepted) {
+        known = mAccepted.remove(key(info));
+      }
+      if (known && mListener instanceof OnChangeListener) {
+        ((OnChangeListener) mListener).onRemoved(info);
+      }
+    }
+
+    private boolean accept(ServiceInfo info) {
+      return mFilter == null || mFilter.accept(info, ServiceProperties.from(info));
+    }
+
+    private void found(ServiceInfo info) {
+      synchronized (mAccepted) {
+        if (!mAccepted.add(key(info))) {
+          return;
+        }
+      }
+      if (mTimeToFirstPeer < 0) {
+        // cached servers are reported by browse() on the thread that started the search
+        mFirstPeerCached = Thread.currentThread() == mBrowsingThread;
+        mTimeToFirstPeer = System.currentTimeMillis() - mStartedAt;
+        Log.d(DEBUG_TAG, "Time to first peer: " + mTimeToFirstPeer + " ms"
+            + (mFirstPeerCached ? " from cache" : " from network")
+            + " (JmDNS startup " + mEngine.getStartupTime() + " ms)");
       }
-      mJmDNS.unregisterAllServices();
+      mListener.onFound(info);
     }
-    if (mMulticastLock != null && mMulticastLock.isHeld()) {
-      mMulticastLock.release();
+
+    private String key(ServiceInfo info) {
+      return info.getQualifiedName().toLowerCase(Locale.US);
     }
   }
 
-  private void wifiLock() {
-    WifiManager wifiManager = (WifiManager) mContext.getSystemService(android.content.Context.WIFI_SERVICE);
-    mMulticastLock = wifiManager.createMulticastLock(SERVICE_NAME);
-    mMulticastLock.setReferenceCounted(true);
-    mMulticastLock.acquire();
+  /**
+   * decides which services are worth connecting to, before any connection is made
+   */
+  public interface ServiceFilter {
+    /**
+     * @param info       resolved service
+     * @param properties properties from its TXT record
+     * @return true to report service
+     */
+    boolean accept(ServiceInfo info, ServiceProperties properties);
   }
 
   public interface OnFoundListener {
     void onFound(ServiceInfo info);
   }
+
+  /**
+   * listener for all changes: {@link #onFound(javax.jmdns.ServiceInfo)} is called for new servers
+   */
+  public interface OnChangeListener extends OnFoundListener {
+    /**
+     * called when known server has changed its address, port or properties
+     *
+     * @param info updated service
+     */
+    void onUpdated(ServiceInfo info);
+
+    /**
+     * called when server has gone away or was not heard from for too long
+     *
+     * @param info removed service
+     */
+    void onRemoved(ServiceInfo info);
+  }
 }
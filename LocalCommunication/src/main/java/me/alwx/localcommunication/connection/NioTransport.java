@@ -0,0 +1,624 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * selector-based transport: all sockets are non-blocking
+ * and served by one event loop thread, whatever the number of peers
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class NioTransport implements Transport {
+  private static final String DEBUG_TAG = NioTransport.class.getName();
+  private static final int WRITE_BUFFER_SIZE = 16384;
+
+  private final Callback mCallback;
+  private final ConnectionConfig mConfig;
+  private final Metrics mMetrics;
+  private final Channels mChannels;
+  private final ConcurrentMap<String, Peer> mPeers = new ConcurrentHashMap<String, Peer>();
+  private final Set<Peer> mHandshaking = new HashSet<Peer>();
+  private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+  private Selector mSelector;
+  private Thread mThread;
+  private ServerSocketChannel mServerChannel;
+  private volatile int mPort = -1;
+  private final CountDownLatch mBound = new CountDownLatch(1);
+  private volatile boolean mClosed;
+
+  public NioTransport(Callback callback, ConnectionConfig config, Channels channels) {
+    mCallback = callback;
+    mConfig = config;
+    mMetrics = config.getMetrics();
+    mChannels = channels;
+  }
+
+  @Override
+  public void startServer() {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mServerChannel = ServerSocketChannel.open();
+          mServerChannel.configureBlocking(false);
+          mServerChannel.socket().bind(new InetSocketAddress(0));
+          mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+          mPort = mServerChannel.socket().getLocalPort();
+        } catch (IOException e) {
+          Log.d(DEBUG_TAG, "Server IOException: " + e);
+        }
+        mBound.countDown();
+      }
+    });
+  }
+
+  @Override
+  public int getLocalPort() {
+    return mPort;
+  }
+
+  @Override
+  public int awaitLocalPort(long timeout) throws InterruptedException {
+    mBound.await(timeout, TimeUnit.MILLISECONDS);
+    return mPort;
+  }
+
+  @Override
+  public void connect(final InetAddress address, final int port) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        SocketChannel channel = null;
+        try {
+          channel = SocketChannel.open();
+          channel.configureBlocking(false);
+          if (channel.connect(new InetSocketAddress(address, port))) {
+            Peer peer = new Peer(channel);
+            peer.mKey = channel.register(mSelector, SelectionKey.OP_READ, peer);
+            connected(peer);
+          } else {
+            channel.register(mSelector, SelectionKey.OP_CONNECT,
+                new InetSocketAddress(address, port));
+          }
+        } catch (IOException e) {
+          Log.d(DEBUG_TAG, "Initializing socket failed, IOE.", e);
+          closeQuietly(channel);
+          mCallback.onConnectFailed(address, port);
+        }
+      }
+    });
+  }
+
+  @Override
+  public boolean send(String peer, Frame frame) {
+    Peer p = mPeers.get(peer);
+    return p != null && p.enqueue(frame);
+  }
+
+  @Override
+  public boolean sendWithoutWaiting(String peer, Frame frame) {
+    Peer p = mPeers.get(peer);
+    return p != null && p.enqueue(frame, false);
+  }
+
+  @Override
+  public void sendToAll(Frame frame) {
+    for (Peer p : mPeers.values()) {
+      p.enqueue(frame);
+    }
+  }
+
+  @Override
+  public Set<String> getPeers() {
+    return Collections.unmodifiableSet(new HashSet<String>(mPeers.keySet()));
+  }
+
+  @Override
+  public int getQueueDepth(String peer) {
+    Peer p = mPeers.get(peer);
+    return p != null ? p.mWriteQueue.size() : 0;
+  }
+
+  @Override
+  public int getQueueDepth(String peer, int channel) {
+    Peer p = mPeers.get(peer);
+    return p != null ? p.mWriteQueue.size(channel) : 0;
+  }
+
+  @Override
+  public void disconnect(final String peer) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        Peer p = mPeers.get(peer);
+        if (p != null) {
+          p.close();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    if (mSelector == null) {
+      return;
+    }
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        mClosed = true;
+        closeQuietly(mServerChannel);
+        for (Peer p : mPeers.values()) {
+          p.close();
+        }
+        for (Peer p : new HashSet<Peer>(mHandshaking)) {
+          p.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * runs task on event loop thread, starting the loop if needed
+   *
+   * @param task task
+   */
+  private synchronized void execute(Runnable task) {
+    if (mSelector == null) {
+      try {
+        mSelector = Selector.open();
+      } catch (IOException e) {
+        Log.e(DEBUG_TAG, "Unable to open selector: " + e);
+        return;
+      }
+      mThread = new Thread(new EventLoop(), "NioTransport");
+      mThread.start();
+    }
+    mTasks.add(task);
+    mSelector.wakeup();
+  }
+
+  /**
+   * outgoing channel is open: negotiate options if needed, then report peer
+   *
+   * @param peer peer
+   */
+  private void connected(Peer peer) {
+    if (Handshake.isNeeded(mConfig)) {
+      peer.mHandshakeDeadline = System.currentTimeMillis() + mConfig.getHandshakeTimeout();
+      mHandshaking.add(peer);
+      peer.sendControl(Handshake.request(mConfig), null);
+    } else {
+      addPeer(peer, true);
+    }
+  }
+
+  /**
+   * adds peer unless there already is one with the same id,
+   * e.g. when connecting to a server twice; then the new channel is closed
+   */
+  private void addPeer(Peer peer, boolean outgoing) {
+    if (mPeers.putIfAbsent(peer.mId, peer) != null) {
+      Log.d(DEBUG_TAG, "Already connected to " + peer.mId + ", new channel closed");
+      peer.close();
+      return;
+    }
+    mCallback.onPeerConnected(peer.mId, outgoing);
+  }
+
+  private static void closeQuietly(java.nio.channels.Channel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Log.e(DEBUG_TAG, "Error when closing channel: " + e);
+      }
+    }
+  }
+
+  private class EventLoop implements Runnable {
+    @Override
+    public void run() {
+      while (!mClosed) {
+        try {
+          mSelector.select(checkHandshakes());
+        } catch (IOException e) {
+          Log.e(DEBUG_TAG, "Selector error: " + e);
+          break;
+        }
+
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+          task.run();
+        }
+
+        Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          try {
+            if (key.isAcceptable()) {
+              accept();
+            } else if (key.isConnectable()) {
+              finishConnect(key);
+            } else {
+              Peer peer = (Peer) key.attachment();
+              if (key.isReadable()) {
+                peer.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                peer.write();
+              }
+            }
+          } catch (IOException e) {
+            Log.d(DEBUG_TAG, "Channel error: " + e);
+            if (key.attachment() instanceof Peer) {
+              ((Peer) key.attachment()).close();
+            } else {
+              key.cancel();
+              closeQuietly(key.channel());
+            }
+          }
+        }
+      }
+      // connections still being established when transport closed
+      for (SelectionKey key : mSelector.keys()) {
+        closeQuietly(key.channel());
+      }
+      try {
+        mSelector.close();
+      } catch (IOException e) {
+        Log.e(DEBUG_TAG, "Error when closing selector: " + e);
+      }
+    }
+
+    /**
+     * gives up on handshakes server never answered (older servers keep line mode)
+     *
+     * @return time to wait for next deadline, 0 for no deadline
+     */
+    private long checkHandshakes() {
+      if (mHandshaking.isEmpty()) {
+        return 0;
+      }
+      long now = System.currentTimeMillis();
+      long wait = Long.MAX_VALUE;
+      for (Iterator<Peer> it = mHandshaking.iterator(); it.hasNext(); ) {
+        Peer peer = it.next();
+        if (peer.mHandshakeDeadline <= now) {
+          Log.d(DEBUG_TAG, "No handshake answer, staying in line mode");
+          it.remove();
+          addPeer(peer, true);
+        } else {
+          wait = Math.min(wait, peer.mHandshakeDeadline - now);
+        }
+      }
+      return wait == Long.MAX_VALUE ? 0 : wait;
+    }
+
+    private void accept() throws IOException {
+      SocketChannel channel;
+      while ((channel = mServerChannel.accept()) != null) {
+        channel.configureBlocking(false);
+        Peer peer = new Peer(channel);
+        peer.mKey = channel.register(mSelector, SelectionKey.OP_READ, peer);
+        addPeer(peer, false);
+      }
+    }
+
+    private void finishConnect(SelectionKey key) throws ClosedChannelException {
+      SocketChannel channel = (SocketChannel) key.channel();
+      try {
+        channel.finishConnect();
+      } catch (IOException e) {
+        Log.d(DEBUG_TAG, "Initializing socket failed, IOE.", e);
+        key.cancel();
+        closeQuietly(channel);
+        InetSocketAddress target = (InetSocketAddress) key.attachment();
+        mCallback.onConnectFailed(target.getAddress(), target.getPort());
+        return;
+      }
+      Peer peer = new Peer(channel);
+      peer.mKey = key;
+      key.attach(peer);
+      key.interestOps(SelectionKey.OP_READ);
+      connected(peer);
+    }
+  }
+
+  /**
+   * one connected channel: inbound frame buffer, queued frames and bytes being written
+   */
+  private class Peer {
+    private final SocketChannel mChannel;
+    private final String mId;
+    private final OutboundQueue mWriteQueue;
+    private final Chunks mChunks = new Chunks();
+    private final Queue<Object> mControl = new ConcurrentLinkedQueue<Object>();
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+    private final FrameReader mReader = new FrameReader(Framing.create(Connection.FramingMode.LINE));
+    private final ByteBuffer mOutBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private ByteBuffer mOut = (ByteBuffer) mOutBuffer.flip();
+    /**
+     * queued frames encoded into mOut, reported as sent once all of it is written
+     */
+    private final List<Frame> mWriting = new ArrayList<Frame>();
+    private Framing mFraming = Framing.create(Connection.FramingMode.LINE);
+    private Frame mPending;
+    private SelectionKey mKey;
+    private long mHandshakeDeadline;
+
+    public Peer(SocketChannel channel) {
+      mChannel = channel;
+      Socket socket = channel.socket();
+      mId = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+      mWriteQueue = new OutboundQueue(mChannels, mConfig.getOverflowPolicy());
+      try {
+        // frames are gathered into one buffer already, so a small control frame must not wait for acks
+        socket.setTcpNoDelay(true);
+      } catch (IOException e) {
+        Log.d(DEBUG_TAG, "Unable to disable Nagle's algorithm: " + e);
+      }
+    }
+
+    /**
+     * queues frame & asks event loop to write it (may be called from any thread)
+     *
+     * @param frame frame
+     * @return false if frame was rejected
+     */
+    public boolean enqueue(Frame frame) {
+      return enqueue(frame, true);
+    }
+
+    /**
+     * queues frame & asks event loop to write it
+     *
+     * @param frame frame
+     * @param wait  false to reject frame instead of waiting for space
+     * @return false if frame was rejected
+     */
+    public boolean enqueue(Frame frame, boolean wait) {
+      try {
+        // event loop must never wait for itself to drain the queue
+        boolean queued = !wait || Thread.currentThread() == mThread
+            ? mWriteQueue.offerWithoutWaiting(frame)
+            : mWriteQueue.offer(frame);
+        if (!queued) {
+          mMetrics.increment(Metrics.Counter.FRAMES_REJECTED, 1);
+          Log.d(DEBUG_TAG, "Queue is full, message rejected");
+          return false;
+        }
+        if (mMetrics != Metrics.NONE) {
+          mMetrics.record(Metrics.Histogram.QUEUE_DEPTH, mWriteQueue.size());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      scheduleWrite();
+      return true;
+    }
+
+    /**
+     * queues frame ahead of regular frames;
+     * when newFraming is set, frames encoded after this one use it
+     *
+     * @param frame      frame
+     * @param newFraming framing for following frames or null
+     */
+    public void sendControl(Frame frame, Framing newFraming) {
+      mControl.add(frame);
+      if (newFraming != null) {
+        mControl.add(newFraming);
+      }
+      scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+      if (mWriteScheduled.compareAndSet(false, true)) {
+        execute(new Runnable() {
+          @Override
+          public void run() {
+            if (mKey.isValid()) {
+              mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+          }
+        });
+      }
+    }
+
+    /**
+     * writes buffered bytes, refilling the buffer with queued frames
+     *
+     * @throws IOException if channel is broken
+     */
+    public void write() throws IOException {
+      while (true) {
+        if (!mOut.hasRemaining() && !fill()) {
+          break;
+        }
+        mMetrics.increment(Metrics.Counter.BYTES_OUT, mChannel.write(mOut));
+        if (mOut.hasRemaining()) {
+          // socket buffer is full, wait for next OP_WRITE
+          return;
+        }
+        written();
+      }
+      mKey.interestOps(SelectionKey.OP_READ);
+      mWriteScheduled.set(false);
+      // a frame may have been queued after the queue was found empty,
+      // frames waiting for credit are written once it comes
+      if ((!mControl.isEmpty() || mWriteQueue.isReady())
+          && mWriteScheduled.compareAndSet(false, true)) {
+        mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * encodes as many control & queued frames as fit into output buffer;
+     * frames are encoded only now, so a framing switch applies to everything queued after it;
+     * frames on channels other than 0 come as chunks that always fit
+     *
+     * @return false if there was nothing to encode
+     */
+    private boolean fill() {
+      mOutBuffer.clear();
+      mOut = mOutBuffer;
+      byte[] out = mOutBuffer.array();
+      int position = 0;
+      Object control;
+      while ((control = mControl.peek()) != null) {
+        if (control instanceof Framing) {
+          mFraming = (Framing) control;
+        } else {
+          Frame frame = (Frame) control;
+          if (mFraming.encodedLength(frame) > out.length - position) {
+            break;
+          }
+          position = mFraming.encode(frame, out, position);
+        }
+        mControl.poll();
+      }
+      while (mControl.isEmpty()) {
+        if (mPending == null) {
+          mPending = mWriteQueue.poll();
+          if (mPending == null) {
+            break;
+          }
+        }
+        int length = mFraming.encodedLength(mPending);
+        if (length > out.length - position) {
+          if (position == 0) {
+            // too big for the buffer, write it from its own array
+            byte[] large = new byte[length];
+            mFraming.encode(mPending, large, 0);
+            mOut = ByteBuffer.wrap(large);
+            mWriting.add(mPending);
+            mPending = null;
+            return true;
+          }
+          break;
+        }
+        position = mFraming.encode(mPending, out, position);
+        mWriting.add(mPending);
+        mPending = null;
+      }
+      mOutBuffer.limit(position);
+      return position > 0;
+    }
+
+    /**
+     * reports frames of the buffer just written as sent, like blocking transport does after a flush;
+     * a chunked frame is reported with its last chunk,
+     * frames still queued when channel closes are never reported
+     */
+    private void written() {
+      for (int i = 0; i < mWriting.size(); i++) {
+        Frame sent = mWriteQueue.sent(mWriting.get(i));
+        if (sent != null) {
+          mCallback.onFrame(mId, sent, true);
+        }
+      }
+      mWriting.clear();
+    }
+
+    public void read() throws IOException {
+      int count = mChannel.read(mReader.writableBuffer());
+      if (count < 0) {
+        Log.d(DEBUG_TAG, "Null message");
+        close();
+        return;
+      }
+      mMetrics.increment(Metrics.Counter.BYTES_IN, count);
+      Frame frame;
+      // handling a frame can close the peer, e.g. a duplicate closed on its hello
+      while (mChannel.isOpen() && (frame = mReader.next()) != null) {
+        if (frame.getType() == Frame.TYPE_HELLO) {
+          onHello(frame);
+        } else {
+          received(frame);
+        }
+      }
+    }
+
+    /**
+     * passes frame on, putting chunks together; bytes on channels other than 0
+     * are granted back to peer once they are handled
+     *
+     * @throws ProtocolException if chunks or credit are not valid
+     */
+    private void received(Frame frame) throws ProtocolException {
+      if (frame.getType() == Frame.TYPE_CREDIT) {
+        mWriteQueue.credit(Chunks.getCreditChannel(frame), Chunks.getCreditBytes(frame));
+        scheduleWrite();
+        return;
+      }
+      Frame whole = frame.getType() == Frame.TYPE_CHUNK ? mChunks.add(frame) : frame;
+      if (whole != null) {
+        mCallback.onFrame(mId, whole, false);
+      }
+      if (frame.getChannel() != 0 && mWriteQueue.grant(frame.getChannel(), frame.getLength())) {
+        scheduleWrite();
+      }
+    }
+
+    private void onHello(Frame hello) {
+      if (mHandshaking.remove(this)) {
+        // server's answer: our hello is already written, nothing else was queued yet
+        mReader.setFraming(Handshake.createFraming(hello, mConfig));
+        mFraming = Handshake.createFraming(hello, mConfig);
+        addPeer(this, true);
+      } else {
+        Frame answer = Handshake.answer(hello, mConfig);
+        // client waits for the answer before sending anything else
+        mReader.setFraming(Handshake.createFraming(answer, mConfig));
+        sendControl(answer, Handshake.createFraming(answer, mConfig));
+      }
+    }
+
+    public void close() {
+      if (mKey != null) {
+        mKey.cancel();
+      }
+      closeQuietly(mChannel);
+      // senders waiting for space in the queue give up
+      mWriteQueue.close();
+      if (mHandshaking.remove(this)) {
+        Socket socket = mChannel.socket();
+        mCallback.onConnectFailed(socket.getInetAddress(), socket.getPort());
+      }
+      // a duplicate that was never added must not remove the live peer
+      if (mPeers.remove(mId, this)) {
+        mCallback.onPeerDisconnected(mId);
+      }
+    }
+  }
+}
@@ -0,0 +1,435 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * outgoing frames for one peer, one bounded lane per logical channel;
+ * frames are taken from the lane with the highest priority first and lanes of the same priority
+ * take turns, so a full bulk channel neither delays nor blocks control messages
+ * <p/>
+ * frames on channels other than 0 are taken in chunks of at most {@link #CHUNK_SIZE} bytes
+ * (see {@link Chunks}) and only as far as peer's credit for the channel goes:
+ * peer starts with {@link #INITIAL_CREDIT} bytes for every channel and grants more as it consumes them,
+ * so a control frame waits for one chunk at most and bulk data never piles up in socket buffers
+ * <p/>
+ * what happens when a lane is full depends on {@link Connection.OverflowPolicy}
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class OutboundQueue {
+  /**
+   * largest payload of a chunk, header included
+   */
+  static final int CHUNK_SIZE = 8192;
+  /**
+   * bytes a peer may send on a channel before it gets any credit
+   */
+  static final int INITIAL_CREDIT = 256 * 1024;
+  /**
+   * consumed bytes are granted back in batches of at least this many
+   */
+  private static final int GRANT_THRESHOLD = CHUNK_SIZE;
+
+  private final Channels mChannels;
+  private final Connection.OverflowPolicy mPolicy;
+  private final ReentrantLock mLock = new ReentrantLock();
+  private final Condition mReady = mLock.newCondition();
+  private final Condition mNotFull = mLock.newCondition();
+  /**
+   * lanes sorted by priority, highest first
+   */
+  private final List<Lane> mLanes = new ArrayList<Lane>();
+  /**
+   * last chunks taken but not reported as sent, with frames they finish
+   */
+  private final Map<Frame, Frame> mLastChunks = new IdentityHashMap<Frame, Frame>();
+  private int mCount;
+  private boolean mClosed;
+
+  public OutboundQueue(Channels channels, Connection.OverflowPolicy policy) {
+    mChannels = channels;
+    mPolicy = policy;
+  }
+
+  /**
+   * adds frame to its channel's lane
+   *
+   * @param frame frame
+   * @return false if frame was rejected (lane is full and policy is FAIL_FAST)
+   * or queue is closed, also while waiting for space
+   * @throws InterruptedException if interrupted while waiting for space (BLOCK policy)
+   */
+  public boolean offer(Frame frame) throws InterruptedException {
+    mLock.lockInterruptibly();
+    try {
+      if (mClosed) {
+        return false;
+      }
+      Lane lane = lane(frame.getChannel());
+      switch (mPolicy) {
+        case BLOCK:
+          while (lane.isFull()) {
+            mNotFull.await();
+            if (mClosed) {
+              return false;
+            }
+          }
+          break;
+        case DROP_OLDEST:
+          dropIfFull(lane);
+          break;
+        default:
+          if (lane.isFull()) {
+            return false;
+          }
+          break;
+      }
+      add(lane, frame);
+      return true;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * adds frame like {@link #offer(Frame)}, but rejects it
+   * instead of waiting when policy is BLOCK
+   *
+   * @param frame frame
+   * @return false if frame was rejected or queue is closed
+   */
+  public boolean offerWithoutWaiting(Frame frame) {
+    mLock.lock();
+    try {
+      if (mClosed) {
+        return false;
+      }
+      Lane lane = lane(frame.getChannel());
+      if (mPolicy == Connection.OverflowPolicy.DROP_OLDEST) {
+        dropIfFull(lane);
+      } else if (lane.isFull()) {
+        return false;
+      }
+      add(lane, frame);
+      return true;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * waits for next frame to write: a queued frame, a chunk of one or a credit frame
+   *
+   * @return frame
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Frame take() throws InterruptedException {
+    mLock.lockInterruptibly();
+    try {
+      Frame frame;
+      while ((frame = next()) == null) {
+        mReady.await();
+      }
+      return frame;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * returns next frame to write like {@link #take()} without waiting
+   *
+   * @return frame or null if nothing can be written now
+   */
+  public Frame poll() {
+    mLock.lock();
+    try {
+      return next();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * returns frame that is completely written once given frame returned by {@link #take()}
+   * or {@link #poll()} is written
+   *
+   * @param written written frame
+   * @return the frame itself, chunked frame for its last chunk, null for other chunks & credit frames
+   */
+  public Frame sent(Frame written) {
+    if (written.getType() == Frame.TYPE_CREDIT) {
+      return null;
+    }
+    if (written.getType() != Frame.TYPE_CHUNK) {
+      return written;
+    }
+    mLock.lock();
+    try {
+      return mLastChunks.remove(written);
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * adds credit peer granted for a channel
+   *
+   * @param channel channel id
+   * @param bytes   number of bytes
+   */
+  public void credit(int channel, int bytes) {
+    mLock.lock();
+    try {
+      Lane lane = lane(channel);
+      lane.mCredit += bytes;
+      mReady.signal();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * records bytes of peer's frame on a channel as consumed, they are granted back to peer
+   * with a credit frame once there are enough of them
+   *
+   * @param channel channel id
+   * @param bytes   payload length of the frame
+   * @return true if a credit frame is ready to be written
+   */
+  public boolean grant(int channel, int bytes) {
+    mLock.lock();
+    try {
+      if (mClosed) {
+        return false;
+      }
+      Lane lane = lane(channel);
+      lane.mConsumed += bytes;
+      if (lane.mConsumed < GRANT_THRESHOLD) {
+        return false;
+      }
+      mReady.signal();
+      return true;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * checks if {@link #poll()} would return a frame
+   *
+   * @return false if queue is empty or all its frames wait for credit
+   */
+  public boolean isReady() {
+    mLock.lock();
+    try {
+      for (Lane lane : mLanes) {
+        if (lane.mConsumed >= GRANT_THRESHOLD || lane.canSend()) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * returns number of queued frames, a frame is queued until its last chunk is taken
+   *
+   * @return queue depth
+   */
+  public int size() {
+    mLock.lock();
+    try {
+      return mCount;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * returns number of frames queued on one channel
+   *
+   * @param channel channel id
+   * @return lane depth
+   */
+  public int size(int channel) {
+    mLock.lock();
+    try {
+      for (Lane lane : mLanes) {
+        if (lane.mChannel == channel) {
+          return lane.mItems.size() + (lane.mChunked != null ? 1 : 0);
+        }
+      }
+      return 0;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * drops queued frames & rejects new ones; senders waiting for space give up
+   */
+  public void close() {
+    mLock.lock();
+    try {
+      mClosed = true;
+      for (Lane lane : mLanes) {
+        lane.mItems.clear();
+        lane.mChunked = null;
+      }
+      mLastChunks.clear();
+      mCount = 0;
+      mNotFull.signalAll();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  private void add(Lane lane, Frame frame) {
+    lane.mItems.addLast(frame);
+    mCount++;
+    mReady.signal();
+  }
+
+  private void dropIfFull(Lane lane) {
+    while (lane.isFull()) {
+      lane.mItems.removeFirst();
+      mCount--;
+    }
+  }
+
+  /**
+   * takes credit frame if one is due, otherwise next frame or chunk of the first lane that can send;
+   * that lane then goes behind other lanes of its priority
+   */
+  private Frame next() {
+    for (Lane lane : mLanes) {
+      if (lane.mConsumed >= GRANT_THRESHOLD) {
+        Frame credit = Chunks.credit(lane.mChannel, lane.mConsumed);
+        lane.mConsumed = 0;
+        return credit;
+      }
+    }
+    for (int i = 0; i < mLanes.size(); i++) {
+      Lane lane = mLanes.get(i);
+      if (lane.canSend()) {
+        Frame frame = lane.next();
+        int last = i;
+        while (last + 1 < mLanes.size() && mLanes.get(last + 1).mPriority == lane.mPriority) {
+          last++;
+        }
+        mLanes.remove(i);
+        mLanes.add(last, lane);
+        return frame;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * finds lane of channel, creating it when channel is used for the first time
+   */
+  private Lane lane(int channel) {
+    for (Lane lane : mLanes) {
+      if (lane.mChannel == channel) {
+        return lane;
+      }
+    }
+    Channel settings = mChannels.get(channel);
+    Lane lane = new Lane(channel, settings.getPriority(), settings.getWindow());
+    int i = 0;
+    while (i < mLanes.size() && mLanes.get(i).mPriority >= lane.mPriority) {
+      i++;
+    }
+    mLanes.add(i, lane);
+    return lane;
+  }
+
+  private class Lane {
+    private final int mChannel;
+    private final int mPriority;
+    private final int mCapacity;
+    private final ArrayDeque<Frame> mItems = new ArrayDeque<Frame>();
+    /**
+     * frame being taken in chunks & number of its payload bytes already taken
+     */
+    private Frame mChunked;
+    private int mOffset;
+    /**
+     * bytes peer allows to send on this channel
+     */
+    private int mCredit = INITIAL_CREDIT;
+    /**
+     * bytes peer sent on this channel that were consumed but not granted back yet
+     */
+    private int mConsumed;
+
+    public Lane(int channel, int priority, int capacity) {
+      mChannel = channel;
+      mPriority = priority;
+      mCapacity = capacity;
+    }
+
+    public boolean isFull() {
+      return mItems.size() >= mCapacity;
+    }
+
+    /**
+     * channel 0 is neither chunked nor limited by credit,
+     * a small frame on another channel goes whole when credit covers it
+     */
+    public boolean canSend() {
+      Frame head = mChunked != null ? mChunked : mItems.peekFirst();
+      if (head == null) {
+        return false;
+      }
+      if (mChannel == 0 || mChunked == null && isWhole(head)) {
+        return true;
+      }
+      return mCredit > (mOffset == 0 ? Chunks.HEADER_SIZE : 0);
+    }
+
+    private boolean isWhole(Frame frame) {
+      return frame.getLength() <= CHUNK_SIZE && frame.getLength() <= mCredit;
+    }
+
+    /**
+     * takes next frame or chunk, call only when {@link #canSend()} is true
+     */
+    public Frame next() {
+      if (mChunked == null) {
+        Frame head = mItems.removeFirst();
+        mNotFull.signalAll();
+        if (mChannel == 0 || isWhole(head)) {
+          if (mChannel != 0) {
+            mCredit -= head.getLength();
+          }
+          mCount--;
+          return head;
+        }
+        mChunked = head;
+      }
+      int header = mOffset == 0 ? Chunks.HEADER_SIZE : 0;
+      int length = Math.min(mChunked.getLength() - mOffset, Math.min(CHUNK_SIZE, mCredit) - header);
+      Frame chunk = Chunks.chunk(mChunked, mOffset, length);
+      mCredit -= chunk.getLength();
+      mOffset += length;
+      if (mOffset == mChunked.getLength()) {
+        mLastChunks.put(chunk, mChunked);
+        mChunked = null;
+        mOffset = 0;
+        mCount--;
+      }
+      return chunk;
+    }
+  }
+}
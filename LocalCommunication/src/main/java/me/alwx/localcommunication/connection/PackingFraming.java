@@ -0,0 +1,95 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * binary framing that makes message payloads smaller on the way out & restores them on the way in;
+ * packing state is shared by consecutive frames, so every instance serves one direction
+ * of one connection and sees frames in wire order
+ * <p/>
+ * transports ask for {@link #encodedLength(Frame)} before {@link #encode(Frame, byte[], int)},
+ * sometimes more than once for the same frame, so the packed frame is kept until it is encoded
+ *
+ * @author alwx
+ * @version 1.0
+ */
+abstract class PackingFraming extends BinaryFraming {
+  /**
+   * flag of packed payload, above the bits of {@link MessageCodecs#FLAGS_MASK}
+   */
+  public static final int FLAG_PACKED = 0x80;
+
+  private Frame mSource;
+  private Frame mPacked;
+
+  @Override
+  public int encodedLength(Frame frame) {
+    return super.encodedLength(packed(frame));
+  }
+
+  @Override
+  public int encode(Frame frame, byte[] dst, int offset) {
+    Frame packed = packed(frame);
+    mSource = null;
+    mPacked = null;
+    return super.encode(packed, dst, offset);
+  }
+
+  @Override
+  public Frame decode(ByteBuffer in) throws ProtocolException {
+    Frame frame = super.decode(in);
+    if (frame == null || (frame.getFlags() & FLAG_PACKED) == 0) {
+      return frame;
+    }
+    byte[] data = unpack(frame.getData(), frame.getFlags());
+    return new Frame(frame.getType(), (byte) (frame.getFlags() & ~(FLAG_PACKED | extraFlags())),
+        data, frame.getChannel());
+  }
+
+  private Frame packed(Frame frame) {
+    if (frame.getType() != Frame.TYPE_MESSAGE) {
+      return frame;
+    }
+    if (frame != mSource) {
+      mSource = frame;
+      byte[] data = pack(frame.getData(), frame.getFlags());
+      mPacked = data == null ? frame : new Frame(frame.getType(),
+          (byte) (frame.getFlags() | FLAG_PACKED | lastFlags()), data, frame.getChannel());
+    }
+    return mPacked;
+  }
+
+  /**
+   * packs message payload
+   *
+   * @param data  payload
+   * @param flags frame flags
+   * @return packed payload or null to send frame as it is
+   */
+  protected abstract byte[] pack(byte[] data, byte flags);
+
+  /**
+   * returns flags to set on frame packed last, besides {@link #FLAG_PACKED}
+   */
+  protected int lastFlags() {
+    return 0;
+  }
+
+  /**
+   * returns all flags {@link #lastFlags()} may set, they are cleared after unpacking
+   */
+  protected int extraFlags() {
+    return 0;
+  }
+
+  /**
+   * restores packed payload
+   *
+   * @param data  packed payload
+   * @param flags frame flags
+   * @return original payload
+   * @throws ProtocolException if payload can't be restored, connection is broken then
+   */
+  protected abstract byte[] unpack(byte[] data, byte flags) throws ProtocolException;
+}
@@ -0,0 +1,102 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * what connection stack needs from the system it runs on: logging, timers & a main thread
+ * <p/>
+ * {@link me.alwx.localcommunication.connection.AndroidPlatform} is used on devices and
+ * {@link me.alwx.localcommunication.connection.JvmPlatform} everywhere else, so connections,
+ * framing, codecs & dispatchers run on a plain JVM too, e.g. in tests and benchmarks;
+ * local addresses for discovery come from an {@link me.alwx.localcommunication.connection.AddressProvider}
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public abstract class Platform {
+  private static volatile Platform sPlatform;
+
+  /**
+   * returns platform in use, chosen by virtual machine unless one was set
+   *
+   * @return platform
+   */
+  public static Platform get() {
+    Platform platform = sPlatform;
+    if (platform == null) {
+      synchronized (Platform.class) {
+        if (sPlatform == null) {
+          sPlatform = "Dalvik".equals(System.getProperty("java.vm.name"))
+              ? new AndroidPlatform() : new JvmPlatform();
+        }
+        platform = sPlatform;
+      }
+    }
+    return platform;
+  }
+
+  /**
+   * sets platform; call it before the first connection is created,
+   * whether verbose tracing is on is decided only once
+   *
+   * @param platform platform
+   */
+  public static void set(Platform platform) {
+    if (platform == null) {
+      throw new IllegalArgumentException("Platform can't be null");
+    }
+    sPlatform = platform;
+  }
+
+  public abstract Logger getLogger();
+
+  /**
+   * returns executor that runs tasks one at a time on the thread UI listeners expect,
+   * e.g. {@link me.alwx.localcommunication.connection.ConnectionWrapper.OnCreatedListener}
+   *
+   * @return main thread executor
+   */
+  public abstract Executor getMainExecutor();
+
+  /**
+   * creates timer for heartbeats, retransmissions, call timeouts & other delayed work;
+   * its thread must not keep the process alive
+   *
+   * @param name thread name
+   * @return scheduler, owner shuts it down
+   */
+  public ScheduledExecutorService newScheduler(final String name) {
+    return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * log output, levels are the ones of android.util.Log
+   */
+  public interface Logger {
+    int VERBOSE = 2;
+    int DEBUG = 3;
+    int INFO = 4;
+    int WARN = 5;
+    int ERROR = 6;
+
+    boolean isLoggable(String tag, int level);
+
+    /**
+     * @param level     level
+     * @param tag       tag, usually class name
+     * @param message   message
+     * @param throwable exception or null
+     */
+    void log(int level, String tag, String message, Throwable throwable);
+  }
+}
@@ -0,0 +1,527 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * exactly-once, ordered message delivery on top of reconnecting connections
+ * (see {@link ConnectionConfig#setReliable(boolean)})
+ * <p/>
+ * a client opens a session for every server it connects to & announces it with a
+ * {@link Frame#TYPE_SESSION} frame on every connection; server finds the session by its id,
+ * so it survives the client's new address & port, and answers with its own state.
+ * messages are numbered per direction, kept until peer acknowledges them cumulatively
+ * and sent again after a reconnect or when no acknowledgement comes in time;
+ * receiver passes them on in order, holding back messages that overtook earlier ones & dropping duplicates
+ * <p/>
+ * memory is bounded: at most {@link ConnectionConfig#getReliableWindow()} unacknowledged & as many
+ * held back messages per session, sessions of clients that don't come back are dropped after {@link #LINGER}
+ * <p/>
+ * transport is never called while a session is locked: a sender waiting for space in a queue
+ * must not stop the thread that reads acknowledgements & empties it
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class Reliability {
+  private static final String DEBUG_TAG = Reliability.class.getName();
+
+  /**
+   * how long a server keeps session of a client that has disconnected
+   */
+  static final long LINGER = 120000;
+  private static final int MAX_SESSIONS = 256;
+  private static final long ACK_DELAY = 40;
+  private static final int FLAG_FRESH = 1;
+
+  private final Connection mConnection;
+  private final Transport mTransport;
+  private final ConnectionConfig mConfig;
+  private final Random mRandom = new Random();
+  private final Map<Long, Session> mSessions = new ConcurrentHashMap<Long, Session>();
+  /**
+   * sessions by peer id: servers' sessions stay here while server is away, clients' only while connected
+   */
+  private final Map<String, Session> mPeers = new ConcurrentHashMap<String, Session>();
+  private ScheduledExecutorService mExecutor;
+  private boolean mClosed;
+
+  public Reliability(Connection connection, Transport transport, ConnectionConfig config) {
+    mConnection = connection;
+    mTransport = transport;
+    mConfig = config;
+  }
+
+  /**
+   * opens session with server, if there is none yet
+   *
+   * @param peer server's peer id
+   */
+  public synchronized void open(String peer) {
+    if (mClosed || mPeers.containsKey(peer)) {
+      return;
+    }
+    Session session = new Session(mRandom.nextLong(), true);
+    session.mPeer = peer;
+    mSessions.put(session.mId, session);
+    mPeers.put(peer, session);
+    startTimer();
+  }
+
+  /**
+   * returns true when messages to peer go through a session
+   *
+   * @param peer peer id
+   * @return true if peer has a session
+   */
+  public boolean isReliable(String peer) {
+    return !mPeers.isEmpty() && mPeers.containsKey(peer);
+  }
+
+  /**
+   * sends message through peer's session
+   *
+   * @param peer  peer id
+   * @param frame message frame
+   * @return false if peer has no session or its window is full
+   */
+  public boolean send(String peer, Frame frame) {
+    Session session = mPeers.get(peer);
+    return session != null && send(session, frame, true);
+  }
+
+  /**
+   * sends message through all sessions, including ones of clients that are away
+   *
+   * @param frame message frame
+   */
+  public void sendToAll(Frame frame) {
+    for (Session session : mSessions.values()) {
+      // one slow session must not hold up the others
+      send(session, frame, false);
+    }
+  }
+
+  public void onPeerConnected(String peer, boolean outgoing) {
+    Session session = outgoing ? mPeers.get(peer) : null;
+    if (session != null) {
+      Frame frame;
+      synchronized (session) {
+        session.mLinked = false;
+        frame = sessionFrame(session);
+      }
+      mTransport.send(peer, frame);
+    }
+  }
+
+  public void onPeerDisconnected(String peer) {
+    Session session = mPeers.get(peer);
+    if (session == null) {
+      return;
+    }
+    synchronized (session) {
+      if (!peer.equals(session.mPeer)) {
+        return;
+      }
+      session.mLinked = false;
+      if (!session.mClient) {
+        mPeers.remove(peer);
+        session.mPeer = null;
+        session.mUnboundAt = System.currentTimeMillis();
+      }
+      session.notifyAll();
+    }
+  }
+
+  /**
+   * handles reliability frames
+   *
+   * @param peer  peer id
+   * @param frame {@link Frame#TYPE_SESSION}, {@link Frame#TYPE_RELIABLE} or {@link Frame#TYPE_ACK} frame
+   */
+  public void onFrame(String peer, Frame frame) {
+    byte[] data = frame.getData();
+    if (frame.getType() == Frame.TYPE_SESSION) {
+      if (data.length >= 24) {
+        onSession(peer, Transfers.getLong(data, 0), Transfers.getLong(data, 8),
+            Transfers.getLong(data, 16), (frame.getFlags() & FLAG_FRESH) != 0);
+      }
+      return;
+    }
+    Session session = mPeers.get(peer);
+    if (session == null || data.length < 8) {
+      return;
+    }
+    if (frame.getType() == Frame.TYPE_ACK) {
+      synchronized (session) {
+        if (peer.equals(session.mPeer)) {
+          acknowledge(session, Transfers.getLong(data, 0));
+        }
+      }
+    } else {
+      onReliable(session, peer, frame);
+    }
+  }
+
+  public synchronized void close() {
+    mClosed = true;
+    if (mExecutor != null) {
+      mExecutor.shutdownNow();
+    }
+    for (Session session : mSessions.values()) {
+      synchronized (session) {
+        session.mLinked = false;
+        session.mUnacked.clear();
+        session.mHeld.clear();
+        session.notifyAll();
+      }
+    }
+    mSessions.clear();
+    mPeers.clear();
+  }
+
+  private boolean send(Session session, Frame frame, boolean wait) {
+    Pending pending;
+    String peer;
+    synchronized (session) {
+      int window = mConfig.getReliableWindow();
+      // waiting is bounded, and an event loop never waits for acknowledgements it has to read itself
+      if (wait && session.mUnacked.size() >= window && session.mLinked
+          && mConfig.getOverflowPolicy() == Connection.OverflowPolicy.BLOCK
+          && mConfig.getTransportMode() == Connection.TransportMode.BLOCKING) {
+        long deadline = System.currentTimeMillis() + mConfig.getRetransmitTimeout();
+        try {
+          long left;
+          while (session.mUnacked.size() >= window && session.mLinked
+              && (left = deadline - System.currentTimeMillis()) > 0) {
+            session.wait(left);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      if (session.mUnacked.size() >= window || mClosed) {
+        Log.d(DEBUG_TAG, "Reliable window of " + session.mPeer + " is full, message rejected");
+        return false;
+      }
+      long seq = session.mNextSeq++;
+      byte[] data = frame.getData();
+      byte[] payload = new byte[8 + data.length];
+      Transfers.putLong(payload, 0, seq);
+      System.arraycopy(data, 0, payload, 8, data.length);
+      pending = new Pending(seq,
+          new Frame(Frame.TYPE_RELIABLE, frame.getFlags(), payload, frame.getChannel()), frame);
+      session.mUnacked.add(pending);
+      if (!session.mLinked) {
+        return true;
+      }
+      pending.mSentAt = System.currentTimeMillis();
+      peer = session.mPeer;
+    }
+    // a frame the queue rejects stays unacknowledged & goes again on timeout
+    mTransport.send(peer, pending.mFrame);
+    return true;
+  }
+
+  private void onSession(String peer, long id, long expected, long base, boolean fresh) {
+    Session session = mPeers.get(peer);
+    if (session != null && session.mClient) {
+      if (session.mId != id) {
+        return;
+      }
+      List<Frame> frames = new ArrayList<Frame>();
+      synchronized (session) {
+        synchronize(session, expected, base, fresh);
+        session.mLinked = true;
+        resend(session, frames);
+      }
+      send(peer, frames);
+      return;
+    }
+    session = server(id);
+    if (session == null) {
+      return;
+    }
+    List<Frame> frames = new ArrayList<Frame>();
+    String old;
+    synchronized (session) {
+      old = session.mPeer;
+      if (old != null && !old.equals(peer)) {
+        mPeers.remove(old);
+      }
+      session.mPeer = peer;
+      mPeers.put(peer, session);
+      frames.add(sessionFrame(session));
+      synchronize(session, expected, base, fresh);
+      session.mLinked = true;
+      resend(session, frames);
+    }
+    if (old != null && !old.equals(peer)) {
+      // client is back on a new connection, anything still coming on the old one is stale
+      mTransport.disconnect(old);
+    }
+    send(peer, frames);
+  }
+
+  /**
+   * finds or creates session of a client
+   */
+  private synchronized Session server(long id) {
+    if (mClosed) {
+      return null;
+    }
+    Session session = mSessions.get(id);
+    if (session == null) {
+      if (mSessions.size() >= MAX_SESSIONS) {
+        evictOldest();
+      }
+      session = new Session(id, false);
+      mSessions.put(id, session);
+      startTimer();
+    }
+    return session;
+  }
+
+  /**
+   * takes peer's state: a peer that has just created its session starts numbering at its base,
+   * everything below what peer expects has reached it
+   */
+  private void synchronize(Session session, long expected, long base, boolean fresh) {
+    if (fresh || !session.mSynced) {
+      session.mExpected = base;
+      session.mHeld.clear();
+    }
+    session.mSynced = true;
+    acknowledge(session, expected);
+  }
+
+  private void onReliable(Session session, String peer, Frame frame) {
+    byte[] data = frame.getData();
+    long seq = Transfers.getLong(data, 0);
+    Frame ack = null;
+    synchronized (session) {
+      if (!session.mLinked || !peer.equals(session.mPeer)) {
+        return;
+      }
+      int window = mConfig.getReliableWindow();
+      if (seq < session.mExpected || session.mHeld.containsKey(seq)) {
+        // peer may have missed our acknowledgement
+        scheduleAck(session);
+        return;
+      }
+      if (seq - session.mExpected >= window) {
+        // peer can't have sent it yet, it comes from an older session
+        return;
+      }
+      session.mHeld.put(seq, frame);
+      Frame next;
+      while ((next = session.mHeld.remove(session.mExpected)) != null) {
+        session.mExpected++;
+        byte[] nextData = next.getData();
+        byte[] payload = new byte[nextData.length - 8];
+        System.arraycopy(nextData, 8, payload, 0, payload.length);
+        // delivered while holding the session, so messages can't overtake each other across reconnects
+        mConnection.deliver(peer,
+            new Frame(Frame.TYPE_MESSAGE, next.getFlags(), payload, next.getChannel()), false);
+        session.mToAck++;
+      }
+      if (session.mToAck >= Math.max(1, window / 4)) {
+        ack = ackFrame(session);
+      } else if (session.mToAck > 0 || !session.mHeld.isEmpty()) {
+        scheduleAck(session);
+      }
+    }
+    if (ack != null) {
+      mTransport.send(peer, ack);
+    }
+  }
+
+  /**
+   * drops messages peer has confirmed; they are passed to local listeners only now
+   */
+  private void acknowledge(Session session, long expected) {
+    Pending pending;
+    while ((pending = session.mUnacked.peek()) != null && pending.mSeq < expected) {
+      session.mUnacked.poll();
+      mConnection.deliver(session.mPeer, pending.mOriginal, true);
+    }
+    session.notifyAll();
+  }
+
+  private void resend(Session session, List<Frame> frames) {
+    long now = System.currentTimeMillis();
+    for (Pending pending : session.mUnacked) {
+      pending.mSentAt = now;
+      frames.add(pending.mFrame);
+    }
+  }
+
+  private void send(String peer, List<Frame> frames) {
+    for (Frame frame : frames) {
+      mTransport.send(peer, frame);
+    }
+  }
+
+  private Frame ackFrame(Session session) {
+    session.mToAck = 0;
+    byte[] data = new byte[8];
+    Transfers.putLong(data, 0, session.mExpected);
+    return new Frame(Frame.TYPE_ACK, (byte) 0, data);
+  }
+
+  private void scheduleAck(final Session session) {
+    if (session.mAckScheduled) {
+      return;
+    }
+    session.mAckScheduled = true;
+    schedule(new Runnable() {
+      @Override
+      public void run() {
+        Frame ack;
+        String peer;
+        synchronized (session) {
+          session.mAckScheduled = false;
+          if (!session.mLinked) {
+            return;
+          }
+          ack = ackFrame(session);
+          peer = session.mPeer;
+        }
+        mTransport.send(peer, ack);
+      }
+    }, ACK_DELAY);
+  }
+
+  private Frame sessionFrame(Session session) {
+    byte[] data = new byte[24];
+    Transfers.putLong(data, 0, session.mId);
+    Transfers.putLong(data, 8, session.mExpected);
+    Pending oldest = session.mUnacked.peek();
+    Transfers.putLong(data, 16, oldest != null ? oldest.mSeq : session.mNextSeq);
+    return new Frame(Frame.TYPE_SESSION, (byte) (session.mSynced ? 0 : FLAG_FRESH), data);
+  }
+
+  /**
+   * sends unacknowledged messages again when the oldest one waits too long,
+   * drops sessions of clients that haven't come back
+   */
+  private void tick() {
+    long now = System.currentTimeMillis();
+    Iterator<Session> iterator = mSessions.values().iterator();
+    while (iterator.hasNext()) {
+      Session session = iterator.next();
+      List<Frame> frames = null;
+      String peer = null;
+      synchronized (session) {
+        Pending oldest = session.mUnacked.peek();
+        if (session.mLinked && oldest != null
+            && now - oldest.mSentAt >= mConfig.getRetransmitTimeout()) {
+          Log.d(DEBUG_TAG, "No acknowledgement from " + session.mPeer + ", sending "
+              + session.mUnacked.size() + " messages again");
+          frames = new ArrayList<Frame>();
+          resend(session, frames);
+          peer = session.mPeer;
+        } else if (!session.mClient && session.mPeer == null && now - session.mUnboundAt > LINGER) {
+          Log.d(DEBUG_TAG, "Dropping session " + Long.toHexString(session.mId)
+              + " with " + session.mUnacked.size() + " unacknowledged messages");
+          iterator.remove();
+        }
+      }
+      if (frames != null) {
+        send(peer, frames);
+      }
+    }
+  }
+
+  private synchronized void evictOldest() {
+    Session oldest = null;
+    for (Session session : mSessions.values()) {
+      if (session.mPeer == null && (oldest == null || session.mUnboundAt < oldest.mUnboundAt)) {
+        oldest = session;
+      }
+    }
+    if (oldest != null) {
+      mSessions.remove(oldest.mId);
+    }
+  }
+
+  private synchronized void startTimer() {
+    if (mExecutor != null || mClosed) {
+      return;
+    }
+    long period = Math.max(50, mConfig.getRetransmitTimeout() / 2);
+    executor().scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        tick();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void schedule(Runnable task, long delay) {
+    if (!mClosed) {
+      executor().schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private ScheduledExecutorService executor() {
+    if (mExecutor == null) {
+      mExecutor = Platform.get().newScheduler("Reliability");
+    }
+    return mExecutor;
+  }
+
+  private static class Session {
+    private final long mId;
+    /**
+     * true for sessions this side opened with a server
+     */
+    private final boolean mClient;
+    private final ArrayDeque<Pending> mUnacked = new ArrayDeque<Pending>();
+    /**
+     * messages that overtook ones with lower numbers
+     */
+    private final TreeMap<Long, Frame> mHeld = new TreeMap<Long, Frame>();
+    private String mPeer;
+    /**
+     * true once session frames have been exchanged on current connection
+     */
+    private boolean mLinked;
+    /**
+     * true once peer's state has been taken at least once
+     */
+    private boolean mSynced;
+    private long mNextSeq = 1;
+    private long mExpected = 1;
+    private int mToAck;
+    private boolean mAckScheduled;
+    private long mUnboundAt = System.currentTimeMillis();
+
+    public Session(long id, boolean client) {
+      mId = id;
+      mClient = client;
+    }
+  }
+
+  private static class Pending {
+    private final long mSeq;
+    private final Frame mFrame;
+    private final Frame mOriginal;
+    private long mSentAt;
+
+    public Pending(long seq, Frame frame, Frame original) {
+      mSeq = seq;
+      mFrame = frame;
+      mOriginal = original;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package me.alwx.localcommunication.connection;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * answers requests with handlers registered for their type;
+ * request is decoded & answer is encoded with the codec the caller used
+ * <p/>
+ * set it with {@link me.alwx.localcommunication.connection.Connection#setRequestHandler(Connection.RequestHandler, java.util.concurrent.Executor)}
+ * or {@link me.alwx.localcommunication.connection.ConnectionWrapper#setRequestHandler(Connection.RequestHandler)},
+ * handlers run on connection's worker pool
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class RpcDispatcher implements Connection.RequestHandler {
+  private final Map<String, OnRequestListener> mHandlers = new ConcurrentHashMap<String, OnRequestListener>();
+
+  /**
+   * registers handler for request type, replacing previous one
+   *
+   * @param type     request type ({@link Communication#MESSAGE_TYPE} field)
+   * @param listener handler
+   */
+  public void register(String type, OnRequestListener listener) {
+    mHandlers.put(type, listener);
+  }
+
+  /**
+   * removes handler for request type, such requests will fail
+   *
+   * @param type request type
+   */
+  public void unregister(String type) {
+    mHandlers.remove(type);
+  }
+
+  @Override
+  public Frame onRequest(String peer, Frame request) throws Exception {
+    MessageCodec codec = MessageCodecs.forFlags(request.getFlags());
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown message codec");
+    }
+    String type = codec.decodeType(request.getData());
+    OnRequestListener listener = type != null ? mHandlers.get(type) : null;
+    if (listener == null) {
+      throw new IllegalArgumentException("No handler for request type: " + type);
+    }
+    Map<String, ?> answer = listener.onRequest(peer, codec.decode(request.getData()));
+    return answer != null ? MessageCodecs.toFrame(codec, answer) : null;
+  }
+
+  public interface OnRequestListener {
+    /**
+     * called on a worker thread for every request of registered type
+     *
+     * @param peer    peer id ("address:port")
+     * @param request request contents
+     * @return answer or null for an empty one
+     * @throws Exception if request can't be answered, caller's call fails with exception's message
+     */
+    Map<String, ?> onRequest(String peer, JSONObject request) throws Exception;
+  }
+}
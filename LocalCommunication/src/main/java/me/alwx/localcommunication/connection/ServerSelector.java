@@ -0,0 +1,23 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.List;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * chooses server to connect to among servers found during discovery window
+ * (see {@link me.alwx.localcommunication.connection.ConnectionWrapper#connectToServer(ServerSelector, Connection.ConnectionListener, ConnectionWrapper.OnSelectedListener)}),
+ * implementations are in {@link me.alwx.localcommunication.connection.ServerSelectors}
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public interface ServerSelector {
+  /**
+   * called on a background thread, so it may block, e.g. to measure something
+   *
+   * @param candidates servers with at least one IPv4 address, never empty
+   * @return chosen server or null to connect to none
+   */
+  ServiceInfo select(List<ServiceInfo> candidates);
+}
@@ -0,0 +1,203 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * standard {@link me.alwx.localcommunication.connection.ServerSelector} strategies
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public final class ServerSelectors {
+  private static final String DEBUG_TAG = ServerSelectors.class.getName();
+  private static final int VIRTUAL_NODES = 64;
+  private static final int PROBES = 2;
+
+  private static final Random sRandom = new Random();
+
+  private ServerSelectors() {
+  }
+
+  /**
+   * chooses server that was found first, like earlier versions did
+   *
+   * @return selector
+   */
+  public static ServerSelector first() {
+    return new ServerSelector() {
+      @Override
+      public ServiceInfo select(List<ServiceInfo> candidates) {
+        return candidates.get(0);
+      }
+    };
+  }
+
+  /**
+   * chooses server with fewest clients, then with lowest load, as published in TXT records
+   * (see {@link me.alwx.localcommunication.connection.ServiceProperties});
+   * equal servers are chosen randomly, so clients that see the same numbers spread among them
+   *
+   * @return selector
+   */
+  public static ServerSelector leastConnections() {
+    return new ServerSelector() {
+      @Override
+      public ServiceInfo select(List<ServiceInfo> candidates) {
+        List<ServiceInfo> best = new ArrayList<ServiceInfo>();
+        ServiceProperties bestProperties = null;
+        for (ServiceInfo info : candidates) {
+          ServiceProperties properties = ServiceProperties.from(info);
+          int order = bestProperties == null ? -1 : compare(properties, bestProperties);
+          if (order < 0) {
+            best.clear();
+            bestProperties = properties;
+          }
+          if (order <= 0) {
+            best.add(info);
+          }
+        }
+        return best.get(sRandom.nextInt(best.size()));
+      }
+
+      private int compare(ServiceProperties a, ServiceProperties b) {
+        if (a.getClientCount() != b.getClientCount()) {
+          return a.getClientCount() < b.getClientCount() ? -1 : 1;
+        }
+        return ServiceProperties.LEAST_BUSY.compare(a, b);
+      }
+    };
+  }
+
+  /**
+   * chooses server that accepts TCP connection fastest; all servers are probed at once,
+   * each probe is a connection that is closed right away, so servers see it as a short-lived peer
+   *
+   * @param timeout how long to wait for servers, in milliseconds
+   * @return selector
+   */
+  public static ServerSelector lowestRtt(final int timeout) {
+    return new ServerSelector() {
+      @Override
+      public ServiceInfo select(List<ServiceInfo> candidates) {
+        final long[] rtts = new long[candidates.size()];
+        final CountDownLatch done = new CountDownLatch(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+          final int index = i;
+          final ServiceInfo info = candidates.get(i);
+          new Thread(new Runnable() {
+            @Override
+            public void run() {
+              long rtt = probe(info, timeout);
+              synchronized (rtts) {
+                rtts[index] = rtt;
+              }
+              done.countDown();
+            }
+          }, "Probe " + info.getName()).start();
+        }
+        try {
+          done.await(timeout * PROBES + timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+        ServiceInfo best = null;
+        long bestRtt = Long.MAX_VALUE;
+        synchronized (rtts) {
+          for (int i = 0; i < rtts.length; i++) {
+            if (rtts[i] > 0 && rtts[i] < bestRtt) {
+              bestRtt = rtts[i];
+              best = candidates.get(i);
+            }
+          }
+        }
+        return best;
+      }
+    };
+  }
+
+  /**
+   * chooses server by consistent hashing of device id: same device goes to the same server
+   * while it is available, and only devices of a server that has gone away move elsewhere
+   *
+   * @param deviceId stable device id, e.g. Settings.Secure.ANDROID_ID
+   * @return selector
+   */
+  public static ServerSelector consistentHash(final String deviceId) {
+    return new ServerSelector() {
+      @Override
+      public ServiceInfo select(List<ServiceInfo> candidates) {
+        SortedMap<Long, ServiceInfo> ring = new TreeMap<Long, ServiceInfo>();
+        for (ServiceInfo info : candidates) {
+          String node = endpoint(info);
+          for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(node + "#" + i), info);
+          }
+        }
+        SortedMap<Long, ServiceInfo> tail = ring.tailMap(hash(deviceId));
+        return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail.firstKey());
+      }
+    };
+  }
+
+  /**
+   * measures TCP connection time to server
+   *
+   * @return best time in nanoseconds or 0 if server is unreachable
+   */
+  private static long probe(ServiceInfo info, int timeout) {
+    InetSocketAddress address = new InetSocketAddress(info.getInet4Addresses()[0], info.getPort());
+    long best = 0;
+    for (int i = 0; i < PROBES; i++) {
+      Socket socket = new Socket();
+      try {
+        long start = System.nanoTime();
+        socket.connect(address, timeout);
+        long rtt = Math.max(1, System.nanoTime() - start);
+        if (best == 0 || rtt < best) {
+          best = rtt;
+        }
+      } catch (IOException e) {
+        Log.d(DEBUG_TAG, "Probe of " + address + " failed: " + e);
+        return 0;
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          Log.d(DEBUG_TAG, "Error when closing probe: " + e);
+        }
+      }
+    }
+    return best;
+  }
+
+  private static String endpoint(ServiceInfo info) {
+    return info.getInet4Addresses()[0].getHostAddress() + ":" + info.getPort();
+  }
+
+  private static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(Frame.encodeText(key));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = hash << 8 | (digest[i] & 0xff);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * properties server publishes in its TXT record,
+ * so clients can choose a server before connecting to it
+ * <p/>
+ * well-known properties are protocol version, capabilities, load & number of clients,
+ * any other string properties can be added too
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class ServiceProperties {
+  /**
+   * version of protocol spoken by this library
+   */
+  public static final int PROTOCOL_VERSION = 1;
+
+  public static final String KEY_VERSION = "v";
+  public static final String KEY_CAPABILITIES = "caps";
+  public static final String KEY_LOAD = "load";
+  public static final String KEY_CLIENTS = "clients";
+  /**
+   * node id of a mesh node (see {@link MeshNode#getNodeId()})
+   */
+  public static final String KEY_NODE = "node";
+
+  public static final String CAPABILITY_BINARY = "binary";
+  public static final String CAPABILITY_STREAMS = "streams";
+  public static final String CAPABILITY_CHANNELS = "channels";
+  public static final String CAPABILITY_MESH = "mesh";
+
+  /**
+   * orders servers by load, then by number of clients, least busy first
+   */
+  public static final Comparator<ServiceProperties> LEAST_BUSY = new Comparator<ServiceProperties>() {
+    @Override
+    public int compare(ServiceProperties a, ServiceProperties b) {
+      if (a.getLoad() != b.getLoad()) {
+        return a.getLoad() < b.getLoad() ? -1 : 1;
+      }
+      if (a.getClientCount() != b.getClientCount()) {
+        return a.getClientCount() < b.getClientCount() ? -1 : 1;
+      }
+      return 0;
+    }
+  };
+
+  private final Map<String, String> mValues = new LinkedHashMap<String, String>();
+
+  public ServiceProperties() {
+    setVersion(PROTOCOL_VERSION);
+  }
+
+  private ServiceProperties(Map<String, String> values) {
+    mValues.putAll(values);
+  }
+
+  /**
+   * reads properties of discovered service
+   *
+   * @param info resolved service
+   * @return properties, missing ones have default values
+   */
+  public static ServiceProperties from(ServiceInfo info) {
+    Map<String, String> values = new LinkedHashMap<String, String>();
+    Enumeration<String> names = info.getPropertyNames();
+    while (names.hasMoreElements()) {
+      String name = names.nextElement();
+      String value = info.getPropertyString(name);
+      if (value != null) {
+        values.put(name, value);
+      }
+    }
+    return new ServiceProperties(values);
+  }
+
+  /**
+   * returns protocol version
+   *
+   * @return version or 0 if server doesn't publish it (older version)
+   */
+  public int getVersion() {
+    return getInt(KEY_VERSION, 0);
+  }
+
+  public void setVersion(int version) {
+    mValues.put(KEY_VERSION, String.valueOf(version));
+  }
+
+  public Set<String> getCapabilities() {
+    String value = mValues.get(KEY_CAPABILITIES);
+    if (value == null || value.length() == 0) {
+      return Collections.emptySet();
+    }
+    Set<String> capabilities = new LinkedHashSet<String>();
+    for (String capability : value.split(",")) {
+      if (capability.length() > 0) {
+        capabilities.add(capability);
+      }
+    }
+    return capabilities;
+  }
+
+  public boolean hasCapability(String capability) {
+    return getCapabilities().contains(capability);
+  }
+
+  public void addCapability(String capability) {
+    if (capability.indexOf(',') >= 0) {
+      throw new IllegalArgumentException("Capability can't contain ',': " + capability);
+    }
+    Set<String> capabilities = new LinkedHashSet<String>(getCapabilities());
+    capabilities.add(capability);
+    StringBuilder value = new StringBuilder();
+    for (String c : capabilities) {
+      if (value.length() > 0) {
+        value.append(',');
+      }
+      value.append(c);
+    }
+    mValues.put(KEY_CAPABILITIES, value.toString());
+  }
+
+  /**
+   * returns server load as set by server application
+   *
+   * @return load in percent, 0 if unknown
+   */
+  public int getLoad() {
+    return getInt(KEY_LOAD, 0);
+  }
+
+  public void setLoad(int load) {
+    if (load < 0 || load > 100) {
+      throw new IllegalArgumentException("Load must be in 0..100: " + load);
+    }
+    mValues.put(KEY_LOAD, String.valueOf(load));
+  }
+
+  public int getClientCount() {
+    return getInt(KEY_CLIENTS, 0);
+  }
+
+  public void setClientCount(int count) {
+    mValues.put(KEY_CLIENTS, String.valueOf(count));
+  }
+
+  public String get(String key) {
+    return mValues.get(key);
+  }
+
+  public void put(String key, String value) {
+    mValues.put(key, value);
+  }
+
+  /**
+   * returns properties as TXT record map
+   *
+   * @return copy of properties
+   */
+  public Map<String, String> toMap() {
+    return new LinkedHashMap<String, String>(mValues);
+  }
+
+  private int getInt(String key, int defaultValue) {
+    String value = mValues.get(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return mValues.toString();
+  }
+}
@@ -0,0 +1,292 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * bulk stream being sent to a peer, see
+ * {@link me.alwx.localcommunication.connection.Connection#sendStream(String, java.io.InputStream, long, String, long, StreamTransfer.ProgressListener)}
+ * <p/>
+ * stream is read & sent by a pooled thread; the thread waits whenever receiver has not
+ * confirmed a whole window yet or peer's outgoing queue is full
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class StreamTransfer {
+  private static final String DEBUG_TAG = StreamTransfer.class.getName();
+  private static final long QUEUE_FULL_WAIT = 5;
+
+  private final Transfers mTransfers;
+  private final String mPeer;
+  private final int mId;
+  private final InputStream mInput;
+  private final long mLength;
+  private final String mName;
+  private final long mOffset;
+  private final ProgressListener mListener;
+  private final int mWindow;
+  private final int mChannel;
+
+  private long mSent;
+  private long mAcknowledged;
+  private IOException mError;
+  private boolean mCancelled;
+  private boolean mDone;
+
+  StreamTransfer(Transfers transfers, String peer, int id, InputStream input, long length,
+                 String name, long offset, ProgressListener listener, int window, int channel) {
+    mTransfers = transfers;
+    mPeer = peer;
+    mId = id;
+    mInput = input;
+    mLength = length;
+    mName = name != null ? name : "";
+    mOffset = offset;
+    mListener = listener;
+    mWindow = window;
+    mChannel = channel;
+    mSent = offset;
+    mAcknowledged = offset;
+  }
+
+  public String getPeer() {
+    return mPeer;
+  }
+
+  public int getId() {
+    return mId;
+  }
+
+  /**
+   * returns offset up to which receiver has confirmed data,
+   * pass it as offset to a new transfer to resume after failure
+   *
+   * @return confirmed offset
+   */
+  public synchronized long getAcknowledged() {
+    return mAcknowledged;
+  }
+
+  public synchronized boolean isDone() {
+    return mDone;
+  }
+
+  /**
+   * stops transfer, receiver sees it as aborted stream
+   */
+  public synchronized void cancel() {
+    mCancelled = true;
+    notifyAll();
+  }
+
+  /**
+   * starts sending on given pool, fails transfer if pool has no thread left
+   *
+   * @param executor stream threads
+   */
+  void start(Executor executor) {
+    try {
+      executor.execute(new SendingThread());
+    } catch (RejectedExecutionException e) {
+      IOException error = new IOException("Too many streams are being sent");
+      fail(error);
+      finish();
+      if (mListener != null) {
+        mListener.onError(error);
+      }
+    }
+  }
+
+  synchronized void onAck(long offset) {
+    if (offset > mAcknowledged) {
+      mAcknowledged = offset;
+      notifyAll();
+    }
+  }
+
+  synchronized void fail(IOException e) {
+    if (mError == null) {
+      mError = e;
+    }
+    notifyAll();
+  }
+
+  /**
+   * waits until another chunk may be sent
+   *
+   * @return confirmed offset, to report progress
+   * @throws IOException if transfer has failed
+   */
+  private synchronized long awaitCredit() throws IOException, InterruptedException {
+    long reported = mAcknowledged;
+    while (true) {
+      check();
+      if (mAcknowledged != reported) {
+        return mAcknowledged;
+      }
+      if (mSent - mAcknowledged + Transfers.CHUNK_SIZE <= mWindow) {
+        if (!mTransfers.isQueueFull(mPeer, mChannel)) {
+          return mAcknowledged;
+        }
+        wait(QUEUE_FULL_WAIT);
+      } else {
+        wait();
+      }
+    }
+  }
+
+  private synchronized long awaitAcknowledged() throws IOException, InterruptedException {
+    long reported = mAcknowledged;
+    while (mAcknowledged < mSent) {
+      check();
+      if (mAcknowledged != reported) {
+        return mAcknowledged;
+      }
+      wait();
+    }
+    check();
+    return mAcknowledged;
+  }
+
+  private void check() throws IOException {
+    if (mError != null) {
+      throw mError;
+    }
+    if (mCancelled) {
+      throw new IOException("Stream cancelled");
+    }
+  }
+
+  private void sent(int length) {
+    synchronized (this) {
+      mSent += length;
+    }
+  }
+
+  private void progress(long acknowledged) {
+    if (mListener != null) {
+      mListener.onProgress(acknowledged - mOffset, mLength);
+    }
+  }
+
+  /**
+   * thread to read input & send it in chunks
+   */
+  private class SendingThread implements Runnable {
+    @Override
+    public void run() {
+      try {
+        byte[] name = Frame.encodeText(mName);
+        byte[] open = Transfers.header(mId, mOffset, 8 + name.length);
+        Transfers.putLong(open, Transfers.HEADER_SIZE, mLength);
+        System.arraycopy(name, 0, open, Transfers.HEADER_SIZE + 8, name.length);
+        send(Frame.TYPE_STREAM_OPEN, (byte) 0, open);
+
+        long reported = mOffset;
+        long offset = mOffset;
+        while (true) {
+          long acknowledged = awaitCredit();
+          if (acknowledged != reported) {
+            reported = acknowledged;
+            progress(acknowledged);
+          }
+          byte[] chunk = readChunk(offset);
+          if (chunk == null) {
+            break;
+          }
+          send(Frame.TYPE_STREAM_DATA, (byte) 0, chunk);
+          int length = chunk.length - Transfers.HEADER_SIZE;
+          offset += length;
+          sent(length);
+        }
+        send(Frame.TYPE_STREAM_END, (byte) 0, Transfers.header(mId, offset, 0));
+
+        long acknowledged;
+        while ((acknowledged = awaitAcknowledged()) < offset) {
+          progress(acknowledged);
+        }
+        progress(acknowledged);
+        finish();
+        if (mListener != null) {
+          mListener.onComplete();
+        }
+      } catch (IOException e) {
+        Log.d(DEBUG_TAG, "Stream " + mId + " failed: " + e);
+        abort();
+        finish();
+        if (mListener != null) {
+          mListener.onError(e);
+        }
+      } catch (InterruptedException e) {
+        abort();
+        finish();
+      }
+    }
+
+    /**
+     * reads next chunk right into frame payload, after the header
+     *
+     * @param offset offset of chunk
+     * @return payload or null at end of input
+     * @throws IOException if input can't be read
+     */
+    private byte[] readChunk(long offset) throws IOException {
+      byte[] chunk = Transfers.header(mId, offset, Transfers.CHUNK_SIZE);
+      int position = Transfers.HEADER_SIZE;
+      int count;
+      while (position < chunk.length
+          && (count = mInput.read(chunk, position, chunk.length - position)) >= 0) {
+        position += count;
+      }
+      if (position == Transfers.HEADER_SIZE) {
+        return null;
+      }
+      return position == chunk.length ? chunk : Arrays.copyOf(chunk, position);
+    }
+
+    private void send(byte type, byte flags, byte[] data) throws IOException {
+      if (!mTransfers.send(mPeer, type, flags, data, mChannel)) {
+        throw new IOException("Peer is not connected: " + mPeer);
+      }
+    }
+
+    private void abort() {
+      long sent;
+      synchronized (StreamTransfer.this) {
+        sent = mSent;
+      }
+      mTransfers.send(mPeer, Frame.TYPE_STREAM_END, (byte) 1, Transfers.header(mId, sent, 0), mChannel);
+    }
+
+  }
+
+  private void finish() {
+    synchronized (this) {
+      mDone = true;
+    }
+    mTransfers.remove(this);
+    try {
+      mInput.close();
+    } catch (IOException e) {
+      Log.d(DEBUG_TAG, "Error when closing input: " + e);
+    }
+  }
+
+  public interface ProgressListener {
+    /**
+     * called from transfer's thread whenever receiver confirms more data
+     *
+     * @param transferred bytes confirmed by receiver in this transfer
+     * @param total       bytes to send or -1 if unknown
+     */
+    void onProgress(long transferred, long total);
+
+    void onComplete();
+
+    void onError(IOException e);
+  }
+}
@@ -0,0 +1,407 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keeps connections of one {@link me.alwx.localcommunication.connection.Connection} alive:
+ * pings peers, measures round-trip times & drops silent or idle ones
+ * (see {@link ConnectionConfig#setHeartbeat(int, int)}, {@link ConnectionConfig#setIdleTimeout(int)}),
+ * reconnects to servers with growing, jittered delays & keeps frames sent to a server
+ * while it is unreachable, to send them once it is back (see {@link ConnectionConfig#setReconnect(boolean)})
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class Supervisor {
+  private static final String DEBUG_TAG = Supervisor.class.getName();
+  private static final int MAX_DOUBLINGS = 16;
+  /**
+   * idle peers are looked for this many times per idle timeout when heartbeats are off
+   */
+  private static final int IDLE_CHECKS = 4;
+
+  private final Transport mTransport;
+  private final ConnectionConfig mConfig;
+  private final Random mRandom = new Random();
+  private final Map<String, Link> mLinks = new ConcurrentHashMap<String, Link>();
+  /**
+   * servers to reconnect to, by peer id; changed only while holding supervisor's lock
+   */
+  private final Map<String, Server> mServers = new ConcurrentHashMap<String, Server>();
+  private ScheduledExecutorService mExecutor;
+  private boolean mClosed;
+
+  public Supervisor(Transport transport, ConnectionConfig config) {
+    mTransport = transport;
+    mConfig = config;
+  }
+
+  /**
+   * connects to server, remembering it when reconnection is enabled
+   *
+   * @param address server address
+   * @param port    server port
+   */
+  public void connect(InetAddress address, int port) {
+    if (mConfig.isReconnect()) {
+      synchronized (this) {
+        String peer = peerId(address, port);
+        if (!mServers.containsKey(peer)) {
+          mServers.put(peer, new Server(address, port));
+        }
+      }
+    }
+    mTransport.connect(address, port);
+  }
+
+  /**
+   * sends frame to all peers; servers that are being reconnected get it later
+   *
+   * @param frame frame
+   */
+  public void sendToAll(Frame frame) {
+    // frames are sent outside the lock, a peer that stops reading must not hold up the others
+    List<String> peers;
+    synchronized (this) {
+      if (mServers.isEmpty()) {
+        peers = null;
+      } else {
+        for (Server server : mServers.values()) {
+          if (!server.mOnline) {
+            server.buffer(frame);
+          }
+        }
+        peers = new ArrayList<String>();
+        for (String peer : mTransport.getPeers()) {
+          Server server = mServers.get(peer);
+          if (server == null || server.mOnline) {
+            peers.add(peer);
+          }
+        }
+      }
+    }
+    if (peers == null) {
+      mTransport.sendToAll(frame);
+      return;
+    }
+    for (String peer : peers) {
+      mTransport.send(peer, frame);
+    }
+  }
+
+  /**
+   * keeps frame for a server that is being reconnected
+   *
+   * @param peer  peer id
+   * @param frame frame
+   * @return true if frame was kept, false if it has to be sent right away
+   */
+  public synchronized boolean buffer(String peer, Frame frame) {
+    Server server = mServers.get(peer);
+    if (server == null || server.mOnline || !isBuffered(frame)) {
+      return false;
+    }
+    server.buffer(frame);
+    return true;
+  }
+
+  public void onPeerConnected(String peer, boolean outgoing) {
+    mLinks.put(peer, new Link(System.currentTimeMillis()));
+    List<Frame> frames;
+    synchronized (this) {
+      long interval = mConfig.getHeartbeatInterval() > 0
+          ? mConfig.getHeartbeatInterval()
+          : mConfig.getIdleTimeout() / IDLE_CHECKS;
+      if (interval > 0 && mExecutor == null && !mClosed) {
+        executor().scheduleAtFixedRate(new Runnable() {
+          @Override
+          public void run() {
+            heartbeat();
+          }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+      }
+      Server server = outgoing ? mServers.get(peer) : null;
+      if (server == null) {
+        return;
+      }
+      server.mOnline = true;
+      server.mConnectedAt = System.currentTimeMillis();
+      server.mStable = false;
+      frames = new ArrayList<Frame>(server.mBuffer);
+      server.mBuffer.clear();
+    }
+    if (!frames.isEmpty()) {
+      Log.d(DEBUG_TAG, "Replaying " + frames.size() + " frames to " + peer);
+    }
+    for (Frame frame : frames) {
+      if (!mTransport.send(peer, frame)) {
+        Log.d(DEBUG_TAG, "Replayed frame rejected by " + peer);
+      }
+    }
+  }
+
+  public void onPeerDisconnected(String peer) {
+    mLinks.remove(peer);
+    synchronized (this) {
+      Server server = mServers.get(peer);
+      if (server != null && server.mOnline) {
+        server.mOnline = false;
+        // a server that accepts & drops connections right away must not reset the delay
+        if (server.mStable
+            || System.currentTimeMillis() - server.mConnectedAt >= mConfig.getReconnectMaxDelay()) {
+          server.mAttempt = 0;
+        }
+        scheduleReconnect(server);
+      }
+    }
+  }
+
+  public synchronized void onConnectFailed(InetAddress address, int port) {
+    Server server = mServers.get(peerId(address, port));
+    if (server != null && !server.mOnline) {
+      scheduleReconnect(server);
+    }
+  }
+
+  /**
+   * notes that frame has been received from peer or sent to it
+   *
+   * @param peer  peer id
+   * @param frame frame
+   * @param local true if frame has been sent
+   */
+  public void onFrame(String peer, Frame frame, boolean local) {
+    Link link = mLinks.get(peer);
+    if (link == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (frame.getType() != Frame.TYPE_PING && frame.getType() != Frame.TYPE_PONG) {
+      link.mLastActive = now;
+    }
+    if (local) {
+      return;
+    }
+    link.mLastHeard = now;
+    if (!mServers.isEmpty()) {
+      Server server = mServers.get(peer);
+      if (server != null && !server.mStable) {
+        server.mStable = true;
+      }
+    }
+  }
+
+  /**
+   * takes round-trip time from answer to a heartbeat ping
+   *
+   * @param peer peer id
+   * @param data pong payload, ping's send time
+   */
+  public void onPong(String peer, byte[] data) {
+    Link link = mLinks.get(peer);
+    if (link == null || data.length != 8) {
+      return;
+    }
+    long rtt = (System.nanoTime() - Transfers.getLong(data, 0)) / 1000;
+    if (rtt >= 0) {
+      link.record(rtt);
+      mConfig.getMetrics().record(Metrics.Histogram.RTT, rtt);
+    }
+  }
+
+  /**
+   * returns link statistics of peer
+   *
+   * @param peer peer id
+   * @return snapshot or null if peer is not connected
+   */
+  public LinkStats getStats(String peer) {
+    Link link = mLinks.get(peer);
+    return link != null ? link.snapshot(peer, System.currentTimeMillis()) : null;
+  }
+
+  /**
+   * returns link statistics of all connected peers
+   *
+   * @return snapshots by peer id
+   */
+  public Map<String, LinkStats> getStats() {
+    long now = System.currentTimeMillis();
+    Map<String, LinkStats> stats = new LinkedHashMap<String, LinkStats>();
+    for (Map.Entry<String, Link> entry : mLinks.entrySet()) {
+      stats.put(entry.getKey(), entry.getValue().snapshot(entry.getKey(), now));
+    }
+    return stats;
+  }
+
+  /**
+   * stops heartbeats & reconnection, frames kept for servers are dropped
+   */
+  public synchronized void close() {
+    mClosed = true;
+    mServers.clear();
+    if (mExecutor != null) {
+      mExecutor.shutdownNow();
+    }
+  }
+
+  private void heartbeat() {
+    long now = System.currentTimeMillis();
+    int idleTimeout = mConfig.getIdleTimeout();
+    for (String peer : mTransport.getPeers()) {
+      Link link = mLinks.get(peer);
+      if (link == null) {
+        continue;
+      }
+      if (mConfig.getHeartbeatInterval() > 0 && now - link.mLastHeard > mConfig.getHeartbeatTimeout()) {
+        Log.d(DEBUG_TAG, "Nothing heard from " + peer + " for " + (now - link.mLastHeard) + " ms, disconnecting");
+        mTransport.disconnect(peer);
+      } else if (idleTimeout > 0 && now - link.mLastActive > idleTimeout) {
+        Log.d(DEBUG_TAG, "No traffic with " + peer + " for " + (now - link.mLastActive) + " ms, disconnecting");
+        mTransport.disconnect(peer);
+      } else if (mConfig.getHeartbeatInterval() > 0) {
+        byte[] data = new byte[8];
+        Transfers.putLong(data, 0, System.nanoTime());
+        // a peer that stopped reading must not stall the others' pings & timeouts;
+        // it gets no ping while its queue is full and is dropped once the timeout passes
+        if (!mTransport.sendWithoutWaiting(peer, new Frame(Frame.TYPE_PING, (byte) 0, data))) {
+          Log.d(DEBUG_TAG, "Queue of " + peer + " is full, ping skipped");
+        }
+      }
+    }
+  }
+
+  private void scheduleReconnect(final Server server) {
+    if (mClosed) {
+      return;
+    }
+    int delay = Math.min(mConfig.getReconnectMaxDelay(),
+        mConfig.getReconnectMinDelay() << Math.min(server.mAttempt, MAX_DOUBLINGS));
+    if (delay <= 0) {
+      delay = mConfig.getReconnectMaxDelay();
+    }
+    delay = delay / 2 + mRandom.nextInt(delay / 2 + 1);
+    server.mAttempt++;
+    mConfig.getMetrics().increment(Metrics.Counter.RECONNECTS, 1);
+    Log.d(DEBUG_TAG, "Reconnecting to " + server.mAddress + ":" + server.mPort
+        + " in " + delay + " ms, attempt " + server.mAttempt);
+    executor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (Supervisor.this) {
+          if (mClosed || server.mOnline) {
+            return;
+          }
+        }
+        mTransport.connect(server.mAddress, server.mPort);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private ScheduledExecutorService executor() {
+    if (mExecutor == null) {
+      mExecutor = Platform.get().newScheduler("Supervisor");
+    }
+    return mExecutor;
+  }
+
+  /**
+   * stream frames are not kept: a stream fails when its peer is lost & can be resumed instead
+   */
+  private static boolean isBuffered(Frame frame) {
+    byte type = frame.getType();
+    return (type < Frame.TYPE_STREAM_OPEN || type > Frame.TYPE_STREAM_CANCEL)
+        && type != Frame.TYPE_PING && type != Frame.TYPE_PONG;
+  }
+
+  static String peerId(InetAddress address, int port) {
+    return address.getHostAddress() + ":" + port;
+  }
+
+  /**
+   * liveness & round-trip times of one connected peer
+   */
+  static class Link {
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+    private volatile long mLastHeard;
+    private volatile long mLastActive;
+    /**
+     * smoothed RTT times 8 & RTT variation times 4, so updates lose no precision to integer division
+     */
+    private long mScaledRtt;
+    private long mScaledVariation;
+    private long mMinRtt;
+    private long mLastRtt;
+
+    public Link(long now) {
+      mLastHeard = now;
+      mLastActive = now;
+    }
+
+    /**
+     * updates estimates the way TCP does (RFC 6298): variation with weight 1/4, average with 1/8,
+     * variation first, against the average from before the sample
+     */
+    public synchronized void record(long rtt) {
+      if (mHistogram.getCount() == 0) {
+        mScaledRtt = rtt << 3;
+        mScaledVariation = rtt << 1;
+        mMinRtt = rtt;
+      } else {
+        long error = rtt - (mScaledRtt >> 3);
+        mScaledVariation += Math.abs(error) - (mScaledVariation >> 2);
+        mScaledRtt += error;
+        mMinRtt = Math.min(mMinRtt, rtt);
+      }
+      mLastRtt = rtt;
+      mHistogram.record(rtt);
+    }
+
+    public synchronized LinkStats snapshot(String peer, long now) {
+      return new LinkStats(peer, mScaledRtt >> 3, mScaledVariation >> 2, mMinRtt, mLastRtt,
+          mHistogram.copy(), now - mLastHeard, now - mLastActive);
+    }
+  }
+
+  private class Server {
+    private final InetAddress mAddress;
+    private final int mPort;
+    private final ArrayDeque<Frame> mBuffer = new ArrayDeque<Frame>();
+    private boolean mOnline;
+    private int mAttempt;
+    private long mConnectedAt;
+    /**
+     * true once something has been received from server since it was connected
+     */
+    private volatile boolean mStable;
+
+    public Server(InetAddress address, int port) {
+      mAddress = address;
+      mPort = port;
+    }
+
+    public void buffer(Frame frame) {
+      if (!isBuffered(frame)) {
+        return;
+      }
+      int capacity = mConfig.getOutageBufferSize();
+      if (capacity == 0) {
+        return;
+      }
+      if (mBuffer.size() >= capacity) {
+        mBuffer.poll();
+        Log.d(DEBUG_TAG, "Outage buffer of " + mAddress + ":" + mPort + " is full, oldest frame dropped");
+      }
+      mBuffer.add(frame);
+    }
+  }
+}
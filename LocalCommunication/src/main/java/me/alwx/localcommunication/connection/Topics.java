@@ -0,0 +1,241 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * publish/subscribe on top of one connection
+ * (see {@link Connection#subscribe(String)} & {@link Connection#publish(String, Frame)})
+ * <p/>
+ * a peer subscribes with {@link Frame#TYPE_SUBSCRIBE}, its subscriptions are sent again
+ * whenever it connects to a server, so they survive reconnects;
+ * a message is published as one {@link Frame#TYPE_PUBLISH} frame that is queued for every
+ * subscriber as it is, so it is encoded once no matter how many peers get it.
+ * publishing never waits: a subscriber whose queue is full misses the message,
+ * so one slow device can't hold up the others
+ * <p/>
+ * publish payload: 1-byte topic length, UTF-8 topic, message payload;
+ * flags & channel are the message's
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class Topics {
+  private static final String DEBUG_TAG = Topics.class.getName();
+
+  /**
+   * longest topic in UTF-8 bytes
+   */
+  static final int MAX_TOPIC_LENGTH = 255;
+  /**
+   * most topics one peer may subscribe to, further subscriptions are ignored
+   */
+  static final int MAX_SUBSCRIPTIONS = 256;
+
+  private final Connection mConnection;
+  private final Transport mTransport;
+  /**
+   * topics this side has subscribed to
+   */
+  private final Set<String> mSubscriptions = new CopyOnWriteArraySet<String>();
+  /**
+   * subscribed peers by topic
+   */
+  private final Map<String, Set<String>> mSubscribers = new ConcurrentHashMap<String, Set<String>>();
+  /**
+   * topics by subscribed peer
+   */
+  private final Map<String, Set<String>> mTopics = new ConcurrentHashMap<String, Set<String>>();
+  /**
+   * servers this side is connected to, publications go to them besides subscribers
+   */
+  private final Set<String> mServers = new CopyOnWriteArraySet<String>();
+
+  public Topics(Connection connection, Transport transport) {
+    mConnection = connection;
+    mTransport = transport;
+  }
+
+  public void subscribe(String topic) {
+    byte[] name = encodeTopic(topic);
+    if (mSubscriptions.add(topic)) {
+      for (String server : mServers) {
+        mTransport.send(server, new Frame(Frame.TYPE_SUBSCRIBE, (byte) 0, name));
+      }
+    }
+  }
+
+  public void unsubscribe(String topic) {
+    byte[] name = encodeTopic(topic);
+    if (mSubscriptions.remove(topic)) {
+      for (String server : mServers) {
+        mTransport.send(server, new Frame(Frame.TYPE_UNSUBSCRIBE, (byte) 0, name));
+      }
+    }
+  }
+
+  public Set<String> getSubscriptions() {
+    return Collections.unmodifiableSet(mSubscriptions);
+  }
+
+  /**
+   * returns peers subscribed to topic
+   *
+   * @param topic topic
+   * @return peer ids
+   */
+  public Set<String> getSubscribers(String topic) {
+    Set<String> peers = mSubscribers.get(topic);
+    return peers != null ? Collections.unmodifiableSet(peers) : Collections.<String>emptySet();
+  }
+
+  /**
+   * publishes message to subscribers of topic & to servers, which pass it on to theirs
+   *
+   * @param topic   topic
+   * @param message message frame
+   * @return number of peers message was queued for
+   */
+  public int publish(String topic, Frame message) {
+    byte[] name = encodeTopic(topic);
+    byte[] data = message.getData();
+    byte[] payload = new byte[1 + name.length + data.length];
+    payload[0] = (byte) name.length;
+    System.arraycopy(name, 0, payload, 1, name.length);
+    System.arraycopy(data, 0, payload, 1 + name.length, data.length);
+    Frame frame = new Frame(Frame.TYPE_PUBLISH, message.getFlags(), payload, message.getChannel());
+    int count = 0;
+    for (String server : mServers) {
+      // a server that is being reconnected gets it later
+      if (mConnection.sendFrame(server, frame)) {
+        count++;
+      }
+    }
+    return count + fanOut(topic, frame, null);
+  }
+
+  public void onPeerConnected(String peer, boolean outgoing) {
+    if (!outgoing) {
+      return;
+    }
+    mServers.add(peer);
+    for (String topic : mSubscriptions) {
+      mTransport.send(peer, new Frame(Frame.TYPE_SUBSCRIBE, (byte) 0, encodeTopic(topic)));
+    }
+  }
+
+  public synchronized void onPeerDisconnected(String peer) {
+    mServers.remove(peer);
+    Set<String> topics = mTopics.remove(peer);
+    if (topics == null) {
+      return;
+    }
+    for (String topic : topics) {
+      removeSubscriber(topic, peer);
+    }
+  }
+
+  /**
+   * handles topic frames
+   *
+   * @param peer  peer id
+   * @param frame {@link Frame#TYPE_SUBSCRIBE}, {@link Frame#TYPE_UNSUBSCRIBE} or {@link Frame#TYPE_PUBLISH} frame
+   */
+  public void onFrame(String peer, Frame frame) {
+    byte[] data = frame.getData();
+    if (frame.getType() == Frame.TYPE_PUBLISH) {
+      int length = data.length > 0 ? data[0] & 0xff : -1;
+      if (length < 0 || data.length < 1 + length) {
+        Log.d(DEBUG_TAG, "Invalid publication from " + peer);
+        return;
+      }
+      String topic = Frame.decodeText(data, 1, length);
+      // passed on as it came, without encoding it again
+      fanOut(topic, frame, peer);
+      byte[] payload = new byte[data.length - 1 - length];
+      System.arraycopy(data, 1 + length, payload, 0, payload.length);
+      mConnection.deliverPublication(peer, topic,
+          new Frame(Frame.TYPE_MESSAGE, frame.getFlags(), payload, frame.getChannel()));
+      return;
+    }
+    if (data.length == 0 || data.length > MAX_TOPIC_LENGTH) {
+      return;
+    }
+    String topic = frame.getText();
+    if (frame.getType() == Frame.TYPE_SUBSCRIBE) {
+      addSubscriber(topic, peer);
+    } else {
+      removeSubscription(topic, peer);
+    }
+  }
+
+  private int fanOut(String topic, Frame frame, String from) {
+    Set<String> peers = mSubscribers.get(topic);
+    if (peers == null) {
+      return 0;
+    }
+    int count = 0;
+    for (String peer : peers) {
+      if (peer.equals(from) || mServers.contains(peer)) {
+        continue;
+      }
+      if (mTransport.sendWithoutWaiting(peer, frame)) {
+        count++;
+      } else if (Connection.TRACE) {
+        Log.v(DEBUG_TAG, "Subscriber " + peer + " is too slow, publication on " + topic + " skipped");
+      }
+    }
+    return count;
+  }
+
+  private synchronized void addSubscriber(String topic, String peer) {
+    if (!mTransport.getPeers().contains(peer)) {
+      return;
+    }
+    Set<String> topics = mTopics.get(peer);
+    if (topics == null) {
+      topics = new CopyOnWriteArraySet<String>();
+      mTopics.put(peer, topics);
+    }
+    if (topics.size() >= MAX_SUBSCRIPTIONS && !topics.contains(topic)) {
+      Log.d(DEBUG_TAG, "Too many subscriptions of " + peer + ", " + topic + " ignored");
+      return;
+    }
+    topics.add(topic);
+    Set<String> peers = mSubscribers.get(topic);
+    if (peers == null) {
+      peers = new CopyOnWriteArraySet<String>();
+      mSubscribers.put(topic, peers);
+    }
+    peers.add(peer);
+  }
+
+  private synchronized void removeSubscription(String topic, String peer) {
+    Set<String> topics = mTopics.get(peer);
+    if (topics != null) {
+      topics.remove(topic);
+    }
+    removeSubscriber(topic, peer);
+  }
+
+  private synchronized void removeSubscriber(String topic, String peer) {
+    Set<String> peers = mSubscribers.get(topic);
+    if (peers != null) {
+      peers.remove(peer);
+      if (peers.isEmpty()) {
+        mSubscribers.remove(topic);
+      }
+    }
+  }
+
+  private static byte[] encodeTopic(String topic) {
+    byte[] name = Frame.encodeText(topic);
+    if (name.length == 0 || name.length > MAX_TOPIC_LENGTH) {
+      throw new IllegalArgumentException("Invalid topic: " + topic);
+    }
+    return name;
+  }
+}
@@ -0,0 +1,352 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * bulk streams of one connection: sending & receiving side
+ * <p/>
+ * a stream is sent as {@link Frame#TYPE_STREAM_OPEN}, a number of {@link Frame#TYPE_STREAM_DATA}
+ * chunks and {@link Frame#TYPE_STREAM_END}; receiver confirms consumed bytes with
+ * {@link Frame#TYPE_STREAM_ACK} and sender never has more than
+ * {@link ConnectionConfig#getStreamWindow()} unconfirmed bytes in flight,
+ * so memory used on both sides is bounded
+ * <p/>
+ * payloads start with 4-byte stream id & 8-byte offset (big-endian);
+ * ids belong to sending side, so both peers can send streams at once
+ * <p/>
+ * every stream takes a pooled thread; at most {@link ConnectionConfig#getMaxStreams()}
+ * streams are received and as many sent at once, so a peer can't make us start threads without limit
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class Transfers {
+  private static final String DEBUG_TAG = Transfers.class.getName();
+
+  /**
+   * stream id & offset
+   */
+  static final int HEADER_SIZE = 12;
+  /**
+   * largest chunk payload, chosen so a binary chunk frame fits into socket write buffers
+   */
+  static final int CHUNK_SIZE = 8 * 1024 - 64;
+  /**
+   * how long an idle stream thread is kept, in seconds
+   */
+  private static final long KEEP_ALIVE = 30;
+
+  private final Connection mConnection;
+  private final ConnectionConfig mConfig;
+  private final AtomicInteger mNextId = new AtomicInteger();
+  private final Map<String, StreamTransfer> mOutgoing = new ConcurrentHashMap<String, StreamTransfer>();
+  private final Map<String, IncomingStream> mIncoming = new ConcurrentHashMap<String, IncomingStream>();
+  private volatile Connection.StreamListener mListener;
+  private ExecutorService mIncomingThreads;
+  private ExecutorService mOutgoingThreads;
+
+  public Transfers(Connection connection, ConnectionConfig config) {
+    mConnection = connection;
+    mConfig = config;
+  }
+
+  public void setListener(Connection.StreamListener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * starts sending a new stream on a pooled thread;
+   * transfer fails right away if {@link ConnectionConfig#getMaxStreams()} streams are being sent
+   *
+   * @param peer     peer id
+   * @param input    stream to send, positioned at offset
+   * @param length   number of bytes left in input or -1 if unknown
+   * @param name     stream name
+   * @param offset   offset of first byte, non-zero when resuming
+   * @param listener progress listener, can be null
+   * @param channel  channel to send data on
+   * @return transfer
+   */
+  public StreamTransfer send(String peer, InputStream input, long length, String name,
+                             long offset, StreamTransfer.ProgressListener listener, int channel) {
+    StreamTransfer transfer = new StreamTransfer(this, peer, mNextId.incrementAndGet(),
+        input, length, name, offset, listener, mConfig.getStreamWindow(), channel);
+    mOutgoing.put(key(peer, transfer.getId()), transfer);
+    transfer.start(outgoingThreads());
+    return transfer;
+  }
+
+  /**
+   * handles stream frame received from peer
+   *
+   * @param peer  peer id
+   * @param frame frame
+   */
+  public void onFrame(String peer, Frame frame) {
+    byte[] data = frame.getData();
+    if (data.length < HEADER_SIZE) {
+      Log.e(DEBUG_TAG, "Invalid stream frame from " + peer);
+      return;
+    }
+    int id = getInt(data, 0);
+    long offset = getLong(data, 4);
+    String key = key(peer, id);
+
+    switch (frame.getType()) {
+      case Frame.TYPE_STREAM_OPEN:
+        open(peer, id, offset, data);
+        break;
+      case Frame.TYPE_STREAM_DATA:
+        IncomingStream stream = mIncoming.get(key);
+        if (stream != null) {
+          stream.onData(offset, data);
+        }
+        break;
+      case Frame.TYPE_STREAM_END:
+        IncomingStream ended = mIncoming.get(key);
+        if (ended != null) {
+          ended.onEnd(offset, frame.getFlags() != 0);
+        }
+        break;
+      case Frame.TYPE_STREAM_ACK:
+        StreamTransfer transfer = mOutgoing.get(key);
+        if (transfer != null) {
+          transfer.onAck(offset);
+        }
+        break;
+      case Frame.TYPE_STREAM_CANCEL:
+        StreamTransfer cancelled = mOutgoing.get(key);
+        if (cancelled != null) {
+          cancelled.fail(new IOException("Stream cancelled by receiver: "
+              + Frame.decodeText(data, HEADER_SIZE, data.length - HEADER_SIZE)));
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * fails all streams of disconnected peer
+   *
+   * @param peer peer id
+   */
+  public void onPeerDisconnected(String peer) {
+    IOException e = new IOException("Peer disconnected: " + peer);
+    for (StreamTransfer transfer : mOutgoing.values()) {
+      if (transfer.getPeer().equals(peer)) {
+        transfer.fail(e);
+      }
+    }
+    for (IncomingStream stream : mIncoming.values()) {
+      if (stream.getPeer().equals(peer)) {
+        stream.fail(e);
+      }
+    }
+  }
+
+  /**
+   * fails all streams, used when connection is closed
+   */
+  public void close() {
+    synchronized (this) {
+      if (mIncomingThreads != null) {
+        mIncomingThreads.shutdown();
+        mIncomingThreads = null;
+      }
+      if (mOutgoingThreads != null) {
+        mOutgoingThreads.shutdown();
+        mOutgoingThreads = null;
+      }
+    }
+    IOException e = new IOException("Connection closed");
+    for (Iterator<StreamTransfer> i = mOutgoing.values().iterator(); i.hasNext(); ) {
+      i.next().fail(e);
+      i.remove();
+    }
+    for (Iterator<IncomingStream> i = mIncoming.values().iterator(); i.hasNext(); ) {
+      i.next().fail(e);
+      i.remove();
+    }
+  }
+
+  private void open(String peer, int id, long offset, byte[] data) {
+    Connection.StreamListener listener = mListener;
+    if (listener == null || data.length < HEADER_SIZE + 8) {
+      sendCancel(peer, id, "Streams are not accepted");
+      return;
+    }
+    long length = getLong(data, HEADER_SIZE);
+    String name = Frame.decodeText(data, HEADER_SIZE + 8, data.length - HEADER_SIZE - 8);
+    IncomingStream stream = new IncomingStream(this, peer, id, name, offset, length,
+        mConfig.getStreamWindow());
+    mIncoming.put(key(peer, id), stream);
+    try {
+      incomingThreads().execute(new StreamStarter(listener, stream));
+    } catch (RejectedExecutionException e) {
+      Log.d(DEBUG_TAG, "Too many streams, stream " + id + " from " + peer + " refused");
+      mIncoming.remove(key(peer, id));
+      sendCancel(peer, id, "Too many streams");
+    }
+  }
+
+  private synchronized ExecutorService incomingThreads() {
+    if (mIncomingThreads == null) {
+      mIncomingThreads = createThreads("Incoming stream");
+    }
+    return mIncomingThreads;
+  }
+
+  private synchronized ExecutorService outgoingThreads() {
+    if (mOutgoingThreads == null) {
+      mOutgoingThreads = createThreads("Outgoing stream");
+    }
+    return mOutgoingThreads;
+  }
+
+  /**
+   * creates pool that starts threads up to the limit & rejects work beyond it instead of queueing,
+   * a queued stream would hold its sender's window without being read
+   */
+  private ExecutorService createThreads(final String name) {
+    return new ThreadPoolExecutor(0, mConfig.getMaxStreams(), KEEP_ALIVE, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + " " + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * returns true when peer's outgoing lane has no room for another chunk,
+   * sender waits then instead of letting queue's overflow policy drop or reject chunks
+   *
+   * @param peer    peer id
+   * @param channel channel id
+   * @return true if lane is full
+   */
+  boolean isQueueFull(String peer, int channel) {
+    return mConnection.getQueueDepth(peer, channel) >= mConnection.getChannelWindow(channel) - 1;
+  }
+
+  boolean send(String peer, byte type, byte flags, byte[] data, int channel) {
+    return mConnection.sendFrame(peer, new Frame(type, flags, data, channel));
+  }
+
+  /**
+   * acks & cancels are small, they go on default channel and don't wait behind data
+   */
+  void sendAck(String peer, int id, long offset) {
+    send(peer, Frame.TYPE_STREAM_ACK, (byte) 0, header(id, offset, 0), 0);
+  }
+
+  void sendCancel(String peer, int id, String reason) {
+    byte[] text = Frame.encodeText(reason);
+    byte[] data = header(id, 0, text.length);
+    System.arraycopy(text, 0, data, HEADER_SIZE, text.length);
+    send(peer, Frame.TYPE_STREAM_CANCEL, (byte) 0, data, 0);
+  }
+
+  void remove(StreamTransfer transfer) {
+    mOutgoing.remove(key(transfer.getPeer(), transfer.getId()));
+  }
+
+  void remove(IncomingStream stream) {
+    mIncoming.remove(key(stream.getPeer(), stream.getId()));
+  }
+
+  /**
+   * opens file & skips to offset
+   *
+   * @param file   file
+   * @param offset offset
+   * @return input positioned at offset
+   * @throws IOException if file can't be opened or is shorter than offset
+   */
+  static InputStream open(File file, long offset) throws IOException {
+    InputStream input = new FileInputStream(file);
+    long skipped = 0;
+    while (skipped < offset) {
+      long n = input.skip(offset - skipped);
+      if (n <= 0) {
+        input.close();
+        throw new IOException("Offset is beyond end of file: " + offset);
+      }
+      skipped += n;
+    }
+    return input;
+  }
+
+  static byte[] header(int id, long offset, int extra) {
+    byte[] data = new byte[HEADER_SIZE + extra];
+    putInt(data, 0, id);
+    putLong(data, 4, offset);
+    return data;
+  }
+
+  static void putInt(byte[] dst, int pos, int value) {
+    dst[pos] = (byte) (value >>> 24);
+    dst[pos + 1] = (byte) (value >>> 16);
+    dst[pos + 2] = (byte) (value >>> 8);
+    dst[pos + 3] = (byte) value;
+  }
+
+  static void putLong(byte[] dst, int pos, long value) {
+    putInt(dst, pos, (int) (value >>> 32));
+    putInt(dst, pos + 4, (int) value);
+  }
+
+  static int getInt(byte[] src, int pos) {
+    return ((src[pos] & 0xff) << 24) | ((src[pos + 1] & 0xff) << 16)
+        | ((src[pos + 2] & 0xff) << 8) | (src[pos + 3] & 0xff);
+  }
+
+  static long getLong(byte[] src, int pos) {
+    return ((long) getInt(src, pos) << 32) | (getInt(src, pos + 4) & 0xffffffffL);
+  }
+
+  private static String key(String peer, int id) {
+    return peer + "/" + id;
+  }
+
+  /**
+   * hands incoming stream to listener on a pooled thread, so listener may read it right away;
+   * stream is closed when listener returns
+   */
+  private static class StreamStarter implements Runnable {
+    private final Connection.StreamListener mListener;
+    private final IncomingStream mStream;
+
+    public StreamStarter(Connection.StreamListener listener, IncomingStream stream) {
+      mListener = listener;
+      mStream = stream;
+    }
+
+    @Override
+    public void run() {
+      try {
+        mListener.onStream(mStream);
+      } finally {
+        mStream.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package me.alwx.localcommunication.connection;
+
+import java.net.InetAddress;
+import java.util.Set;
+
+/**
+ * socket engine behind {@link me.alwx.localcommunication.connection.Connection}
+ * (see {@link me.alwx.localcommunication.connection.BlockingTransport} and
+ * {@link me.alwx.localcommunication.connection.NioTransport})
+ *
+ * @author alwx
+ * @version 1.0
+ */
+interface Transport {
+  /**
+   * starts listening on a free port
+   */
+  void startServer();
+
+  /**
+   * returns listening port, -1 until server is bound
+   *
+   * @return port
+   */
+  int getLocalPort();
+
+  /**
+   * waits until server started by {@link #startServer()} is bound
+   *
+   * @param timeout timeout in milliseconds
+   * @return port or -1 if server could not be bound in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  int awaitLocalPort(long timeout) throws InterruptedException;
+
+  /**
+   * opens connection to server, {@link Callback#onPeerConnected(String, boolean)} is called
+   * when it is established
+   *
+   * @param address server address
+   * @param port    server port
+   */
+  void connect(InetAddress address, int port);
+
+  /**
+   * queues frame for one peer
+   *
+   * @param peer  peer id
+   * @param frame frame
+   * @return false if there is no such peer or its queue is full
+   */
+  boolean send(String peer, Frame frame);
+
+  /**
+   * queues frame for one peer like {@link #send(String, Frame)}, but never waits for space:
+   * with {@link Connection.OverflowPolicy#BLOCK} a full queue rejects the frame
+   *
+   * @param peer  peer id
+   * @param frame frame
+   * @return false if there is no such peer or its queue is full
+   */
+  boolean sendWithoutWaiting(String peer, Frame frame);
+
+  /**
+   * queues frame for all peers
+   *
+   * @param frame frame
+   */
+  void sendToAll(Frame frame);
+
+  /**
+   * returns ids of all connected peers
+   *
+   * @return peer ids
+   */
+  Set<String> getPeers();
+
+  /**
+   * returns number of frames waiting to be written to peer
+   *
+   * @param peer peer id
+   * @return queue depth, 0 for unknown peer
+   */
+  int getQueueDepth(String peer);
+
+  /**
+   * returns number of frames waiting to be written to peer on one channel
+   *
+   * @param peer    peer id
+   * @param channel channel id
+   * @return queue depth
+   */
+  int getQueueDepth(String peer, int channel);
+
+  /**
+   * closes connection to one peer, {@link Callback#onPeerDisconnected(String)} is called
+   *
+   * @param peer peer id
+   */
+  void disconnect(String peer);
+
+  /**
+   * closes server & all peer connections
+   */
+  void close();
+
+  interface Callback {
+    void onPeerConnected(String peer, boolean outgoing);
+
+    /**
+     * called when connection opened by {@link #connect(java.net.InetAddress, int)} can't be established
+     *
+     * @param address server address
+     * @param port    server port
+     */
+    void onConnectFailed(InetAddress address, int port);
+
+    void onPeerDisconnected(String peer);
+
+    void onFrame(String peer, Frame frame, boolean local);
+  }
+}
@@ -0,0 +1,92 @@
+package me.alwx.localcommunication.connection;
+
+/**
+ * allocation-free UTF-8 encoding helpers
+ * (String.getBytes() creates a charset encoder & a temporary array every time)
+ *
+ * @author alwx
+ * @version 1.0
+ */
+final class Utf8 {
+  private static final byte REPLACEMENT = '?';
+
+  private Utf8() {
+  }
+
+  /**
+   * returns number of bytes string takes in UTF-8
+   *
+   * @param s string
+   * @return encoded length
+   */
+  public static int encodedLength(String s) {
+    int length = s.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          bytes += 1;
+        } else if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(s.charAt(i + 1))) {
+          bytes += 2;
+          i++;
+        } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+          bytes += 2;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * encodes whole string
+   *
+   * @param s      string
+   * @param dst    target array, must have {@link #encodedLength(String)} bytes of space
+   * @param offset position in target array
+   * @return position after last written byte
+   */
+  public static int encode(String s, byte[] dst, int offset) {
+    int length = s.length();
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        offset = encodeCodePoint(Character.toCodePoint(c, s.charAt(++i)), dst, offset);
+      } else {
+        offset = encodeCodePoint(c, dst, offset);
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * encodes one code point, unpaired surrogates are replaced with '?'
+   *
+   * @param cp     code point
+   * @param dst    target array with at least 4 bytes of space
+   * @param offset position in target array
+   * @return position after last written byte
+   */
+  public static int encodeCodePoint(int cp, byte[] dst, int offset) {
+    if (cp < 0x80) {
+      dst[offset++] = (byte) cp;
+    } else if (cp < 0x800) {
+      dst[offset++] = (byte) (0xc0 | (cp >> 6));
+      dst[offset++] = (byte) (0x80 | (cp & 0x3f));
+    } else if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) {
+      dst[offset++] = REPLACEMENT;
+    } else if (cp < 0x10000) {
+      dst[offset++] = (byte) (0xe0 | (cp >> 12));
+      dst[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      dst[offset++] = (byte) (0x80 | (cp & 0x3f));
+    } else {
+      dst[offset++] = (byte) (0xf0 | (cp >> 18));
+      dst[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+      dst[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      dst[offset++] = (byte) (0x80 | (cp & 0x3f));
+    }
+    return offset;
+  }
+}
@@ -0,0 +1,83 @@
+package me.alwx.localcommunication.connection;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.WifiManager;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Wi-Fi address of the device; holds multicast lock while started,
+ * without it Wi-Fi drivers drop mDNS packets
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class WifiAddressProvider implements AddressProvider {
+  private static final String DEBUG_TAG = WifiAddressProvider.class.getName();
+
+  private final Context mContext;
+  private BroadcastReceiver mNetworkReceiver;
+  private WifiManager.MulticastLock mMulticastLock;
+
+  /**
+   * @param context any context, application context is kept
+   */
+  public WifiAddressProvider(Context context) {
+    mContext = context.getApplicationContext();
+  }
+
+  @Override
+  public synchronized void start(final Runnable onChanged) {
+    WifiManager wifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+    mMulticastLock = wifiManager.createMulticastLock(DEBUG_TAG);
+    mMulticastLock.setReferenceCounted(false);
+    mMulticastLock.acquire();
+    mNetworkReceiver = new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent) {
+        onChanged.run();
+      }
+    };
+    mContext.registerReceiver(mNetworkReceiver,
+        new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION));
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (mNetworkReceiver != null) {
+      try {
+        mContext.unregisterReceiver(mNetworkReceiver);
+      } catch (IllegalArgumentException e) {
+        Log.d(DEBUG_TAG, "Network receiver was not registered");
+      }
+      mNetworkReceiver = null;
+    }
+    if (mMulticastLock != null && mMulticastLock.isHeld()) {
+      mMulticastLock.release();
+    }
+  }
+
+  @Override
+  public InetAddress getAddress() {
+    WifiManager wifi = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+    int intaddr = wifi.getConnectionInfo().getIpAddress();
+    if (intaddr == 0) {
+      return null;
+    }
+    byte[] byteaddr = new byte[]{
+        (byte) (intaddr & 0xff),
+        (byte) (intaddr >> 8 & 0xff),
+        (byte) (intaddr >> 16 & 0xff),
+        (byte) (intaddr >> 24 & 0xff)
+    };
+    try {
+      return InetAddress.getByAddress(byteaddr);
+    } catch (UnknownHostException e) {
+      return null;
+    }
+  }
+}
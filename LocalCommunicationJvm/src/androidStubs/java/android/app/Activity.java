@@ -0,0 +1,10 @@
+package android.app;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public class Activity {
+  public final void runOnUiThread(Runnable action) {
+    throw new RuntimeException("Stub!");
+  }
+}
@@ -0,0 +1,8 @@
+package android.content;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public abstract class BroadcastReceiver {
+  public abstract void onReceive(Context context, Intent intent);
+}
@@ -0,0 +1,16 @@
+package android.content;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public abstract class Context {
+  public static final String WIFI_SERVICE = "wifi";
+
+  public abstract Context getApplicationContext();
+
+  public abstract Object getSystemService(String name);
+
+  public abstract Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter);
+
+  public abstract void unregisterReceiver(BroadcastReceiver receiver);
+}
@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public class Intent {
+}
@@ -0,0 +1,10 @@
+package android.content;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public class IntentFilter {
+  public IntentFilter(String action) {
+    throw new RuntimeException("Stub!");
+  }
+}
@@ -0,0 +1,10 @@
+package android.net.wifi;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public class WifiInfo {
+  public int getIpAddress() {
+    throw new RuntimeException("Stub!");
+  }
+}
@@ -0,0 +1,34 @@
+package android.net.wifi;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public class WifiManager {
+  public static final String NETWORK_STATE_CHANGED_ACTION = "android.net.wifi.STATE_CHANGE";
+
+  public WifiInfo getConnectionInfo() {
+    throw new RuntimeException("Stub!");
+  }
+
+  public MulticastLock createMulticastLock(String tag) {
+    throw new RuntimeException("Stub!");
+  }
+
+  public class MulticastLock {
+    public void acquire() {
+      throw new RuntimeException("Stub!");
+    }
+
+    public void release() {
+      throw new RuntimeException("Stub!");
+    }
+
+    public void setReferenceCounted(boolean refCounted) {
+      throw new RuntimeException("Stub!");
+    }
+
+    public boolean isHeld() {
+      throw new RuntimeException("Stub!");
+    }
+  }
+}
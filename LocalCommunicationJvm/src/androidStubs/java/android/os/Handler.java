@@ -0,0 +1,30 @@
+package android.os;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public class Handler {
+  public Handler() {
+    throw new RuntimeException("Stub!");
+  }
+
+  public Handler(Looper looper) {
+    throw new RuntimeException("Stub!");
+  }
+
+  public void handleMessage(Message msg) {
+    throw new RuntimeException("Stub!");
+  }
+
+  public final boolean post(Runnable r) {
+    throw new RuntimeException("Stub!");
+  }
+
+  public final Message obtainMessage(int what, Object obj) {
+    throw new RuntimeException("Stub!");
+  }
+
+  public final Looper getLooper() {
+    throw new RuntimeException("Stub!");
+  }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public final class Looper {
+  private Looper() {
+  }
+
+  public static Looper getMainLooper() {
+    throw new RuntimeException("Stub!");
+  }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public final class Message {
+  public int what;
+  public Object obj;
+
+  public void sendToTarget() {
+    throw new RuntimeException("Stub!");
+  }
+}
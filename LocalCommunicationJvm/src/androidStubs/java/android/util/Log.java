@@ -0,0 +1,21 @@
+package android.util;
+
+/**
+ * compile-only stand-in, see build.gradle
+ */
+public final class Log {
+  private Log() {
+  }
+
+  public static boolean isLoggable(String tag, int level) {
+    throw new RuntimeException("Stub!");
+  }
+
+  public static int println(int priority, String tag, String msg) {
+    throw new RuntimeException("Stub!");
+  }
+
+  public static String getStackTraceString(Throwable tr) {
+    throw new RuntimeException("Stub!");
+  }
+}
@@ -0,0 +1,156 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * heap bytes allocated per sent message: a writer stack created for every message,
+ * as sending used to work, against one long-lived {@link FrameWriter} per socket,
+ * and the whole way through a loopback connection, both ends & all their threads included
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class AllocationBenchmark implements Benchmark {
+  private static final int WARMUP = 50000;
+  private static final int MESSAGES = 200000;
+  private static final int LOOPBACK_MESSAGES = 20000;
+  private static final long TIMEOUT = 60000;
+  private static final String TEXT =
+      "{\"type\":\"stock\",\"sku\":\"A-1042\",\"level\":42,\"updated\":1381000000000}";
+
+  private final ThreadMXBean mThreads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  @Override
+  public String getName() {
+    return "allocation";
+  }
+
+  @Override
+  public void run(PrintStream out) throws Exception {
+    if (!mThreads.isThreadAllocatedMemorySupported()) {
+      out.println("allocation counting is not supported by this JVM");
+      return;
+    }
+    mThreads.setThreadAllocatedMemoryEnabled(true);
+
+    perMessageWriter(WARMUP);
+    out.printf("writer per message: %.0f bytes/message%n", perMessageWriter(MESSAGES) / (double) MESSAGES);
+    Frame message = Frame.message(TEXT);
+    for (Connection.FramingMode mode : Connection.FramingMode.values()) {
+      frameWriter(mode, message, WARMUP);
+      out.printf("FrameWriter, %s: %.1f bytes/message%n",
+          mode, frameWriter(mode, message, MESSAGES) / (double) MESSAGES);
+    }
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      loopback(out, mode, message);
+    }
+  }
+
+  /**
+   * sends every message through a new PrintWriter stack, flushed twice
+   *
+   * @return bytes allocated
+   */
+  private long perMessageWriter(int messages) {
+    OutputStream socket = discarding();
+    long before = mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for (int i = 0; i < messages; i++) {
+      PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket)), true);
+      writer.println(TEXT);
+      writer.flush();
+    }
+    return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+  }
+
+  /**
+   * sends every message through one writer, flushed once per message
+   *
+   * @return bytes allocated
+   */
+  private long frameWriter(Connection.FramingMode mode, Frame message, int messages) throws Exception {
+    FrameWriter writer = new FrameWriter(discarding(), 8192, Framing.create(mode));
+    long before = mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    for (int i = 0; i < messages; i++) {
+      writer.write(message);
+      writer.flush();
+    }
+    return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+  }
+
+  private void loopback(PrintStream out, Connection.TransportMode mode, Frame message) throws Exception {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    Connection server = new Connection(null, config);
+    final AtomicLong received = new AtomicLong();
+    server.setFrameListener(new Connection.FrameListener() {
+      @Override
+      public void onFrame(String peer, Frame frame) {
+        received.incrementAndGet();
+      }
+    }, null);
+    server.createServer();
+    Connection client = new Connection(null, config);
+    client.connectToServer(InetAddress.getByName("127.0.0.1"), server.awaitLocalPort(2000));
+    LoopbackBenchmark.awaitPeers(client, 1);
+    String peer = client.getPeers().iterator().next();
+    send(client, peer, message, received, LOOPBACK_MESSAGES);
+
+    // connection threads are all running by now, threads started later aren't counted
+    long[] ids = mThreads.getAllThreadIds();
+    long before = sum(mThreads.getThreadAllocatedBytes(ids));
+    send(client, peer, message, received, LOOPBACK_MESSAGES);
+    long allocated = sum(mThreads.getThreadAllocatedBytes(ids)) - before;
+    out.printf("%s loopback, both ends: %.0f bytes/message%n",
+        mode, allocated / (double) LOOPBACK_MESSAGES);
+
+    client.closeConnection();
+    server.closeConnection();
+  }
+
+  private static void send(Connection client, String peer, Frame message, AtomicLong received,
+                           int messages) throws InterruptedException {
+    long expected = received.get() + messages;
+    for (int i = 0; i < messages; i++) {
+      client.sendFrame(peer, message);
+    }
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (received.get() < expected && System.currentTimeMillis() < end) {
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * sums counts of threads still alive, ended ones are -1
+   */
+  private static long sum(long[] allocated) {
+    long total = 0;
+    for (long bytes : allocated) {
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+
+  private static OutputStream discarding() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    };
+  }
+}
@@ -0,0 +1,24 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.PrintStream;
+
+/**
+ * one benchmark of {@link me.alwx.localcommunication.connection.Benchmarks}
+ *
+ * @author alwx
+ * @version 1.0
+ */
+interface Benchmark {
+  /**
+   * @return name benchmark is chosen by on command line
+   */
+  String getName();
+
+  /**
+   * runs benchmark, printing one line per measurement
+   *
+   * @param out output
+   * @throws Exception if benchmark could not run
+   */
+  void run(PrintStream out) throws Exception;
+}
@@ -0,0 +1,33 @@
+package me.alwx.localcommunication.connection;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * runs benchmarks against loopback: all of them, or those named in arguments
+ * (<code>gradle benchmark -Pbenchmarks=loopback</code>)
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class Benchmarks {
+  private static final List<Benchmark> BENCHMARKS = Arrays.<Benchmark>asList(
+      new LoopbackBenchmark(),
+      new FanOutBenchmark(),
+      new CompressionBenchmark(),
+      new CodecBenchmark(),
+      new AllocationBenchmark(),
+      new StreamBenchmark());
+
+  public static void main(String[] args) throws Exception {
+    List<String> names = Arrays.asList(args);
+    for (Benchmark benchmark : BENCHMARKS) {
+      if (names.isEmpty() || names.contains(benchmark.getName())) {
+        System.out.println("== " + benchmark.getName());
+        benchmark.run(System.out);
+      }
+    }
+    // threads of closed connections may still be winding down
+    System.exit(0);
+  }
+}
@@ -0,0 +1,86 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CPU time & size of a typical message for every codec, without any socket:
+ * encoding, full decoding & reading the type only, which is all routing needs
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class CodecBenchmark implements Benchmark {
+  private static final int WARMUP = 200000;
+  private static final int ITERATIONS = 1000000;
+
+  /**
+   * results are added up here, so JIT can't drop the work
+   */
+  private long mSink;
+
+  @Override
+  public String getName() {
+    return "codec";
+  }
+
+  @Override
+  public void run(PrintStream out) throws Exception {
+    Map<String, Object> values = message();
+    List<MessageCodec> codecs = Arrays.<MessageCodec>asList(JsonCodec.INSTANCE, BinaryCodec.INSTANCE);
+    for (MessageCodec codec : codecs) {
+      measure(codec, values, WARMUP);
+    }
+    for (MessageCodec codec : codecs) {
+      long[] nanos = measure(codec, values, ITERATIONS);
+      out.printf("%s: %d bytes, encode %.0f ns, decode %.0f ns, type %.0f ns%n",
+          codec.getClass().getSimpleName(), codec.encode(values).length,
+          nanos[0] / (double) ITERATIONS, nanos[1] / (double) ITERATIONS, nanos[2] / (double) ITERATIONS);
+    }
+  }
+
+  /**
+   * @return total nanoseconds of encoding, decoding & reading type
+   */
+  private long[] measure(MessageCodec codec, Map<String, Object> values, int iterations) throws Exception {
+    long[] nanos = new long[3];
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      mSink += codec.encode(values).length;
+    }
+    nanos[0] = System.nanoTime() - start;
+    byte[] data = codec.encode(values);
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      mSink += codec.decode(data).length();
+    }
+    nanos[1] = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      mSink += codec.decodeType(data).length();
+    }
+    nanos[2] = System.nanoTime() - start;
+    return nanos;
+  }
+
+  /**
+   * status message with ten fields, the usual size of hub traffic
+   */
+  static Map<String, Object> message() {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put(Communication.MESSAGE_TYPE, "stock");
+    values.put("sku", "A-1042");
+    values.put("warehouse", "north");
+    values.put("aisle", 12);
+    values.put("shelf", 3);
+    values.put("level", 42);
+    values.put("reserved", 5);
+    values.put("price", 19.99);
+    values.put("active", true);
+    values.put("updated", 1381000000000L);
+    return values;
+  }
+}
@@ -0,0 +1,97 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bytes on the wire & what compression costs in throughput & call latency,
+ * for binary & JSON messages over both transports
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class CompressionBenchmark implements Benchmark {
+  private static final int MESSAGES = 5000;
+  private static final int CALLS = 2000;
+  private static final long TIMEOUT = 60000;
+
+  @Override
+  public String getName() {
+    return "compression";
+  }
+
+  @Override
+  public void run(PrintStream out) throws Exception {
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      for (Connection.Compression compression : Connection.Compression.values()) {
+        measure(out, mode, compression, "binary", LoopbackBenchmark.message());
+        measure(out, mode, compression, "JSON", Frame.message(
+            "{\"type\":\"stock\",\"sku\":\"A-1042\",\"level\":42,\"updated\":1381000000000}"));
+      }
+    }
+  }
+
+  private void measure(PrintStream out, Connection.TransportMode mode, Connection.Compression compression,
+                       String kind, Frame message) throws Exception {
+    CollectingMetrics metrics = new CollectingMetrics();
+    ConnectionConfig serverConfig = config(mode, compression);
+    serverConfig.setMetrics(metrics);
+    Connection server = new Connection(null, serverConfig);
+    final AtomicLong received = new AtomicLong();
+    server.setFrameListener(new Connection.FrameListener() {
+      @Override
+      public void onFrame(String peer, Frame frame) {
+        received.incrementAndGet();
+      }
+    }, null);
+    server.setRequestHandler(new Connection.RequestHandler() {
+      @Override
+      public Frame onRequest(String peer, Frame request) {
+        return request;
+      }
+    }, null);
+    server.createServer();
+    int port = server.awaitLocalPort(2000);
+    Connection client = new Connection(null, config(mode, compression));
+    client.connectToServer(InetAddress.getByName("127.0.0.1"), port);
+    LoopbackBenchmark.awaitPeers(client, 1);
+    String peer = client.getPeers().iterator().next();
+    // handshake bytes don't count
+    Thread.sleep(100);
+    metrics.reset();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < MESSAGES; i++) {
+      client.sendFrame(peer, message);
+    }
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (received.get() < MESSAGES && System.currentTimeMillis() < end) {
+      Thread.sleep(1);
+    }
+    long elapsed = System.nanoTime() - start;
+    long bytes = metrics.getCount(Metrics.Counter.BYTES_IN);
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < CALLS; i++) {
+      long called = System.nanoTime();
+      client.call(peer, message, TIMEOUT).get();
+      histogram.record((System.nanoTime() - called) / 1000);
+    }
+    out.printf("%s %s, %s: %.1f bytes/message (%d payload), %.0f messages/s,"
+            + " call p50 %d us, p99 %d us%n",
+        mode, compression, kind, bytes / (double) received.get(), message.getLength(),
+        received.get() / (elapsed / 1e9), histogram.getPercentile(50), histogram.getPercentile(99));
+
+    client.closeConnection();
+    server.closeConnection();
+  }
+
+  private static ConnectionConfig config(Connection.TransportMode mode, Connection.Compression compression) {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    config.setCompression(compression);
+    return config;
+  }
+}
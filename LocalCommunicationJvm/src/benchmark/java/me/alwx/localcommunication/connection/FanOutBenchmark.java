@@ -0,0 +1,162 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * topic fan-out from a hub against number of subscribers: publishing encodes a message once
+ * for all of them, sending it peer by peer encodes it for every one; with a stalled subscriber
+ * the others must go on at the same rate
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class FanOutBenchmark implements Benchmark {
+  private static final int[] SUBSCRIBERS = {1, 10, 50, 100};
+  private static final int COMPARED_SUBSCRIBERS = 50;
+  private static final int MESSAGES = 10000;
+  private static final String TOPIC = "stock";
+  private static final long TIMEOUT = 60000;
+  private static final long STALL = 1000;
+  /**
+   * padding large enough for copies to a stalled subscriber to fill socket buffers & its queue
+   */
+  private static final int LARGE = 1024;
+
+  @Override
+  public String getName() {
+    return "fanout";
+  }
+
+  @Override
+  public void run(PrintStream out) throws Exception {
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      for (int subscribers : SUBSCRIBERS) {
+        fanOut(out, mode, subscribers, 0, false, false);
+      }
+      fanOut(out, mode, COMPARED_SUBSCRIBERS, 0, true, false);
+      fanOut(out, mode, COMPARED_SUBSCRIBERS, LARGE, false, false);
+      fanOut(out, mode, COMPARED_SUBSCRIBERS, LARGE, false, true);
+    }
+  }
+
+  /**
+   * @param padding number of characters added to every message
+   * @param perPeer true to encode & send message to every subscriber on its own
+   * @param stalled true to add one more subscriber that stops reading
+   */
+  private void fanOut(PrintStream out, Connection.TransportMode mode, int subscribers, int padding,
+                      boolean perPeer, boolean stalled) throws Exception {
+    ConnectionConfig hubConfig = config(mode);
+    hubConfig.setQueueCapacity(4096);
+    Connection hub = new Connection(null, hubConfig);
+    hub.createServer();
+    int port = hub.awaitLocalPort(2000);
+
+    final AtomicLong received = new AtomicLong();
+    final CountDownLatch release = new CountDownLatch(1);
+    List<Connection> clients = new ArrayList<Connection>();
+    for (int i = 0; i < subscribers + (stalled ? 1 : 0); i++) {
+      Connection client = new Connection(null, config(mode));
+      if (i < subscribers) {
+        client.setFrameListener(new Connection.FrameListener() {
+          @Override
+          public void onFrame(String peer, Frame frame) {
+            received.incrementAndGet();
+          }
+        }, null);
+      } else {
+        // blocks reading thread, so socket buffers & hub's queue for it fill up
+        client.setFrameListener(new Connection.FrameListener() {
+          @Override
+          public void onFrame(String peer, Frame frame) {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }, null);
+      }
+      client.subscribe(TOPIC);
+      client.connectToServer(InetAddress.getByName("127.0.0.1"), port);
+      clients.add(client);
+    }
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (hub.getSubscribers(TOPIC).size() < clients.size() && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+
+    StringBuilder pad = new StringBuilder();
+    for (int i = 0; i < padding; i++) {
+      pad.append('x');
+    }
+    long queued = 0;
+    long start = System.nanoTime();
+    if (perPeer) {
+      Set<String> peers = hub.getSubscribers(TOPIC);
+      for (int i = 0; i < MESSAGES; i++) {
+        String text = text(i, pad);
+        for (String peer : peers) {
+          if (hub.sendFrame(peer, Frame.message(text))) {
+            queued++;
+          }
+        }
+      }
+    } else {
+      for (int i = 0; i < MESSAGES; i++) {
+        queued += hub.publish(TOPIC, Frame.message(text(i, pad)));
+      }
+    }
+    long published = System.nanoTime() - start;
+    long expected = (long) MESSAGES * subscribers;
+    // copies skipped on a full queue never arrive, so stop once deliveries stall
+    long last = -1;
+    long elapsed = System.nanoTime() - start;
+    end = System.currentTimeMillis() + TIMEOUT;
+    while (received.get() < expected && System.currentTimeMillis() < end) {
+      if (received.get() != last) {
+        last = received.get();
+        elapsed = System.nanoTime() - start;
+      } else if ((System.nanoTime() - start - elapsed) / 1e6 > STALL) {
+        break;
+      }
+      Thread.sleep(2);
+    }
+    if (received.get() >= expected) {
+      elapsed = System.nanoTime() - start;
+    }
+    // whatever was skipped beyond copies that didn't reach live subscribers was stalled one's
+    long skipped = expected - received.get();
+    out.printf("%s %s, %d subscribers%s: %.0f messages/s sent (%.2f us each),"
+            + " %d/%d delivered in %.0f ms, %.0f deliveries/s, %d copies skipped on full queues%s%n",
+        mode, perPeer ? "per peer" : "publish", subscribers,
+        padding > 0 ? ", " + padding + " bytes padding" : "",
+        MESSAGES / (published / 1e9), published / 1e3 / MESSAGES,
+        received.get(), expected, elapsed / 1e6, received.get() / (elapsed / 1e9), skipped,
+        stalled ? " + " + ((long) MESSAGES * clients.size() - queued - skipped) + " for 1 stalled subscriber" : "");
+
+    release.countDown();
+    for (Connection client : clients) {
+      client.closeConnection();
+    }
+    hub.closeConnection();
+  }
+
+  private static ConnectionConfig config(Connection.TransportMode mode) {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    return config;
+  }
+
+  private static String text(int i, CharSequence padding) {
+    return "{\"type\":\"stock\",\"sku\":\"SKU-" + (i % 500) + "\",\"level\":" + i
+        + ",\"warehouse\":\"north\",\"note\":\"" + padding + "\"}";
+  }
+}
@@ -0,0 +1,186 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * message throughput from one server to many peers, threads server needs for them
+ * & round-trip latency of calls, over both transports
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class LoopbackBenchmark implements Benchmark {
+  private static final int[] PEERS = {1, 10, 50};
+  private static final int MESSAGES = 2000;
+  private static final int CALLS = 5000;
+  private static final int CALL_WINDOW = 256;
+  private static final long TIMEOUT = 60000;
+
+  @Override
+  public String getName() {
+    return "loopback";
+  }
+
+  @Override
+  public void run(PrintStream out) throws Exception {
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      for (int peers : PEERS) {
+        throughput(out, mode, peers);
+      }
+      for (int peers : PEERS) {
+        threads(out, mode, peers);
+      }
+      latency(out, mode);
+    }
+  }
+
+  private void throughput(PrintStream out, Connection.TransportMode mode, int peers) throws Exception {
+    Connection server = new Connection(null, config(mode));
+    server.createServer();
+    int port = server.awaitLocalPort(2000);
+    final AtomicLong received = new AtomicLong();
+    List<Connection> clients = new ArrayList<Connection>();
+    for (int i = 0; i < peers; i++) {
+      Connection client = new Connection(null, config(mode));
+      client.setFrameListener(new Connection.FrameListener() {
+        @Override
+        public void onFrame(String peer, Frame frame) {
+          received.incrementAndGet();
+        }
+      }, null);
+      client.connectToServer(InetAddress.getByName("127.0.0.1"), port);
+      clients.add(client);
+    }
+    awaitPeers(server, peers);
+
+    Frame message = message();
+    long expected = (long) MESSAGES * peers;
+    long start = System.nanoTime();
+    for (int i = 0; i < MESSAGES; i++) {
+      server.sendFrame(message);
+    }
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (received.get() < expected && System.currentTimeMillis() < end) {
+      Thread.sleep(1);
+    }
+    long elapsed = System.nanoTime() - start;
+    out.printf("%s throughput, %d peers: %d/%d delivered in %.0f ms, %.0f messages/s%n",
+        mode, peers, received.get(), expected, elapsed / 1e6, received.get() / (elapsed / 1e9));
+
+    for (Connection client : clients) {
+      client.closeConnection();
+    }
+    server.closeConnection();
+  }
+
+  /**
+   * peers are plain sockets that start no threads, so all new threads are server's
+   */
+  private void threads(PrintStream out, Connection.TransportMode mode, int peers) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    // threads of previous runs take a moment to end
+    Thread.sleep(500);
+    int before = threads.getThreadCount();
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mode);
+    Connection server = new Connection(null, config);
+    server.createServer();
+    int port = server.awaitLocalPort(2000);
+    List<Socket> sockets = new ArrayList<Socket>();
+    for (int i = 0; i < peers; i++) {
+      sockets.add(new Socket("127.0.0.1", port));
+    }
+    awaitPeers(server, peers);
+    Thread.sleep(200);
+    int added = threads.getThreadCount() - before;
+    out.printf("%s threads, %d peers: %d server threads (%.1f per peer)%n",
+        mode, peers, added, added / (double) peers);
+
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    server.closeConnection();
+  }
+
+  private void latency(PrintStream out, Connection.TransportMode mode) throws Exception {
+    Connection server = new Connection(null, config(mode));
+    server.setRequestHandler(new Connection.RequestHandler() {
+      @Override
+      public Frame onRequest(String peer, Frame request) {
+        return request;
+      }
+    }, null);
+    server.createServer();
+    int port = server.awaitLocalPort(2000);
+    Connection client = new Connection(null, config(mode));
+    client.connectToServer(InetAddress.getByName("127.0.0.1"), port);
+    awaitPeers(client, 1);
+    String peer = client.getPeers().iterator().next();
+
+    Frame message = message();
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < CALLS; i++) {
+      long start = System.nanoTime();
+      client.call(peer, message, TIMEOUT).get();
+      histogram.record((System.nanoTime() - start) / 1000);
+    }
+    out.printf("%s call latency: p50 %d us, p99 %d us, max %d us%n", mode,
+        histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax());
+
+    List<Future<Frame>> calls = new ArrayList<Future<Frame>>();
+    long start = System.nanoTime();
+    for (int i = 0; i < CALLS + CALL_WINDOW; i++) {
+      if (i < CALLS) {
+        calls.add(client.call(peer, message, TIMEOUT));
+      }
+      if (i >= CALL_WINDOW) {
+        calls.get(i - CALL_WINDOW).get();
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    out.printf("%s pipelined calls, %d in flight: %.0f calls/s%n", mode, CALL_WINDOW,
+        CALLS / (elapsed / 1e9));
+
+    client.closeConnection();
+    server.closeConnection();
+  }
+
+  private static ConnectionConfig config(Connection.TransportMode mode) {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    return config;
+  }
+
+  /**
+   * typical small status message
+   */
+  static Frame message() {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put(Communication.MESSAGE_TYPE, "stock");
+    values.put("sku", "A-1042");
+    values.put("level", 42);
+    values.put("updated", 1381000000000L);
+    return MessageCodecs.toFrame(BinaryCodec.INSTANCE, values);
+  }
+
+  static void awaitPeers(Connection connection, int peers) throws InterruptedException {
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (connection.getPeerCount() < peers && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    if (connection.getPeerCount() < peers) {
+      throw new IllegalStateException("Only " + connection.getPeerCount() + " of " + peers + " peers connected");
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package me.alwx.localcommunication.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bulk stream throughput over both transports against a plain socket
+ * writing the same bytes in chunks of the same size, the most a stream could get
+ *
+ * @author alwx
+ * @version 1.0
+ */
+class StreamBenchmark implements Benchmark {
+  private static final long SIZE = 256L * 1024 * 1024;
+  private static final long TIMEOUT = 120000;
+
+  @Override
+  public String getName() {
+    return "stream";
+  }
+
+  @Override
+  public void run(PrintStream out) throws Exception {
+    // first runs warm up JIT
+    rawSocket(SIZE / 4);
+    report(out, "raw socket", rawSocket(SIZE), SIZE);
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      stream(mode, SIZE / 4);
+      report(out, mode + " stream", stream(mode, SIZE), SIZE);
+    }
+  }
+
+  private static void report(PrintStream out, String kind, long nanos, long size) {
+    out.printf("%s, %d MB: %.0f ms, %.0f MB/s%n", kind, size >> 20, nanos / 1e6,
+        size / (double) (1 << 20) / (nanos / 1e9));
+  }
+
+  /**
+   * @return nanoseconds from first written byte to last one read
+   */
+  private long rawSocket(final long size) throws Exception {
+    final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    final AtomicLong read = new AtomicLong();
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          InputStream in = socket.getInputStream();
+          byte[] buffer = new byte[Transfers.CHUNK_SIZE];
+          int count;
+          while ((count = in.read(buffer)) >= 0) {
+            read.addAndGet(count);
+          }
+          socket.close();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+    reader.start();
+    Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+    socket.setTcpNoDelay(true);
+    OutputStream output = socket.getOutputStream();
+    byte[] chunk = new byte[Transfers.CHUNK_SIZE];
+    long start = System.nanoTime();
+    for (long written = 0; written < size; written += chunk.length) {
+      output.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+    }
+    socket.shutdownOutput();
+    reader.join(TIMEOUT);
+    long elapsed = System.nanoTime() - start;
+    socket.close();
+    server.close();
+    if (read.get() != size) {
+      throw new IllegalStateException("Only " + read.get() + " of " + size + " bytes read");
+    }
+    return elapsed;
+  }
+
+  /**
+   * @return nanoseconds from start of transfer to last byte read by receiver
+   */
+  private long stream(Connection.TransportMode mode, long size) throws Exception {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    Connection server = new Connection(null, config);
+    final AtomicLong read = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(1);
+    server.setStreamListener(new Connection.StreamListener() {
+      @Override
+      public void onStream(IncomingStream stream) {
+        byte[] buffer = new byte[Transfers.CHUNK_SIZE];
+        int count;
+        try {
+          while ((count = stream.read(buffer)) >= 0) {
+            read.addAndGet(count);
+          }
+        } catch (IOException e) {
+          // reported as missing bytes
+        }
+        done.countDown();
+      }
+    });
+    server.createServer();
+    Connection client = new Connection(null, config);
+    client.connectToServer(InetAddress.getByName("127.0.0.1"), server.awaitLocalPort(2000));
+    LoopbackBenchmark.awaitPeers(client, 1);
+    String peer = client.getPeers().iterator().next();
+
+    long start = System.nanoTime();
+    client.sendStream(peer, new ZeroStream(size), size, "bulk", 0, null);
+    done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+    long elapsed = System.nanoTime() - start;
+    client.closeConnection();
+    server.closeConnection();
+    if (read.get() != size) {
+      throw new IllegalStateException("Only " + read.get() + " of " + size + " bytes read");
+    }
+    return elapsed;
+  }
+
+  /**
+   * given number of zero bytes, without holding them in memory
+   */
+  private static class ZeroStream extends InputStream {
+    private long mLeft;
+
+    public ZeroStream(long size) {
+      mLeft = size;
+    }
+
+    @Override
+    public int read() {
+      if (mLeft == 0) {
+        return -1;
+      }
+      mLeft--;
+      return 0;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      if (mLeft == 0) {
+        return -1;
+      }
+      int count = (int) Math.min(length, mLeft);
+      mLeft -= count;
+      return count;
+    }
+  }
+}
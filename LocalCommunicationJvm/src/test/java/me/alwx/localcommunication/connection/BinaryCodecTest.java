@@ -0,0 +1,255 @@
+package me.alwx.localcommunication.connection;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * binary messages: round trip of every value kind, nesting limit,
+ * interning between two string tables & rejection of broken input
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class BinaryCodecTest {
+  /**
+   * nesting limit of the codec
+   */
+  private static final int MAX_DEPTH = 32;
+
+  private final BinaryCodec mCodec = BinaryCodec.INSTANCE;
+
+  @Test
+  public void decodesWhatItEncodes() throws Exception {
+    JSONObject decoded = mCodec.decode(mCodec.encode(message()));
+
+    assertEquals("stock", decoded.getString(Communication.MESSAGE_TYPE));
+    assertEquals(Communication.Connect.TYPE, decoded.getString("kind"));
+    assertEquals(42, decoded.get("level"));
+    assertEquals(-7, decoded.get("delta"));
+    assertEquals(1381000000000L, decoded.get("updated"));
+    assertEquals(Long.MIN_VALUE, decoded.get("min"));
+    assertEquals(0.25, decoded.getDouble("ratio"), 0);
+    assertEquals(Boolean.TRUE, decoded.get("active"));
+    assertEquals(Boolean.FALSE, decoded.get("stale"));
+    assertTrue(decoded.isNull("note"));
+    assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) decoded.get("checksum"));
+    assertEquals("\u00fcn\u00efcode \u2713", decoded.getString("label"));
+
+    JSONObject location = decoded.getJSONObject("location");
+    assertEquals("A", location.getString("aisle"));
+    JSONArray shelves = location.getJSONArray("shelves");
+    assertEquals(3, shelves.length());
+    assertEquals(1, shelves.get(0));
+    assertEquals("top", shelves.getJSONObject(1).getString("level"));
+    assertEquals(0, shelves.getJSONArray(2).length());
+    assertEquals(13, decoded.length());
+  }
+
+  @Test
+  public void readsTypeWithoutDecodingOtherFields() throws Exception {
+    assertEquals("stock", mCodec.decodeType(mCodec.encode(message())));
+    Map<String, Object> untyped = new HashMap<String, Object>();
+    untyped.put("level", 42);
+    assertEquals(null, mCodec.decodeType(mCodec.encode(untyped)));
+  }
+
+  @Test
+  public void encodesJsonValuesLikeMapsAndCollections() throws Exception {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put("object", new JSONObject().put("a", 1));
+    values.put("array", new JSONArray().put("b").put(JSONObject.NULL));
+    values.put("map", singleton("a", 1));
+    values.put("list", Arrays.asList("b", null));
+
+    JSONObject decoded = mCodec.decode(mCodec.encode(values));
+    assertEquals(decoded.getJSONObject("object").toString(), decoded.getJSONObject("map").toString());
+    assertEquals(decoded.getJSONArray("array").toString(), decoded.getJSONArray("list").toString());
+  }
+
+  @Test
+  public void encodesNestingUpToLimit() throws Exception {
+    JSONObject decoded = mCodec.decode(mCodec.encode(singleton("deep", nested(MAX_DEPTH))));
+    Object value = decoded.get("deep");
+    for (int i = 0; i < MAX_DEPTH; i++) {
+      assertEquals(1, ((JSONArray) value).length());
+      value = ((JSONArray) value).get(0);
+    }
+    assertEquals("bottom", value);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEncodingNestedTooDeep() {
+    mCodec.encode(singleton("deep", nested(MAX_DEPTH + 1)));
+  }
+
+  @Test
+  public void rejectsDecodingNestedTooDeep() throws Exception {
+    // hand-made: one field, dictionary key, arrays of one element each around a null
+    List<Integer> bytes = new ArrayList<Integer>(Arrays.asList(1, 1));
+    for (int i = 0; i < MAX_DEPTH + 1; i++) {
+      bytes.add(10);
+      bytes.add(1);
+    }
+    bytes.add(0);
+    byte[] data = toBytes(bytes);
+    assertRejected(data);
+    try {
+      mCodec.decodeType(data);
+      fail("nesting was accepted");
+    } catch (JSONException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void internsRepeatedStrings() throws Exception {
+    BinaryCodec.StringTable sending = new BinaryCodec.StringTable();
+    BinaryCodec.StringTable receiving = new BinaryCodec.StringTable();
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put(Communication.MESSAGE_TYPE, "stock");
+    values.put("sku", "A-1042");
+    values.put("warehouse", "north");
+    values.put("level", 42);
+    byte[] data = mCodec.encode(values);
+
+    byte[] first = BinaryCodec.intern(data, sending);
+    byte[] second = BinaryCodec.intern(data, sending);
+    assertTrue(first.length + " -> " + second.length, second.length < first.length - 20);
+    assertArrayEquals(data, BinaryCodec.expand(first, receiving));
+    assertArrayEquals(data, BinaryCodec.expand(second, receiving));
+    assertEquals(sending.size(), receiving.size());
+  }
+
+  @Test
+  public void leavesStringTableUnchangedOnInvalidMessage() throws Exception {
+    BinaryCodec.StringTable table = new BinaryCodec.StringTable();
+    byte[] data = mCodec.encode(message());
+    try {
+      BinaryCodec.intern(Arrays.copyOf(data, data.length - 1), table);
+      fail("truncated message was interned");
+    } catch (JSONException e) {
+      // expected
+    }
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void rejectsUnknownInternedString() {
+    // one field, literal key "k" (interned keys are doubled), interned string 5
+    byte[] data = {1, 0, 1, 'k', 8, 5};
+    try {
+      BinaryCodec.expand(data, new BinaryCodec.StringTable());
+      fail("unknown id was expanded");
+    } catch (JSONException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void rejectsTruncatedMessages() {
+    byte[] data = mCodec.encode(message());
+    for (int length = 0; length < data.length; length++) {
+      assertRejected(Arrays.copyOf(data, length));
+    }
+  }
+
+  @Test
+  public void rejectsMalformedMessages() {
+    byte[] data = mCodec.encode(message());
+    byte[] trailing = Arrays.copyOf(data, data.length + 1);
+    assertRejected(trailing);
+    // unknown value tag
+    assertRejected(new byte[]{1, 1, 99});
+    // unknown dictionary key & value
+    assertRejected(new byte[]{1, 100, 0});
+    assertRejected(new byte[]{1, 1, 6, 100});
+    // varint longer than 64 bits
+    assertRejected(new byte[]{-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1});
+    // string longer than the message
+    assertRejected(new byte[]{1, 0, 50, 'k'});
+    assertRejected(new byte[]{1, 1, 5, 50, 'v'});
+  }
+
+  @Test
+  public void isSmallerThanJson() {
+    Map<String, Object> values = message();
+    values.remove("checksum");
+    int binary = mCodec.encode(values).length;
+    int json = JsonCodec.INSTANCE.encode(values).length;
+    assertTrue(binary + " vs " + json + " bytes", binary < json * 2 / 3);
+  }
+
+  private void assertRejected(byte[] data) {
+    try {
+      mCodec.decode(data);
+      fail("accepted " + Arrays.toString(data));
+    } catch (JSONException e) {
+      assertFalse(e.getMessage().isEmpty());
+    }
+  }
+
+  /**
+   * message with every kind of value, nested ones included
+   */
+  private static Map<String, Object> message() {
+    Map<String, Object> location = new LinkedHashMap<String, Object>();
+    location.put("aisle", "A");
+    location.put("shelves", Arrays.asList(1, singleton("level", "top"), new ArrayList<Object>()));
+
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put(Communication.MESSAGE_TYPE, "stock");
+    values.put("kind", Communication.Connect.TYPE);
+    values.put("level", 42);
+    values.put("delta", -7);
+    values.put("updated", 1381000000000L);
+    values.put("min", Long.MIN_VALUE);
+    values.put("ratio", 0.25);
+    values.put("active", true);
+    values.put("stale", false);
+    values.put("note", null);
+    values.put("checksum", new byte[]{1, 2, 3});
+    values.put("label", "\u00fcn\u00efcode \u2713");
+    values.put("location", location);
+    return values;
+  }
+
+  /**
+   * @return string inside the given number of single-element lists
+   */
+  private static Object nested(int depth) {
+    Object value = "bottom";
+    for (int i = 0; i < depth; i++) {
+      value = Arrays.asList(value);
+    }
+    return value;
+  }
+
+  private static Map<String, Object> singleton(String key, Object value) {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put(key, value);
+    return values;
+  }
+
+  private static byte[] toBytes(List<Integer> values) {
+    byte[] bytes = new byte[values.size()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = values.get(i).byteValue();
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,203 @@
+package me.alwx.localcommunication.connection;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * request/response calls between two connections on loopback, over both transports
+ *
+ * @author alwx
+ * @version 1.0
+ */
+@RunWith(Parameterized.class)
+public class CallsTest {
+  private final Connection.TransportMode mMode;
+  private Connection mServer;
+  private Connection mClient;
+  private String mPeer;
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> modes() {
+    List<Object[]> modes = new ArrayList<Object[]>();
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      modes.add(new Object[]{mode});
+    }
+    return modes;
+  }
+
+  public CallsTest(Connection.TransportMode mode) {
+    mMode = mode;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    final Random random = new Random(1);
+    mServer = new Connection(null, config());
+    mServer.setRequestHandler(new Connection.RequestHandler() {
+      @Override
+      public Frame onRequest(String peer, Frame request) throws Exception {
+        String text = request.getText();
+        if (text.equals("slow")) {
+          Thread.sleep(500);
+        } else if (text.equals("fail")) {
+          throw new IllegalStateException("no such sku");
+        } else if (text.startsWith("jitter")) {
+          // answers come back out of order
+          Thread.sleep(random.nextInt(3));
+        }
+        return Frame.message("re:" + text);
+      }
+    }, null);
+    mClient = connect(mServer);
+    mPeer = mClient.getPeers().iterator().next();
+  }
+
+  @After
+  public void tearDown() {
+    mClient.closeConnection();
+    mServer.closeConnection();
+  }
+
+  @Test
+  public void answersSequentialCalls() throws Exception {
+    for (int i = 0; i < 500; i++) {
+      assertEquals("re:" + i, mClient.call(mPeer, Frame.message(String.valueOf(i)), 2000).get().getText());
+    }
+  }
+
+  @Test
+  public void matchesAnswersOfPipelinedCalls() throws Exception {
+    List<Future<Frame>> calls = new ArrayList<Future<Frame>>();
+    for (int i = 0; i < 1000; i++) {
+      calls.add(mClient.call(mPeer, Frame.message("jitter" + i), 5000));
+    }
+    for (int i = 0; i < calls.size(); i++) {
+      assertEquals("re:jitter" + i, calls.get(i).get().getText());
+    }
+  }
+
+  @Test
+  public void timesOut() throws Exception {
+    try {
+      mClient.call(mPeer, Frame.message("slow"), 100).get();
+      fail("call was answered before its timeout");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+  }
+
+  @Test
+  public void reportsHandlerError() throws Exception {
+    try {
+      mClient.call(mPeer, Frame.message("fail"), 2000).get();
+      fail("failed request was answered");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage().contains("no such sku"));
+    }
+  }
+
+  @Test
+  public void failsCallToPeerWithoutHandler() throws Exception {
+    try {
+      mServer.call(mServer.getPeers().iterator().next(), Frame.message("x"), 2000).get();
+      fail("peer without request handler answered");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void failsPendingCallsOnDisconnect() throws Exception {
+    Future<Frame> pending = mClient.call(mPeer, Frame.message("slow"), 5000);
+    Thread.sleep(50);
+    mServer.closeConnection();
+    try {
+      pending.get();
+      fail("call was answered by a closed server");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void routesRequestsByType() throws Exception {
+    RpcDispatcher dispatcher = new RpcDispatcher();
+    dispatcher.register("lookup", new RpcDispatcher.OnRequestListener() {
+      @Override
+      public Map<String, ?> onRequest(String peer, JSONObject request) throws Exception {
+        Map<String, Object> answer = new HashMap<String, Object>();
+        answer.put(Communication.MESSAGE_TYPE, "stock");
+        answer.put("sku", request.getString("sku"));
+        answer.put("level", 42);
+        return answer;
+      }
+    });
+    Connection server = new Connection(null, config());
+    server.setRequestHandler(dispatcher, null);
+    Connection client = connect(server);
+    try {
+      String peer = client.getPeers().iterator().next();
+      Map<String, Object> request = new HashMap<String, Object>();
+      request.put(Communication.MESSAGE_TYPE, "lookup");
+      request.put("sku", "A1");
+      Frame answer = client.call(peer, MessageCodecs.toFrame(BinaryCodec.INSTANCE, request), 2000).get();
+      JSONObject values = BinaryCodec.INSTANCE.decode(answer.getData());
+      assertEquals("stock", values.getString(Communication.MESSAGE_TYPE));
+      assertEquals("A1", values.getString("sku"));
+      assertEquals(42, values.getInt("level"));
+
+      request.put(Communication.MESSAGE_TYPE, "unknown");
+      try {
+        client.call(peer, MessageCodecs.toFrame(BinaryCodec.INSTANCE, request), 2000).get();
+        fail("request of unknown type was answered");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    } finally {
+      client.closeConnection();
+      server.closeConnection();
+    }
+  }
+
+  private ConnectionConfig config() {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mMode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    return config;
+  }
+
+  private Connection connect(Connection server) throws Exception {
+    server.createServer();
+    int port = server.awaitLocalPort(2000);
+    Connection client = new Connection(null, config());
+    client.connectToServer(InetAddress.getByName("127.0.0.1"), port);
+    long end = System.currentTimeMillis() + 5000;
+    while (client.getPeerCount() == 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, client.getPeerCount());
+    return client;
+  }
+}
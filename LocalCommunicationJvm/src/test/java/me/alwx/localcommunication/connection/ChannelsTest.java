@@ -0,0 +1,168 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * logical channels over one peer socket on loopback, over both transports:
+ * control calls stay fast while bulk messages saturate a low-priority channel,
+ * and a channel's sender stops when receiver grants no more credit
+ *
+ * @author alwx
+ * @version 1.0
+ */
+@RunWith(Parameterized.class)
+public class ChannelsTest {
+  private static final int BULK_CHANNEL = 1;
+  private static final int BULK_SIZE = 65536;
+  private static final int CALLS = 500;
+  /**
+   * p99 of a control call behind 64 KB bulk messages in microseconds; it is about 5-10 ms on one CPU,
+   * whole messages without credit made it up to 90 ms
+   */
+  private static final long MAX_P99 = 20000;
+  private static final long TIMEOUT = 20000;
+
+  private final Connection.TransportMode mMode;
+  private Connection mServer;
+  private Connection mClient;
+  private String mPeer;
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> modes() {
+    List<Object[]> modes = new ArrayList<Object[]>();
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      modes.add(new Object[]{mode});
+    }
+    return modes;
+  }
+
+  public ChannelsTest(Connection.TransportMode mode) {
+    mMode = mode;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    mServer = new Connection(null, config());
+    mServer.setRequestHandler(new Connection.RequestHandler() {
+      @Override
+      public Frame onRequest(String peer, Frame request) {
+        return request;
+      }
+    }, null);
+    mServer.createServer();
+    mClient = new Connection(null, config());
+    mClient.openChannel(BULK_CHANNEL, Channel.PRIORITY_BULK, 64);
+    mClient.connectToServer(InetAddress.getByName("127.0.0.1"), mServer.awaitLocalPort(2000));
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while ((mClient.getPeerCount() == 0 || mServer.getPeerCount() == 0) && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    mPeer = mClient.getPeers().iterator().next();
+  }
+
+  @After
+  public void tearDown() {
+    mClient.closeConnection();
+    mServer.closeConnection();
+  }
+
+  @Test
+  public void keepsControlLatencyLowUnderBulk() throws Exception {
+    final AtomicInteger bulk = new AtomicInteger();
+    mServer.setFrameListener(new Connection.FrameListener() {
+      @Override
+      public void onFrame(String peer, Frame frame) {
+        assertEquals(BULK_SIZE, frame.getLength());
+        bulk.incrementAndGet();
+      }
+    }, null);
+    final AtomicBoolean done = new AtomicBoolean();
+    final Channel channel = mClient.getChannel(BULK_CHANNEL);
+    final Frame message = new Frame(Frame.TYPE_MESSAGE, (byte) 0, new byte[BULK_SIZE]);
+    Thread sender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!done.get() && channel.sendFrame(mPeer, message)) {
+          // lane is full most of the time, so this waits for space
+        }
+      }
+    });
+    sender.start();
+    try {
+      // let the bulk channel fill socket buffers first
+      Thread.sleep(200);
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int i = 0; i < CALLS; i++) {
+        long start = System.nanoTime();
+        mClient.call(mPeer, Frame.message("level?"), TIMEOUT).get();
+        histogram.record((System.nanoTime() - start) / 1000);
+      }
+      int delivered = bulk.get();
+      assertTrue("bulk channel made no progress", delivered > 10);
+      assertTrue("p50 " + histogram.getPercentile(50) + " us, p99 " + histogram.getPercentile(99)
+              + " us, " + delivered + " bulk messages",
+          histogram.getPercentile(99) < MAX_P99);
+    } finally {
+      done.set(true);
+      sender.join(TIMEOUT);
+    }
+  }
+
+  @Test
+  public void stopsSenderWhenReceiverGrantsNoCredit() throws Exception {
+    final int messages = 40;
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger received = new AtomicInteger();
+    // blocks the reading thread, so receiver consumes nothing more & grants no more credit
+    mServer.setFrameListener(new Connection.FrameListener() {
+      @Override
+      public void onFrame(String peer, Frame frame) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        assertEquals(BULK_SIZE, frame.getLength());
+        received.incrementAndGet();
+      }
+    }, null);
+    Channel channel = mClient.getChannel(BULK_CHANNEL);
+    for (int i = 0; i < messages; i++) {
+      assertTrue(channel.sendFrame(mPeer, new Frame(Frame.TYPE_MESSAGE, (byte) 0, new byte[BULK_SIZE])));
+    }
+    Thread.sleep(500);
+    // credit covers a few messages, socket buffers alone would take most of them
+    int queued = mClient.getQueueDepth(mPeer, BULK_CHANNEL);
+    assertTrue("only " + queued + " messages held back", queued >= messages - 8);
+
+    release.countDown();
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (received.get() < messages && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(messages, received.get());
+    assertEquals(0, mClient.getQueueDepth(mPeer, BULK_CHANNEL));
+  }
+
+  private ConnectionConfig config() {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mMode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    return config;
+  }
+}
@@ -0,0 +1,97 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.ServiceInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * wrapper's connection work on loopback
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class ConnectionWrapperTest {
+  private static final long TIMEOUT = 20000;
+
+  private Connection mServer;
+  private ConnectionWrapper mWrapper;
+
+  @Before
+  public void setUp() throws Exception {
+    mServer = new Connection();
+    mServer.createServer();
+    mServer.awaitLocalPort(2000);
+    mWrapper = new ConnectionWrapper(new NetworkDiscovery(new InterfaceAddressProvider()),
+        null, Executors.newSingleThreadExecutor());
+    mWrapper.getConfig().setReconnect(true);
+    mWrapper.getConfig().setReconnectDelay(50, 100);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    mWrapper.close().get();
+    mServer.closeConnection();
+  }
+
+  @Test
+  public void closesPreviousConnectionWhenConnectingAgain() throws Exception {
+    Inet4Address address = (Inet4Address) InetAddress.getByName("127.0.0.1");
+    for (int i = 0; i < 3; i++) {
+      mWrapper.connectToServer(address, mServer.getLocalPort(), null).get();
+    }
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (mServer.getPeerCount() != 1 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    // replaced connections would be reconnected by their supervisors by now
+    Thread.sleep(500);
+    assertEquals(1, mServer.getPeerCount());
+    assertEquals(1, mWrapper.getStats().size());
+  }
+
+  @Test
+  public void failsFuturesInsteadOfThrowingWhenExecutorIsBusy() throws Exception {
+    ConnectionWrapper wrapper = new ConnectionWrapper(new NetworkDiscovery(new InterfaceAddressProvider()),
+        null, new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(1)));
+    // selection holds the only thread for the whole discovery window
+    wrapper.getConfig().setDiscoveryWindow((int) TIMEOUT);
+    wrapper.connectToServer(ServerSelectors.lowestRtt(500), null, null);
+    Future<?> queued = wrapper.findServers(new NetworkDiscovery.OnFoundListener() {
+      @Override
+      public void onFound(ServiceInfo info) {
+      }
+    });
+    assertRejected(wrapper.startServer());
+    assertRejected(wrapper.connectToServer((Inet4Address) InetAddress.getByName("127.0.0.1"),
+        mServer.getLocalPort(), null));
+
+    wrapper.close().get(TIMEOUT, TimeUnit.MILLISECONDS);
+    assertTrue(queued.isDone());
+    assertRejected(wrapper.reset());
+  }
+
+  private static void assertRejected(Future<?> future) throws InterruptedException {
+    try {
+      future.get();
+      fail("task was not rejected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+}
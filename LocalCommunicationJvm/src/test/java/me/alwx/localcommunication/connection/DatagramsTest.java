@@ -0,0 +1,212 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * datagrams of connections sharing a multicast group on this host
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class DatagramsTest {
+  private static final int PORT = 42477;
+  private static final int PEERS = 5;
+
+  private InetAddress mGroup;
+  private final List<Connection> mConnections = new ArrayList<Connection>();
+
+  @Before
+  public void setUp() throws Exception {
+    mGroup = InetAddress.getByName("239.255.76.67");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (Connection connection : mConnections) {
+      connection.closeConnection();
+    }
+    // next test binds the same port
+    Thread.sleep(200);
+  }
+
+  @Test
+  public void deliversOneDatagramToAllPeers() throws Exception {
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      CollectingMetrics metrics = new CollectingMetrics();
+      Connection hub = open(mode, true, metrics);
+      AtomicInteger received = new AtomicInteger();
+      List<Connection> clients = connectClients(hub, mode, received);
+
+      Frame status = presence(0);
+      int messages = 50;
+      metrics.reset();
+      for (int i = 0; i < messages; i++) {
+        assertTrue(hub.sendDatagram(status));
+        if (i % 10 == 9) {
+          // loopback receive buffers are small
+          Thread.sleep(5);
+        }
+      }
+      await(received, messages * PEERS);
+      assertEquals(mode.toString(), messages * PEERS, received.get());
+      // one datagram a message, however many peers there are
+      assertEquals(messages * (status.getLength() + Datagrams.HEADER), metrics.getCount(Metrics.Counter.BYTES_OUT));
+      for (Connection client : clients) {
+        assertEquals(0, client.getDatagramsLost());
+      }
+      closeAll();
+    }
+  }
+
+  @Test
+  public void sendsTooBigMessageToPeers() throws Exception {
+    Connection hub = open(Connection.TransportMode.NIO, true, null);
+    AtomicInteger received = new AtomicInteger();
+    connectClients(hub, Connection.TransportMode.NIO, received);
+
+    assertFalse(hub.sendDatagram(presence(5000)));
+    await(received, PEERS);
+    assertEquals(PEERS, received.get());
+  }
+
+  @Test
+  public void sendsToPeersWithoutGroup() throws Exception {
+    Connection hub = open(Connection.TransportMode.NIO, false, null);
+    AtomicInteger received = new AtomicInteger();
+    connectClients(hub, Connection.TransportMode.NIO, received);
+
+    assertFalse(hub.sendDatagram(presence(0)));
+    await(received, PEERS);
+    assertEquals(PEERS, received.get());
+  }
+
+  @Test
+  public void dropsStaleDatagramsAndCountsGaps() throws Exception {
+    Connection receiver = open(Connection.TransportMode.NIO, true, null);
+    final List<String> texts = Collections.synchronizedList(new ArrayList<String>());
+    receiver.setFrameListener(new Connection.FrameListener() {
+      @Override
+      public void onFrame(String peer, Frame frame) {
+        texts.add(frame.getText());
+      }
+    }, null);
+    receiver.createServer();
+    receiver.awaitLocalPort(2000);
+
+    DatagramSocket socket = new DatagramSocket();
+    try {
+      for (int sequence : new int[]{1, 2, 6, 4, 6, 7, 10}) {
+        byte[] data = datagram(0x1234L, sequence, "m" + sequence);
+        socket.send(new DatagramPacket(data, data.length, mGroup, PORT));
+        Thread.sleep(20);
+      }
+      // not a datagram of ours
+      socket.send(new DatagramPacket(new byte[]{1, 2, 3}, 3, mGroup, PORT));
+      Thread.sleep(200);
+    } finally {
+      socket.close();
+    }
+    assertEquals(Arrays.asList("m1", "m2", "m6", "m7", "m10"), texts);
+    // 3, 4 & 5 before m6, 8 & 9 before m10
+    assertEquals(5, receiver.getDatagramsLost());
+  }
+
+  private Connection open(Connection.TransportMode mode, boolean group, Metrics metrics) {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    if (group) {
+      config.setDatagramGroup(mGroup, PORT);
+    }
+    if (metrics != null) {
+      config.setMetrics(metrics);
+    }
+    Connection connection = new Connection(null, config);
+    mConnections.add(connection);
+    return connection;
+  }
+
+  private List<Connection> connectClients(Connection hub, Connection.TransportMode mode,
+                                          final AtomicInteger received) throws Exception {
+    hub.createServer();
+    int port = hub.awaitLocalPort(2000);
+    List<Connection> clients = new ArrayList<Connection>();
+    for (int i = 0; i < PEERS; i++) {
+      Connection client = open(mode, true, null);
+      client.setFrameListener(new Connection.FrameListener() {
+        @Override
+        public void onFrame(String peer, Frame frame) {
+          received.incrementAndGet();
+        }
+      }, null);
+      client.connectToServer(InetAddress.getByName("127.0.0.1"), port);
+      clients.add(client);
+    }
+    long end = System.currentTimeMillis() + 5000;
+    while (hub.getPeerCount() < PEERS && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(PEERS, hub.getPeerCount());
+    return clients;
+  }
+
+  private void closeAll() throws Exception {
+    for (Connection connection : mConnections) {
+      connection.closeConnection();
+    }
+    mConnections.clear();
+    Thread.sleep(200);
+  }
+
+  private static Frame presence(int padding) {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put(Communication.MESSAGE_TYPE, "presence");
+    values.put("user", "alice");
+    values.put("battery", 87);
+    if (padding > 0) {
+      char[] pad = new char[padding];
+      Arrays.fill(pad, 'x');
+      values.put("pad", new String(pad));
+    }
+    return MessageCodecs.toFrame(BinaryCodec.INSTANCE, values);
+  }
+
+  /**
+   * builds datagram the way another device would, see {@link Datagrams}
+   */
+  private static byte[] datagram(long sender, int sequence, String text) throws Exception {
+    byte[] payload = text.getBytes("UTF-8");
+    byte[] data = new byte[Datagrams.HEADER + payload.length];
+    data[0] = (byte) 0xa7;
+    Transfers.putLong(data, 4, sender);
+    Transfers.putInt(data, 12, sequence);
+    System.arraycopy(payload, 0, data, Datagrams.HEADER, payload.length);
+    return data;
+  }
+
+  private static void await(AtomicInteger counter, int expected) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (counter.get() < expected && System.currentTimeMillis() < end) {
+      Thread.sleep(5);
+    }
+    // anything extra would show up now
+    Thread.sleep(100);
+  }
+}
@@ -0,0 +1,137 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * log-linear buckets of latency histogram: exact small values, bucket boundaries,
+ * percentile ranks & precision, highest value
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class LatencyHistogramTest {
+  @Test
+  public void isEmptyWithoutSamples() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void keepsValuesBelowSixteenExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 0; value < 16; value++) {
+      histogram.record(value);
+    }
+    for (int value = 0; value < 16; value++) {
+      assertEquals(value, histogram.getPercentile(100.0 * (value + 1) / 16));
+    }
+  }
+
+  @Test
+  public void reportsHighestValueOfBucket() {
+    // 16..31 have a bucket each, from 32 on buckets are 2 wide, from 64 on 4 wide and so on
+    assertEquals(16, single(16, 50));
+    assertEquals(31, single(31, 50));
+    assertEquals(33, bucket(32, 33));
+    assertEquals(35, bucket(34, 35));
+    assertEquals(67, bucket(64, 67));
+    assertEquals(1023, bucket(992, 1023));
+    assertEquals(1087, bucket(1024, 1087));
+  }
+
+  @Test
+  public void neverReportsMoreThanHighestValue() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(32);
+    histogram.record(40);
+    // 32 shares bucket with 33, 40 with 41, which was never recorded
+    assertEquals(33, histogram.getPercentile(50));
+    assertEquals(40, histogram.getPercentile(100));
+    assertEquals(40, histogram.getMax());
+  }
+
+  @Test
+  public void isPreciseToOneSixteenth() {
+    for (long value = 1; value < 100000000L; value = value * 3 / 2 + 1) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(value);
+      histogram.record(2 * value);
+      long reported = histogram.getPercentile(50);
+      assertTrue(value + " reported as " + reported, reported >= value && reported <= value + value / 16);
+    }
+  }
+
+  @Test
+  public void ranksPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 1; value <= 1000; value++) {
+      histogram.record(value);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1, histogram.getPercentile(0));
+    assertWithinBucket(500, histogram.getPercentile(50));
+    assertWithinBucket(900, histogram.getPercentile(90));
+    assertWithinBucket(990, histogram.getPercentile(99));
+    assertEquals(1000, histogram.getPercentile(100));
+    assertEquals(1000, histogram.getMax());
+  }
+
+  @Test
+  public void countsOutliersInLastBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(1L << 40);
+    assertEquals(2, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(1L << 40, histogram.getPercentile(100));
+    assertEquals(1L << 40, histogram.getMax());
+  }
+
+  @Test
+  public void copiesAndClears() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(100);
+    LatencyHistogram copy = histogram.copy();
+    histogram.clear();
+    histogram.record(5);
+    assertEquals(1, copy.getCount());
+    assertEquals(100, copy.getMax());
+    assertEquals(5, histogram.getPercentile(100));
+    assertEquals(5, histogram.getMax());
+  }
+
+  /**
+   * @return value histogram reports for the given percentile of a single sample
+   */
+  private static long single(long value, double percentile) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(value);
+    return histogram.getPercentile(percentile);
+  }
+
+  /**
+   * checks that both values fall into one bucket
+   *
+   * @return highest value of that bucket
+   */
+  private static long bucket(long lowest, long highest) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(lowest);
+    histogram.record(highest);
+    histogram.record(highest + 1);
+    long reported = histogram.getPercentile(50);
+    assertEquals(reported, histogram.getPercentile(10));
+    assertTrue(highest + 1 + " is in bucket of " + lowest, histogram.getPercentile(100) > reported);
+    return reported;
+  }
+
+  private static void assertWithinBucket(long expected, long reported) {
+    assertTrue(expected + " reported as " + reported, reported >= expected && reported <= expected + expected / 16);
+  }
+}
@@ -0,0 +1,111 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * round-trip time estimates of a link against RFC 6298 computed exactly:
+ * SRTT, RTTVAR & RTO after the first sample and after every later one
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class LinkStatsTest {
+  private static final double ALPHA = 1.0 / 8;
+  private static final double BETA = 1.0 / 4;
+  private static final int K = 4;
+  private static final long G = 1000;
+  /**
+   * estimates are reported in whole microseconds
+   */
+  private static final double TOLERANCE = 4;
+
+  @Test
+  public void hasNoEstimatesWithoutSamples() {
+    LinkStats stats = new Supervisor.Link(0).snapshot("peer", 0);
+    assertEquals(0, stats.getSmoothedRtt());
+    assertEquals(0, stats.getRttVariation());
+    assertEquals(0, stats.getRto());
+    assertEquals(0, stats.getRttSamples());
+  }
+
+  @Test
+  public void initializesFromFirstSample() {
+    Supervisor.Link link = new Supervisor.Link(0);
+    link.record(100000);
+    LinkStats stats = link.snapshot("peer", 0);
+    // SRTT <- R, RTTVAR <- R/2, RTO <- SRTT + max(G, K*RTTVAR)
+    assertEquals(100000, stats.getSmoothedRtt());
+    assertEquals(50000, stats.getRttVariation());
+    assertEquals(300000, stats.getRto());
+    assertEquals(100000, stats.getMinRtt());
+    assertEquals(100000, stats.getLastRtt());
+  }
+
+  @Test
+  public void updatesVariationBeforeAverage() {
+    Supervisor.Link link = new Supervisor.Link(0);
+    link.record(100000);
+    link.record(120000);
+    LinkStats stats = link.snapshot("peer", 0);
+    // RTTVAR uses SRTT from before the sample: 3/4 * 50000 + 1/4 * |100000 - 120000|
+    assertEquals(42500, stats.getRttVariation());
+    assertEquals(102500, stats.getSmoothedRtt());
+    assertEquals(272500, stats.getRto());
+
+    link.record(80000);
+    stats = link.snapshot("peer", 0);
+    // 3/4 * 42500 + 1/4 * |102500 - 80000|
+    assertEquals(37500, stats.getRttVariation());
+    // 7/8 * 102500 + 1/8 * 80000 = 99687.5
+    assertEquals(99687.5, stats.getSmoothedRtt(), 1);
+    assertEquals(99687.5 + K * 37500, stats.getRto(), 1);
+    assertEquals(80000, stats.getMinRtt());
+  }
+
+  @Test
+  public void followsReferenceSequence() {
+    Supervisor.Link link = new Supervisor.Link(0);
+    Random random = new Random(6298);
+    double srtt = 0;
+    double rttvar = 0;
+    for (int i = 0; i < 1000; i++) {
+      // Wi-Fi: a couple of milliseconds with occasional spikes & a slower stretch
+      long rtt = 2000 + random.nextInt(1000);
+      if (i % 50 == 0) {
+        rtt += 40000;
+      } else if (i >= 500 && i < 600) {
+        rtt += 8000;
+      }
+      link.record(rtt);
+      if (i == 0) {
+        srtt = rtt;
+        rttvar = rtt / 2.0;
+      } else {
+        rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+        srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+      }
+      double rto = srtt + Math.max(G, K * rttvar);
+
+      LinkStats stats = link.snapshot("peer", 0);
+      assertEquals("SRTT after sample " + i, srtt, stats.getSmoothedRtt(), TOLERANCE);
+      assertEquals("RTTVAR after sample " + i, rttvar, stats.getRttVariation(), TOLERANCE);
+      assertEquals("RTO after sample " + i, rto, stats.getRto(), (1 + K) * TOLERANCE);
+    }
+  }
+
+  @Test
+  public void keepsRtoAboveClockGranularity() {
+    Supervisor.Link link = new Supervisor.Link(0);
+    for (int i = 0; i < 100; i++) {
+      link.record(500);
+    }
+    LinkStats stats = link.snapshot("peer", 0);
+    assertEquals(500, stats.getSmoothedRtt());
+    assertEquals(0, stats.getRttVariation());
+    assertEquals(500 + G, stats.getRto());
+  }
+}
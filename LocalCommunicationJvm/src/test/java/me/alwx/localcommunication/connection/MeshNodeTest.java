@@ -0,0 +1,262 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * mesh nodes in one process, linked over loopback
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class MeshNodeTest {
+  private static final long TIMEOUT = 20000;
+
+  private InetAddress mLoopback;
+  private final List<Node> mNodes = new ArrayList<Node>();
+
+  @Before
+  public void setUp() throws Exception {
+    mLoopback = InetAddress.getByName("127.0.0.1");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (Node node : mNodes) {
+      node.mMesh.close();
+    }
+    Thread.sleep(200);
+  }
+
+  @Test
+  public void relaysAlongChain() throws Exception {
+    Node a = start(Connection.TransportMode.NIO, 1, 8);
+    Node b = start(Connection.TransportMode.NIO, 2, 8);
+    Node c = start(Connection.TransportMode.NIO, 1, 8);
+    a.mMesh.addNode(mLoopback, b.mPort);
+    c.mMesh.addNode(mLoopback, b.mPort);
+    awaitNeighbours(a, b, c);
+
+    a.mMesh.broadcast("from a");
+    c.mMesh.broadcast("from c");
+    awaitMessages(c, a, 1);
+    awaitMessages(a, c, 1);
+    assertEquals(Collections.singleton("from a"), c.from(a));
+    assertEquals(Collections.singleton("from c"), a.from(c));
+    assertEquals(2, b.mReceived.size());
+    assertEquals(Integer.valueOf(2), a.mMesh.getRoutes().get(c.mMesh.getNodeId()));
+
+    assertTrue(a.mMesh.send(c.mMesh.getNodeId(), "to c"));
+    awaitMessages(c, a, 2);
+    assertTrue(c.from(a).contains("to c"));
+    assertFalse(b.from(a).contains("to c"));
+  }
+
+  @Test
+  public void stopsAtTtl() throws Exception {
+    Node a = start(Connection.TransportMode.NIO, 1, 1);
+    Node b = start(Connection.TransportMode.NIO, 2, 8);
+    Node c = start(Connection.TransportMode.NIO, 1, 8);
+    a.mMesh.addNode(mLoopback, b.mPort);
+    c.mMesh.addNode(mLoopback, b.mPort);
+    awaitNeighbours(a, b, c);
+
+    a.mMesh.broadcast("x");
+    c.mMesh.broadcast("y");
+    awaitMessages(a, c, 1);
+    awaitMessages(b, a, 1);
+    Thread.sleep(300);
+    // one hop only
+    assertFalse(c.mReceived.containsKey(a.mMesh.getNodeId()));
+    a.mMesh.send(c.mMesh.getNodeId(), "direct");
+    Thread.sleep(300);
+    assertFalse(c.mReceived.containsKey(a.mMesh.getNodeId()));
+  }
+
+  @Test
+  public void linksNodesOnce() throws Exception {
+    Node s = start(Connection.TransportMode.BLOCKING, 2, 8);
+    Node t = start(Connection.TransportMode.BLOCKING, 2, 8);
+    s.mMesh.addNode(mLoopback, s.mPort);
+    s.mMesh.addNode(mLoopback, t.mPort);
+    t.mMesh.addNode(mLoopback, s.mPort);
+    awaitNeighbours(s, t);
+    Thread.sleep(1000);
+    assertEquals(Collections.singleton(t.mMesh.getNodeId()), s.mMesh.getNeighbours());
+    assertEquals(Collections.singleton(s.mMesh.getNodeId()), t.mMesh.getNeighbours());
+  }
+
+  @Test
+  public void deliversOnceAcrossLargeMeshAndHeals() throws Exception {
+    List<Node> nodes = new ArrayList<Node>();
+    for (int i = 0; i < 30; i++) {
+      nodes.add(start(Connection.TransportMode.NIO, 3, 8));
+    }
+    // every node learns of every other one, as discovery would report them
+    for (Node node : nodes) {
+      for (Node other : nodes) {
+        node.mMesh.addNode(mLoopback, other.mPort);
+      }
+    }
+    awaitNeighbours(nodes.toArray(new Node[nodes.size()]));
+    awaitDegree(nodes, 3);
+    broadcastRound(nodes, "b", 20);
+
+    List<Node> closed = new ArrayList<Node>(nodes.subList(0, 6));
+    for (Node node : closed) {
+      node.mMesh.close();
+    }
+    nodes.removeAll(closed);
+    awaitNeighbours(nodes.toArray(new Node[nodes.size()]));
+    awaitDegree(nodes, 3);
+    broadcastRound(nodes, "h", 20);
+  }
+
+  /**
+   * waits until every node has as many neighbours as it looks for, so links don't change under messages
+   */
+  private static void awaitDegree(List<Node> nodes, int neighbours) throws InterruptedException {
+    long end = System.currentTimeMillis() + TIMEOUT;
+    for (Node node : nodes) {
+      while (node.mMesh.getNeighbours().size() < neighbours && System.currentTimeMillis() < end) {
+        Thread.sleep(20);
+      }
+    }
+  }
+
+  /**
+   * every node broadcasts messages, each must reach every other node exactly once
+   */
+  private static void broadcastRound(List<Node> nodes, String prefix, int messages) throws InterruptedException {
+    for (Node node : nodes) {
+      node.mReceived.clear();
+      node.mCount.set(0);
+    }
+    for (int i = 0; i < messages; i++) {
+      for (Node node : nodes) {
+        node.mMesh.broadcast(prefix + i);
+      }
+    }
+    int expected = messages * (nodes.size() - 1);
+    for (Node node : nodes) {
+      long end = System.currentTimeMillis() + TIMEOUT;
+      while (node.mCount.get() < expected && System.currentTimeMillis() < end) {
+        Thread.sleep(10);
+      }
+    }
+    // anything delivered twice would show up now
+    Thread.sleep(300);
+    for (Node node : nodes) {
+      assertEquals(expected, node.mCount.get());
+      for (Node origin : nodes) {
+        if (origin != node) {
+          assertEquals(messages, node.from(origin).size());
+        }
+      }
+    }
+  }
+
+  private Node start(Connection.TransportMode mode, int neighbours, int ttl) throws Exception {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    config.setMeshNeighbours(neighbours);
+    config.setMeshTtl(ttl);
+    // forwarding never waits, so queues need room for bursts of broadcasts from all nodes
+    config.setQueueCapacity(4096);
+    Node node = new Node(new MeshNode(config));
+    node.mPort = node.mMesh.start();
+    mNodes.add(node);
+    return node;
+  }
+
+  /**
+   * waits until nodes are linked into one mesh
+   */
+  private static void awaitNeighbours(Node... nodes) throws InterruptedException {
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (!isConnected(nodes) && System.currentTimeMillis() < end) {
+      Thread.sleep(20);
+    }
+    assertTrue("mesh was not formed", isConnected(nodes));
+  }
+
+  private static boolean isConnected(Node... nodes) {
+    Set<String> reached = new HashSet<String>();
+    List<Node> queue = new ArrayList<Node>();
+    queue.add(nodes[0]);
+    reached.add(nodes[0].mMesh.getNodeId());
+    while (!queue.isEmpty()) {
+      Node node = queue.remove(0);
+      for (Node other : nodes) {
+        if (node.mMesh.getNeighbours().contains(other.mMesh.getNodeId())
+            && reached.add(other.mMesh.getNodeId())) {
+          queue.add(other);
+        }
+      }
+    }
+    return reached.size() == nodes.length;
+  }
+
+  private static void awaitMessages(Node node, Node origin, int count) throws InterruptedException {
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (node.from(origin).size() < count && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * mesh node & messages it got, by origin
+   */
+  static class Node implements MeshNode.MessageListener {
+    final MeshNode mMesh;
+    final ConcurrentMap<String, Set<String>> mReceived = new ConcurrentHashMap<String, Set<String>>();
+    final AtomicInteger mCount = new AtomicInteger();
+    int mPort;
+
+    Node(MeshNode mesh) {
+      mMesh = mesh;
+      mMesh.setMessageListener(this, null);
+    }
+
+    @Override
+    public void onMessage(String origin, Frame message) {
+      mCount.incrementAndGet();
+      Set<String> texts = mReceived.get(origin);
+      if (texts == null) {
+        texts = Collections.synchronizedSet(new HashSet<String>());
+        Set<String> existing = mReceived.putIfAbsent(origin, texts);
+        if (existing != null) {
+          texts = existing;
+        }
+      }
+      texts.add(message.getText());
+    }
+
+    Set<String> from(Node origin) {
+      Set<String> texts = mReceived.get(origin.mMesh.getNodeId());
+      if (texts == null) {
+        return Collections.emptySet();
+      }
+      synchronized (texts) {
+        return new HashSet<String>(texts);
+      }
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * one server holding as many concurrent peers as a warehouse hub does, on loopback over both transports:
+ * every peer connects and every message, from peers, to all of them & to one, is delivered
+ *
+ * @author alwx
+ * @version 1.0
+ */
+@RunWith(Parameterized.class)
+public class MultiPeerServerTest {
+  private static final int PEERS = 40;
+  private static final int MESSAGES = 200;
+  private static final long TIMEOUT = 30000;
+
+  private final Connection.TransportMode mMode;
+  private final ConcurrentMap<String, Set<String>> mFromPeers = new ConcurrentHashMap<String, Set<String>>();
+  private final List<Connection> mClients = new ArrayList<Connection>();
+  private final List<AtomicInteger> mReceived = new ArrayList<AtomicInteger>();
+  private Connection mServer;
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> modes() {
+    List<Object[]> modes = new ArrayList<Object[]>();
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      modes.add(new Object[]{mode});
+    }
+    return modes;
+  }
+
+  public MultiPeerServerTest(Connection.TransportMode mode) {
+    mMode = mode;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    mServer = new Connection(null, config());
+    mServer.setFrameListener(new Connection.FrameListener() {
+      @Override
+      public void onFrame(String peer, Frame frame) {
+        Set<String> texts = mFromPeers.get(peer);
+        if (texts == null) {
+          // with blocking transport every peer has its own reading thread
+          mFromPeers.putIfAbsent(peer, new HashSet<String>());
+          texts = mFromPeers.get(peer);
+        }
+        synchronized (texts) {
+          texts.add(frame.getText());
+        }
+      }
+    }, null);
+    mServer.createServer();
+    int port = mServer.awaitLocalPort(2000);
+    for (int i = 0; i < PEERS; i++) {
+      final AtomicInteger received = new AtomicInteger();
+      Connection client = new Connection(null, config());
+      client.setFrameListener(new Connection.FrameListener() {
+        @Override
+        public void onFrame(String peer, Frame frame) {
+          received.incrementAndGet();
+        }
+      }, null);
+      client.connectToServer(InetAddress.getByName("127.0.0.1"), port);
+      mClients.add(client);
+      mReceived.add(received);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    for (Connection client : mClients) {
+      client.closeConnection();
+    }
+    mServer.closeConnection();
+  }
+
+  @Test
+  public void deliversEveryMessageToAndFromEveryPeer() throws Exception {
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while ((mServer.getPeerCount() < PEERS || connectedClients() < PEERS) && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(PEERS, mServer.getPeerCount());
+    assertEquals(PEERS, connectedClients());
+
+    // all peers send at once, each message must reach server from the right peer
+    List<Thread> senders = new ArrayList<Thread>();
+    for (int i = 0; i < PEERS; i++) {
+      final Connection client = mClients.get(i);
+      final String name = "peer" + i;
+      Thread sender = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          String server = client.getPeers().iterator().next();
+          for (int j = 0; j < MESSAGES; j++) {
+            client.sendFrame(server, Frame.message(name + ":" + j));
+          }
+        }
+      });
+      sender.start();
+      senders.add(sender);
+    }
+    for (Thread sender : senders) {
+      sender.join(TIMEOUT);
+    }
+    end = System.currentTimeMillis() + TIMEOUT;
+    while (fromPeers() < PEERS * MESSAGES && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(PEERS * MESSAGES, fromPeers());
+    assertEquals(PEERS, mFromPeers.size());
+    Set<String> names = new HashSet<String>();
+    for (Set<String> texts : mFromPeers.values()) {
+      synchronized (texts) {
+        String name = texts.iterator().next().split(":")[0];
+        for (int j = 0; j < MESSAGES; j++) {
+          assertTrue(texts.contains(name + ":" + j));
+        }
+        names.add(name);
+      }
+    }
+    assertEquals(PEERS, names.size());
+
+    // broadcast reaches every peer, a message to one peer only that one
+    for (int j = 0; j < MESSAGES; j++) {
+      mServer.sendFrame(Frame.message("all:" + j));
+    }
+    String first = null;
+    for (String peer : mServer.getPeers()) {
+      first = peer;
+      break;
+    }
+    mServer.sendFrame(first, Frame.message("one"));
+    end = System.currentTimeMillis() + TIMEOUT;
+    while (toPeers() < PEERS * MESSAGES + 1 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(100);
+    int single = 0;
+    for (AtomicInteger received : mReceived) {
+      if (received.get() == MESSAGES + 1) {
+        single++;
+      } else {
+        assertEquals(MESSAGES, received.get());
+      }
+    }
+    assertEquals(1, single);
+  }
+
+  /**
+   * clients report server once handshake is done, a bit later than server reports them
+   */
+  private int connectedClients() {
+    int count = 0;
+    for (Connection client : mClients) {
+      count += client.getPeerCount();
+    }
+    return count;
+  }
+
+  private int fromPeers() {
+    int count = 0;
+    for (Set<String> texts : mFromPeers.values()) {
+      synchronized (texts) {
+        count += texts.size();
+      }
+    }
+    return count;
+  }
+
+  private int toPeers() {
+    int count = 0;
+    for (AtomicInteger received : mReceived) {
+      count += received.get();
+    }
+    return count;
+  }
+
+  private ConnectionConfig config() {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mMode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    config.setQueueCapacity(2 * MESSAGES);
+    return config;
+  }
+}
@@ -0,0 +1,104 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jmdns.ServiceInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * discovery on plain JVM, with addresses of network interfaces instead of Wi-Fi manager's;
+ * the class holds JmDNS for all its tests, so their timing doesn't depend on which tests ran before
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class NetworkDiscoveryTest {
+  private static final long TIMEOUT = 30000;
+
+  private static DiscoveryEngine sEngine;
+  private NetworkDiscovery mDiscovery;
+
+  @BeforeClass
+  public static void setUpEngine() {
+    sEngine = DiscoveryEngine.acquire(new InterfaceAddressProvider());
+  }
+
+  @AfterClass
+  public static void tearDownEngine() {
+    DiscoveryEngine.release(sEngine);
+  }
+
+  @Before
+  public void setUp() {
+    mDiscovery = new NetworkDiscovery(new InterfaceAddressProvider());
+  }
+
+  @After
+  public void tearDown() {
+    mDiscovery.close();
+  }
+
+  @Test
+  public void findsServerRegisteredOnThisHost() throws Exception {
+    InetAddress address = new InterfaceAddressProvider().getAddress();
+    assertNotNull(address);
+    ServiceProperties properties = new ServiceProperties();
+    properties.setLoad(40);
+
+    final AtomicReference<ServiceInfo> found = new AtomicReference<ServiceInfo>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    mDiscovery.findServers(new NetworkDiscovery.OnFoundListener() {
+      @Override
+      public void onFound(ServiceInfo info) {
+        if (info.getPort() == 42478) {
+          found.set(info);
+          latch.countDown();
+        }
+      }
+    });
+    // registered after browsing has started, so its announcement is heard instead of waiting for a query
+    mDiscovery.startServer(42478, properties);
+    assertTrue("server was not found", latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertEquals(40, ServiceProperties.from(found.get()).getLoad());
+    assertTrue(mDiscovery.getEngineStartupTime() >= 0);
+  }
+
+  @Test
+  public void measuresOverlappingSearchesOnTheirOwn() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    mDiscovery.findServers(new NetworkDiscovery.OnFoundListener() {
+      @Override
+      public void onFound(ServiceInfo info) {
+        if (info.getPort() == 42478) {
+          latch.countDown();
+        }
+      }
+    });
+    mDiscovery.findServers(new String[]{NetworkDiscovery.TYPE}, new NetworkDiscovery.ServiceFilter() {
+      @Override
+      public boolean accept(ServiceInfo info, ServiceProperties properties) {
+        return false;
+      }
+    }, new NetworkDiscovery.OnFoundListener() {
+      @Override
+      public void onFound(ServiceInfo info) {
+      }
+    });
+    mDiscovery.startServer(42478, new ServiceProperties());
+    assertTrue("server was not found", latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    // first search has found a server, the last one has not
+    assertEquals(-1, mDiscovery.getTimeToFirstPeer());
+  }
+}
@@ -0,0 +1,330 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * reliable sessions through a proxy that keeps breaking client's connections:
+ * some are dropped with everything in flight, others go on delivering stale data to server
+ * after client has reconnected, so frames of old & new connection arrive out of order
+ *
+ * @author alwx
+ * @version 1.0
+ */
+@RunWith(Parameterized.class)
+public class ReliabilityTest {
+  private static final int MESSAGES = 1000;
+  private static final long TIMEOUT = 60000;
+
+  private final Connection.TransportMode mMode;
+  private final Connection.FramingMode mFraming;
+  private final Random mRandom = new Random(42);
+  private FaultyProxy mProxy;
+  private Connection mServer;
+  private Connection mClient;
+
+  @Parameterized.Parameters(name = "{0} {1}")
+  public static Collection<Object[]> modes() {
+    List<Object[]> modes = new ArrayList<Object[]>();
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      modes.add(new Object[]{mode, Connection.FramingMode.BINARY});
+      modes.add(new Object[]{mode, Connection.FramingMode.LINE});
+    }
+    return modes;
+  }
+
+  public ReliabilityTest(Connection.TransportMode mode, Connection.FramingMode framing) {
+    mMode = mode;
+    mFraming = framing;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    ConnectionConfig serverConfig = config();
+    serverConfig.setReliableWindow(2 * MESSAGES);
+    mServer = new Connection(null, serverConfig);
+    mServer.createServer();
+    mProxy = new FaultyProxy(mServer.awaitLocalPort(2000), mRandom);
+
+    ConnectionConfig clientConfig = config();
+    clientConfig.setReliableWindow(64);
+    clientConfig.setReconnect(true);
+    clientConfig.setReconnectDelay(20, 200);
+    mClient = new Connection(null, clientConfig);
+  }
+
+  @After
+  public void tearDown() {
+    mClient.closeConnection();
+    mServer.closeConnection();
+    mProxy.close();
+  }
+
+  @Test
+  public void deliversExactlyOnceInOrder() throws Exception {
+    final List<String> atServer = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> atClient = Collections.synchronizedList(new ArrayList<String>());
+    mServer.setFrameListener(recorder(atServer), null);
+    mClient.setFrameListener(recorder(atClient), null);
+    mClient.connectToServer(InetAddress.getByName("127.0.0.1"), mProxy.getPort());
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (mServer.getPeerCount() == 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    // server's session starts with client's session frame, messages to all sent before it skip the client
+    Thread.sleep(200);
+
+    Thread breaker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            Thread.sleep(100 + mRandom.nextInt(300));
+            mProxy.breakLinks();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "Breaker");
+    breaker.start();
+    Thread serverSender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 1; i <= MESSAGES; i++) {
+          mServer.sendFrame(Frame.message("s" + i));
+        }
+      }
+    }, "Server sender");
+    serverSender.start();
+
+    String peer = "127.0.0.1:" + mProxy.getPort();
+    for (int i = 1; i <= MESSAGES; i++) {
+      // full window while client is away
+      while (!mClient.sendFrame(peer, Frame.message("c" + i))) {
+        Thread.sleep(5);
+      }
+    }
+    serverSender.join();
+    end = System.currentTimeMillis() + TIMEOUT;
+    while ((atServer.size() < MESSAGES || atClient.size() < MESSAGES) && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    breaker.interrupt();
+    breaker.join();
+    // anything delivered twice would show up now
+    Thread.sleep(500);
+
+    assertTrue("connections were not broken", mProxy.getBroken() > 0);
+    assertInOrder("c", atServer);
+    assertInOrder("s", atClient);
+  }
+
+  private ConnectionConfig config() {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mMode);
+    config.setFramingMode(mFraming);
+    config.setReliable(true);
+    config.setRetransmitTimeout(300);
+    return config;
+  }
+
+  private static Connection.FrameListener recorder(final List<String> texts) {
+    return new Connection.FrameListener() {
+      @Override
+      public void onFrame(String peer, Frame frame) {
+        texts.add(frame.getText());
+      }
+    };
+  }
+
+  private static void assertInOrder(String prefix, List<String> texts) {
+    synchronized (texts) {
+      for (int i = 0; i < texts.size(); i++) {
+        assertEquals(prefix + (i + 1), texts.get(i));
+      }
+      assertEquals(MESSAGES, texts.size());
+    }
+  }
+
+  /**
+   * proxy between client & server; data from client is queued & written with small delays
+   */
+  static class FaultyProxy {
+    /**
+     * how long a broken link goes on writing client's data to server
+     */
+    private static final long STALE_DELIVERY = 400;
+
+    private final ServerSocket mServerSocket;
+    private final int mTarget;
+    private final Random mRandom;
+    private final List<Link> mLinks = new CopyOnWriteArrayList<Link>();
+    private volatile int mBroken;
+
+    FaultyProxy(int target, Random random) throws IOException {
+      mServerSocket = new ServerSocket(0);
+      mTarget = target;
+      mRandom = random;
+      start(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (true) {
+              Socket client = mServerSocket.accept();
+              Link link = new Link(client, new Socket("127.0.0.1", mTarget));
+              mLinks.add(link);
+              link.start();
+            }
+          } catch (IOException e) {
+            // proxy closed
+          }
+        }
+      });
+    }
+
+    int getPort() {
+      return mServerSocket.getLocalPort();
+    }
+
+    int getBroken() {
+      return mBroken;
+    }
+
+    /**
+     * breaks all links, each is either dropped or left delivering stale data for a while
+     */
+    void breakLinks() {
+      for (Link link : mLinks) {
+        mLinks.remove(link);
+        link.breakLink(mRandom.nextBoolean());
+        mBroken++;
+      }
+    }
+
+    void close() {
+      closeQuietly(mServerSocket);
+      for (Link link : mLinks) {
+        link.breakLink(true);
+      }
+    }
+
+    private static void start(Runnable runnable) {
+      Thread thread = new Thread(runnable, "Proxy");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+    }
+
+    private class Link {
+      private final Socket mClient;
+      private final Socket mServer;
+      private final LinkedBlockingQueue<byte[]> mUpstream = new LinkedBlockingQueue<byte[]>();
+      private volatile boolean mDropped;
+      private volatile long mDeadline = Long.MAX_VALUE;
+
+      Link(Socket client, Socket server) {
+        mClient = client;
+        mServer = server;
+      }
+
+      void start() throws IOException {
+        final InputStream clientIn = mClient.getInputStream();
+        final OutputStream serverOut = mServer.getOutputStream();
+        final InputStream serverIn = mServer.getInputStream();
+        final OutputStream clientOut = mClient.getOutputStream();
+        FaultyProxy.start(new Runnable() {
+          @Override
+          public void run() {
+            byte[] buffer = new byte[4096];
+            int read;
+            try {
+              while ((read = clientIn.read(buffer)) >= 0) {
+                mUpstream.add(Arrays.copyOf(buffer, read));
+              }
+            } catch (IOException e) {
+              // link broken
+            }
+          }
+        });
+        FaultyProxy.start(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              while (!mDropped && System.currentTimeMillis() < mDeadline) {
+                byte[] data = mUpstream.poll(50, TimeUnit.MILLISECONDS);
+                if (data != null) {
+                  Thread.sleep(mRandom.nextInt(3));
+                  serverOut.write(data);
+                  serverOut.flush();
+                }
+              }
+            } catch (Exception e) {
+              // link broken
+            }
+            closeQuietly(mServer);
+          }
+        });
+        FaultyProxy.start(new Runnable() {
+          @Override
+          public void run() {
+            byte[] buffer = new byte[4096];
+            int read;
+            try {
+              while ((read = serverIn.read(buffer)) >= 0) {
+                clientOut.write(buffer, 0, read);
+                clientOut.flush();
+              }
+            } catch (IOException e) {
+              // link broken
+            }
+            closeQuietly(mClient);
+          }
+        });
+      }
+
+      /**
+       * @param drop true to lose everything in flight, false to go on writing it to server
+       *             while client is already on a new connection
+       */
+      void breakLink(boolean drop) {
+        closeQuietly(mClient);
+        if (drop) {
+          mDropped = true;
+          closeQuietly(mServer);
+        } else {
+          mDeadline = System.currentTimeMillis() + STALE_DELIVERY;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * local copy of a sent frame (e.g. the one a handler shows as sent) is reported only
+ * once the frame is written to the socket, not when it is queued
+ *
+ * @author alwx
+ * @version 1.0
+ */
+@RunWith(Parameterized.class)
+public class SentFramesTest {
+  private static final int MESSAGES = 1000;
+  /**
+   * all messages together are far more than socket buffers hold
+   */
+  private static final int MESSAGE_SIZE = 32768;
+  private static final long TIMEOUT = 20000;
+
+  private final Connection.TransportMode mMode;
+  private final CollectingMetrics mMetrics = new CollectingMetrics();
+  private Connection mServer;
+  private Socket mClient;
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> modes() {
+    List<Object[]> modes = new ArrayList<Object[]>();
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      modes.add(new Object[]{mode});
+    }
+    return modes;
+  }
+
+  public SentFramesTest(Connection.TransportMode mode) {
+    mMode = mode;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mMode);
+    config.setQueueCapacity(2 * MESSAGES);
+    config.setMetrics(mMetrics);
+    mServer = new Connection(null, config);
+    mServer.createServer();
+    // plain socket in line mode, it reads only when told to
+    mClient = new Socket("127.0.0.1", mServer.awaitLocalPort(2000));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    mClient.close();
+    mServer.closeConnection();
+  }
+
+  @Test
+  public void reportsFramesAsSentOnlyOnceWritten() throws Exception {
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (mServer.getPeerCount() == 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    String peer = mServer.getPeers().iterator().next();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < MESSAGE_SIZE; i++) {
+      text.append('x');
+    }
+    for (int i = 0; i < MESSAGES; i++) {
+      assertTrue(mServer.sendFrame(peer, Frame.message(text.toString())));
+    }
+    Thread.sleep(500);
+    long sent = mMetrics.getCount(Metrics.Counter.MESSAGES_OUT);
+    assertTrue("queued frames reported as sent: " + sent, sent < MESSAGES);
+
+    InputStream input = mClient.getInputStream();
+    byte[] buffer = new byte[65536];
+    int lines = 0;
+    while (lines < MESSAGES) {
+      int read = input.read(buffer);
+      for (int i = 0; i < read; i++) {
+        if (buffer[i] == '\n') {
+          lines++;
+        }
+      }
+    }
+    end = System.currentTimeMillis() + TIMEOUT;
+    while (mMetrics.getCount(Metrics.Counter.MESSAGES_OUT) < MESSAGES && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(MESSAGES, mMetrics.getCount(Metrics.Counter.MESSAGES_OUT));
+  }
+}
@@ -0,0 +1,206 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jmdns.ServiceInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * selectors choosing among stand-in servers that run in this process & are found by discovery
+ * like real ones: "Hub0".."Hub3" accept connections, "Hub4" is gone but still advertised
+ *
+ * @author alwx
+ * @version 1.0
+ */
+public class ServerSelectorsTest {
+  private static final int[] CLIENTS = {5, 2, 2, 7, 0};
+  private static final int DEAD = 4;
+  private static final long TIMEOUT = 20000;
+
+  private static DiscoveryEngine sEngine;
+  private static final List<Connection> sServers = new ArrayList<Connection>();
+  private static final List<Object> sRegistrations = new ArrayList<Object>();
+  private static final Map<String, ServiceInfo> sFound = new LinkedHashMap<String, ServiceInfo>();
+
+  @BeforeClass
+  public static void setUpServers() throws Exception {
+    sEngine = DiscoveryEngine.acquire(new InterfaceAddressProvider());
+    for (int i = 0; i < CLIENTS.length; i++) {
+      int port;
+      if (i == DEAD) {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+      } else {
+        Connection server = new Connection();
+        server.createServer();
+        port = server.awaitLocalPort(2000);
+        sServers.add(server);
+      }
+      ServiceProperties properties = new ServiceProperties();
+      properties.setClientCount(CLIENTS[i]);
+      sRegistrations.add(sEngine.register(NetworkDiscovery.TYPE, "Hub" + i, port, properties.toMap()));
+    }
+
+    NetworkDiscovery.OnFoundListener listener = new NetworkDiscovery.OnFoundListener() {
+      @Override
+      public void onFound(ServiceInfo info) {
+        if (info.getName().startsWith("Hub") && info.getInet4Addresses().length > 0) {
+          synchronized (sFound) {
+            sFound.put(info.getName(), info);
+          }
+        }
+      }
+    };
+    sEngine.browse(NetworkDiscovery.TYPE, listener);
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (candidates().size() < CLIENTS.length && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    sEngine.stopBrowsing(NetworkDiscovery.TYPE, listener);
+    assertEquals("stand-in servers were not found", CLIENTS.length, candidates().size());
+  }
+
+  @AfterClass
+  public static void tearDownServers() {
+    for (Object registration : sRegistrations) {
+      sEngine.unregister(registration);
+    }
+    for (Connection server : sServers) {
+      server.closeConnection();
+    }
+    DiscoveryEngine.release(sEngine);
+  }
+
+  @Test
+  public void spreadsClientsAmongLeastConnectedServers() {
+    ServerSelector selector = ServerSelectors.leastConnections();
+    Map<String, Integer> chosen = new HashMap<String, Integer>();
+    for (int i = 0; i < 200; i++) {
+      String name = selector.select(without(DEAD)).getName();
+      chosen.put(name, chosen.containsKey(name) ? chosen.get(name) + 1 : 1);
+    }
+    assertEquals(new HashSet<String>(Arrays.asList("Hub1", "Hub2")), chosen.keySet());
+    assertTrue(chosen.get("Hub1") > 50);
+    assertTrue(chosen.get("Hub2") > 50);
+  }
+
+  @Test
+  public void skipsUnreachableServer() {
+    ServerSelector selector = ServerSelectors.lowestRtt(500);
+    for (int i = 0; i < 5; i++) {
+      assertFalse("Hub4".equals(selector.select(candidates()).getName()));
+    }
+    List<ServiceInfo> dead = new ArrayList<ServiceInfo>();
+    dead.add(candidate("Hub4"));
+    assertNull(selector.select(dead));
+  }
+
+  @Test
+  public void movesOnlyDevicesOfServerThatIsGone() {
+    List<ServiceInfo> all = without(DEAD);
+    Map<String, String> assigned = new HashMap<String, String>();
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (int i = 0; i < 1000; i++) {
+      String device = "device" + i;
+      String name = ServerSelectors.consistentHash(device).select(all).getName();
+      // same device, same server
+      assertEquals(name, ServerSelectors.consistentHash(device).select(all).getName());
+      assigned.put(device, name);
+      counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+    }
+    assertEquals(all.size(), counts.size());
+    for (int count : counts.values()) {
+      assertTrue("uneven spread " + counts, count > 100);
+    }
+
+    List<ServiceInfo> fewer = without(DEAD, 0);
+    for (Map.Entry<String, String> entry : assigned.entrySet()) {
+      String name = ServerSelectors.consistentHash(entry.getKey()).select(fewer).getName();
+      if (!entry.getValue().equals("Hub0")) {
+        assertEquals(entry.getValue(), name);
+      }
+    }
+  }
+
+  @Test
+  public void wrapperConnectsToChosenServer() throws Exception {
+    ConnectionWrapper wrapper = new ConnectionWrapper(new NetworkDiscovery(new InterfaceAddressProvider()),
+        null, Executors.newSingleThreadExecutor());
+    wrapper.getConfig().setDiscoveryWindow(500);
+    final CountDownLatch connected = new CountDownLatch(1);
+    final CountDownLatch selected = new CountDownLatch(1);
+    final AtomicReference<ServiceInfo> chosen = new AtomicReference<ServiceInfo>();
+    try {
+      wrapper.connectToServer(ServerSelectors.lowestRtt(500), new Connection.ConnectionListener() {
+        @Override
+        public void onConnection() {
+          connected.countDown();
+        }
+      }, new ConnectionWrapper.OnSelectedListener() {
+        @Override
+        public void onSelected(ServiceInfo info) {
+          chosen.set(info);
+          selected.countDown();
+        }
+      });
+      assertTrue("no server was selected", selected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+      assertTrue("selected server was not connected", connected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+      // server that is gone is advertised too, but can't be chosen
+      ServiceInfo info = chosen.get();
+      assertFalse("Hub4".equals(info.getName()));
+      String peer = info.getInet4Addresses()[0].getHostAddress() + ":" + info.getPort();
+      assertEquals(Collections.singleton(peer), wrapper.getStats().keySet());
+    } finally {
+      wrapper.close().get();
+    }
+  }
+
+  private static List<ServiceInfo> candidates() {
+    synchronized (sFound) {
+      return new ArrayList<ServiceInfo>(sFound.values());
+    }
+  }
+
+  private static ServiceInfo candidate(String name) {
+    synchronized (sFound) {
+      return sFound.get(name);
+    }
+  }
+
+  private static List<ServiceInfo> without(int... servers) {
+    Set<String> excluded = new HashSet<String>();
+    for (int server : servers) {
+      excluded.add("Hub" + server);
+    }
+    List<ServiceInfo> infos = new ArrayList<ServiceInfo>();
+    for (ServiceInfo info : candidates()) {
+      if (!excluded.contains(info.getName())) {
+        infos.add(info);
+      }
+    }
+    return infos;
+  }
+}
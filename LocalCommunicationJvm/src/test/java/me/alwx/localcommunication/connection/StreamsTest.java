@@ -0,0 +1,153 @@
+package me.alwx.localcommunication.connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * bulk stream on loopback over both transports, with messages sent to the same peer meanwhile:
+ * the stream arrives byte for byte, messages arrive all & in order and some go between chunks
+ *
+ * @author alwx
+ * @version 1.0
+ */
+@RunWith(Parameterized.class)
+public class StreamsTest {
+  private static final int STREAM_SIZE = 4 * 1024 * 1024 + 123;
+  private static final long TIMEOUT = 30000;
+
+  private final Connection.TransportMode mMode;
+  private Connection mServer;
+  private Connection mClient;
+  private String mPeer;
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> modes() {
+    List<Object[]> modes = new ArrayList<Object[]>();
+    for (Connection.TransportMode mode : Connection.TransportMode.values()) {
+      modes.add(new Object[]{mode});
+    }
+    return modes;
+  }
+
+  public StreamsTest(Connection.TransportMode mode) {
+    mMode = mode;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    mServer = new Connection(null, config());
+    mServer.createServer();
+    mClient = new Connection(null, config());
+    mClient.connectToServer(InetAddress.getByName("127.0.0.1"), mServer.awaitLocalPort(2000));
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while ((mClient.getPeerCount() == 0 || mServer.getPeerCount() == 0) && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    mPeer = mClient.getPeers().iterator().next();
+  }
+
+  @After
+  public void tearDown() {
+    mClient.closeConnection();
+    mServer.closeConnection();
+  }
+
+  @Test
+  public void deliversStreamIntactBetweenMessages() throws Exception {
+    byte[] data = new byte[STREAM_SIZE];
+    new Random(42).nextBytes(data);
+    final AtomicBoolean streaming = new AtomicBoolean();
+    final AtomicReference<byte[]> streamed = new AtomicReference<byte[]>();
+    final CountDownLatch streamEnded = new CountDownLatch(1);
+    mServer.setStreamListener(new Connection.StreamListener() {
+      @Override
+      public void onStream(IncomingStream stream) {
+        streaming.set(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3000];
+        int count;
+        try {
+          while ((count = stream.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+          }
+          streamed.set(out.toByteArray());
+        } catch (IOException e) {
+          // streamed stays empty
+        } finally {
+          streaming.set(false);
+          streamEnded.countDown();
+        }
+      }
+    });
+    final List<String> messages = new ArrayList<String>();
+    final AtomicInteger duringStream = new AtomicInteger();
+    mServer.setFrameListener(new Connection.FrameListener() {
+      @Override
+      public void onFrame(String peer, Frame frame) {
+        if (streaming.get()) {
+          duringStream.incrementAndGet();
+        }
+        synchronized (messages) {
+          messages.add(frame.getText());
+        }
+      }
+    }, null);
+
+    StreamTransfer transfer = mClient.sendStream(mPeer, new ByteArrayInputStream(data), data.length,
+        "stock.db", 0, null);
+    int sent = 0;
+    while (!transfer.isDone()) {
+      assertTrue(mClient.sendFrame(mPeer, Frame.message("message " + sent)));
+      sent++;
+      Thread.sleep(1);
+    }
+    assertTrue(streamEnded.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertArrayEquals(data, streamed.get());
+
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while (count(messages) < sent && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    synchronized (messages) {
+      assertEquals(sent, messages.size());
+      for (int i = 0; i < sent; i++) {
+        assertEquals("message " + i, messages.get(i));
+      }
+    }
+    assertTrue("no message arrived while streaming", duringStream.get() > 0);
+  }
+
+  private static int count(List<String> messages) {
+    synchronized (messages) {
+      return messages.size();
+    }
+  }
+
+  private ConnectionConfig config() {
+    ConnectionConfig config = new ConnectionConfig();
+    config.setTransportMode(mMode);
+    config.setFramingMode(Connection.FramingMode.BINARY);
+    return config;
+  }
+}